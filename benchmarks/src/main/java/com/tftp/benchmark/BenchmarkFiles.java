@@ -0,0 +1,48 @@
+package com.tftp.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// Fixtures shared by the transfer benchmarks: seeded file contents so every run moves the same
+// bytes, and a way to keep the server's per-block console logging out of the measurements.
+final class BenchmarkFiles {
+    private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+    private BenchmarkFiles() {
+    }
+
+    static Path createDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix);
+    }
+
+    static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    static void write(Path file, int size) throws IOException {
+        Files.write(file, content(size));
+    }
+
+    static void delete(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory))
+            return;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    // The forked benchmark JVM only reports through JMH's own channel, so dropping stdout and
+    // stderr there silences Logger without touching the results.
+    static void silenceConsole() {
+        System.setOut(DISCARD);
+        System.setErr(DISCARD);
+    }
+}
@@ -0,0 +1,181 @@
+package com.tftp.benchmark;
+
+import com.tftp.io.server.ClientHandler;
+import com.tftp.io.server.ServerConfig;
+import com.tftp.model.packet.PacketReader;
+import com.tftp.model.packet.PacketWriter;
+import com.tftp.model.packet.TFTPRequest;
+import com.tftp.model.protocol.TFTPProtocol;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// One ClientHandler read or write loop per operation, driven over loopback by a minimal in-process
+// peer instead of TFTPClient so the numbers reflect the handler alone. The megabytes counter turns
+// into MB/s next to the ops/s score.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class ClientHandlerBenchmark {
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Transferred {
+        public double megabytes;
+    }
+
+    @Param({"65536", "1048576", "16777216"})
+    public int fileSize;
+
+    @Param({"512", "1428", "8192"})
+    public int blockSize;
+
+    @Param({"1", "16"})
+    public int windowSize;
+
+    private Path root;
+    private DatagramSocket peer;
+    private ExecutorService handlers;
+    private ServerConfig config;
+    private byte[] readRequest;
+    private byte[] upload;
+    private byte[] receiveBuffer;
+    private final PacketReader reader = new PacketReader();
+    private final ByteBuffer ackBuffer = ByteBuffer.allocate(TFTPProtocol.HEADER_SIZE);
+    private ByteBuffer dataBuffer;
+    private int uploads;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkFiles.silenceConsole();
+        root = BenchmarkFiles.createDirectory("tftp-handler-bench");
+        BenchmarkFiles.write(root.resolve("download.bin"), fileSize);
+        upload = BenchmarkFiles.content(fileSize);
+
+        config = new ServerConfig();
+        config.setPathMtuClamp(false);
+        config.setMaxWindowSize(Math.max(windowSize, config.getMaxWindowSize()));
+
+        peer = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        peer.setSoTimeout(5000);
+        peer.setReceiveBufferSize(4 * windowSize * (TFTPProtocol.HEADER_SIZE + blockSize));
+        handlers = Executors.newCachedThreadPool();
+
+        readRequest = request(TFTPProtocol.RRQ, "download.bin");
+        receiveBuffer = new byte[TFTPProtocol.HEADER_SIZE + blockSize];
+        dataBuffer = ByteBuffer.allocate(TFTPProtocol.HEADER_SIZE + blockSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        peer.close();
+        handlers.shutdownNow();
+        BenchmarkFiles.delete(root);
+    }
+
+    @Benchmark
+    public long readLoop(Transferred transferred) throws IOException {
+        start(readRequest);
+        SocketAddress handler = awaitOptionAck();
+        send(PacketWriter.ack(ackBuffer, (short) 0), handler);
+
+        long received = 0;
+        short expected = 1;
+        int inWindow = 0;
+        while (true) {
+            DatagramPacket packet = receive();
+            reader.wrap(receiveBuffer, packet.getLength());
+            if (reader.opcode() != TFTPProtocol.DATA)
+                throw new IOException("Unexpected opcode " + reader.opcode());
+            if (reader.blockNumber() != expected)
+                throw new IOException("Out of order block " + reader.blockNumber() + ", expected " + expected);
+
+            received += reader.payloadLength();
+            boolean last = reader.payloadLength() < blockSize;
+            if (last || ++inWindow == windowSize) {
+                send(PacketWriter.ack(ackBuffer, expected), handler);
+                inWindow = 0;
+            }
+            if (last)
+                break;
+            expected++;
+        }
+
+        transferred.megabytes += received / 1048576.0;
+        return received;
+    }
+
+    @Benchmark
+    public long writeLoop(Transferred transferred) throws IOException {
+        String name = "upload-" + uploads++ + ".bin";
+        start(request(TFTPProtocol.WRQ, name));
+        SocketAddress handler = awaitOptionAck();
+
+        long lastBlock = fileSize / blockSize + 1;
+        long base = 1;
+        while (base <= lastBlock) {
+            long end = Math.min(base + windowSize, lastBlock + 1);
+            for (long block = base; block < end; block++) {
+                int offset = (int) ((block - 1) * blockSize);
+                int length = Math.min(blockSize, fileSize - offset);
+                send(PacketWriter.data(dataBuffer, (short) block, upload, offset, length), handler);
+            }
+
+            reader.wrap(receiveBuffer, receive().getLength());
+            if (reader.opcode() != TFTPProtocol.ACK)
+                throw new IOException("Unexpected opcode " + reader.opcode());
+            base += ((reader.blockNumber() - (short) base) & 0xFFFF) + 1;
+        }
+
+        Files.deleteIfExists(root.resolve(name));
+        transferred.megabytes += fileSize / 1048576.0;
+        return fileSize;
+    }
+
+    private byte[] request(short opcode, String filename) {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put(TFTPProtocol.OPTION_BLKSIZE, Integer.toString(blockSize));
+        options.put(TFTPProtocol.OPTION_WINDOWSIZE, Integer.toString(windowSize));
+        return new TFTPRequest(opcode, filename, TFTPProtocol.MODE_OCTET, options).toBytes();
+    }
+
+    // The handler takes the initial packet's source as its client, so the request is handed over
+    // as if it had arrived from the peer socket.
+    private void start(byte[] request) {
+        DatagramPacket initial = new DatagramPacket(request, request.length, peer.getLocalAddress(), peer.getLocalPort());
+        handlers.execute(new ClientHandler(initial, root.toString(), config));
+    }
+
+    private SocketAddress awaitOptionAck() throws IOException {
+        DatagramPacket packet = receive();
+        reader.wrap(receiveBuffer, packet.getLength());
+        if (reader.opcode() != TFTPProtocol.OACK)
+            throw new IOException("Expected OACK, received opcode " + reader.opcode());
+        return packet.getSocketAddress();
+    }
+
+    private DatagramPacket receive() throws IOException {
+        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        peer.receive(packet);
+        return packet;
+    }
+
+    private void send(ByteBuffer packet, SocketAddress to) throws IOException {
+        peer.send(new DatagramPacket(packet.array(), packet.limit(), to));
+    }
+}
@@ -0,0 +1,109 @@
+package com.tftp.benchmark;
+
+import com.tftp.model.packet.PacketReader;
+import com.tftp.model.packet.PacketWriter;
+import com.tftp.model.packet.TFTPAck;
+import com.tftp.model.packet.TFTPData;
+import com.tftp.model.packet.TFTPRequest;
+import com.tftp.model.protocol.TFTPProtocol;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Encode and decode cost of each packet type, comparing the allocating wrapper classes with the
+// flyweight codec the transfer loops use. Run with the gc profiler to see bytes allocated per op.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class PacketCodecBenchmark {
+
+    @Param({"512", "1428", "8192"})
+    public int blockSize;
+
+    private byte[] payload;
+    private byte[] dataPacket;
+    private byte[] ackPacket;
+    private byte[] requestPacket;
+    private TFTPRequest request;
+
+    private final PacketReader reader = new PacketReader();
+    private ByteBuffer dataBuffer;
+    private final ByteBuffer ackBuffer = ByteBuffer.allocate(TFTPProtocol.HEADER_SIZE);
+
+    @Setup
+    public void setUp() {
+        payload = new byte[blockSize];
+        new Random(42).nextBytes(payload);
+        dataPacket = new TFTPData((short) 1234, payload).toBytes();
+        ackPacket = new TFTPAck((short) 1234).toBytes();
+        dataBuffer = ByteBuffer.allocate(TFTPProtocol.HEADER_SIZE + blockSize);
+
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put(TFTPProtocol.OPTION_BLKSIZE, Integer.toString(blockSize));
+        options.put(TFTPProtocol.OPTION_WINDOWSIZE, "16");
+        request = new TFTPRequest(TFTPProtocol.RRQ, "pxelinux.0", TFTPProtocol.MODE_OCTET, options);
+        requestPacket = request.toBytes();
+    }
+
+    @Benchmark
+    public byte[] dataEncodeWrapper() {
+        return new TFTPData((short) 1234, payload).toBytes();
+    }
+
+    @Benchmark
+    public ByteBuffer dataEncodeFlyweight() {
+        return PacketWriter.data(dataBuffer, (short) 1234, payload, 0, payload.length);
+    }
+
+    @Benchmark
+    public TFTPData dataDecodeWrapper() {
+        return TFTPData.fromBytes(dataPacket, dataPacket.length);
+    }
+
+    @Benchmark
+    public void dataDecodeFlyweight(Blackhole blackhole) {
+        reader.wrap(dataPacket, dataPacket.length);
+        blackhole.consume(reader.opcode());
+        blackhole.consume(reader.blockNumber());
+        blackhole.consume(reader.payloadOffset());
+        blackhole.consume(reader.payloadLength());
+    }
+
+    @Benchmark
+    public byte[] ackEncodeWrapper() {
+        return new TFTPAck((short) 1234).toBytes();
+    }
+
+    @Benchmark
+    public ByteBuffer ackEncodeFlyweight() {
+        return PacketWriter.ack(ackBuffer, (short) 1234);
+    }
+
+    @Benchmark
+    public TFTPAck ackDecodeWrapper() {
+        return TFTPAck.fromBytes(ackPacket, ackPacket.length);
+    }
+
+    @Benchmark
+    public short ackDecodeFlyweight() {
+        return reader.wrap(ackPacket, ackPacket.length).blockNumber();
+    }
+
+    @Benchmark
+    public byte[] requestEncode() {
+        return request.toBytes();
+    }
+
+    @Benchmark
+    public TFTPRequest requestDecode() {
+        return TFTPRequest.fromBytes(requestPacket, requestPacket.length);
+    }
+}
@@ -0,0 +1,120 @@
+package com.tftp.benchmark;
+
+import com.tftp.io.client.TFTPClient;
+import com.tftp.io.server.ServerConfig;
+import com.tftp.io.server.TFTPServer;
+import com.tftp.model.client.ClientModel;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Concurrent downloads of one file from a running TFTPServer, the PXE boot storm case. Every
+// operation starts clientCount TFTPClient downloads at once and completes when all of them have.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServerThroughputBenchmark {
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Transferred {
+        public double megabytes;
+        public double sessions;
+    }
+
+    @Param({"1048576", "16777216"})
+    public int fileSize;
+
+    @Param({"512", "1428", "8192"})
+    public int blockSize;
+
+    @Param({"1", "16"})
+    public int windowSize;
+
+    @Param({"1", "16", "64"})
+    public int clientCount;
+
+    @Param({"THREADS", "SELECTOR"})
+    public ServerConfig.Engine engine;
+
+    private Path serverRoot;
+    private Path clientRoot;
+    private TFTPServer server;
+    private List<TFTPClient> clients;
+    private ExecutorService clientThreads;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkFiles.silenceConsole();
+        serverRoot = BenchmarkFiles.createDirectory("tftp-server-bench");
+        clientRoot = BenchmarkFiles.createDirectory("tftp-client-bench");
+        BenchmarkFiles.write(serverRoot.resolve("boot.img"), fileSize);
+
+        ServerConfig config = new ServerConfig();
+        config.setEngine(engine);
+        config.setThreadPoolSize(Math.max(clientCount, config.getThreadPoolSize()));
+        config.setPathMtuClamp(false);
+
+        int port = freePort();
+        server = new TFTPServer(port, serverRoot.toString(), config);
+        Thread serverThread = new Thread(server::start, "tftp-bench-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(200);
+
+        clients = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            Path directory = clientRoot.resolve("client-" + i);
+            TFTPClient client = new TFTPClient("127.0.0.1", port, directory.toString());
+            client.setBlockSize(blockSize);
+            client.setWindowSize(windowSize);
+            clients.add(client);
+        }
+        clientThreads = Executors.newFixedThreadPool(clientCount);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        clientThreads.shutdownNow();
+        server.stop();
+        BenchmarkFiles.delete(serverRoot);
+        BenchmarkFiles.delete(clientRoot);
+    }
+
+    @Benchmark
+    public int concurrentDownloads(Transferred transferred) throws InterruptedException, ExecutionException {
+        List<Future<Boolean>> downloads = new ArrayList<>(clientCount);
+        for (TFTPClient client : clients)
+            downloads.add(clientThreads.submit(() -> client.downloadFile("boot.img", new ClientModel())));
+
+        int completed = 0;
+        for (Future<Boolean> download : downloads)
+            if (download.get())
+                completed++;
+        if (completed != clientCount)
+            throw new IllegalStateException((clientCount - completed) + " of " + clientCount + " downloads failed");
+
+        transferred.megabytes += (double) fileSize * clientCount / 1048576.0;
+        transferred.sessions += clientCount;
+        return completed;
+    }
+
+    private static int freePort() throws IOException {
+        try (DatagramSocket probe = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            return probe.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.tftp.io.server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Parks N simulated transfers in DatagramSocket.receive, the way ClientHandler spends its life,
+// and reports the memory they pin under each executor mode. A plain program rather than a JMH
+// benchmark, in the server's package for TransferExecutors. Run it on JDK 21+ to include
+// virtual threads:
+//   java -cp benchmarks/target/benchmarks.jar com.tftp.io.server.SessionMemoryBenchmark 100 1000 5000
+public class SessionMemoryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] sessionCounts = {100, 1000, 5000};
+        if (args.length > 0) {
+            sessionCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sessionCounts[i] = Integer.parseInt(args[i]);
+        }
+
+        System.out.printf("%-10s %10s %12s %12s %10s%n", "executor", "sessions", "heap KB", "rss KB", "threads");
+        for (int sessions : sessionCounts) {
+            measure(ServerConfig.ExecutorMode.PLATFORM, sessions);
+            if (TransferExecutors.virtualThreadsSupported())
+                measure(ServerConfig.ExecutorMode.VIRTUAL, sessions);
+            else
+                System.out.printf("%-10s %10d %12s%n", "virtual", sessions, "n/a (needs Java 21)");
+        }
+    }
+
+    private static void measure(ServerConfig.ExecutorMode mode, int sessions) throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setExecutorMode(mode);
+        config.setThreadPoolSize(sessions);
+        config.setMaxSessions(sessions);
+
+        settle();
+        long heapBefore = usedHeap();
+        long rssBefore = residentSetSize();
+
+        ExecutorService executor = TransferExecutors.create(config);
+        Queue<DatagramSocket> sockets = new ConcurrentLinkedQueue<>();
+        CountDownLatch parked = new CountDownLatch(sessions);
+
+        for (int i = 0; i < sessions; i++) {
+            executor.execute(() -> {
+                try (DatagramSocket socket = new DatagramSocket()) {
+                    socket.setSoTimeout(60000);
+                    sockets.add(socket);
+                    parked.countDown();
+                    byte[] buffer = new byte[516];
+                    socket.receive(new DatagramPacket(buffer, buffer.length));
+                } catch (SocketException e) {
+                    // closed by the benchmark
+                } catch (IOException e) {
+                    System.err.println("Session failed: " + e.getMessage());
+                }
+            });
+        }
+
+        if (!parked.await(60, TimeUnit.SECONDS))
+            throw new IllegalStateException("Sessions did not start in time");
+
+        settle();
+        long heap = usedHeap() - heapBefore;
+        long rss = residentSetSize() - rssBefore;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        System.out.printf("%-10s %10d %12d %12s %10d%n", mode.name().toLowerCase(), sessions,
+                heap / 1024, rss < 0 ? "n/a" : Long.toString(rss / 1024), threads);
+
+        for (DatagramSocket socket : sockets)
+            socket.close();
+        executor.shutdown();
+        executor.awaitTermination(60, TimeUnit.SECONDS);
+    }
+
+    private static void settle() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Thread stacks live outside the heap, so RSS is what actually shows the cost of platform threads.
+    private static long residentSetSize() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:"))
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not Linux
+        }
+        return -1;
+    }
+}
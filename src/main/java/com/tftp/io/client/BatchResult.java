@@ -0,0 +1,48 @@
+package com.tftp.io.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Outcome of a batch transfer: the files that made it and, for the rest, the last status each
+// transfer reported.
+public class BatchResult {
+    private final List<String> succeeded = new ArrayList<>();
+    private final Map<String, String> failed = new LinkedHashMap<>();
+
+    synchronized void succeeded(String filename) {
+        succeeded.add(filename);
+    }
+
+    synchronized void failed(String filename, String reason) {
+        failed.put(filename, reason);
+    }
+
+    public synchronized List<String> getSucceeded() {
+        return Collections.unmodifiableList(new ArrayList<>(succeeded));
+    }
+
+    public synchronized Map<String, String> getFailures() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(failed));
+    }
+
+    public synchronized boolean isSuccessful() {
+        return failed.isEmpty();
+    }
+
+    public synchronized String summary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(succeeded.size()).append(" of ").append(succeeded.size() + failed.size())
+                .append(" file(s) transferred");
+        for (Map.Entry<String, String> failure : failed.entrySet())
+            summary.append("\n  ").append(failure.getKey()).append(": ").append(failure.getValue());
+        return summary.toString();
+    }
+
+    @Override
+    public String toString() {
+        return summary();
+    }
+}
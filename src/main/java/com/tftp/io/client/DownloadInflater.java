@@ -0,0 +1,60 @@
+package com.tftp.io.client;
+
+import com.tftp.model.protocol.StreamDigest;
+
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Inflates a compressed read block by block as it arrives and writes the file's own bytes, so
+// neither the compressed stream nor the file is ever held whole. A block may end anywhere in the
+// stream; the inflater keeps whatever it needs across the boundary.
+final class DownloadInflater implements Closeable {
+    private final Inflater inflater = new Inflater();
+    private final byte[] buffer = new byte[64 * 1024];
+    private final DataOutput output;
+    private final StreamDigest digest;
+
+    // digest, when not null, is updated with the inflated bytes.
+    DownloadInflater(DataOutput output, StreamDigest digest) {
+        this.output = output;
+        this.digest = digest;
+    }
+
+    // Returns how many bytes of the file the block gave.
+    int write(byte[] data, int offset, int length) throws IOException {
+        if (inflater.finished()) {
+            if (length > 0)
+                throw new IOException("Data after the end of the compressed stream");
+            return 0;
+        }
+        inflater.setInput(data, offset, length);
+        int written = 0;
+        try {
+            int inflated;
+            while ((inflated = inflater.inflate(buffer)) > 0) {
+                output.write(buffer, 0, inflated);
+                if (digest != null)
+                    digest.update(buffer, 0, inflated);
+                written += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed data: " + e.getMessage());
+        }
+        if (inflater.finished() && inflater.getRemaining() > 0)
+            throw new IOException("Data after the end of the compressed stream");
+        return written;
+    }
+
+    // Whether the whole stream has arrived; checked once the last block is in.
+    boolean isFinished() {
+        return inflater.finished();
+    }
+
+    @Override
+    public void close() {
+        inflater.end();
+    }
+}
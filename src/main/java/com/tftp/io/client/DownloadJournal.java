@@ -0,0 +1,171 @@
+package com.tftp.io.client;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+// Sidecar of a resumable download, kept next to the partial file as "<file>.resume". It records
+// the size the server reported, the offset up to which the partial file is known to be on disk,
+// and a checksum of the bytes just before that offset. TFTP carries no modification time, so a
+// resumed read fetches those bytes again and compares them: together with the size they tell
+// whether the server still has the file the partial copy came from.
+final class DownloadJournal implements Closeable {
+    static final String SUFFIX = ".resume";
+    // Bytes before the committed offset that a resumed read fetches again.
+    static final int SEAM_BYTES = 4096;
+    // Every checkpoint syncs the partial file, so they are kept this far apart.
+    private static final long CHECKPOINT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final File output;
+    private final Path path;
+    private long size = -1;
+    private long committed;
+    private long seamChecksum;
+    private final CRC32C seam = new CRC32C();
+    private long seamRemaining;
+    private FileChannel channel;
+    private long received;
+    private long lastCheckpoint = System.nanoTime();
+    private boolean finished;
+
+    private DownloadJournal(File output) {
+        this.output = output;
+        this.path = new File(output.getPath() + SUFFIX).toPath();
+    }
+
+    static DownloadJournal forFile(File output) {
+        return new DownloadJournal(output);
+    }
+
+    // Returns the offset to request the file from, or 0 when there is nothing to resume because
+    // the journal is missing or unreadable or the partial file no longer matches it.
+    long resumeOffset() {
+        if (!Files.isRegularFile(path))
+            return 0;
+        try {
+            Properties journal = new Properties();
+            try (InputStream in = Files.newInputStream(path)) {
+                journal.load(in);
+            }
+            size = Long.parseLong(journal.getProperty("size"));
+            committed = Long.parseLong(journal.getProperty("offset"));
+            seamChecksum = Long.parseLong(journal.getProperty("seam"), 16);
+            if (size < 0 || committed <= 0 || committed > size || output.length() < committed
+                    || checksum(committed) != seamChecksum) {
+                startOver();
+                return 0;
+            }
+        } catch (IOException | RuntimeException e) {
+            startOver();
+            return 0;
+        }
+        seamRemaining = Math.min(committed, SEAM_BYTES);
+        return committed - seamRemaining;
+    }
+
+    // The file size recorded by the interrupted download.
+    long getSize() {
+        return size;
+    }
+
+    // Takes the payload that follows the resume offset; false once the bytes fetched again
+    // differ from those the journal was committed with.
+    boolean verifySeam(byte[] data, int offset, int length) {
+        if (seamRemaining == 0)
+            return true;
+        int checked = (int) Math.min(length, seamRemaining);
+        seam.update(data, offset, checked);
+        seamRemaining -= checked;
+        return seamRemaining > 0 || seam.getValue() == seamChecksum;
+    }
+
+    void attach(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    // Records that the file is written up to position; a checkpoint is only taken when the last
+    // one is old enough. Nothing is committed for a server that did not report the size.
+    void progress(long size, long position) throws IOException {
+        this.size = size;
+        received = position;
+        if (System.nanoTime() - lastCheckpoint >= CHECKPOINT_NANOS)
+            commit();
+    }
+
+    private void commit() throws IOException {
+        lastCheckpoint = System.nanoTime();
+        if (channel == null || size < 0 || received <= committed || seamRemaining > 0)
+            return;
+        // The offset may only be claimed once the bytes before it are on disk.
+        channel.force(false);
+        Properties journal = new Properties();
+        journal.setProperty("size", Long.toString(size));
+        journal.setProperty("offset", Long.toString(received));
+        journal.setProperty("seam", Long.toHexString(checksum(received)));
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            journal.store(out, null);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = received;
+    }
+
+    private long checksum(long end) throws IOException {
+        int length = (int) Math.min(end, SEAM_BYTES);
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        try (FileChannel file = FileChannel.open(output.toPath(), StandardOpenOption.READ)) {
+            while (bytes.hasRemaining())
+                if (file.read(bytes, end - length + bytes.position()) < 0)
+                    throw new IOException("Partial file is shorter than its journal");
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.flip());
+        return crc.getValue();
+    }
+
+    // The download completed; the journal is no longer needed.
+    void finish() throws IOException {
+        finished = true;
+        Files.deleteIfExists(path);
+    }
+
+    // The partial file cannot be resumed, or the server ignored the offset and sends the whole
+    // file; either way the download starts over and journals afresh.
+    void startOver() {
+        size = -1;
+        committed = 0;
+        seamRemaining = 0;
+        deleteQuietly();
+    }
+
+    // The partial file turned out not to match the server's; nothing more is recorded.
+    void discard() {
+        finished = true;
+        deleteQuietly();
+    }
+
+    private void deleteQuietly() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {}
+    }
+
+    // Commits whatever arrived since the last checkpoint, so a stopped or failed download
+    // resumes from where it got to.
+    @Override
+    public void close() throws IOException {
+        if (!finished)
+            commit();
+    }
+}
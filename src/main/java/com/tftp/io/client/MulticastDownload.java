@@ -0,0 +1,244 @@
+package com.tftp.io.client;
+
+import com.tftp.model.client.ClientModel;
+import com.tftp.model.packet.PacketReader;
+import com.tftp.model.packet.PacketWriter;
+import com.tftp.model.packet.TFTPError;
+import com.tftp.model.packet.TFTPOack;
+import com.tftp.model.protocol.RttEstimator;
+import com.tftp.model.protocol.SendClock;
+import com.tftp.model.protocol.TFTPProtocol;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.BitSet;
+import java.util.function.BooleanSupplier;
+
+// Client half of an RFC 2090 read. Blocks arrive on the group in whatever order the current master
+// asked for them, so each one is written at its own offset and tracked in a bitmap. While this
+// client is master it ACKs the block before the first one it is missing, which is the next block
+// the server sends; otherwise it only listens until it is promoted or has everything.
+final class MulticastDownload {
+    // A listener hears nothing while the server waits out a silent master, so it waits longer.
+    private static final long LISTEN_TIMEOUT_MILLIS = 60_000;
+
+    private final DatagramChannel unicast;
+    private final InetSocketAddress server;
+    private final RandomAccessFile output;
+    private final int blockSize;
+    private final long transferSize;
+    private final RttEstimator rtt;
+    private final NetworkInterface networkInterface;
+    private final ClientModel model;
+    private final BooleanSupplier stopRequested;
+    private final BitSet received = new BitSet();
+    private final ByteBuffer receiveBuffer;
+    private final ByteBuffer ackBuffer = ByteBuffer.allocate(TFTPProtocol.HEADER_SIZE);
+    private final PacketReader reader = new PacketReader();
+    private final SendClock sendClock = new SendClock(1);
+    private DatagramChannel group;
+    private long lastBlock;
+    private long lastAcked = -1;
+    private long bytesReceived;
+    private boolean master;
+
+    MulticastDownload(DatagramChannel unicast, InetSocketAddress server, RandomAccessFile output, int blockSize,
+                      long transferSize, RttEstimator rtt, NetworkInterface networkInterface, ClientModel model,
+                      BooleanSupplier stopRequested) {
+        this.unicast = unicast;
+        this.server = server;
+        this.output = output;
+        this.blockSize = blockSize;
+        this.transferSize = transferSize;
+        this.rtt = rtt;
+        this.networkInterface = networkInterface;
+        this.model = model;
+        this.stopRequested = stopRequested;
+        this.receiveBuffer = ByteBuffer.allocate(TFTPProtocol.HEADER_SIZE + Math.max(blockSize, TFTPProtocol.DATA_SIZE));
+        // Without tsize the last block is only known once a short one arrives.
+        this.lastBlock = transferSize >= 0 ? transferSize / blockSize + 1 : -1;
+    }
+
+    // Takes over after the first OACK. Returns false if the transfer was cancelled.
+    boolean run(TFTPOack oack) throws IOException {
+        try (Selector selector = Selector.open()) {
+            onOack(oack);
+            unicast.configureBlocking(false);
+            unicast.register(selector, SelectionKey.OP_READ);
+            group.register(selector, SelectionKey.OP_READ);
+
+            long idleSince = System.currentTimeMillis();
+            while (!isComplete()) {
+                if (stopRequested.getAsBoolean()) {
+                    send(new TFTPError(TFTPProtocol.ERR_NOT_DEFINED, "Transfer cancelled").toBytes());
+                    return false;
+                }
+
+                if (selector.select(master ? rtt.timeoutMillis() : 1000) == 0) {
+                    if (master) {
+                        if (!rtt.backoff())
+                            throw new SocketTimeoutException("Multicast server stopped responding");
+                        model.updateLog("Timeout waiting for block " + firstMissing() +
+                                " (attempt " + rtt.getRetries() + "/" + rtt.getMaxRetries() + ")");
+                        requestNext();
+                    } else if (System.currentTimeMillis() - idleSince > LISTEN_TIMEOUT_MILLIS) {
+                        throw new SocketTimeoutException("Nothing received from the multicast group");
+                    }
+                    continue;
+                }
+                selector.selectedKeys().clear();
+                idleSince = System.currentTimeMillis();
+
+                InetSocketAddress from;
+                while ((from = receive(unicast)) != null)
+                    if (!onUnicast(from))
+                        return false;
+                while (receive(group) != null)
+                    onData();
+            }
+
+            // Tells the server this client is done, whether or not it was master at the end.
+            send(PacketWriter.ack(ackBuffer, (short) lastBlock).array());
+            if (output.length() != bytesReceived)
+                output.setLength(bytesReceived);
+            return true;
+        } finally {
+            if (group != null)
+                group.close();
+        }
+    }
+
+    private InetSocketAddress receive(DatagramChannel channel) throws IOException {
+        receiveBuffer.clear();
+        InetSocketAddress from = (InetSocketAddress) channel.receive(receiveBuffer);
+        if (from != null)
+            reader.wrap(receiveBuffer.array(), receiveBuffer.position());
+        return from;
+    }
+
+    private boolean onUnicast(InetSocketAddress from) throws IOException {
+        if (!reader.hasHeader())
+            return true;
+        if (!from.equals(server)) {
+            unicast.send(ByteBuffer.wrap(new TFTPError(TFTPProtocol.ERR_UNKNOWN_TID, "Unknown transfer ID").toBytes()),
+                    from);
+            return true;
+        }
+
+        short opcode = reader.opcode();
+        if (opcode == TFTPProtocol.OACK) {
+            onOack(TFTPOack.fromBytes(receiveBuffer.array(), reader.length()));
+        } else if (opcode == TFTPProtocol.ERROR) {
+            TFTPError error = TFTPError.fromBytes(receiveBuffer.array(), reader.length());
+            model.updateStatus("Error: " + error.getErrorMsg());
+            model.updateLog("Received ERROR: " + error.getErrorCode() + " - " + error.getErrorMsg());
+            return false;
+        }
+        return true;
+    }
+
+    // The option is "address,port,mc". Later OACKs may leave the address and port out.
+    private void onOack(TFTPOack oack) throws IOException {
+        String value = oack.getOption(TFTPProtocol.OPTION_MULTICAST);
+        if (value == null)
+            return;
+        String[] fields = value.split(",", -1);
+        if (fields.length != 3)
+            throw new IOException("Malformed multicast option: " + value);
+
+        if (group == null) {
+            InetAddress address = InetAddress.getByName(fields[0].trim());
+            int port = Integer.parseInt(fields[1].trim());
+            openGroup(address, port);
+            model.updateLog("Listening on multicast group " + address.getHostAddress() + ":" + port);
+        }
+
+        boolean promoted = "1".equals(fields[2].trim());
+        if (promoted && !master)
+            model.updateLog("Promoted to master client");
+        master = promoted;
+        if (master) {
+            rtt.progress();
+            requestNext();
+        }
+    }
+
+    private void openGroup(InetAddress address, int port) throws IOException {
+        group = DatagramChannel.open(StandardProtocolFamily.INET);
+        group.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        group.setOption(StandardSocketOptions.SO_RCVBUF, Math.max(group.getOption(StandardSocketOptions.SO_RCVBUF),
+                64 * (TFTPProtocol.HEADER_SIZE + blockSize)));
+        group.bind(new InetSocketAddress(port));
+        group.join(address, networkInterface != null ? networkInterface : interfaceFor(server));
+        group.configureBlocking(false);
+    }
+
+    private void onData() throws IOException {
+        if (!reader.hasHeader() || reader.opcode() != TFTPProtocol.DATA)
+            return;
+
+        long block = reader.blockNumber() & 0xFFFF;
+        if (block == 0 || (lastBlock >= 0 && block > lastBlock) || received.get((int) block))
+            return;
+
+        int dataLength = reader.payloadLength();
+        if (dataLength < blockSize)
+            lastBlock = block;
+        output.seek((block - 1) * blockSize);
+        output.write(receiveBuffer.array(), reader.payloadOffset(), dataLength);
+        received.set((int) block);
+        bytesReceived += dataLength;
+        model.updateProgress(bytesReceived, transferSize >= 0 ? transferSize : bytesReceived);
+        model.updateLog("Received DATA block " + block + " (" + dataLength + " bytes)");
+
+        if (master && !isComplete()) {
+            if (block - 1 == lastAcked)
+                rtt.sample(sendClock.rttFor(lastAcked));
+            rtt.progress();
+            requestNext();
+        }
+    }
+
+    // ACKing n asks the server for n + 1.
+    private void requestNext() throws IOException {
+        long acked = firstMissing() - 1;
+        sendClock.sent(acked);
+        lastAcked = acked;
+        send(PacketWriter.ack(ackBuffer, (short) acked).array());
+    }
+
+    private long firstMissing() {
+        return received.nextClearBit(1);
+    }
+
+    private boolean isComplete() {
+        return lastBlock >= 0 && firstMissing() > lastBlock;
+    }
+
+    private void send(byte[] packet) throws IOException {
+        unicast.send(ByteBuffer.wrap(packet), server);
+    }
+
+    // The interface this host would use to reach the server, which is where its multicast
+    // traffic will arrive from.
+    private static NetworkInterface interfaceFor(InetSocketAddress server) throws IOException {
+        try (DatagramSocket probe = new DatagramSocket()) {
+            probe.connect(server);
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+            if (networkInterface == null)
+                throw new IOException("No network interface for multicast towards " + server);
+            return networkInterface;
+        }
+    }
+}
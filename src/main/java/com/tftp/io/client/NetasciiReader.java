@@ -0,0 +1,63 @@
+package com.tftp.io.client;
+
+import com.tftp.model.protocol.Netascii;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+// A local text file read as netascii, translated a buffer at a time as an upload fills its
+// blocks.
+final class NetasciiReader extends InputStream {
+    private final Netascii.Encoder encoder = new Netascii.Encoder();
+    private final ByteBuffer buffer = ByteBuffer.allocate(8 * 1024).flip();
+    private final InputStream in;
+    private long consumed;
+    private boolean endOfFile;
+    private boolean finished;
+
+    NetasciiReader(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+        ByteBuffer out = ByteBuffer.wrap(data, offset, length);
+        while (out.position() == offset && !finished) {
+            if (!buffer.hasRemaining() && !endOfFile) {
+                int read = in.read(buffer.array());
+                if (read < 0) {
+                    endOfFile = true;
+                    buffer.limit(0);
+                } else {
+                    buffer.position(0).limit(read);
+                    consumed += read;
+                }
+            }
+            if (endOfFile)
+                finished = encoder.finish(out);
+            else
+                encoder.encode(buffer, out);
+        }
+        int read = out.position() - offset;
+        return read > 0 ? read : -1;
+    }
+
+    // Bytes of the local file read so far.
+    long getConsumed() {
+        return consumed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,48 @@
+package com.tftp.io.client;
+
+import com.tftp.model.protocol.Netascii;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Translates a netascii read block by block as it arrives and writes the local text. A line
+// ending split between two blocks is held back until the next one.
+final class NetasciiWriter {
+    private final Netascii.Decoder decoder = new Netascii.Decoder();
+    private final ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+    private final DataOutput output;
+
+    NetasciiWriter(DataOutput output) {
+        this.output = output;
+    }
+
+    // Returns how many bytes of the file the block gave.
+    int write(byte[] data, int offset, int length) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(data, offset, length);
+        int written = 0;
+        while (in.hasRemaining()) {
+            buffer.clear();
+            decoder.decode(in, buffer);
+            written += flush();
+        }
+        return written;
+    }
+
+    // Writes what was held back at the end of the last block.
+    int finish() throws IOException {
+        int written = 0;
+        boolean finished;
+        do {
+            buffer.clear();
+            finished = decoder.finish(buffer);
+            written += flush();
+        } while (!finished);
+        return written;
+    }
+
+    private int flush() throws IOException {
+        output.write(buffer.array(), 0, buffer.position());
+        return buffer.position();
+    }
+}
@@ -1,19 +1,82 @@
 package com.tftp.io.client;
 
+import com.tftp.model.protocol.BlockSequence;
+import com.tftp.model.protocol.RttEstimator;
+import com.tftp.model.protocol.SendClock;
+import com.tftp.model.protocol.StreamDigest;
 import com.tftp.model.protocol.TFTPProtocol;
 import com.tftp.model.client.ClientModel;
-import com.tftp.model.packet.TFTPAck;
-import com.tftp.model.packet.TFTPData;
+import com.tftp.model.packet.PacketReader;
+import com.tftp.model.packet.PacketWriter;
 import com.tftp.model.packet.TFTPError;
+import com.tftp.model.packet.TFTPOack;
 import com.tftp.model.packet.TFTPRequest;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TFTPClient {
+    // Ring of reusable DATA packets for the blocks of an upload that are still unacknowledged.
+    private static final class SendWindow {
+        private final ByteBuffer[] packets;
+        private final SendClock clock;
+        private final BlockSequence blocks;
+        private long baseBlock = 1;
+        private long nextBlock = 1;
+
+        private SendWindow(int windowSize, int blockSize, BlockSequence blocks) {
+            packets = new ByteBuffer[windowSize];
+            for (int i = 0; i < windowSize; i++)
+                packets[i] = ByteBuffer.allocate(TFTPProtocol.HEADER_SIZE + blockSize);
+            clock = new SendClock(windowSize);
+            this.blocks = blocks;
+        }
+
+        private ByteBuffer packet(long block) {
+            return packets[(int) ((block - 1) % packets.length)];
+        }
+
+        private int inFlight() {
+            return (int) (nextBlock - baseBlock);
+        }
+
+        private boolean isFull() {
+            return inFlight() == packets.length;
+        }
+    }
+
     private InetAddress serverAddress;
     private int serverPort;
     private String localDirectory;
+    private int blockSize = TFTPProtocol.DATA_SIZE;
+    private int windowSize = TFTPProtocol.MIN_WINDOW_SIZE;
+    private int timeoutSeconds;
+    private int blockRollover;
+    private boolean multicast;
+    private NetworkInterface multicastInterface;
+    private int parallelism = 4;
+    private boolean resume;
+    private String digestAlgorithm;
+    private boolean compression;
+    private String mode = TFTPProtocol.MODE_OCTET;
+    // The client whose batch this one runs a file of, or null. Its stop request covers this
+    // client too, so a stop can never fall between a file starting and resetting its own flag.
+    private final TFTPClient batch;
     private volatile boolean transferInProgress;
     private volatile boolean stopRequested;
 
@@ -21,9 +84,28 @@ public class TFTPClient {
         this.serverAddress = InetAddress.getByName(serverHost);
         this.serverPort = port;
         this.localDirectory = localDirectory;
+        this.batch = null;
         ensureLocalDirectoryExists();
     }
 
+    // Each file of a batch runs on its own client, and so its own socket, with these settings.
+    private TFTPClient(TFTPClient settings) {
+        this.batch = settings;
+        this.serverAddress = settings.serverAddress;
+        this.serverPort = settings.serverPort;
+        this.localDirectory = settings.localDirectory;
+        this.blockSize = settings.blockSize;
+        this.windowSize = settings.windowSize;
+        this.timeoutSeconds = settings.timeoutSeconds;
+        this.blockRollover = settings.blockRollover;
+        this.multicast = settings.multicast;
+        this.multicastInterface = settings.multicastInterface;
+        this.resume = settings.resume;
+        this.digestAlgorithm = settings.digestAlgorithm;
+        this.compression = settings.compression;
+        this.mode = settings.mode;
+    }
+
     private void ensureLocalDirectoryExists() {
         File dir = new File(localDirectory);
         if (!dir.exists())
@@ -38,77 +120,283 @@ public class TFTPClient {
 
         transferInProgress = true;
         stopRequested = false;
+        try {
+            try {
+                return download(filename, model);
+            } catch (StalePartialFile e) {
+                model.updateLog(e.getMessage() + ", downloading the whole file again");
+            }
+            // Without its journal the second attempt starts from the first byte and cannot go stale.
+            return download(filename, model);
+        } catch (StalePartialFile e) {
+            model.updateStatus("Error: " + e.getMessage());
+            return false;
+        } finally {
+            transferInProgress = false;
+        }
+    }
+
+    // A resumed download found that the server's file is not the one the partial copy came from.
+    private static final class StalePartialFile extends IOException {
+        private static final long serialVersionUID = 1L;
 
+        private StalePartialFile(String message) {
+            super(message);
+        }
+    }
+
+    private boolean download(String filename, ClientModel model) throws StalePartialFile {
         DatagramSocket socket = null;
         try {
-            socket = new DatagramSocket();
-            socket.setSoTimeout(5000);
-
-            TFTPRequest rrq = new TFTPRequest(TFTPProtocol.RRQ, filename);
-            sendPacket(socket, rrq.toBytes(), serverAddress, serverPort);
+            // A multicast read hands the socket over to a selector, which needs it backed by a channel.
+            socket = multicast ? DatagramChannel.open().bind(null).socket() : new DatagramSocket();
+            RttEstimator rtt = new RttEstimator();
 
             File outputFile = new File(localDirectory, filename);
-            if (outputFile.exists())
+            // A partial netascii file cannot say how far into the server's file it got.
+            DownloadJournal journal = resume && !isNetascii() ? DownloadJournal.forFile(outputFile) : null;
+            long resumeOffset = journal != null ? journal.resumeOffset() : 0;
+            if (resumeOffset == 0 && outputFile.exists())
                 outputFile.delete();
 
-            try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-                short expectedBlock = 1;
+            // tsize 0 asks the server for the file size (RFC 2349).
+            TFTPRequest rrq = new TFTPRequest(TFTPProtocol.RRQ, filename, mode, downloadOptions(resumeOffset));
+            sendPacket(socket, rrq.toBytes(), serverAddress, serverPort);
+            byte[] receiveBuffer = new byte[TFTPProtocol.HEADER_SIZE + Math.max(blockSize, TFTPProtocol.DATA_SIZE)];
+            DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+            DatagramPacket outgoing = new DatagramPacket(receiveBuffer, 0);
+            PacketReader reader = new PacketReader();
+            ByteBuffer ackBuffer = ByteBuffer.allocate(TFTPProtocol.HEADER_SIZE);
+
+            // Set when the server sends the file compressed.
+            DownloadInflater inflater = null;
+            // The journal closes first, committing what arrived if the download stops short.
+            try (RandomAccessFile output = new RandomAccessFile(outputFile, "rw"); journal) {
+                if (journal != null)
+                    journal.attach(output.getChannel());
+                NetasciiWriter netascii = isNetascii() ? new NetasciiWriter(output) : null;
+                long expectedBlock = 1;
+                // Where the server started the file: non-zero once it accepted the resume offset.
+                long resumedAt = 0;
+                // Set when the server announced the file's digest, which the data is checked against.
+                StreamDigest digest = null;
+                String expectedDigest = null;
+                BlockSequence blocks = new BlockSequence(blockRollover);
                 long totalBytesReceived = 0;
+                // Bytes of the file written so far; more than were received when it comes compressed.
+                long bytesWritten = 0;
+                long transferSize = -1;
                 boolean lastPacket = false;
+                int sessionBlockSize = TFTPProtocol.DATA_SIZE;
+                int sessionWindowSize = TFTPProtocol.MIN_WINDOW_SIZE;
+                int blocksInWindow = 0;
+                boolean recoveryAckSent = false;
+                byte[] lastSent = rrq.toBytes();
+                // Round trips are timed from the last request or ACK to the packet it solicited,
+                // unless it had to be sent again (Karn's rule).
+                long lastSentAt = System.nanoTime();
+                boolean lastResent = false;
+                InetAddress peerAddress = serverAddress;
+                int peerPort = serverPort;
 
                 model.updateStatus("Starting download: " + filename);
-                model.updateLog("Sent RRQ for file: " + filename);
+                model.updateLog("Sent RRQ for file: " + filename +
+                        (resumeOffset > 0 ? " from byte " + resumeOffset : ""));
 
-                while (!lastPacket && !stopRequested) {
-                    DatagramPacket packet = receivePacket(socket);
-                    byte[] data = packet.getData();
-                    int length = packet.getLength();
+                while (!lastPacket && !isStopRequested()) {
+                    try {
+                        receivePacket(socket, packet, rtt);
+                    } catch (SocketTimeoutException e) {
+                        if (!rtt.backoff())
+                            throw e;
+                        model.updateLog("Timeout waiting for block " + expectedBlock +
+                                " (attempt " + rtt.getRetries() + "/" + rtt.getMaxRetries() + ")");
+                        sendPacket(socket, outgoing, lastSent, peerAddress, peerPort);
+                        lastSentAt = System.nanoTime();
+                        lastResent = true;
+                        blocksInWindow = 0;
+                        continue;
+                    }
+                    reader.wrap(receiveBuffer, packet.getLength());
+                    rtt.progress();
 
-                    if (length < 4) {
-                        model.updateLog("Packet too short: " + length + " bytes");
+                    if (!reader.hasHeader()) {
+                        model.updateLog("Packet too short: " + reader.length() + " bytes");
                         continue;
                     }
 
-                    short opcode = (short) (((data[0] & 0xFF) << 8) | (data[1] & 0xFF));
+                    short opcode = reader.opcode();
 
                     if (opcode == TFTPProtocol.DATA) {
-                        TFTPData dataPacket = TFTPData.fromBytes(data, length);
-                        short receivedBlock = dataPacket.getBlockNumber();
+                        short receivedBlock = reader.blockNumber();
+                        peerAddress = packet.getAddress();
+                        peerPort = packet.getPort();
+                        blocks = blocks.follow(expectedBlock, receivedBlock, sessionWindowSize == 1);
 
-                        if (receivedBlock == expectedBlock) {
-                            byte[] fileData = dataPacket.getData();
-                            fos.write(fileData);
-                            totalBytesReceived += fileData.length;
+                        if (receivedBlock == blocks.wire(expectedBlock)) {
+                            if (lastSentAt != 0 && !lastResent)
+                                rtt.sample(System.nanoTime() - lastSentAt);
+                            lastSentAt = 0;
+                            int dataLength = reader.payloadLength();
+                            if (resumeOffset > 0 && expectedBlock == 1 && resumedAt == 0) {
+                                model.updateLog("Server ignored the resume offset, downloading the whole file");
+                                journal.startOver();
+                            }
+                            if (resumedAt > 0 && !journal.verifySeam(receiveBuffer, reader.payloadOffset(), dataLength))
+                                throw stale(socket, packet, journal, "File changed on the server");
+                            if (inflater != null) {
+                                bytesWritten += inflater.write(receiveBuffer, reader.payloadOffset(), dataLength);
+                            } else if (netascii != null) {
+                                bytesWritten += netascii.write(receiveBuffer, reader.payloadOffset(), dataLength);
+                                if (dataLength < sessionBlockSize)
+                                    bytesWritten += netascii.finish();
+                            } else {
+                                output.write(receiveBuffer, reader.payloadOffset(), dataLength);
+                                if (digest != null)
+                                    digest.update(receiveBuffer, reader.payloadOffset(), dataLength);
+                                bytesWritten += dataLength;
+                            }
+                            totalBytesReceived += dataLength;
+                            long position = resumedAt + bytesWritten;
+                            if (journal != null)
+                                journal.progress(transferSize, position);
+                            blocksInWindow++;
+                            recoveryAckSent = false;
 
-                            model.updateProgress(totalBytesReceived, totalBytesReceived);
-                            model.updateLog("Received DATA block " + expectedBlock + " (" + fileData.length + " bytes)");
+                            // The server's tsize for a netascii read counts the bytes on the wire.
+                            long progress = netascii != null ? totalBytesReceived : position;
+                            model.updateProgress(progress, transferSize >= 0 ? transferSize : progress,
+                                    totalBytesReceived);
+                            model.updateLog("Received DATA block " + expectedBlock + " (" + dataLength + " bytes)");
 
-                            TFTPAck ack = new TFTPAck(expectedBlock);
-                            sendPacket(socket, ack.toBytes(), packet.getAddress(), packet.getPort());
+                            lastPacket = dataLength < sessionBlockSize;
+                            if (lastPacket || blocksInWindow == sessionWindowSize) {
+                                lastSent = PacketWriter.ack(ackBuffer, receivedBlock).array();
+                                sendPacket(socket, outgoing, lastSent, peerAddress, peerPort);
+                                lastSentAt = System.nanoTime();
+                                lastResent = false;
+                                blocksInWindow = 0;
+                            }
 
-                            if (fileData.length < TFTPProtocol.DATA_SIZE) {
-                                lastPacket = true;
+                            if (lastPacket) {
+                                // A resumed file is only whole if both halves add up to the size
+                                // recorded in the journal.
+                                if (resumedAt > 0 && position != journal.getSize())
+                                    throw stale(socket, packet, journal, "File size changed on the server");
+                                if (inflater != null && !inflater.isFinished()) {
+                                    if (journal != null)
+                                        journal.discard();
+                                    model.updateStatus("Error: compressed data for " + filename + " ended early");
+                                    return false;
+                                }
+                                // The file may have changed on the server since it reported its size.
+                                if (output.length() != position)
+                                    output.setLength(position);
+                                if (digest != null && !digest.value().equals(expectedDigest)) {
+                                    if (journal != null)
+                                        journal.discard();
+                                    model.updateStatus("Error: " + digest.getAlgorithm() + " mismatch for " + filename);
+                                    model.updateLog("Received data has " + digest.getAlgorithm() + " " +
+                                            digest.value() + ", server announced " + expectedDigest);
+                                    return false;
+                                }
+                                if (digest != null)
+                                    model.updateLog("Verified " + digest.getAlgorithm() + " " + expectedDigest);
+                                else if (digestAlgorithm != null && resumedAt == 0)
+                                    model.updateLog("Server announced no digest, download not verified");
+                                if (journal != null)
+                                    journal.finish();
                                 model.updateStatus("Download completed: " + filename);
-                                model.updateLog("Download completed successfully. Total: " +
-                                        totalBytesReceived + " bytes");
+                                model.updateLog("Download completed successfully. Total: " + position + " bytes" +
+                                        (resumedAt > 0 ? ", " + totalBytesReceived + " after resuming" : "") +
+                                        (inflater != null ? ", " + totalBytesReceived + " compressed" : ""));
                             }
 
                             expectedBlock++;
-                        } else if (receivedBlock == (short)(expectedBlock - 1)) {
-                            model.updateLog("Received duplicate block " + receivedBlock + ", resending ACK");
-                            TFTPAck ack = new TFTPAck(receivedBlock);
-                            sendPacket(socket, ack.toBytes(), packet.getAddress(), packet.getPort());
                         } else {
-                            model.updateLog("Unexpected block number: " + receivedBlock + ", expected: " + expectedBlock);
+                            model.updateLog("Unexpected block number: " + (receivedBlock & 0xFFFF) +
+                                    ", expected: " + (blocks.wire(expectedBlock) & 0xFFFF));
+                            if (!recoveryAckSent) {
+                                lastSent = PacketWriter.ack(ackBuffer, blocks.wire(expectedBlock - 1)).array();
+                                sendPacket(socket, outgoing, lastSent, peerAddress, peerPort);
+                                lastSentAt = System.nanoTime();
+                                lastResent = false;
+                                model.updateLog("Resending ACK for block " + (expectedBlock - 1));
+                                recoveryAckSent = true;
+                                blocksInWindow = 0;
+                            }
+                        }
+                    } else if (opcode == TFTPProtocol.OACK && expectedBlock == 1) {
+                        TFTPOack oack = TFTPOack.fromBytes(receiveBuffer, reader.length());
+                        sessionBlockSize = negotiatedBlockSize(oack);
+                        sessionWindowSize = negotiatedWindowSize(oack);
+                        int sessionTimeout = negotiatedTimeout(oack);
+                        resumedAt = negotiatedOffset(oack, resumeOffset);
+                        int compressed = negotiatedCompression(oack);
+                        if (sessionBlockSize < 0 || sessionWindowSize < 0 || sessionTimeout < 0 || resumedAt < 0
+                                || compressed < 0) {
+                            rejectOack(socket, packet);
+                            model.updateStatus("Error: server sent invalid options " + oack.getOptions());
+                            return false;
                         }
+                        model.updateLog("Received OACK " + oack.getOptions());
+
+                        transferSize = negotiatedTransferSize(oack);
+                        expectedDigest = negotiatedDigest(oack);
+                        if (expectedDigest != null)
+                            digest = StreamDigest.of(digestAlgorithm);
+                        if (compressed > 0)
+                            inflater = new DownloadInflater(output, digest);
+                        if (resumedAt > 0) {
+                            if (transferSize != journal.getSize())
+                                throw stale(socket, packet, journal, "File size changed on the server");
+                            output.seek(resumedAt);
+                            model.updateLog("Resuming at byte " + resumedAt + " of " + transferSize);
+                        }
+
+                        // Reserving the final size up front saves the file system from growing the
+                        // file one block at a time.
+                        if (transferSize > 0) {
+                            if (netascii == null)
+                                output.setLength(transferSize);
+                            model.updateProgress(resumedAt, transferSize);
+                        }
+
+                        if (!lastResent)
+                            rtt.sample(System.nanoTime() - lastSentAt);
+                        rtt = sessionRtt(rtt, sessionTimeout);
+
+                        if (multicast && oack.getOption(TFTPProtocol.OPTION_MULTICAST) != null) {
+                            MulticastDownload download = new MulticastDownload(socket.getChannel(),
+                                    (InetSocketAddress) packet.getSocketAddress(), output, sessionBlockSize,
+                                    transferSize, rtt, multicastInterface, model, this::isStopRequested);
+                            if (!download.run(oack))
+                                return isStopRequested() ? cancelled(model) : false;
+                            if (journal != null)
+                                journal.finish();
+                            model.updateStatus("Download completed: " + filename);
+                            model.updateLog("Download completed successfully over multicast. Total: " +
+                                    output.length() + " bytes");
+                            return true;
+                        }
+
+                        int windowBytes = sessionWindowSize * (TFTPProtocol.HEADER_SIZE + sessionBlockSize);
+                        if (socket.getReceiveBufferSize() < 2 * windowBytes)
+                            socket.setReceiveBufferSize(2 * windowBytes);
+
+                        peerAddress = packet.getAddress();
+                        peerPort = packet.getPort();
+                        lastSent = PacketWriter.ack(ackBuffer, (short) 0).array();
+                        sendPacket(socket, outgoing, lastSent, peerAddress, peerPort);
+                        lastSentAt = System.nanoTime();
+                        lastResent = false;
                     } else if (opcode == TFTPProtocol.ERROR) {
-                        TFTPError error = TFTPError.fromBytes(data, length);
+                        TFTPError error = TFTPError.fromBytes(receiveBuffer, reader.length());
                         model.updateStatus("Error: " + error.getErrorMsg());
                         model.updateLog("Received ERROR: " + error.getErrorCode() + " - " + error.getErrorMsg());
                         return false;
                     } else if (opcode == TFTPProtocol.ACK) {
-                        TFTPAck ack = TFTPAck.fromBytes(data, length);
-                        model.updateLog("Received ACK during download (block " + ack.getBlockNumber() + "), ignoring");
+                        model.updateLog("Received ACK during download (block " + reader.blockNumber() + "), ignoring");
                         continue;
                     } else {
                         model.updateStatus("Invalid TFTP operation: " + opcode);
@@ -117,19 +405,23 @@ public class TFTPClient {
                     }
                 }
 
-                if (stopRequested) {
-                    model.updateStatus("Download cancelled");
-                    model.updateLog("Download cancelled by user");
-                    return false;
-                }
+                if (isStopRequested())
+                    return cancelled(model);
 
                 return true;
 
+            } catch (SocketTimeoutException | StalePartialFile e) {
+                throw e;
             } catch (IOException e) {
                 model.updateStatus("File error: " + e.getMessage());
                 return false;
+            } finally {
+                if (inflater != null)
+                    inflater.close();
             }
 
+        } catch (StalePartialFile e) {
+            throw e;
         } catch (SocketTimeoutException e) {
             model.updateStatus("Timeout: Server not responding");
             return false;
@@ -139,10 +431,25 @@ public class TFTPClient {
         } finally {
             if (socket != null && !socket.isClosed())
                 socket.close();
-            transferInProgress = false;
         }
     }
 
+    // Stops the server sending a file that no longer matches the partial copy, which is
+    // abandoned along with its journal.
+    private StalePartialFile stale(DatagramSocket socket, DatagramPacket from, DownloadJournal journal,
+                                   String reason) throws IOException {
+        journal.discard();
+        TFTPError error = new TFTPError(TFTPProtocol.ERR_NOT_DEFINED, "Restarting download");
+        sendPacket(socket, error.toBytes(), from.getAddress(), from.getPort());
+        return new StalePartialFile(reason);
+    }
+
+    private boolean cancelled(ClientModel model) {
+        model.updateStatus("Download cancelled");
+        model.updateLog("Download cancelled by user");
+        return false;
+    }
+
     public boolean uploadFile(String filename, ClientModel model) {
         if (transferInProgress) {
             model.updateStatus("Another transfer is in progress");
@@ -155,10 +462,11 @@ public class TFTPClient {
         DatagramSocket socket = null;
         try {
             socket = new DatagramSocket();
-            socket.setSoTimeout(5000);
+            RttEstimator rtt = new RttEstimator();
 
-            TFTPRequest wrq = new TFTPRequest(TFTPProtocol.WRQ, filename);
-            sendPacket(socket, wrq.toBytes(), serverAddress, serverPort);
+            byte[] receiveBuffer = new byte[TFTPProtocol.HEADER_SIZE + Math.max(blockSize, TFTPProtocol.DATA_SIZE)];
+            DatagramPacket incoming = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+            PacketReader reader = new PacketReader();
 
             File inputFile = new File(localDirectory, filename);
             if (!inputFile.exists() || !inputFile.isFile()) {
@@ -167,114 +475,106 @@ public class TFTPClient {
             }
 
             long fileSize = inputFile.length();
+            // Announcing the size lets the server refuse an upload it has no room for. A netascii
+            // upload announces the local size, which is close enough for that without reading the
+            // file twice.
+            Map<String, String> options = requestOptions(fileSize);
+            if (digestAlgorithm != null && !isNetascii())
+                options.put(TFTPProtocol.OPTION_DIGEST, digestAlgorithm);
+            TFTPRequest wrq = new TFTPRequest(TFTPProtocol.WRQ, filename, mode, options);
+
+            DatagramPacket ackPacket = sendRequest(socket, wrq.toBytes(), incoming, rtt, model);
 
-            try (FileInputStream fis = new FileInputStream(inputFile)) {
-                DatagramPacket ackPacket = receivePacket(socket);
-                byte[] ackData = ackPacket.getData();
+            NetasciiReader netascii = isNetascii() ? new NetasciiReader(new FileInputStream(inputFile)) : null;
+            try (InputStream fis = netascii != null ? netascii : new FileInputStream(inputFile)) {
+                InetAddress serverTidAddress = ackPacket.getAddress();
+                int serverTidPort = ackPacket.getPort();
                 int length = ackPacket.getLength();
+                reader.wrap(receiveBuffer, length);
 
-                if (length < 4) {
+                if (!reader.hasHeader()) {
                     model.updateStatus("Invalid ACK packet");
                     return false;
                 }
 
-                short opcode = (short) (((ackData[0] & 0xFF) << 8) | (ackData[1] & 0xFF));
+                short opcode = reader.opcode();
 
                 if (opcode == TFTPProtocol.ERROR) {
-                    TFTPError error = TFTPError.fromBytes(ackData, length);
+                    TFTPError error = TFTPError.fromBytes(receiveBuffer, length);
                     model.updateStatus("Error: " + error.getErrorMsg());
                     return false;
-                } else if (opcode != TFTPProtocol.ACK) {
-                    model.updateStatus("Expected ACK, received: " + opcode);
-                    return false;
                 }
 
-                TFTPAck ack = TFTPAck.fromBytes(ackData, length);
-                if (ack.getBlockNumber() != 0) {
-                    model.updateStatus("Expected ACK(0), received ACK(" + ack.getBlockNumber() + ")");
+                int sessionBlockSize = TFTPProtocol.DATA_SIZE;
+                int sessionWindowSize = TFTPProtocol.MIN_WINDOW_SIZE;
+                if (opcode == TFTPProtocol.OACK) {
+                    TFTPOack oack = TFTPOack.fromBytes(receiveBuffer, length);
+                    sessionBlockSize = negotiatedBlockSize(oack);
+                    sessionWindowSize = negotiatedWindowSize(oack);
+                    int sessionTimeout = negotiatedTimeout(oack);
+                    if (sessionBlockSize < 0 || sessionWindowSize < 0 || sessionTimeout < 0) {
+                        rejectOack(socket, ackPacket);
+                        model.updateStatus("Error: server sent invalid options " + oack.getOptions());
+                        return false;
+                    }
+                    model.updateLog("Received OACK " + oack.getOptions());
+                    rtt = sessionRtt(rtt, sessionTimeout);
+                } else if (opcode != TFTPProtocol.ACK) {
+                    model.updateStatus("Expected ACK, received: " + opcode);
                     return false;
+                } else {
+                    if (reader.blockNumber() != 0) {
+                        model.updateStatus("Expected ACK(0), received ACK(" + reader.blockNumber() + ")");
+                        return false;
+                    }
+                    model.updateLog("Received initial ACK(0)");
                 }
 
                 model.updateStatus("Starting upload: " + filename);
                 model.updateLog("Sent WRQ for file: " + filename);
                 model.updateLog("File size: " + fileSize + " bytes");
-                model.updateLog("Received initial ACK(0)");
 
-                short blockNumber = 1;
+                SendWindow window = new SendWindow(sessionWindowSize, sessionBlockSize,
+                        new BlockSequence(blockRollover));
+                DatagramPacket outgoing = new DatagramPacket(receiveBuffer, 0, serverTidAddress, serverTidPort);
+                boolean endOfFile = false;
                 long totalBytesSent = 0;
-                byte[] buffer = new byte[TFTPProtocol.DATA_SIZE];
-                int bytesRead;
-
-                while ((bytesRead = fis.read(buffer)) != -1 && !stopRequested) {
-                    byte[] fileData;
-                    if (bytesRead == TFTPProtocol.DATA_SIZE)
-                        fileData = buffer;
-                    else {
-                        fileData = new byte[bytesRead];
-                        System.arraycopy(buffer, 0, fileData, 0, bytesRead);
-                    }
-
-                    TFTPData dataPacket = new TFTPData(blockNumber, fileData);
-                    sendPacket(socket, dataPacket.toBytes(), ackPacket.getAddress(), ackPacket.getPort());
-
-                    totalBytesSent += bytesRead;
-                    model.updateProgress(totalBytesSent, fileSize);
-                    model.updateLog("Sent DATA block " + blockNumber + " (" + bytesRead + " bytes)");
 
-                    boolean ackReceived = false;
-                    int retries = 0;
-                    while (!ackReceived && retries < 3) {
-                        try {
-                            DatagramPacket blockAckPacket = receivePacket(socket);
-                            byte[] blockAckData = blockAckPacket.getData();
-                            int blockAckLength = blockAckPacket.getLength();
+                while (!isStopRequested()) {
+                    while (!window.isFull() && !endOfFile) {
+                        ByteBuffer dataPacket = PacketWriter.dataHeader(window.packet(window.nextBlock),
+                                window.blocks.wire(window.nextBlock));
+                        int bytesRead = fis.readNBytes(dataPacket.array(), TFTPProtocol.HEADER_SIZE, sessionBlockSize);
+                        dataPacket.position(TFTPProtocol.HEADER_SIZE + bytesRead).flip();
+                        sendPacket(socket, outgoing, dataPacket);
+                        window.clock.sent(window.nextBlock);
 
-                            if (blockAckLength < 4) {
-                                retries++;
-                                continue;
-                            }
+                        totalBytesSent += bytesRead;
+                        model.updateProgress(netascii != null ? netascii.getConsumed() : totalBytesSent, fileSize);
+                        model.updateLog("Sent DATA block " + window.nextBlock + " (" + bytesRead + " bytes)");
 
-                            short blockOpcode = (short) (((blockAckData[0] & 0xFF) << 8) | (blockAckData[1] & 0xFF));
-
-                            if (blockOpcode == TFTPProtocol.ACK) {
-                                TFTPAck blockAck = TFTPAck.fromBytes(blockAckData, blockAckLength);
-                                if (blockAck.getBlockNumber() == blockNumber) {
-                                    model.updateLog("Received ACK for block " + blockNumber);
-                                    ackReceived = true;
-                                } else if (blockAck.getBlockNumber() < blockNumber) {
-                                    model.updateLog("Received duplicate ACK for block " + blockAck.getBlockNumber());
-                                } else {
-                                    model.updateLog("Unexpected ACK block: " + blockAck.getBlockNumber());
-                                    retries++;
-                                }
-                            } else if (blockOpcode == TFTPProtocol.ERROR) {
-                                TFTPError error = TFTPError.fromBytes(blockAckData, blockAckLength);
-                                model.updateStatus("Error: " + error.getErrorMsg());
-                                return false;
-                            } else {
-                                model.updateLog("Unexpected opcode: " + blockOpcode);
-                                retries++;
-                            }
-                        } catch (SocketTimeoutException e) {
-                            retries++;
-                            model.updateLog("Timeout waiting for ACK for block " + blockNumber +
-                                    " (attempt " + retries + "/3)");
-                            if (retries < 3) {
-                                sendPacket(socket, dataPacket.toBytes(), ackPacket.getAddress(), ackPacket.getPort());
-                                model.updateLog("Resent DATA block " + blockNumber);
-                            }
-                        }
+                        window.nextBlock++;
+                        endOfFile = bytesRead < sessionBlockSize;
                     }
 
-                    if (!ackReceived) {
-                        model.updateStatus("Upload failed: No ACK for block " + blockNumber);
+                    int acked = awaitAck(socket, incoming, reader, window, outgoing, rtt, model);
+                    if (acked < 0) {
+                        model.updateStatus("Upload failed: No ACK for block " + window.baseBlock);
                         return false;
                     }
 
-                    blockNumber++;
+                    window.baseBlock += acked;
+
+                    if (endOfFile && window.inFlight() == 0)
+                        break;
+
+                    if (window.inFlight() > 0) {
+                        model.updateLog("Restarting window at block " + window.baseBlock);
+                        resendWindow(socket, outgoing, window);
+                    }
                 }
 
-                if (stopRequested) {
+                if (isStopRequested()) {
                     model.updateStatus("Upload cancelled");
                     model.updateLog("Upload cancelled by user");
                     return false;
@@ -302,22 +602,457 @@ public class TFTPClient {
         }
     }
 
+    public BatchResult downloadFiles(List<String> filenames, ClientModel model) {
+        return runBatch(filenames, true, model);
+    }
+
+    public BatchResult uploadFiles(List<String> filenames, ClientModel model) {
+        return runBatch(filenames, false, model);
+    }
+
+    // Uploads the regular files in the local directory whose names match a glob such as "*.cfg".
+    public BatchResult uploadMatching(String glob, ClientModel model) throws IOException {
+        List<String> filenames = new ArrayList<>();
+        try (DirectoryStream<Path> matches = Files.newDirectoryStream(new File(localDirectory).toPath(), glob)) {
+            for (Path match : matches)
+                if (Files.isRegularFile(match))
+                    filenames.add(match.getFileName().toString());
+        }
+        Collections.sort(filenames);
+        return uploadFiles(filenames, model);
+    }
+
+    // Runs up to parallelism transfers at a time. Every file reports through its own
+    // model.forFile(name), and model itself tracks the whole batch.
+    private BatchResult runBatch(List<String> filenames, boolean download, ClientModel model) {
+        BatchResult result = new BatchResult();
+        if (transferInProgress) {
+            model.updateStatus("Another transfer is in progress");
+            for (String filename : filenames)
+                result.failed(filename, "Another transfer is in progress");
+            return result;
+        }
+
+        transferInProgress = true;
+        stopRequested = false;
+        String direction = download ? "download" : "upload";
+        model.updateStatus("Starting batch " + direction + " of " + filenames.size() + " file(s)");
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, filenames.size())),
+                task -> {
+                    Thread thread = new Thread(task, "tftp-batch-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        try {
+            for (String filename : filenames) {
+                executor.execute(() -> {
+                    ClientModel fileModel = model.forFile(filename);
+                    if (stopRequested) {
+                        result.failed(filename, "Cancelled");
+                        return;
+                    }
+
+                    TFTPClient transfer = new TFTPClient(this);
+                    try {
+                        boolean done = download ? transfer.downloadFile(filename, fileModel)
+                                : transfer.uploadFile(filename, fileModel);
+                        if (done)
+                            result.succeeded(filename);
+                        else
+                            result.failed(filename, fileModel.getStatus());
+                    } catch (RuntimeException e) {
+                        result.failed(filename, e.toString());
+                    }
+                });
+            }
+
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            stopTransfer();
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } finally {
+            transferInProgress = false;
+        }
+
+        model.updateLog(result.summary());
+        model.updateStatus(result.isSuccessful() ? "Batch " + direction + " completed: " + filenames.size() +
+                " file(s)" : "Batch " + direction + " finished with " + result.getFailures().size() + " failure(s)");
+        return result;
+    }
+
     private void sendPacket(DatagramSocket socket, byte[] data, InetAddress address, int port) throws IOException {
         DatagramPacket packet = new DatagramPacket(data, data.length, address, port);
         socket.send(packet);
     }
 
-    private DatagramPacket receivePacket(DatagramSocket socket) throws IOException {
-        byte[] buffer = new byte[TFTPProtocol.PACKET_SIZE];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    // Transfer loops keep one outgoing packet and only swap its contents and destination.
+    private void sendPacket(DatagramSocket socket, DatagramPacket outgoing, byte[] data,
+                            InetAddress address, int port) throws IOException {
+        outgoing.setData(data);
+        outgoing.setAddress(address);
+        outgoing.setPort(port);
+        socket.send(outgoing);
+    }
+
+    private void sendPacket(DatagramSocket socket, DatagramPacket outgoing, ByteBuffer packet) throws IOException {
+        outgoing.setData(packet.array(), 0, packet.limit());
+        socket.send(outgoing);
+    }
+
+    private DatagramPacket receivePacket(DatagramSocket socket, DatagramPacket packet, RttEstimator rtt)
+            throws IOException {
+        packet.setData(packet.getData());
+        socket.setSoTimeout(rtt.timeoutMillis());
         socket.receive(packet);
         return packet;
     }
 
+    // Sends a request until the server answers it and returns the answer.
+    private DatagramPacket sendRequest(DatagramSocket socket, byte[] request, DatagramPacket incoming,
+                                       RttEstimator rtt, ClientModel model) throws IOException {
+        SendClock clock = new SendClock(1);
+        while (true) {
+            sendPacket(socket, request, serverAddress, serverPort);
+            clock.sent(0);
+            try {
+                receivePacket(socket, incoming, rtt);
+                rtt.sample(clock.rttFor(0));
+                rtt.progress();
+                return incoming;
+            } catch (SocketTimeoutException e) {
+                if (!rtt.backoff())
+                    throw e;
+                model.updateLog("Timeout waiting for the server (attempt " + rtt.getRetries() + "/" +
+                        rtt.getMaxRetries() + ")");
+            }
+        }
+    }
+
+    private void resendWindow(DatagramSocket socket, DatagramPacket outgoing, SendWindow window) throws IOException {
+        for (long block = window.baseBlock; block < window.nextBlock; block++) {
+            sendPacket(socket, outgoing, window.packet(block));
+            window.clock.sent(block);
+        }
+    }
+
+    // Returns how many blocks at the head of the window the server acknowledged, 0 to restart
+    // the window, or -1 when the transfer has to be abandoned.
+    private int awaitAck(DatagramSocket socket, DatagramPacket incoming, PacketReader reader, SendWindow window,
+                         DatagramPacket outgoing, RttEstimator rtt, ClientModel model) throws IOException {
+        long baseBlock = window.baseBlock;
+        int strayPackets = 0;
+        while (strayPackets < rtt.getMaxRetries()) {
+            try {
+                DatagramPacket ackPacket = receivePacket(socket, incoming, rtt);
+                reader.wrap(ackPacket.getData(), ackPacket.getLength());
+
+                if (!reader.hasHeader()) {
+                    strayPackets++;
+                    continue;
+                }
+
+                short opcode = reader.opcode();
+
+                if (opcode == TFTPProtocol.ACK) {
+                    short ackBlock = reader.blockNumber();
+                    int distance = window.blocks.distance(baseBlock, ackBlock);
+                    if (distance < window.inFlight()) {
+                        model.updateLog("Received ACK for block " + (baseBlock + distance));
+                        rtt.sample(window.clock.rttFor(baseBlock + distance));
+                        rtt.progress();
+                        return distance + 1;
+                    } else if (window.blocks.isPrevious(distance)) {
+                        model.updateLog("Received duplicate ACK for block " + (baseBlock - 1));
+                        rtt.progress();
+                        return 0;
+                    } else {
+                        model.updateLog("Unexpected ACK block: " + (ackBlock & 0xFFFF));
+                        strayPackets++;
+                    }
+                } else if (opcode == TFTPProtocol.ERROR) {
+                    model.updateStatus("Error: " + reader.errorMessage());
+                    return -1;
+                } else {
+                    model.updateLog("Unexpected opcode: " + opcode);
+                    strayPackets++;
+                }
+            } catch (SocketTimeoutException e) {
+                boolean retry = rtt.backoff();
+                model.updateLog("Timeout waiting for ACK for block " + baseBlock +
+                        " (attempt " + rtt.getRetries() + "/" + rtt.getMaxRetries() + ")");
+                if (!retry)
+                    return -1;
+                resendWindow(socket, outgoing, window);
+                model.updateLog("Resent " + window.inFlight() + " block(s) from block " + baseBlock);
+            }
+        }
+        return -1;
+    }
+
+    private Map<String, String> requestOptions(long transferSize) {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put(TFTPProtocol.OPTION_TSIZE, Long.toString(transferSize));
+        if (blockSize != TFTPProtocol.DATA_SIZE)
+            options.put(TFTPProtocol.OPTION_BLKSIZE, Integer.toString(blockSize));
+        if (windowSize != TFTPProtocol.MIN_WINDOW_SIZE)
+            options.put(TFTPProtocol.OPTION_WINDOWSIZE, Integer.toString(windowSize));
+        if (timeoutSeconds > 0)
+            options.put(TFTPProtocol.OPTION_TIMEOUT, Integer.toString(timeoutSeconds));
+        return options;
+    }
+
+    // RFC 2090: the client sends the option empty and the server fills in the group. A resumed
+    // read asks for the rest of the file by unicast instead.
+    private Map<String, String> downloadOptions(long resumeOffset) {
+        Map<String, String> options = requestOptions(0);
+        // A netascii read is translated as it is sent, so the options that deal in the file's own
+        // bytes do not apply to it.
+        if (isNetascii())
+            return options;
+        if (resumeOffset > 0)
+            options.put(TFTPProtocol.OPTION_OFFSET, Long.toString(resumeOffset));
+        else if (multicast)
+            options.put(TFTPProtocol.OPTION_MULTICAST, "");
+        // The digest covers the whole file, so a resumed read relies on the journal's checks.
+        if (digestAlgorithm != null && resumeOffset == 0)
+            options.put(TFTPProtocol.OPTION_DIGEST, digestAlgorithm);
+        // A resumed read asks for an offset into the file itself, so it is sent as it is.
+        if (compression && resumeOffset == 0)
+            options.put(TFTPProtocol.OPTION_COMPRESS, TFTPProtocol.COMPRESS_DEFLATE);
+        return options;
+    }
+
+    // 1 when the server sends the file compressed, 0 when it left the option out, -1 when it
+    // answered with a compression that was not asked for.
+    private int negotiatedCompression(TFTPOack oack) {
+        String value = oack.getOption(TFTPProtocol.OPTION_COMPRESS);
+        if (value == null)
+            return 0;
+        return compression && TFTPProtocol.COMPRESS_DEFLATE.equalsIgnoreCase(value.trim()) ? 1 : -1;
+    }
+
+    // The digest the server announced for the file, or null if it announced none or one for
+    // another algorithm.
+    private String negotiatedDigest(TFTPOack oack) {
+        String value = oack.getOption(TFTPProtocol.OPTION_DIGEST);
+        if (value == null || digestAlgorithm == null)
+            return null;
+        int separator = value.indexOf(':');
+        if (separator < 0 || !value.substring(0, separator).trim().equalsIgnoreCase(digestAlgorithm))
+            return null;
+        return value.substring(separator + 1).trim().toLowerCase(Locale.ROOT);
+    }
+
+    // The offset the server starts the file at: 0 when it left the option out, -1 when it
+    // answered with anything but the offset asked for.
+    private long negotiatedOffset(TFTPOack oack, long requested) {
+        String value = oack.getOption(TFTPProtocol.OPTION_OFFSET);
+        if (value == null)
+            return 0;
+        try {
+            return requested > 0 && Long.parseLong(value.trim()) == requested ? requested : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // RFC 2349: the server either echoes the requested timeout or leaves the option out, in which
+    // case both ends stay adaptive. Returns 0 for adaptive and -1 for an invalid answer.
+    private int negotiatedTimeout(TFTPOack oack) {
+        String value = oack.getOption(TFTPProtocol.OPTION_TIMEOUT);
+        if (value == null)
+            return 0;
+        try {
+            int negotiated = Integer.parseInt(value.trim());
+            return timeoutSeconds > 0 && negotiated == timeoutSeconds ? negotiated : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // The file size the server reported, or -1 if it did not answer the tsize option.
+    private long negotiatedTransferSize(TFTPOack oack) {
+        String value = oack.getOption(TFTPProtocol.OPTION_TSIZE);
+        if (value == null)
+            return -1;
+        try {
+            long size = Long.parseLong(value.trim());
+            return size >= 0 ? size : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private RttEstimator sessionRtt(RttEstimator rtt, int negotiatedTimeout) {
+        return negotiatedTimeout > 0 ? RttEstimator.fixed(negotiatedTimeout * 1000L, rtt.getMaxRetries()) : rtt;
+    }
+
+    private int negotiatedWindowSize(TFTPOack oack) {
+        String value = oack.getOption(TFTPProtocol.OPTION_WINDOWSIZE);
+        if (value == null)
+            return TFTPProtocol.MIN_WINDOW_SIZE;
+        try {
+            int negotiated = Integer.parseInt(value.trim());
+            if (negotiated < TFTPProtocol.MIN_WINDOW_SIZE || negotiated > windowSize)
+                return -1;
+            return negotiated;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private int negotiatedBlockSize(TFTPOack oack) {
+        String value = oack.getOption(TFTPProtocol.OPTION_BLKSIZE);
+        if (value == null)
+            return TFTPProtocol.DATA_SIZE;
+        try {
+            int negotiated = Integer.parseInt(value.trim());
+            if (negotiated < TFTPProtocol.MIN_BLOCK_SIZE || negotiated > blockSize)
+                return -1;
+            return negotiated;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void rejectOack(DatagramSocket socket, DatagramPacket oackPacket) throws IOException {
+        TFTPError error = new TFTPError(TFTPProtocol.ERR_OPTION_NEGOTIATION, "Option negotiation failed");
+        sendPacket(socket, error.toBytes(), oackPacket.getAddress(), oackPacket.getPort());
+    }
+
+    public void setBlockSize(int blockSize) {
+        if (blockSize < TFTPProtocol.MIN_BLOCK_SIZE || blockSize > TFTPProtocol.MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("Block size must be between " + TFTPProtocol.MIN_BLOCK_SIZE +
+                    " and " + TFTPProtocol.MAX_BLOCK_SIZE + ": " + blockSize);
+        this.blockSize = blockSize;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void setWindowSize(int windowSize) {
+        if (windowSize < TFTPProtocol.MIN_WINDOW_SIZE || windowSize > TFTPProtocol.MAX_WINDOW_SIZE)
+            throw new IllegalArgumentException("Window size must be between " + TFTPProtocol.MIN_WINDOW_SIZE +
+                    " and " + TFTPProtocol.MAX_WINDOW_SIZE + ": " + windowSize);
+        this.windowSize = windowSize;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    // 0 keeps the adaptive timeout; anything else is requested from the server as a fixed timeout.
+    public void setTimeoutSeconds(int timeoutSeconds) {
+        if (timeoutSeconds != 0 && (timeoutSeconds < TFTPProtocol.MIN_TIMEOUT || timeoutSeconds > TFTPProtocol.MAX_TIMEOUT))
+            throw new IllegalArgumentException("Timeout must be 0 or between " + TFTPProtocol.MIN_TIMEOUT +
+                    " and " + TFTPProtocol.MAX_TIMEOUT + " seconds: " + timeoutSeconds);
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    public int getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    // Block number that follows 65535. Downloads expect the same, though a server that rolls over
+    // to 0 is always recognised, and in lock-step either choice is.
+    public void setBlockRollover(int blockRollover) {
+        if (blockRollover != 0 && blockRollover != 1)
+            throw new IllegalArgumentException("Block rollover must be 0 or 1: " + blockRollover);
+        this.blockRollover = blockRollover;
+    }
+
+    public int getBlockRollover() {
+        return blockRollover;
+    }
+
+    // Asks for multicast reads; a server without multicast simply serves them by unicast.
+    public void setMulticast(boolean multicast) {
+        this.multicast = multicast;
+    }
+
+    public boolean isMulticast() {
+        return multicast;
+    }
+
+    // Interface to join the group on. By default it is the one that routes to the server.
+    public void setMulticastInterface(NetworkInterface multicastInterface) {
+        this.multicastInterface = multicastInterface;
+    }
+
+    // Number of files a batch transfers at once.
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    // Keeps a journal next to each download so one that is stopped or fails part way resumes
+    // from its last checkpoint instead of from the first byte.
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    // Digest algorithm (StreamDigest.CRC32C or SHA_256) to check downloads against, or null for
+    // none. The data is digested as it arrives; uploads name it so the server can announce the
+    // digest of the uploaded file to later reads.
+    public void setDigestAlgorithm(String digestAlgorithm) {
+        if (digestAlgorithm != null && !StreamDigest.isSupported(digestAlgorithm))
+            throw new IllegalArgumentException("Unsupported digest: " + digestAlgorithm);
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    // Asks the server to send downloads deflated. The file is inflated as it arrives, and the
+    // progress reports the compressed bytes received alongside the bytes of the file written.
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    // Transfer mode: TFTPProtocol.MODE_OCTET, the default, or MODE_NETASCII for text, whose line
+    // endings are translated to and from the local ones as it is transferred.
+    public void setMode(String mode) {
+        String normalized = mode.toLowerCase(Locale.ROOT);
+        if (!TFTPProtocol.MODE_OCTET.equals(normalized) && !TFTPProtocol.MODE_NETASCII.equals(normalized))
+            throw new IllegalArgumentException("Unsupported transfer mode: " + mode);
+        this.mode = normalized;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    private boolean isNetascii() {
+        return TFTPProtocol.MODE_NETASCII.equals(mode);
+    }
+
     public void stopTransfer() {
         stopRequested = true;
     }
 
+    private boolean isStopRequested() {
+        return stopRequested || batch != null && batch.stopRequested;
+    }
+
     public boolean isTransferInProgress() {
         return transferInProgress;
     }
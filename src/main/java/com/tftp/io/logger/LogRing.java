@@ -0,0 +1,84 @@
+package com.tftp.io.logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded lock-free queue of log records for many producers and one consumer. Each slot carries a
+// sequence number that says whose turn it is: producers claim a position with one CAS and publish
+// by bumping the slot's sequence, so transfer threads never take a lock to log. Records are
+// preallocated and reused, which keeps logging itself free of per-message garbage beyond the text.
+final class LogRing {
+    static final class Record {
+        long timeMillis;
+        Logger.Level level;
+        String message;
+    }
+
+    private final Record[] records;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    LogRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        records = new Record[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            records[i] = new Record();
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+    }
+
+    // Returns false without waiting when the ring is full.
+    boolean offer(long timeMillis, Logger.Level level, String message) {
+        while (true) {
+            long position = tail.get();
+            int slot = (int) (position & mask);
+            long sequence = sequences.get(slot);
+
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    Record record = records[slot];
+                    record.timeMillis = timeMillis;
+                    record.level = level;
+                    record.message = message;
+                    sequences.set(slot, position + 1);
+                    return true;
+                }
+            } else if (sequence < position) {
+                return false;
+            }
+        }
+    }
+
+    // Consumer side only. The record stays valid until release() is called for it.
+    Record peek() {
+        long position = head;
+        int slot = (int) (position & mask);
+        return sequences.get(slot) == position + 1 ? records[slot] : null;
+    }
+
+    void release() {
+        long position = head;
+        int slot = (int) (position & mask);
+        records[slot].message = null;
+        sequences.set(slot, position + records.length);
+        head = position + 1;
+    }
+
+    // Everything offered before this call has been consumed once head reaches the returned mark.
+    long mark() {
+        return tail.get();
+    }
+
+    boolean consumed(long mark) {
+        return head >= mark;
+    }
+
+    int capacity() {
+        return records.length;
+    }
+}
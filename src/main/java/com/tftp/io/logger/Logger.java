@@ -1,13 +1,42 @@
 package com.tftp.io.logger;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+// Asynchronous logger. Callers only format their message and drop it into a lock-free ring; a
+// background thread timestamps, writes and flushes whole batches to the console and the log
+// file. Per-block messages go through trace(), guarded by isTraceEnabled() at the call site, so
+// they cost one volatile read when the level is above TRACE.
 public class Logger {
-    private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    private static PrintWriter fileWriter = null;
-    private static String logFileName = "server.log";
+    public enum Level { TRACE, DEBUG, INFO, ERROR }
+
+    // What log() does when the writer has fallen a full ring behind: drop the message and count
+    // it, or make the caller wait for room.
+    public enum OverflowPolicy { DROP, BLOCK }
+
+    private static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String logFileName = "server.log";
+    private static final int RING_CAPACITY = 8192;
+    private static final int MAX_BATCH = 1024;
+
+    private static final LogRing ring = new LogRing(RING_CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile Level level = Level.INFO;
+    private static volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+    private static volatile boolean writerIdle;
+
+    // Guarded by the Logger class lock, which the writer thread holds while it writes a batch.
+    private static Writer fileWriter = null;
+    private static long cachedSecond = Long.MIN_VALUE;
+    private static String cachedTimestamp;
+
+    private static final Thread writer = startWriter();
 
     public static void initialize(String rootDirectory) {
         try {
@@ -16,11 +45,18 @@ public class Logger {
                 logDir.mkdirs();
 
             File logFile = new File(logDir, logFileName);
-            fileWriter = new PrintWriter(new FileWriter(logFile, true));
+            boolean empty = logFile.length() == 0;
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(logFile, true), StandardCharsets.UTF_8));
 
-            if (logFile.length() == 0) {
-                fileWriter.println("TFTP Server Log - Started: " + dateFormat.format(new Date()));
-                fileWriter.flush();
+            synchronized (Logger.class) {
+                closeFile();
+                fileWriter = writer;
+                if (empty) {
+                    writer.write("TFTP Server Log - Started: " + format(System.currentTimeMillis()) +
+                            System.lineSeparator());
+                    writer.flush();
+                }
             }
 
             System.out.println("Log file created at: " + logFile.getAbsolutePath());
@@ -30,36 +66,179 @@ public class Logger {
         }
     }
 
-    public static void log(String message) {
-        String timestamp = dateFormat.format(new Date());
-        String logMessage = "[" + timestamp + "] " + message;
+    public static void setLevel(Level newLevel) { level = newLevel; }
+    public static Level getLevel() { return level; }
+    public static void setOverflowPolicy(OverflowPolicy policy) { overflowPolicy = policy; }
+    public static long getDroppedCount() { return dropped.get(); }
+
+    public static boolean isTraceEnabled() { return level == Level.TRACE; }
+    public static boolean isDebugEnabled() { return level.compareTo(Level.DEBUG) <= 0; }
 
-        System.out.println(logMessage);
-        writeToFile(logMessage);
+    public static void trace(String message) {
+        if (level == Level.TRACE)
+            enqueue(Level.TRACE, message);
+    }
+
+    public static void debug(String message) {
+        if (isDebugEnabled())
+            enqueue(Level.DEBUG, message);
+    }
+
+    public static void log(String message) {
+        if (level.compareTo(Level.INFO) <= 0)
+            enqueue(Level.INFO, message);
     }
 
     public static void error(String message) {
-        String timestamp = dateFormat.format(new Date());
-        String errorMessage = "[" + timestamp + "] ERROR: " + message;
+        enqueue(Level.ERROR, message);
+    }
 
-        System.err.println(errorMessage);
-        writeToFile(errorMessage);
+    private static void enqueue(Level messageLevel, String message) {
+        long now = System.currentTimeMillis();
+        while (!ring.offer(now, messageLevel, message)) {
+            if (overflowPolicy == OverflowPolicy.DROP) {
+                dropped.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000);
+        }
+        if (writerIdle)
+            LockSupport.unpark(writer);
     }
 
-    private static void writeToFile(String message) {
-        if (fileWriter != null) {
-            fileWriter.println(message);
-            fileWriter.flush();
+    // Waits until everything logged so far has been written and flushed.
+    public static void flush() {
+        long mark = ring.mark();
+        while (!ring.consumed(mark)) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000);
+        }
+        synchronized (Logger.class) {
+            flushFile();
         }
     }
 
     public static void close() {
+        flush();
+        synchronized (Logger.class) {
+            if (fileWriter != null) {
+                try {
+                    fileWriter.write("TFTP Server Log - Stopped: " + format(System.currentTimeMillis()) +
+                            System.lineSeparator());
+                } catch (IOException ignored) {
+                }
+            }
+            closeFile();
+        }
+    }
+
+    private static Thread startWriter() {
+        Thread thread = new Thread(Logger::drainLoop, "tftp-logger");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void drainLoop() {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        long reportedDrops = 0;
+
+        while (true) {
+            LogRing.Record record = ring.peek();
+            if (record == null) {
+                writerIdle = true;
+                if (ring.peek() == null)
+                    LockSupport.parkNanos(50_000_000);
+                writerIdle = false;
+                continue;
+            }
+
+            synchronized (Logger.class) {
+                int batch = 0;
+                while (record != null && batch < MAX_BATCH) {
+                    write(record.timeMillis, record.level, record.message, out, err);
+                    ring.release();
+                    batch++;
+                    record = ring.peek();
+                }
+
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    write(System.currentTimeMillis(), Level.ERROR,
+                            (drops - reportedDrops) + " log message(s) dropped, writer fell behind", out, err);
+                    reportedDrops = drops;
+                }
+
+                emit(out, err);
+            }
+        }
+    }
+
+    private static void write(long timeMillis, Level messageLevel, String message,
+                              StringBuilder out, StringBuilder err) {
+        StringBuilder target = messageLevel == Level.ERROR ? err : out;
+        int start = target.length();
+        target.append('[').append(format(timeMillis)).append("] ");
+        if (messageLevel != Level.INFO)
+            target.append(messageLevel).append(": ");
+        target.append(message).append(System.lineSeparator());
+
         if (fileWriter != null) {
-            String timestamp = dateFormat.format(new Date());
-            fileWriter.println("TFTP Server Log - Stopped: " + timestamp);
+            try {
+                fileWriter.append(target, start, target.length());
+            } catch (IOException e) {
+                System.err.println("Could not write log file: " + e.getMessage());
+                closeFile();
+            }
+        }
+    }
+
+    private static void emit(StringBuilder out, StringBuilder err) {
+        if (out.length() > 0) {
+            System.out.print(out);
+            System.out.flush();
+            out.setLength(0);
+        }
+        if (err.length() > 0) {
+            System.err.print(err);
+            System.err.flush();
+            err.setLength(0);
+        }
+        flushFile();
+    }
+
+    // A second's worth of messages shares one formatted timestamp.
+    private static String format(long timeMillis) {
+        long second = timeMillis / 1000;
+        synchronized (dateFormat) {
+            if (second != cachedSecond) {
+                cachedTimestamp = dateFormat.format(LocalDateTime.ofInstant(
+                        Instant.ofEpochSecond(second), ZoneId.systemDefault()));
+                cachedSecond = second;
+            }
+            return cachedTimestamp;
+        }
+    }
+
+    private static void flushFile() {
+        if (fileWriter == null)
+            return;
+        try {
             fileWriter.flush();
+        } catch (IOException e) {
+            System.err.println("Could not flush log file: " + e.getMessage());
+        }
+    }
+
+    private static void closeFile() {
+        if (fileWriter == null)
+            return;
+        try {
             fileWriter.close();
-            fileWriter = null;
+        } catch (IOException ignored) {
         }
+        fileWriter = null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,67 @@
+package com.tftp.io.server;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+// Decides on the listening thread whether an initial request may start a transfer. A request is
+// refused when the session table already holds it, when its source address is over its request
+// rate, or when `capacity` transfers are queued or running already.
+final class AdmissionControl {
+    enum Verdict { ADMITTED, DUPLICATE, RATE_LIMITED, BUSY }
+
+    // Source buckets are swept once this many are tracked; a full bucket is an idle source.
+    private static final int SOURCE_SWEEP_THRESHOLD = 4096;
+
+    private final int capacity;
+    private final int ratePerSource;
+    private final long burstNanos;
+    private final SessionTable sessions = new SessionTable();
+    private final Map<InetAddress, TokenBucket> sources = new HashMap<>();
+
+    AdmissionControl(int capacity, ServerConfig config) {
+        this.capacity = capacity;
+        this.ratePerSource = config.getRequestRatePerSource();
+        this.burstNanos = ratePerSource == 0 ? 0
+                : (config.getRequestBurstPerSource() - 1) * 1_000_000_000L / ratePerSource;
+    }
+
+    // An admitted request is added to the session table and stays there until its transfer
+    // releases it.
+    Verdict admit(SessionTable.Entry request) {
+        if (sessions.absorbDuplicate(request) != null)
+            return Verdict.DUPLICATE;
+        if (!takeSourceToken(request.getClient().getAddress()))
+            return Verdict.RATE_LIMITED;
+        if (sessions.getSize() >= capacity)
+            return Verdict.BUSY;
+        sessions.add(request);
+        return Verdict.ADMITTED;
+    }
+
+    private boolean takeSourceToken(InetAddress source) {
+        if (ratePerSource == 0)
+            return true;
+        long now = System.nanoTime();
+        if (sources.size() >= SOURCE_SWEEP_THRESHOLD)
+            sources.values().removeIf(bucket -> bucket.isFull(now));
+        return sources.computeIfAbsent(source, key -> new TokenBucket(burstNanos)).tryTake(1, now, ratePerSource);
+    }
+
+    static String describe(Verdict verdict) {
+        switch (verdict) {
+            case DUPLICATE: return "Request already in progress";
+            case RATE_LIMITED: return "Too many requests, try again later";
+            case BUSY: return "Server busy, try again later";
+            default: return "Admitted";
+        }
+    }
+
+    SessionTable getSessions() {
+        return sessions;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+}
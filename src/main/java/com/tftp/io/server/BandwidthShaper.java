@@ -0,0 +1,199 @@
+package com.tftp.io.server;
+
+import com.tftp.io.logger.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Paces transfers with three nested token buckets: one for the whole server, one shared by every
+// transfer from a client subnet, and one per transfer. Read transfers reserve before each DATA
+// block, uploads before each ACK, so an upload is slowed by the client waiting on its ACKs.
+//
+// A transfer holds at most one reservation at a time and takes the next only once that packet has
+// gone, so backlogged transfers queue at a shared bucket in turn, packet by packet. That keeps the
+// global budget fully used while every backlogged transfer gets an even share of it; the client
+// bucket stops a host from claiming more by opening many transfers.
+public class BandwidthShaper implements BandwidthShaperMXBean {
+    private final TokenBucket global = new TokenBucket();
+    private final Map<InetAddress, ClientBucket> clients = new HashMap<>();
+    private final int clientPrefixIpv4;
+    private final int clientPrefixIpv6;
+    private final LongAdder delayedPackets = new LongAdder();
+    private final LongAdder delayNanos = new LongAdder();
+    private volatile long globalRate;
+    private volatile long clientRate;
+    private volatile long sessionRate;
+    private ObjectName registeredName;
+
+    public BandwidthShaper(ServerConfig config) {
+        this.clientPrefixIpv4 = config.getClientPrefixIpv4();
+        this.clientPrefixIpv6 = config.getClientPrefixIpv6();
+        this.globalRate = config.getGlobalRateBytesPerSecond();
+        this.clientRate = config.getClientRateBytesPerSecond();
+        this.sessionRate = config.getSessionRateBytesPerSecond();
+    }
+
+    private static final class ClientBucket {
+        final TokenBucket bucket = new TokenBucket();
+        int flows;
+    }
+
+    // The shaping state of one transfer, used by the thread that runs it.
+    final class Flow {
+        private final TokenBucket session = new TokenBucket();
+        private final InetAddress subnet;
+        private final ClientBucket client;
+        private boolean closed;
+
+        private Flow(InetAddress subnet, ClientBucket client) {
+            this.subnet = subnet;
+            this.client = client;
+        }
+
+        // Reserves bytes from each bucket in turn and returns how many nanoseconds the packet has
+        // to be held back.
+        long reserve(int bytes) {
+            long sessionRate = BandwidthShaper.this.sessionRate;
+            long clientRate = BandwidthShaper.this.clientRate;
+            long globalRate = BandwidthShaper.this.globalRate;
+            if ((sessionRate | clientRate | globalRate) == 0)
+                return 0;
+
+            long now = System.nanoTime();
+            long sendAt = session.reserve(bytes, now, sessionRate);
+            sendAt = client.bucket.reserve(bytes, sendAt, clientRate);
+            sendAt = global.reserve(bytes, sendAt, globalRate);
+            long delay = sendAt - now;
+            if (delay <= 0)
+                return 0;
+            delayedPackets.increment();
+            delayNanos.add(delay);
+            return delay;
+        }
+
+        // Blocking engine: reserves and waits until the packet may go.
+        void pace(int bytes) {
+            long delay = reserve(bytes);
+            if (delay == 0)
+                return;
+            long deadline = System.nanoTime() + delay;
+            while (delay > 0 && !Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(delay);
+                delay = deadline - System.nanoTime();
+            }
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            synchronized (clients) {
+                if (--client.flows == 0)
+                    clients.remove(subnet);
+            }
+        }
+    }
+
+    Flow open(InetAddress address) {
+        InetAddress subnet = subnetOf(address);
+        synchronized (clients) {
+            ClientBucket client = clients.computeIfAbsent(subnet, key -> new ClientBucket());
+            client.flows++;
+            return new Flow(subnet, client);
+        }
+    }
+
+    InetAddress subnetOf(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        int prefix = bytes.length == 4 ? clientPrefixIpv4 : clientPrefixIpv6;
+        for (int i = 0; i < bytes.length; i++) {
+            int bits = prefix - i * 8;
+            if (bits <= 0)
+                bytes[i] = 0;
+            else if (bits < 8)
+                bytes[i] &= (byte) (0xFF << (8 - bits));
+        }
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            return address;
+        }
+    }
+
+    @Override public long getGlobalRate() { return globalRate; }
+    @Override public long getClientRate() { return clientRate; }
+    @Override public long getSessionRate() { return sessionRate; }
+
+    @Override
+    public void setGlobalRate(long bytesPerSecond) {
+        this.globalRate = checkRate(bytesPerSecond);
+    }
+
+    @Override
+    public void setClientRate(long bytesPerSecond) {
+        this.clientRate = checkRate(bytesPerSecond);
+    }
+
+    @Override
+    public void setSessionRate(long bytesPerSecond) {
+        this.sessionRate = checkRate(bytesPerSecond);
+    }
+
+    private static long checkRate(long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("Rate must not be negative: " + bytesPerSecond);
+        return bytesPerSecond;
+    }
+
+    @Override
+    public int getActiveClients() {
+        synchronized (clients) {
+            return clients.size();
+        }
+    }
+
+    @Override public long getDelayedPackets() { return delayedPackets.sum(); }
+    @Override public long getDelayMillis() { return TimeUnit.NANOSECONDS.toMillis(delayNanos.sum()); }
+
+    String describe() {
+        if ((globalRate | clientRate | sessionRate) == 0)
+            return "no rate limits";
+        return "rate limits " + describe(globalRate) + " global, " + describe(clientRate) + " per client, " +
+                describe(sessionRate) + " per transfer";
+    }
+
+    private static String describe(long rate) {
+        return rate == 0 ? "none" : rate + " B/s";
+    }
+
+    void register(int port) {
+        try {
+            ObjectName name = new ObjectName("com.tftp:type=BandwidthShaper,port=" + port);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            Logger.error("Could not register bandwidth shaper MBean: " + e.getMessage());
+        }
+    }
+
+    void unregister() {
+        if (registeredName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException ignored) {}
+        registeredName = null;
+    }
+}
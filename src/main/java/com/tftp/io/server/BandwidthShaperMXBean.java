@@ -0,0 +1,18 @@
+package com.tftp.io.server;
+
+// JMX view of BandwidthShaper, registered as com.tftp:type=BandwidthShaper,port=<port>. Rates are
+// in bytes per second, 0 meaning unlimited, and apply to transfers already running.
+public interface BandwidthShaperMXBean {
+    long getGlobalRate();
+    void setGlobalRate(long bytesPerSecond);
+
+    long getClientRate();
+    void setClientRate(long bytesPerSecond);
+
+    long getSessionRate();
+    void setSessionRate(long bytesPerSecond);
+
+    int getActiveClients();
+    long getDelayedPackets();
+    long getDelayMillis();
+}
@@ -0,0 +1,45 @@
+package com.tftp.io.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Random access to a file's contents as TFTP DATA packets. Blocks are addressed by their
+// 1-based index so a retransmit simply reads the same block again instead of keeping a copy;
+// the number written into the header is the caller's, since it wraps past 65535.
+interface BlockSource extends Closeable {
+    long size();
+
+    // Size of the file the blocks stand for, which a read reports as its tsize. It differs from
+    // size() when they carry the file compressed.
+    default long fileSize() {
+        return size();
+    }
+
+    // Fills packet with the DATA header and payload of the given block and flips it for sending.
+    // Returns the payload length; a value below blockSize marks the final block.
+    int readBlock(long block, short blockNumber, int blockSize, ByteBuffer packet) throws IOException;
+
+    // Reads the bytes at position, counted from the start of the file whatever the offset, into
+    // destination. Returns how many were read, or -1 at the end of the file.
+    int read(long position, ByteBuffer destination) throws IOException;
+
+    // Moves block 1 to start at offset rather than at the beginning of the file, for a read that
+    // resumes where an earlier one stopped.
+    void seek(long offset);
+
+    long offset();
+
+    default long blockCount(int blockSize) {
+        return (size() - offset()) / blockSize + 1;
+    }
+
+    // How many payload bytes the given block carries, without reading it. A source that does not
+    // know its size yet says a full block.
+    default int payloadLength(long block, int blockSize) {
+        if (size() < 0)
+            return blockSize;
+        long remaining = size() - offset() - (block - 1) * blockSize;
+        return (int) Math.max(0, Math.min(blockSize, remaining));
+    }
+}
@@ -1,29 +1,92 @@
 package com.tftp.io.server;
 
 import com.tftp.model.packet.*;
+import com.tftp.model.protocol.BlockSequence;
+import com.tftp.model.protocol.RttEstimator;
+import com.tftp.model.protocol.SendClock;
+import com.tftp.model.protocol.StreamDigest;
 import com.tftp.model.protocol.TFTPProtocol;
 import com.tftp.io.logger.Logger;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.Map;
 
 public class ClientHandler implements Runnable {
+    private interface Retransmission {
+        void resend() throws IOException;
+    }
+
     private final DatagramPacket initialPacket;
-    private final String rootDirectory;
+    private final RootIndex root;
+    private final ServerConfig config;
+    private final FileCache fileCache;
+    private final DeflatedFiles deflatedFiles;
+    private final MulticastService multicast;
+    private final ServerMetrics metrics;
+    private final BandwidthShaper shaper;
+    private ServerMetrics.Transfer transfer;
+    private BandwidthShaper.Flow flow;
+    private SessionTable.Entry entry;
     private InetAddress clientAddress;
     private int clientPort;
+    private InetSocketAddress clientTid;
+    private DatagramChannel channel;
+    private final DatagramPacket receivePacket = new DatagramPacket(new byte[0], 0);
+    private int blockSize = TFTPProtocol.DATA_SIZE;
+    private int windowSize = TFTPProtocol.MIN_WINDOW_SIZE;
+    private byte[] receiveBuffer = new byte[TFTPProtocol.PACKET_SIZE];
+    private final PacketReader reader = new PacketReader();
+    private final ByteBuffer ackBuffer = ByteBuffer.allocateDirect(TFTPProtocol.HEADER_SIZE);
+    private BlockSequence blocks;
+    private RttEstimator rtt;
+    private SendClock sendClock;
+    private FileCache.DigestCapture digestCapture;
 
     public ClientHandler(DatagramPacket packet, String rootDirectory) {
+        this(packet, rootDirectory, new ServerConfig());
+    }
+
+    public ClientHandler(DatagramPacket packet, String rootDirectory, ServerConfig config) {
+        this(packet, new RootIndex(rootDirectory), config, FileCache.disabled(),
+                new DeflatedFiles(FileCache.disabled()), null, new ServerMetrics(), new BandwidthShaper(config));
+    }
+
+    ClientHandler(DatagramPacket packet, RootIndex root, ServerConfig config, FileCache fileCache,
+                  DeflatedFiles deflatedFiles, MulticastService multicast, ServerMetrics metrics,
+                  BandwidthShaper shaper) {
         this.initialPacket = packet;
-        this.rootDirectory = rootDirectory;
+        this.root = root;
+        this.config = config;
+        this.fileCache = fileCache;
+        this.deflatedFiles = deflatedFiles;
+        this.multicast = multicast;
+        this.metrics = metrics;
+        this.shaper = shaper;
+        this.blocks = new BlockSequence(config.getBlockRollover());
         this.clientAddress = packet.getAddress();
         this.clientPort = packet.getPort();
+        this.clientTid = new InetSocketAddress(clientAddress, clientPort);
+    }
+
+    // The session table entry shows the transfer while it runs; the caller releases it.
+    void admittedAs(SessionTable.Entry entry) {
+        this.entry = entry;
     }
 
     @Override
     public void run() {
-        try (DatagramSocket socket = new DatagramSocket()) {
-            socket.setSoTimeout(10000);
+        transfer = metrics.transferStarted();
+        if (entry != null)
+            entry.started(transfer);
+        flow = shaper.open(clientAddress);
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.bind(null);
+            this.channel = channel;
+            DatagramSocket socket = channel.socket();
 
             byte[] data = initialPacket.getData();
             int length = initialPacket.getLength();
@@ -47,110 +110,114 @@ public class ClientHandler implements Runnable {
             }
         } catch (IOException e) {
             Logger.error("Client handler error: " + e.getMessage());
+        } finally {
+            flow.close();
+            transfer.finish();
         }
     }
 
     private void handleReadRequest(DatagramSocket socket, byte[] data, int length) throws IOException {
         TFTPRequest request = TFTPRequest.fromBytes(data, length);
         String filename = request.getFilename();
-        File file = new File(rootDirectory, filename);
 
         Logger.log("RRQ from " + clientAddress + ":" + clientPort + " for file: " + filename);
+        transfer.describe(clientTid, filename, true);
+
+        if (!isSupportedMode(request)) {
+            sendError(socket, TFTPProtocol.ERR_ILLEGAL_OPERATION,
+                    "Unsupported transfer mode: " + request.getMode());
+            return;
+        }
 
-        if (!file.exists() || !file.isFile()) {
+        RootIndex.Entry entry = root.lookup(filename);
+        if (entry == null) {
             sendError(socket, TFTPProtocol.ERR_FILE_NOT_FOUND, "File not found: " + filename);
             return;
         }
 
-        if (!isInRootDirectory(file)) {
+        if (!entry.isInRoot()) {
             sendError(socket, TFTPProtocol.ERR_ACCESS_VIOLATION, "Access violation");
             return;
         }
 
-        long fileSize = file.length();
-        Logger.log("Sending file: " + filename + " (" + fileSize + " bytes)");
-
-        try (FileInputStream fis = new FileInputStream(file)) {
-            short blockNumber = 1;
-            byte[] buffer = new byte[TFTPProtocol.DATA_SIZE];
-            int bytesRead;
-            long totalBytesSent = 0;
-
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                byte[] fileData;
-                if (bytesRead == TFTPProtocol.DATA_SIZE)
-                    fileData = buffer;
-                else {
-                    fileData = new byte[bytesRead];
-                    System.arraycopy(buffer, 0, fileData, 0, bytesRead);
-                }
-
-                TFTPData dataPacket = new TFTPData(blockNumber, fileData);
-                sendPacket(socket, dataPacket.toBytes());
-                totalBytesSent += bytesRead;
+        TransferOptions options = negotiateOptions(request);
+        if (multicast != null && MulticastService.isRequested(request) && options.allowsMulticast()
+                && multicast.join(entry, clientTid, options)) {
+            transfer.joinedMulticast();
+            return;
+        }
 
-                Logger.log("Sent DATA block " + blockNumber + " (" + bytesRead + " bytes)");
+        BlockSource source;
+        try {
+            source = open(deflatedFiles, fileCache, entry, options);
+        } catch (NoSuchFileException e) {
+            // Deleted after the index last saw it.
+            root.forget(filename);
+            sendError(socket, TFTPProtocol.ERR_FILE_NOT_FOUND, "File not found: " + filename);
+            return;
+        }
 
-                boolean ackReceived = false;
-                int retries = 0;
-                while (!ackReceived && retries < 3) {
-                    try {
-                        DatagramPacket ackPacket = receivePacket(socket);
-                        byte[] ackData = ackPacket.getData();
-                        int ackLength = ackPacket.getLength();
+        try (source) {
+            long fileSize = source.fileSize();
+            options.reportTransferSize(fileSize);
+            source.seek(options.acceptOffset(fileSize));
+            digestCapture = fileCache.announceDigest(entry, source, options);
+
+            if (!options.isEmpty()) {
+                byte[] oack = new TFTPOack(options.getAccepted()).toBytes();
+                sendPacket(socket, oack);
+                sendClock.sent(0);
+                Logger.log("Sent OACK " + options.getAccepted());
+
+                if (awaitAck(socket, 0, 1, () -> {
+                    sendPacket(socket, oack);
+                    sendClock.sent(0);
+                }) < 1)
+                    return;
+            }
 
-                        if (ackLength < 4) {
-                            retries++;
-                            continue;
-                        }
+            long lastBlock = source.blockCount(blockSize);
+            Logger.log("Sending file: " + filename + " (" + sizeOf(source) + resumedFrom(source) +
+                    deflatedTo(source) + ", blksize " + blockSize + ", windowsize " + windowSize + ")");
 
-                        short ackOpcode = (short) (((ackData[0] & 0xFF) << 8) | (ackData[1] & 0xFF));
+            ByteBuffer packet = ByteBuffer.allocateDirect(TFTPProtocol.HEADER_SIZE + blockSize);
+            long baseBlock = 1;
+            long nextBlock = 1;
 
-                        if (ackOpcode == TFTPProtocol.ACK) {
-                            TFTPAck ack = TFTPAck.fromBytes(ackData, ackLength);
-                            if (ack.getBlockNumber() == blockNumber) {
-                                Logger.log("Received ACK for block " + blockNumber);
-                                ackReceived = true;
-                            }
-                            else if (ack.getBlockNumber() < blockNumber)
-                                Logger.log("Received duplicate ACK for block " + ack.getBlockNumber());
-                            else {
-                                Logger.error("Unexpected ACK block: " + ack.getBlockNumber());
-                                retries++;
-                            }
-                        } else if (ackOpcode == TFTPProtocol.ERROR) {
-                            TFTPError error = TFTPError.fromBytes(ackData, ackLength);
-                            Logger.error("Client sent error: " + error.getErrorMsg());
-                            return;
-                        } else {
-                            Logger.error("Unexpected opcode: " + ackOpcode);
-                            retries++;
-                        }
-                    } catch (SocketTimeoutException e) {
-                        retries++;
-                        Logger.error("Timeout waiting for ACK for block " + blockNumber +
-                                " (attempt " + retries + "/3)");
-                        if (retries < 3) {
-                            sendPacket(socket, dataPacket.toBytes());
-                            Logger.log("Resent DATA block " + blockNumber);
-                        }
-                    }
+            while (true) {
+                while (nextBlock < baseBlock + windowSize && nextBlock <= lastBlock) {
+                    // A source that does not know its length ends with the first short block.
+                    if (sendBlock(source, nextBlock, packet) < blockSize)
+                        lastBlock = nextBlock;
+                    nextBlock++;
                 }
 
-                if (!ackReceived) {
-                    Logger.error("Failed to send block " + blockNumber + ", stopping transfer");
+                long windowStart = baseBlock;
+                long windowEnd = nextBlock;
+                int acked = awaitAck(socket, baseBlock, (int) (nextBlock - baseBlock), () -> {
+                    for (long block = windowStart; block < windowEnd; block++)
+                        sendBlock(source, block, packet);
+                    Logger.debug("Resent " + (windowEnd - windowStart) + " block(s) from block " + windowStart);
+                });
+                if (acked < 0) {
+                    Logger.error("Failed to send block " + baseBlock + ", stopping transfer");
                     return;
                 }
 
-                blockNumber++;
+                baseBlock += acked;
+                if (baseBlock > lastBlock)
+                    break;
 
-                if (blockNumber == 0) {
-                    Logger.error("Block number overflow, file too large");
-                    return;
-                }
+                // Anything not covered by the ACK is re-read and sent again from the new base.
+                if (nextBlock > baseBlock)
+                    Logger.debug("Restarting window at block " + baseBlock);
+                nextBlock = baseBlock;
             }
 
-            Logger.log("File sent successfully: " + totalBytesSent + " bytes");
+            if (digestCapture != null)
+                digestCapture.completed();
+            transfer.completed();
+            Logger.log("File sent successfully: " + source.fileSize() + " bytes");
 
         } catch (IOException e) {
             Logger.error("Error reading file: " + e.getMessage());
@@ -158,109 +225,316 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    static String sizeOf(BlockSource source) {
+        return source.fileSize() >= 0 ? source.fileSize() + " bytes" : "length found as it is sent";
+    }
+
+    static String resumedFrom(BlockSource source) {
+        return source.offset() > 0 ? " from byte " + source.offset() : "";
+    }
+
+    static String deflatedTo(BlockSource source) {
+        return source.size() != source.fileSize() ? ", deflated to " + source.size() : "";
+    }
+
+    // Octet and netascii; the obsolete mail mode is refused.
+    static boolean isSupportedMode(TFTPRequest request) {
+        return TFTPProtocol.MODE_OCTET.equals(request.getMode())
+                || TFTPProtocol.MODE_NETASCII.equals(request.getMode());
+    }
+
+    // The file a read sends: its compressed copy when the client asked for one and it pays off,
+    // its netascii translation for a netascii read, otherwise the file itself.
+    static BlockSource open(DeflatedFiles deflatedFiles, FileCache fileCache, RootIndex.Entry file,
+                            TransferOptions options) throws IOException {
+        if (options.isNetascii()) {
+            BlockSource source = fileCache.open(file);
+            try {
+                // Measuring takes a pass over the file, only worth it for a client that asked.
+                long size = options.getTransferSize() >= 0 ? fileCache.netasciiSize(file, source) : -1;
+                return new NetasciiBlockSource(source, size);
+            } catch (IOException e) {
+                source.close();
+                throw e;
+            }
+        }
+        if (options.isCompressionRequested()) {
+            BlockSource compressed = deflatedFiles.open(file, options.getDigestAlgorithm());
+            if (compressed != null) {
+                options.acceptCompression();
+                return compressed;
+            }
+        }
+        return fileCache.open(file);
+    }
+
+    private int sendBlock(BlockSource source, long block, ByteBuffer packet) throws IOException {
+        int length = source.readBlock(block, blocks.wire(block), blockSize, packet);
+        flow.pace(length);
+        if (digestCapture != null)
+            digestCapture.sent(block, packet);
+        channel.send(packet, clientTid);
+        sendClock.sent(block);
+        transfer.dataSent(block, length);
+        if (Logger.isTraceEnabled())
+            Logger.trace("Sent DATA block " + block + " (" + length + " bytes)");
+        return length;
+    }
+
+    // Waits for an ACK covering part of the inFlight blocks starting at baseBlock and returns
+    // how many blocks it acknowledges: 0 means the client asked for the window to be restarted,
+    // -1 that the transfer has to be abandoned.
+    private int awaitAck(DatagramSocket socket, long baseBlock, int inFlight, Retransmission retransmission)
+            throws IOException {
+        int strayPackets = 0;
+        while (strayPackets < rtt.getMaxRetries()) {
+            try {
+                DatagramPacket ackPacket = receivePacket(socket);
+                reader.wrap(ackPacket.getData(), ackPacket.getLength());
+
+                if (!reader.hasHeader()) {
+                    strayPackets++;
+                    continue;
+                }
+
+                short ackOpcode = reader.opcode();
+
+                if (ackOpcode == TFTPProtocol.ACK) {
+                    short ackBlock = reader.blockNumber();
+                    int distance = blocks.distance(baseBlock, ackBlock);
+                    if (distance < inFlight) {
+                        if (Logger.isTraceEnabled())
+                            Logger.trace("Received ACK for block " + (baseBlock + distance));
+                        rtt.sample(sendClock.rttFor(baseBlock + distance));
+                        rtt.progress();
+                        return distance + 1;
+                    }
+                    else if (blocks.isPrevious(distance)) {
+                        Logger.debug("Received duplicate ACK for block " + (baseBlock - 1));
+                        rtt.progress();
+                        return 0;
+                    }
+                    else {
+                        Logger.error("Unexpected ACK block: " + (ackBlock & 0xFFFF));
+                        strayPackets++;
+                    }
+                } else if (ackOpcode == TFTPProtocol.ERROR) {
+                    Logger.error("Client sent error: " + reader.errorMessage());
+                    metrics.errorReceived();
+                    return -1;
+                } else {
+                    Logger.error("Unexpected opcode: " + ackOpcode);
+                    strayPackets++;
+                }
+            } catch (SocketTimeoutException e) {
+                transfer.timeout();
+                boolean retry = rtt.backoff();
+                Logger.error("Timeout waiting for ACK for block " + baseBlock +
+                        " (attempt " + rtt.getRetries() + "/" + rtt.getMaxRetries() + ")");
+                if (!retry)
+                    return -1;
+                retransmission.resend();
+            }
+        }
+        return -1;
+    }
+
     private void handleWriteRequest(DatagramSocket socket, byte[] data, int length) throws IOException {
         TFTPRequest request = TFTPRequest.fromBytes(data, length);
         String filename = request.getFilename();
-        File file = new File(rootDirectory, filename);
+        File file = root.resolveFile(filename);
 
         Logger.log("WRQ from " + clientAddress + ":" + clientPort + " for file: " + filename);
+        transfer.describe(clientTid, filename, false);
+
+        if (!isSupportedMode(request)) {
+            sendError(socket, TFTPProtocol.ERR_ILLEGAL_OPERATION,
+                    "Unsupported transfer mode: " + request.getMode());
+            return;
+        }
 
         if (file.exists()) {
             sendError(socket, TFTPProtocol.ERR_FILE_EXISTS, "File already exists");
             return;
         }
 
-        if (!isInRootDirectory(file)) {
+        if (!root.contains(file)) {
             sendError(socket, TFTPProtocol.ERR_ACCESS_VIOLATION, "Access violation");
             return;
         }
 
-        TFTPAck ack = new TFTPAck((short) 0);
-        sendPacket(socket, ack.toBytes());
-        Logger.log("Sent initial ACK(0)");
+        TransferOptions options = negotiateOptions(request);
+        if (!hasSpaceFor(file, options.getTransferSize())) {
+            sendError(socket, TFTPProtocol.ERR_DISK_FULL,
+                    "Not enough space for " + options.getTransferSize() + " bytes");
+            return;
+        }
+
+        ByteBuffer lastAck;
+        Map<String, String> acceptedOptions = options.getAccepted();
+        if (acceptedOptions.isEmpty()) {
+            lastAck = PacketWriter.ack(ackBuffer, (short) 0);
+            sendPacket(lastAck);
+            Logger.debug("Sent initial ACK(0)");
+        } else {
+            lastAck = ByteBuffer.wrap(new TFTPOack(acceptedOptions).toBytes());
+            sizeReceiveBuffer(socket, windowSize * receiveBuffer.length);
+            sendPacket(lastAck);
+            Logger.log("Sent OACK " + acceptedOptions);
+        }
+
+        UploadFile upload;
+        try {
+            upload = new UploadFile(file, config);
+            if (options.isNetascii())
+                upload.decodeNetascii();
+            if (options.getDigestAlgorithm() != null)
+                upload.digestWith(StreamDigest.of(options.getDigestAlgorithm()));
+        } catch (IOException e) {
+            Logger.error("Error creating file: " + e.getMessage());
+            sendError(socket, TFTPProtocol.ERR_ACCESS_VIOLATION, "Cannot create file");
+            return;
+        }
 
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            short expectedBlock = 1;
+        try {
+            long expectedBlock = 1;
             boolean lastPacket = false;
             long totalBytesReceived = 0;
+            int blocksInWindow = 0;
+            boolean recoveryAckSent = false;
+            // Karn's rule on the receiving side: the ACK that solicited the next block is only timed
+            // if it went out once.
+            long ackSentAt = System.nanoTime();
+            boolean ackResent = false;
 
             while (!lastPacket) {
                 try {
                     DatagramPacket packet = receivePacket(socket);
-                    byte[] packetData = packet.getData();
-                    int packetLength = packet.getLength();
+                    reader.wrap(packet.getData(), packet.getLength());
 
-                    if (packetLength < 4) {
+                    if (!reader.hasHeader()) {
                         sendError(socket, TFTPProtocol.ERR_ILLEGAL_OPERATION, "Packet too short");
-                        file.delete();
                         return;
                     }
 
-                    short opcode = (short) (((packetData[0] & 0xFF) << 8) | (packetData[1] & 0xFF));
+                    short opcode = reader.opcode();
 
                     if (opcode == TFTPProtocol.DATA) {
-                        TFTPData dataPacket = TFTPData.fromBytes(packetData, packetLength);
-                        short blockNumber = dataPacket.getBlockNumber();
-
-                        if (blockNumber == expectedBlock) {
-                            byte[] receivedData = dataPacket.getData();
-                            fos.write(receivedData);
-                            totalBytesReceived += receivedData.length;
-
-                            Logger.log("Received DATA block " + blockNumber + " (" + receivedData.length + " bytes)");
-
-                            TFTPAck dataAck = new TFTPAck(blockNumber);
-                            sendPacket(socket, dataAck.toBytes());
+                        short blockNumber = reader.blockNumber();
+                        rtt.progress();
+                        blocks = blocks.follow(expectedBlock, blockNumber, windowSize == 1);
+
+                        if (blockNumber == blocks.wire(expectedBlock)) {
+                            if (ackSentAt != 0 && !ackResent)
+                                rtt.sample(System.nanoTime() - ackSentAt);
+                            ackSentAt = 0;
+
+                            int dataLength = reader.payloadLength();
+                            upload.write(reader);
+                            transfer.dataReceived(dataLength);
+                            totalBytesReceived += dataLength;
+                            blocksInWindow++;
+                            recoveryAckSent = false;
+
+                            if (Logger.isTraceEnabled())
+                                Logger.trace("Received DATA block " + expectedBlock + " (" + dataLength + " bytes)");
+
+                            lastPacket = dataLength < blockSize;
+                            // Holding back the next ACK is what slows an upload down; the last
+                            // block has already arrived, so its ACK goes straight out.
+                            if (!lastPacket)
+                                flow.pace(dataLength);
+                            // The final ACK waits for the commit, which can still find the name taken.
+                            if (lastPacket && !upload.commit()) {
+                                sendError(socket, TFTPProtocol.ERR_FILE_EXISTS, "File already exists");
+                                return;
+                            }
+                            if (lastPacket && upload.getDigest() != null)
+                                fileCache.putDigest(file, upload.getDigest());
+                            if (lastPacket || blocksInWindow == windowSize) {
+                                lastAck = PacketWriter.ack(ackBuffer, blockNumber);
+                                sendPacket(lastAck);
+                                ackSentAt = System.nanoTime();
+                                ackResent = false;
+                                blocksInWindow = 0;
+                            }
 
-                            if (receivedData.length < TFTPProtocol.DATA_SIZE) {
-                                lastPacket = true;
+                            if (lastPacket) {
+                                transfer.completed();
                                 Logger.log("File received successfully: " + totalBytesReceived + " bytes");
                             }
 
                             expectedBlock++;
-
-                            if (expectedBlock == 0) {
-                                sendError(socket, TFTPProtocol.ERR_ILLEGAL_OPERATION, "File too large");
-                                file.delete();
-                                return;
-                            }
-                        } else if (blockNumber < expectedBlock) {
-                            Logger.log("Received duplicate block " + blockNumber);
-                            TFTPAck duplicateAck = new TFTPAck(blockNumber);
-                            sendPacket(socket, duplicateAck.toBytes());
                         } else {
-                            Logger.error("Unexpected block: " + blockNumber + ", expected: " + expectedBlock);
-                            sendError(socket, TFTPProtocol.ERR_UNKNOWN_TID, "Unexpected block number");
-                            file.delete();
-                            return;
+                            if (blocks.isAhead(blocks.distance(expectedBlock, blockNumber)))
+                                Logger.debug("Out of order block " + (blockNumber & 0xFFFF) +
+                                        ", expected: " + (blocks.wire(expectedBlock) & 0xFFFF));
+                            else
+                                Logger.debug("Received duplicate block " + (blockNumber & 0xFFFF));
+
+                            // One ACK of the last in-order block per loss episode tells the client
+                            // where to restart its window without provoking a retransmit storm.
+                            if (!recoveryAckSent) {
+                                lastAck = PacketWriter.ack(ackBuffer, blocks.wire(expectedBlock - 1));
+                                sendPacket(lastAck);
+                                ackSentAt = System.nanoTime();
+                                ackResent = false;
+                                recoveryAckSent = true;
+                                blocksInWindow = 0;
+                            }
                         }
                     } else if (opcode == TFTPProtocol.ERROR) {
-                        TFTPError error = TFTPError.fromBytes(packetData, packetLength);
-                        Logger.error("Client sent error: " + error.getErrorMsg());
-                        file.delete();
+                        Logger.error("Client sent error: " + reader.errorMessage());
+                        metrics.errorReceived();
                         return;
                     } else {
                         sendError(socket, TFTPProtocol.ERR_ILLEGAL_OPERATION, "Unexpected opcode: " + opcode);
-                        file.delete();
                         return;
                     }
                 } catch (SocketTimeoutException e) {
-                    Logger.error("Timeout waiting for DATA packet");
-                    sendError(socket, TFTPProtocol.ERR_NOT_DEFINED, "Transfer timeout");
-                    file.delete();
-                    return;
+                    transfer.timeout();
+                    boolean retry = rtt.backoff();
+                    Logger.error("Timeout waiting for DATA block " + expectedBlock +
+                            " (attempt " + rtt.getRetries() + "/" + rtt.getMaxRetries() + ")");
+                    if (!retry) {
+                        sendError(socket, TFTPProtocol.ERR_NOT_DEFINED, "Transfer timeout");
+                        return;
+                    }
+                    sendPacket(lastAck);
+                    ackSentAt = System.nanoTime();
+                    ackResent = true;
+                    blocksInWindow = 0;
                 }
             }
         } catch (IOException e) {
             Logger.error("Error writing file: " + e.getMessage());
             sendError(socket, TFTPProtocol.ERR_DISK_FULL, "File write error");
-            file.delete();
+        } finally {
+            upload.abort();
         }
     }
 
+    private TransferOptions negotiateOptions(TFTPRequest request) {
+        TransferOptions options = TransferOptions.negotiate(request, config, clientAddress);
+        blockSize = options.getBlockSize();
+        windowSize = options.getWindowSize();
+        rtt = options.newRttEstimator(config);
+        sendClock = new SendClock(windowSize);
+        receiveBuffer = new byte[TFTPProtocol.HEADER_SIZE + blockSize];
+        return options;
+    }
+
+    // A full window arrives back to back, so the kernel buffer must hold it or the tail is dropped
+    // and every window ends in a retransmit timeout.
+    private void sizeReceiveBuffer(DatagramSocket socket, int windowBytes) throws SocketException {
+        if (socket.getReceiveBufferSize() < 2 * windowBytes)
+            socket.setReceiveBufferSize(2 * windowBytes);
+    }
+
     private void sendError(DatagramSocket socket, int errorCode, String errorMsg) throws IOException {
         TFTPError error = new TFTPError((short) errorCode, errorMsg);
         sendPacket(socket, error.toBytes());
+        metrics.errorSent(errorCode);
         Logger.error("Sent error: " + errorCode + " - " + errorMsg);
     }
 
@@ -269,24 +543,28 @@ public class ClientHandler implements Runnable {
         socket.send(packet);
     }
 
-    private DatagramPacket receivePacket(DatagramSocket socket) throws IOException {
-        byte[] buffer = new byte[TFTPProtocol.PACKET_SIZE];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-        socket.receive(packet);
+    // Steady-state sends go through the channel so the client address and packet buffer are reused.
+    private void sendPacket(ByteBuffer packet) throws IOException {
+        packet.rewind();
+        channel.send(packet, clientTid);
+    }
 
-        clientAddress = packet.getAddress();
-        clientPort = packet.getPort();
+    private DatagramPacket receivePacket(DatagramSocket socket) throws IOException {
+        receivePacket.setData(receiveBuffer);
+        socket.setSoTimeout(rtt.timeoutMillis());
+        socket.receive(receivePacket);
+
+        if (receivePacket.getPort() != clientPort || !receivePacket.getAddress().equals(clientAddress)) {
+            clientAddress = receivePacket.getAddress();
+            clientPort = receivePacket.getPort();
+            clientTid = new InetSocketAddress(clientAddress, clientPort);
+        }
 
-        return packet;
+        return receivePacket;
     }
 
-    private boolean isInRootDirectory(File file) {
-        try {
-            String filePath = file.getCanonicalPath();
-            String rootPath = new File(rootDirectory).getCanonicalPath();
-            return filePath.startsWith(rootPath);
-        } catch (IOException e) {
-            return false;
-        }
+    // An upload that announced its size (tsize) is refused up front rather than failing half way.
+    static boolean hasSpaceFor(File file, long size) {
+        return size <= 0 || file.getAbsoluteFile().getParentFile().getUsableSpace() >= size;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,200 @@
+package com.tftp.io.server;
+
+import com.tftp.io.logger.Logger;
+import com.tftp.model.protocol.StreamDigest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// Compressed copies of files for reads that negotiate the compress option. A file is deflated
+// once into a "<file>.deflate" sidecar next to it, which is then served through the FileCache
+// like any other file. The sidecar carries the original's modification time, so one whose time
+// differs from its file's is rebuilt; one an administrator puts there by hand (a zlib stream,
+// given the original's time with "touch -r") is served as it is.
+final class DeflatedFiles {
+    static final String SUFFIX = ".deflate";
+
+    private final FileCache fileCache;
+    private final Set<Path> building = new HashSet<>();
+    private final LongAdder built = new LongAdder();
+    private final LongAdder declined = new LongAdder();
+
+    DeflatedFiles(FileCache fileCache) {
+        this.fileCache = fileCache;
+    }
+
+    // The compressed copy of file, or null when the file is to be sent as it is: the copy is
+    // no smaller than the file, another read is writing it, or it could not be written, for
+    // example in a read-only root. A copy written here is digested with digestAlgorithm, when not
+    // null, in the same pass, so the read can announce the digest without reading the file again.
+    BlockSource open(RootIndex.Entry file, String digestAlgorithm) throws IOException {
+        Path path = file.getFile().toPath();
+        // Sidecars themselves are already compressed.
+        if (path.getFileName().toString().endsWith(SUFFIX)) {
+            declined.increment();
+            return null;
+        }
+        Path sidecar = path.resolveSibling(path.getFileName() + SUFFIX);
+
+        RootIndex.Entry copy = current(sidecar, file);
+        if (copy == null && build(path, sidecar, file, digestAlgorithm))
+            copy = current(sidecar, file);
+        if (copy == null) {
+            declined.increment();
+            return null;
+        }
+        BlockSource source;
+        try {
+            source = fileCache.open(copy);
+        } catch (NoSuchFileException e) {
+            // Removed since it was checked; the next read builds it again.
+            declined.increment();
+            return null;
+        }
+        if (source.size() >= file.getSize()) {
+            source.close();
+            declined.increment();
+            return null;
+        }
+        return new Source(source, file.getSize());
+    }
+
+    // The sidecar, when it was written from this version of the original, whose modification time
+    // it carries.
+    private static RootIndex.Entry current(Path sidecar, RootIndex.Entry original) {
+        try {
+            RootIndex.Entry copy = RootIndex.Entry.read(sidecar);
+            return copy.getModified() == original.getModified() ? copy : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Only one read writes a given sidecar. The others are sent the file as it is rather than
+    // wait, since writing it can take as long as sending the file would.
+    private boolean build(Path path, Path sidecar, RootIndex.Entry original, String digestAlgorithm)
+            throws IOException {
+        synchronized (building) {
+            if (!building.add(path))
+                return false;
+        }
+        try {
+            return write(path, sidecar, original, digestAlgorithm);
+        } finally {
+            synchronized (building) {
+                building.remove(path);
+            }
+        }
+    }
+
+    private boolean write(Path path, Path sidecar, RootIndex.Entry original, String digestAlgorithm)
+            throws IOException {
+        Path temporary = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+        StreamDigest digest = digestAlgorithm != null ? StreamDigest.of(digestAlgorithm) : null;
+        try {
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try (InputStream in = Files.newInputStream(path);
+                 OutputStream out = new DeflaterOutputStream(Files.newOutputStream(temporary), deflater, 64 * 1024)) {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read);
+                    if (digest != null)
+                        digest.update(buffer, 0, read);
+                }
+            } finally {
+                deflater.end();
+            }
+            // A file that changed while it was read would get a copy of neither version.
+            FileTime modified = FileTime.fromMillis(original.getModified());
+            if (Files.getLastModifiedTime(path).toMillis() != original.getModified()
+                    || Files.size(path) != original.getSize()) {
+                Files.deleteIfExists(temporary);
+                return false;
+            }
+            Files.setLastModifiedTime(temporary, modified);
+            Files.move(temporary, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (digest != null)
+                fileCache.putDigest(path.toFile(), digest);
+            built.increment();
+            Logger.log("Compressed " + path + " to " + Files.size(sidecar) + " of " + original.getSize() + " bytes");
+            return true;
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (IOException e) {
+            Logger.error("Could not compress " + path + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {}
+            return false;
+        }
+    }
+
+    long getBuilt() { return built.sum(); }
+    long getDeclined() { return declined.sum(); }
+
+    void logStatistics() {
+        if (getBuilt() + getDeclined() > 0)
+            Logger.log("Compression: " + getBuilt() + " cop(ies) built, " + getDeclined() +
+                    " read(s) sent uncompressed");
+    }
+
+    // The sidecar's blocks, standing for the original file: the transfer size a read reports is
+    // that of the file the client ends up with.
+    private static final class Source implements BlockSource {
+        private final BlockSource compressed;
+        private final long fileSize;
+
+        private Source(BlockSource compressed, long fileSize) {
+            this.compressed = compressed;
+            this.fileSize = fileSize;
+        }
+
+        @Override
+        public long size() {
+            return compressed.size();
+        }
+
+        @Override
+        public long fileSize() {
+            return fileSize;
+        }
+
+        @Override
+        public int readBlock(long block, short blockNumber, int blockSize, ByteBuffer packet) throws IOException {
+            return compressed.readBlock(block, blockNumber, blockSize, packet);
+        }
+
+        @Override
+        public int read(long position, ByteBuffer destination) throws IOException {
+            return compressed.read(position, destination);
+        }
+
+        @Override
+        public void seek(long offset) {
+            compressed.seek(offset);
+        }
+
+        @Override
+        public long offset() {
+            return compressed.offset();
+        }
+
+        @Override
+        public void close() throws IOException {
+            compressed.close();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.tftp.io.server;
+
+import com.tftp.io.logger.Logger;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+final class EventLoop implements Runnable {
+    interface Handler {
+        void onReadable() throws IOException;
+        void close();
+    }
+
+    static final long TICK_MILLIS = 10;
+
+    private final String name;
+    private final Selector selector;
+    private final TimerWheel timers = new TimerWheel(TICK_MILLIS, 512);
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private int sessionCount;
+
+    EventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    SelectionKey register(SelectableChannel channel, Handler handler) throws IOException {
+        channel.configureBlocking(false);
+        return channel.register(selector, SelectionKey.OP_READ, handler);
+    }
+
+    TimerWheel.Timeout schedule(Runnable task, long delayMillis) {
+        return timers.schedule(task, delayMillis);
+    }
+
+    void sessionOpened() { sessionCount++; }
+    void sessionClosed() { sessionCount--; }
+    int getSessionCount() { return sessionCount; }
+
+    @Override
+    public void run() {
+        Thread.currentThread().setName(name);
+        while (running) {
+            try {
+                if (timers.isEmpty())
+                    selector.select();
+                else
+                    selector.select(timers.tickMillis());
+                // Brought up to date before anything runs that may arm a timer.
+                timers.advance(System.nanoTime());
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Handler handler = (Handler) key.attachment();
+                    if (!key.isValid())
+                        continue;
+                    try {
+                        handler.onReadable();
+                    } catch (IOException e) {
+                        Logger.error("Session error: " + e.getMessage());
+                        handler.close();
+                    }
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+            } catch (IOException e) {
+                if (running)
+                    Logger.error("Event loop error: " + e.getMessage());
+            } catch (RuntimeException e) {
+                Logger.error("Event loop task failed: " + e);
+            }
+        }
+
+        for (SelectionKey key : new ArrayList<>(selector.keys()))
+            ((Handler) key.attachment()).close();
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,460 @@
+package com.tftp.io.server;
+
+import com.tftp.io.logger.Logger;
+import com.tftp.model.protocol.StreamDigest;
+import com.tftp.model.protocol.TFTPProtocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server-wide cache of file contents for the read path. When hundreds of PXE clients fetch the
+// same boot image at once, one session loads it and every other session serves blocks from the
+// shared copy. Entries are keyed by canonical path and validated against the file's identity,
+// size and modification time on every open, as the root index last saw them, so a replaced or
+// rewritten file is reloaded.
+// Eviction is least-recently-used within a byte budget.
+//
+// The cache also remembers file digests, which reads announce in their OACK, and netascii sizes.
+// They are kept apart from the contents, so files too large to cache have them too, and
+// validated the same way.
+public final class FileCache {
+    private static final int MAX_DERIVED = 4096;
+
+    private static final class Identity {
+        private final Object fileKey;
+        private final long modified;
+        private final long size;
+
+        private Identity(BasicFileAttributes attributes) {
+            this.fileKey = attributes.fileKey();
+            this.modified = attributes.lastModifiedTime().toMillis();
+            this.size = attributes.size();
+        }
+
+        private Identity(RootIndex.Entry entry) {
+            this.fileKey = entry.getFileKey();
+            this.modified = entry.getModified();
+            this.size = entry.getSize();
+        }
+
+        private static Identity of(Path path) throws IOException {
+            return new Identity(Files.readAttributes(path, BasicFileAttributes.class));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Identity))
+                return false;
+            Identity other = (Identity) o;
+            return size == other.size && modified == other.modified && Objects.equals(fileKey, other.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fileKey, modified, size);
+        }
+    }
+
+    private static final class Entry {
+        private final Identity identity;
+        private final long size;
+        private final ByteBuffer content;
+
+        private Entry(Identity identity, ByteBuffer content) {
+            this.identity = identity;
+            this.size = identity.size;
+            this.content = content;
+        }
+
+        private boolean matches(BasicFileAttributes attributes) {
+            return identity.equals(new Identity(attributes));
+        }
+
+        private boolean matches(RootIndex.Entry file) {
+            return identity.equals(new Identity(file));
+        }
+    }
+
+    // What has been worked out from one version of a file's contents: its digests by algorithm
+    // and its length in netascii.
+    private static final class Derived {
+        private final Identity identity;
+        private final Map<String, String> values = new HashMap<>();
+        private long netasciiSize = -1;
+
+        private Derived(Identity identity) {
+            this.identity = identity;
+        }
+    }
+
+    // Digests a read's blocks in order the first time each is sent and, once the whole file has
+    // gone out unchanged, remembers the result for later reads.
+    final class DigestCapture {
+        private final String key;
+        private final Path path;
+        private final Identity identity;
+        private final StreamDigest digest;
+        private long nextBlock = 1;
+
+        private DigestCapture(Path path, Identity identity, String algorithm) {
+            this.key = path.toString();
+            this.path = path;
+            this.identity = identity;
+            this.digest = StreamDigest.of(algorithm);
+        }
+
+        // Takes a DATA packet as filled by BlockSource.readBlock().
+        void sent(long block, ByteBuffer packet) {
+            if (block != nextBlock)
+                return;
+            digest.update(packet.duplicate().position(TFTPProtocol.HEADER_SIZE));
+            nextBlock++;
+        }
+
+        void completed() {
+            try {
+                if (identity.equals(Identity.of(path)))
+                    putDigest(key, identity, digest.getAlgorithm(), digest.value());
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private final long capacityBytes;
+    private final long maxFileBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<Entry>> loading = new HashMap<>();
+    private final LinkedHashMap<String, Derived> derived = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder bypasses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    // A capacity of zero disables caching; every open then goes straight to the file.
+    FileCache(long capacityBytes, long maxFileBytes) {
+        if (capacityBytes < 0 || maxFileBytes < 0)
+            throw new IllegalArgumentException("Cache sizes must not be negative");
+        this.capacityBytes = capacityBytes;
+        this.maxFileBytes = Math.min(Math.min(maxFileBytes, capacityBytes), Integer.MAX_VALUE);
+    }
+
+    static FileCache disabled() {
+        return new FileCache(0, 0);
+    }
+
+    BlockSource open(File file) throws IOException {
+        if (capacityBytes == 0)
+            return FileBlockSource.open(file);
+        return open(RootIndex.Entry.read(file.toPath().toRealPath()));
+    }
+
+    BlockSource open(RootIndex.Entry file) throws IOException {
+        if (capacityBytes == 0)
+            return FileBlockSource.open(file.getFile());
+        if (file.getSize() > maxFileBytes) {
+            bypasses.increment();
+            return FileBlockSource.open(file.getFile());
+        }
+
+        Path path = file.getFile().toPath();
+        String key = path.toString();
+        CompletableFuture<Entry> pending;
+        boolean loader = false;
+
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.matches(file)) {
+                    hits.increment();
+                    return new CachedBlockSource(entry);
+                }
+                remove(key);
+                invalidations.increment();
+            }
+
+            pending = loading.get(key);
+            if (pending == null) {
+                pending = new CompletableFuture<>();
+                loading.put(key, pending);
+                loader = true;
+            }
+        }
+
+        if (loader)
+            return new CachedBlockSource(load(key, path, pending));
+
+        // Another session is already reading this file; share its copy once it is in.
+        try {
+            Entry entry = pending.get();
+            hits.increment();
+            return new CachedBlockSource(entry);
+        } catch (ExecutionException | InterruptedException e) {
+            if (e instanceof InterruptedException)
+                Thread.currentThread().interrupt();
+            bypasses.increment();
+            return FileBlockSource.open(file.getFile());
+        }
+    }
+
+    private Entry load(String key, Path path, CompletableFuture<Entry> pending) throws IOException {
+        misses.increment();
+        try {
+            Entry entry = read(path);
+            // A file that changed while we read it is served once but never cached.
+            boolean stable = entry.matches(Files.readAttributes(path, BasicFileAttributes.class));
+            synchronized (this) {
+                loading.remove(key);
+                if (stable)
+                    insert(key, entry);
+            }
+            pending.complete(entry);
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                loading.remove(key);
+            }
+            pending.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static Entry read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            BasicFileAttributes before = Files.readAttributes(path, BasicFileAttributes.class);
+            ByteBuffer content = ByteBuffer.allocate((int) before.size());
+            while (content.hasRemaining()) {
+                if (channel.read(content, content.position()) < 0)
+                    throw new IOException("File shrank while caching: " + path);
+            }
+            content.flip();
+            return new Entry(new Identity(before), content.asReadOnlyBuffer());
+        }
+    }
+
+    private void insert(String key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null)
+            usedBytes -= previous.size;
+        usedBytes += entry.size;
+
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (usedBytes > capacityBytes && eldest.hasNext()) {
+            Map.Entry<String, Entry> victim = eldest.next();
+            if (victim.getValue() == entry)
+                continue;
+            usedBytes -= victim.getValue().size;
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null)
+            usedBytes -= entry.size;
+    }
+
+    // Puts the digest of the file a read is about to send into its OACK when it is known. Cached
+    // contents are digested from memory the first time; otherwise the returned capture digests
+    // the file as this read sends it, for the next one. A compressed read does not send the
+    // file's own bytes; its digest normally comes from the pass that compressed the file, and is
+    // otherwise worked out on the spot. Returns null when there is nothing to do.
+    DigestCapture announceDigest(RootIndex.Entry file, BlockSource source, TransferOptions options) {
+        String algorithm = options.getDigestAlgorithm();
+        if (algorithm == null)
+            return null;
+        Path path = file.getFile().toPath();
+        Identity identity = new Identity(file);
+        String key = path.toString();
+
+        String value = getDigest(key, identity, algorithm);
+        if (value == null && source instanceof CachedBlockSource
+                && ((CachedBlockSource) source).identity.equals(identity)) {
+            StreamDigest digest = StreamDigest.of(algorithm);
+            digest.update(((CachedBlockSource) source).content.duplicate().clear());
+            value = digest.value();
+            putDigest(key, identity, algorithm, value);
+        }
+        if (value == null && options.isCompressed()) {
+            precomputeDigest(path, algorithm);
+            value = getDigest(key, identity, algorithm);
+        }
+        if (value != null) {
+            options.reportDigest(value);
+            return null;
+        }
+        return source.offset() == 0 && !options.isCompressed() ? new DigestCapture(path, identity, algorithm) : null;
+    }
+
+    // Remembers the digest of a file just written, such as a completed upload.
+    void putDigest(File file, StreamDigest digest) {
+        try {
+            Path path = file.toPath().toRealPath();
+            putDigest(path.toString(), Identity.of(path), digest.getAlgorithm(), digest.value());
+        } catch (IOException e) {
+            Logger.error("Could not record digest of " + file + ": " + e.getMessage());
+        }
+    }
+
+    // Digests a file ahead of any read, for the root index. The result is only kept when the file
+    // did not change while it was read.
+    void precomputeDigest(Path path, String algorithm) {
+        try {
+            Identity identity = Identity.of(path);
+            String key = path.toString();
+            if (getDigest(key, identity, algorithm) != null)
+                return;
+            StreamDigest digest = StreamDigest.of(algorithm);
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                while (channel.read(buffer.clear()) >= 0)
+                    digest.update(buffer.flip());
+            }
+            if (identity.equals(Identity.of(path)))
+                putDigest(key, identity, algorithm, digest.value());
+        } catch (IOException ignored) {
+            // Gone or unreadable; a read will report it.
+        }
+    }
+
+    private synchronized String getDigest(String key, Identity identity, String algorithm) {
+        Derived known = derived.get(key);
+        return known != null && known.identity.equals(identity) ? known.values.get(algorithm) : null;
+    }
+
+    private synchronized void putDigest(String key, Identity identity, String algorithm, String value) {
+        derivedFor(key, identity).values.put(algorithm, value);
+    }
+
+    // Length of the file in netascii, which a netascii read needs before its first block. It is
+    // worked out from the source the read is about to send, once per version of the file.
+    long netasciiSize(RootIndex.Entry file, BlockSource source) throws IOException {
+        Path path = file.getFile().toPath();
+        Identity identity = new Identity(file);
+        String key = path.toString();
+        synchronized (this) {
+            Derived known = derived.get(key);
+            if (known != null && known.identity.equals(identity) && known.netasciiSize >= 0)
+                return known.netasciiSize;
+        }
+
+        long size = NetasciiBlockSource.measure(source);
+        boolean current = !(source instanceof CachedBlockSource)
+                || ((CachedBlockSource) source).identity.equals(identity);
+        if (current && identity.equals(Identity.of(path))) {
+            synchronized (this) {
+                derivedFor(key, identity).netasciiSize = size;
+            }
+        }
+        return size;
+    }
+
+    private Derived derivedFor(String key, Identity identity) {
+        Derived known = derived.get(key);
+        if (known == null || !known.identity.equals(identity)) {
+            known = new Derived(identity);
+            derived.put(key, known);
+        }
+
+        Iterator<String> eldest = derived.keySet().iterator();
+        while (derived.size() > MAX_DERIVED && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+        }
+        return known;
+    }
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long getBypasses() { return bypasses.sum(); }
+    public long getEvictions() { return evictions.sum(); }
+    public long getInvalidations() { return invalidations.sum(); }
+    public long getCapacityBytes() { return capacityBytes; }
+    public synchronized long getUsedBytes() { return usedBytes; }
+    public synchronized int getEntryCount() { return entries.size(); }
+
+    void logStatistics() {
+        if (capacityBytes == 0)
+            return;
+        Logger.log("File cache: " + getHits() + " hits, " + getMisses() + " misses, " + getBypasses() +
+                " bypassed, " + getEvictions() + " evicted, " + getEntryCount() + " files / " +
+                getUsedBytes() + " bytes cached");
+    }
+
+    // Serves blocks from a shared read-only copy. Each source has its own view of the buffer so
+    // concurrent sessions never disturb each other's position.
+    private static final class CachedBlockSource implements BlockSource {
+        private final Identity identity;
+        private final ByteBuffer content;
+        private long offset;
+
+        private CachedBlockSource(Entry entry) {
+            this.identity = entry.identity;
+            this.content = entry.content.duplicate();
+        }
+
+        @Override
+        public long size() {
+            return content.capacity();
+        }
+
+        @Override
+        public void seek(long offset) {
+            if (offset < 0 || offset > content.capacity())
+                throw new IllegalArgumentException("Offset outside the file: " + offset);
+            this.offset = offset;
+        }
+
+        @Override
+        public long offset() {
+            return offset;
+        }
+
+        @Override
+        public int readBlock(long block, short blockNumber, int blockSize, ByteBuffer packet) {
+            long position = offset + (block - 1) * blockSize;
+            int length = (int) Math.max(0, Math.min(blockSize, content.capacity() - position));
+
+            packet.clear();
+            packet.putShort(TFTPProtocol.DATA);
+            packet.putShort(blockNumber);
+            if (length > 0) {
+                content.limit((int) position + length).position((int) position);
+                packet.put(content);
+            }
+
+            packet.flip();
+            return length;
+        }
+
+        @Override
+        public int read(long position, ByteBuffer destination) {
+            if (position >= content.capacity())
+                return -1;
+            int length = (int) Math.min(destination.remaining(), content.capacity() - position);
+            content.limit((int) position + length).position((int) position);
+            destination.put(content);
+            return length;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.tftp.io.server;
+
+import com.tftp.io.logger.Logger;
+import com.tftp.model.packet.TFTPRequest;
+import com.tftp.model.protocol.TFTPProtocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// RFC 2090 multicast reads. Every client asking for the same file at the same block size while it
+// is going out joins one MulticastSession, so the file is opened, read and sent once per group
+// instead of once per client.
+final class MulticastService {
+    // Multicast clients keep track of blocks by their 16-bit number, so there is no rollover.
+    private static final long MAX_BLOCKS = 0xFFFF;
+
+    private final ServerConfig config;
+    private final FileCache fileCache;
+    private final Map<String, MulticastSession> sessions = new HashMap<>();
+    private final boolean[] portsInUse;
+    private boolean stopped;
+
+    MulticastService(ServerConfig config, FileCache fileCache) {
+        this.config = config;
+        this.fileCache = fileCache;
+        this.portsInUse = new boolean[config.getMulticastPorts()];
+    }
+
+    static boolean isRequested(TFTPRequest request) {
+        return request.getOption(TFTPProtocol.OPTION_MULTICAST) != null;
+    }
+
+    // Returns false when the read has to be served by unicast instead, in which case the client
+    // simply never sees the multicast option acknowledged. The file is opened, which may load it
+    // into the cache, without holding up other joins; a group that formed meanwhile is joined.
+    boolean join(RootIndex.Entry entry, InetSocketAddress client, TransferOptions options) {
+        File file = entry.getFile();
+        String key = file.getPath() + "#" + options.getBlockSize();
+
+        synchronized (this) {
+            if (stopped)
+                return false;
+            MulticastSession session = sessions.get(key);
+            if (session != null) {
+                accept(session, client, options);
+                return true;
+            }
+            if (freeSlot() < 0) {
+                Logger.debug("All multicast ports busy, serving " + file.getName() + " by unicast");
+                return false;
+            }
+        }
+
+        BlockSource source;
+        try {
+            source = fileCache.open(entry);
+        } catch (IOException e) {
+            Logger.error("Could not start multicast of " + file.getName() + ": " + e.getMessage());
+            return false;
+        }
+
+        MulticastSession session;
+        boolean created = false;
+        synchronized (this) {
+            session = stopped ? null : sessions.get(key);
+            if (session == null && !stopped) {
+                session = open(key, file, source, options.getBlockSize());
+                created = session != null;
+            }
+            if (session != null)
+                accept(session, client, options);
+            // Started only once it has a client, or it would find itself idle and retire at once.
+            if (created)
+                session.start();
+        }
+        if (!created) {
+            try {
+                source.close();
+            } catch (IOException ignored) {}
+        }
+        return session != null;
+    }
+
+    private static void accept(MulticastSession session, InetSocketAddress client, TransferOptions options) {
+        Map<String, String> accepted = new LinkedHashMap<>();
+        if (options.getAccepted().containsKey(TFTPProtocol.OPTION_BLKSIZE))
+            accepted.put(TFTPProtocol.OPTION_BLKSIZE, Integer.toString(options.getBlockSize()));
+        if (options.getTransferSize() >= 0)
+            accepted.put(TFTPProtocol.OPTION_TSIZE, Long.toString(session.size()));
+        session.join(client, accepted);
+    }
+
+    private int freeSlot() {
+        for (int slot = 0; slot < portsInUse.length; slot++) {
+            if (!portsInUse[slot])
+                return slot;
+        }
+        return -1;
+    }
+
+    // Starts a group sending source, which the caller closes when this returns null.
+    private MulticastSession open(String key, File file, BlockSource source, int blockSize) {
+        int slot = freeSlot();
+        if (slot < 0) {
+            Logger.debug("All multicast ports busy, serving " + file.getName() + " by unicast");
+            return null;
+        }
+        if (source.blockCount(blockSize) > MAX_BLOCKS) {
+            Logger.debug("File too large to multicast at blksize " + blockSize + ": " + file.getName());
+            return null;
+        }
+
+        InetSocketAddress group = new InetSocketAddress(config.getMulticastGroup(),
+                config.getMulticastBasePort() + slot);
+        MulticastSession session;
+        try {
+            session = new MulticastSession(this, key, slot, source, blockSize, group, config);
+        } catch (IOException e) {
+            Logger.error("Could not start multicast of " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+        sessions.put(key, session);
+        portsInUse[slot] = true;
+        Logger.log("Multicasting " + file.getName() + " (" + source.size() + " bytes, blksize " + blockSize +
+                ") to " + group.getAddress().getHostAddress() + ":" + group.getPort());
+        return session;
+    }
+
+    // Called by a session with no clients left. A join that slipped in meanwhile keeps it alive.
+    synchronized boolean retire(MulticastSession session) {
+        if (sessions.get(session.key()) != session)
+            return true;
+        if (session.hasPendingJoins() && !stopped)
+            return false;
+        sessions.remove(session.key());
+        portsInUse[session.slot()] = false;
+        return true;
+    }
+
+    synchronized void shutdown() {
+        stopped = true;
+        for (MulticastSession session : sessions.values())
+            session.stop();
+    }
+}
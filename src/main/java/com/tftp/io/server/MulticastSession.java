@@ -0,0 +1,259 @@
+package com.tftp.io.server;
+
+import com.tftp.io.logger.Logger;
+import com.tftp.model.packet.PacketReader;
+import com.tftp.model.packet.TFTPError;
+import com.tftp.model.packet.TFTPOack;
+import com.tftp.model.protocol.RttEstimator;
+import com.tftp.model.protocol.SendClock;
+import com.tftp.model.protocol.TFTPProtocol;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// One file going out to a multicast group (RFC 2090). Only the master client ACKs, in lock-step,
+// and each ACK names the block it wants next; everyone else listens on the group. When the master
+// is done or goes silent the next client in line is promoted with an OACK and asks for whatever
+// it is still missing, which is how late joiners catch up on the start of the file.
+final class MulticastSession implements Runnable {
+    private static final class Member {
+        final InetSocketAddress address;
+        final Map<String, String> options;
+
+        Member(InetSocketAddress address, Map<String, String> options) {
+            this.address = address;
+            this.options = options;
+        }
+    }
+
+    private final MulticastService service;
+    private final String key;
+    private final int slot;
+    private final BlockSource source;
+    private final int blockSize;
+    private final long lastBlock;
+    private final InetSocketAddress group;
+    private final DatagramChannel channel;
+    private final ByteBuffer packet;
+    private final RttEstimator rtt;
+    private final SendClock sendClock = new SendClock(1);
+    private final Queue<Member> joins = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<Member> waiting = new ArrayDeque<>();
+    private final PacketReader reader = new PacketReader();
+    private final byte[] receiveBuffer = new byte[TFTPProtocol.PACKET_SIZE];
+    private final DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+    private Member master;
+    private boolean promoting;
+    private long lastSent;
+    private long blocksSent;
+    private volatile boolean stopped;
+
+    MulticastSession(MulticastService service, String key, int slot, BlockSource source, int blockSize,
+                     InetSocketAddress group, ServerConfig config) throws IOException {
+        this.service = service;
+        this.key = key;
+        this.slot = slot;
+        this.source = source;
+        this.blockSize = blockSize;
+        this.lastBlock = source.blockCount(blockSize);
+        this.group = group;
+        this.packet = ByteBuffer.allocateDirect(TFTPProtocol.HEADER_SIZE + blockSize);
+        this.rtt = new RttEstimator(config.getInitialTimeoutMillis(), config.getMinTimeoutMillis(),
+                config.getMaxTimeoutMillis(), config.getMaxRetries());
+
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            channel.bind(new InetSocketAddress(0));
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, config.getMulticastTtl());
+            if (config.getMulticastInterface() != null)
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, config.getMulticastInterface());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "tftp-multicast-" + group.getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Any thread. The session thread answers with an OACK once it gets to the join.
+    void join(InetSocketAddress client, Map<String, String> options) {
+        joins.add(new Member(client, options));
+    }
+
+    boolean hasPendingJoins() { return !joins.isEmpty(); }
+    String key() { return key; }
+    int slot() { return slot; }
+    long size() { return source.size(); }
+
+    void stop() {
+        stopped = true;
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    public void run() {
+        DatagramSocket socket = channel.socket();
+        try {
+            while (!stopped) {
+                admitJoins();
+                if (master == null && !promoteNext()) {
+                    if (service.retire(this))
+                        break;
+                    continue;
+                }
+
+                try {
+                    socket.setSoTimeout(rtt.timeoutMillis());
+                    receivePacket.setData(receiveBuffer);
+                    socket.receive(receivePacket);
+                } catch (SocketTimeoutException e) {
+                    onTimeout();
+                    continue;
+                }
+
+                reader.wrap(receiveBuffer, receivePacket.getLength());
+                InetSocketAddress from = (InetSocketAddress) receivePacket.getSocketAddress();
+                if (reader.hasHeader())
+                    onPacket(from);
+            }
+        } catch (ClosedChannelException e) {
+            // stopped
+        } catch (IOException e) {
+            Logger.error("Multicast session error: " + e.getMessage());
+        } finally {
+            if (!stopped)
+                stop();
+            service.retire(this);
+            try {
+                source.close();
+            } catch (IOException ignored) {}
+            Logger.log("Multicast to port " + group.getPort() + " finished after " + blocksSent + " block(s)");
+        }
+    }
+
+    private void admitJoins() throws IOException {
+        Member joined;
+        while ((joined = joins.poll()) != null) {
+            Member known = find(joined.address);
+            if (known != null) {
+                // A retransmitted RRQ: the first OACK got lost.
+                sendOack(known, known == master);
+                continue;
+            }
+            waiting.add(joined);
+            if (master != null || waiting.size() > 1)
+                sendOack(joined, false);
+            Logger.log("Multicast client " + joined.address + " joined (" + (waiting.size() +
+                    (master != null ? 1 : 0)) + " listening)");
+        }
+    }
+
+    private boolean promoteNext() throws IOException {
+        master = waiting.poll();
+        if (master == null)
+            return false;
+        promoting = true;
+        rtt.progress();
+        sendOack(master, true);
+        return true;
+    }
+
+    private void onPacket(InetSocketAddress from) throws IOException {
+        short opcode = reader.opcode();
+
+        if (master != null && master.address.equals(from)) {
+            if (opcode == TFTPProtocol.ACK) {
+                long acked = reader.blockNumber() & 0xFFFF;
+                if (!promoting && acked == lastSent)
+                    rtt.sample(sendClock.rttFor(lastSent));
+                promoting = false;
+                rtt.progress();
+
+                if (acked >= lastBlock) {
+                    Logger.debug("Multicast master " + from + " has the whole file");
+                    master = null;
+                } else {
+                    sendBlock(acked + 1);
+                }
+            } else if (opcode == TFTPProtocol.ERROR) {
+                Logger.debug("Multicast master " + from + " left: " + reader.errorMessage());
+                master = null;
+            }
+            return;
+        }
+
+        Member listener = find(from);
+        if (listener == null) {
+            TFTPError error = new TFTPError(TFTPProtocol.ERR_UNKNOWN_TID, "Unknown transfer ID");
+            channel.send(ByteBuffer.wrap(error.toBytes()), from);
+            return;
+        }
+
+        // A listener that got everything before its turn says so with an ACK of the last block.
+        if ((opcode == TFTPProtocol.ACK && (reader.blockNumber() & 0xFFFF) >= lastBlock)
+                || opcode == TFTPProtocol.ERROR) {
+            waiting.remove(listener);
+            Logger.debug("Multicast client " + from + " left");
+        }
+    }
+
+    private void onTimeout() throws IOException {
+        boolean retry = rtt.backoff();
+        if (!retry) {
+            Logger.error("Multicast master " + master.address + " stopped responding, promoting the next client");
+            master = null;
+            return;
+        }
+
+        if (promoting)
+            sendOack(master, true);
+        else
+            sendBlock(lastSent);
+    }
+
+    private void sendBlock(long block) throws IOException {
+        source.readBlock(block, (short) block, blockSize, packet);
+        channel.send(packet, group);
+        sendClock.sent(block);
+        lastSent = block;
+        blocksSent++;
+        if (Logger.isTraceEnabled())
+            Logger.trace("Multicast DATA block " + block + " to port " + group.getPort());
+    }
+
+    // The multicast option is "address,port,mc"; mc = 1 makes the client master.
+    private void sendOack(Member member, boolean master) throws IOException {
+        Map<String, String> options = new LinkedHashMap<>(member.options);
+        options.put(TFTPProtocol.OPTION_MULTICAST, group.getAddress().getHostAddress() + "," +
+                group.getPort() + "," + (master ? 1 : 0));
+        channel.send(ByteBuffer.wrap(new TFTPOack(options).toBytes()), member.address);
+    }
+
+    private Member find(InetSocketAddress address) {
+        if (master != null && master.address.equals(address))
+            return master;
+        for (Member member : waiting)
+            if (member.address.equals(address))
+                return member;
+        return null;
+    }
+}
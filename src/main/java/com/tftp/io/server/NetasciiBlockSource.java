@@ -0,0 +1,164 @@
+package com.tftp.io.server;
+
+import com.tftp.model.protocol.Netascii;
+import com.tftp.model.protocol.TFTPProtocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+
+// A file's blocks in netascii, translated as they are sent. Where a block starts in the file
+// depends on every line ending before it, so the position and encoder state at the start of each
+// block are kept as it is sent: the next block carries on from there, a retransmit within the
+// window starts from its own, and an older block is worked out again from an anchor kept every
+// ANCHOR_INTERVAL blocks. Nothing larger than one block is buffered.
+final class NetasciiBlockSource implements BlockSource {
+    private static final int RECENT_BLOCKS = 256;
+    private static final int ANCHOR_INTERVAL = 1024;
+
+    private static final class Checkpoint {
+        private final long position;
+        private final Netascii.Encoder encoder;
+
+        private Checkpoint(long position, Netascii.Encoder encoder) {
+            this.position = position;
+            this.encoder = encoder;
+        }
+    }
+
+    private final BlockSource file;
+    private long size;
+    private final TreeMap<Long, Checkpoint> checkpoints = new TreeMap<>();
+    private ByteBuffer raw;
+    private int blockSize;
+
+    // size is the file's length in netascii, from FileCache.netasciiSize, or -1 when it has not
+    // been measured. It is then known once the last block has been read, and until then the
+    // blocks run on until the first short one.
+    NetasciiBlockSource(BlockSource file, long size) {
+        this.file = file;
+        this.size = size;
+    }
+
+    // The length of file in netascii, read through once.
+    static long measure(BlockSource file) throws IOException {
+        Netascii.Encoder encoder = new Netascii.Encoder();
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        long size = 0;
+        int read;
+        while ((read = file.read(position, in)) >= 0) {
+            position += read;
+            in.flip();
+            while (in.hasRemaining()) {
+                out.clear();
+                encoder.encode(in, out);
+                size += out.position();
+            }
+            in.clear();
+        }
+        boolean finished;
+        do {
+            out.clear();
+            finished = encoder.finish(out);
+            size += out.position();
+        } while (!finished);
+        return size;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long blockCount(int blockSize) {
+        return size >= 0 ? BlockSource.super.blockCount(blockSize) : Long.MAX_VALUE;
+    }
+
+    @Override
+    public int readBlock(long block, short blockNumber, int blockSize, ByteBuffer packet) throws IOException {
+        if (blockSize != this.blockSize) {
+            this.blockSize = blockSize;
+            raw = ByteBuffer.allocate(blockSize);
+            checkpoints.clear();
+            checkpoints.put(1L, new Checkpoint(0, new Netascii.Encoder()));
+        }
+
+        Map.Entry<Long, Checkpoint> start = checkpoints.floorEntry(block);
+        long current = start.getKey();
+        long position = start.getValue().position;
+        Netascii.Encoder encoder = start.getValue().encoder.copy();
+        while (true) {
+            packet.clear();
+            packet.putShort(TFTPProtocol.DATA);
+            packet.putShort(blockNumber);
+            packet.limit(TFTPProtocol.HEADER_SIZE + blockSize);
+            position = fill(encoder, position, packet);
+            int length = packet.position() - TFTPProtocol.HEADER_SIZE;
+            remember(current + 1, position, encoder);
+
+            if (length < blockSize && size < 0)
+                size = (current - 1) * blockSize + length;
+            if (current == block) {
+                packet.flip();
+                return length;
+            }
+            if (length < blockSize) {
+                // Past the last block.
+                packet.position(TFTPProtocol.HEADER_SIZE).flip();
+                return 0;
+            }
+            current++;
+        }
+    }
+
+    // Encodes from position until packet is full or the file ends; returns where it got to.
+    private long fill(Netascii.Encoder encoder, long position, ByteBuffer packet) throws IOException {
+        while (packet.hasRemaining()) {
+            raw.clear();
+            if (file.read(position, raw) < 0) {
+                encoder.finish(packet);
+                break;
+            }
+            raw.flip();
+            encoder.encode(raw, packet);
+            position += raw.position();
+        }
+        return position;
+    }
+
+    private void remember(long block, long position, Netascii.Encoder encoder) {
+        if (checkpoints.containsKey(block))
+            return;
+        checkpoints.put(block, new Checkpoint(position, encoder.copy()));
+        long stale = block - RECENT_BLOCKS;
+        if (stale > 1 && stale % ANCHOR_INTERVAL != 1)
+            checkpoints.remove(stale);
+    }
+
+    @Override
+    public int read(long position, ByteBuffer destination) throws IOException {
+        // The file's own bytes, untranslated.
+        return file.read(position, destination);
+    }
+
+    @Override
+    public void seek(long offset) {
+        // Netascii positions do not map onto the file's, so a read cannot resume part way.
+        if (offset != 0)
+            throw new IllegalArgumentException("Netascii reads cannot start at an offset: " + offset);
+    }
+
+    @Override
+    public long offset() {
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,35 @@
+package com.tftp.io.server;
+
+import com.tftp.model.protocol.TFTPProtocol;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+
+final class PathMtu {
+    private static final int UDP_HEADER = 8;
+    private static final int IPV4_HEADER = 20;
+    private static final int IPV6_HEADER = 40;
+    private static final int DISCARD_PORT = 9;
+
+    private PathMtu() {}
+
+    // Largest blksize that fits in one datagram on the interface routing to the client,
+    // so negotiated blocks never rely on IP fragmentation.
+    static int maxBlockSize(InetAddress clientAddress) {
+        try (DatagramSocket probe = new DatagramSocket()) {
+            probe.connect(clientAddress, DISCARD_PORT);
+            NetworkInterface nif = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+            if (nif == null || nif.getMTU() <= 0)
+                return TFTPProtocol.MAX_BLOCK_SIZE;
+
+            int ipHeader = clientAddress instanceof Inet6Address ? IPV6_HEADER : IPV4_HEADER;
+            int blockSize = nif.getMTU() - ipHeader - UDP_HEADER - TFTPProtocol.HEADER_SIZE;
+            return Math.max(TFTPProtocol.MIN_BLOCK_SIZE, Math.min(blockSize, TFTPProtocol.MAX_BLOCK_SIZE));
+        } catch (IOException e) {
+            return TFTPProtocol.MAX_BLOCK_SIZE;
+        }
+    }
+}
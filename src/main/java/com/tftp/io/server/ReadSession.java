@@ -0,0 +1,286 @@
+package com.tftp.io.server;
+
+import com.tftp.io.logger.Logger;
+import com.tftp.model.packet.PacketReader;
+import com.tftp.model.packet.TFTPOack;
+import com.tftp.model.packet.TFTPRequest;
+import com.tftp.model.protocol.TFTPProtocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.Executor;
+
+final class ReadSession extends TransferSession {
+    private final FileCache fileCache;
+    private final DeflatedFiles deflatedFiles;
+    private final MulticastService multicast;
+    private final Executor workers;
+    private BlockSource source;
+    private ByteBuffer packet;
+    private byte[] oack;
+    private long baseBlock = 1;
+    private long nextBlock = 1;
+    private long lastBlock;
+    private FileCache.DigestCapture digestCapture;
+    // Set once the bandwidth shaper has granted nextBlock; while paceTimer runs the grant has not
+    // matured yet and the window waits for it.
+    private boolean granted;
+    private TimerWheel.Timeout paceTimer;
+
+    ReadSession(EventLoop loop, TFTPRequest request, InetSocketAddress client,
+                RootIndex root, ServerConfig config, FileCache fileCache, DeflatedFiles deflatedFiles,
+                MulticastService multicast, Executor workers, ServerMetrics metrics, BandwidthShaper shaper) {
+        super(loop, request, client, root, config, metrics, shaper);
+        this.fileCache = fileCache;
+        this.deflatedFiles = deflatedFiles;
+        this.multicast = multicast;
+        this.workers = workers;
+    }
+
+    @Override
+    protected void begin() throws IOException {
+        String filename = request.getFilename();
+
+        Logger.log("RRQ from " + client + " for file: " + filename);
+        transfer.describe(client, filename, true);
+
+        if (!ClientHandler.isSupportedMode(request)) {
+            sendError(TFTPProtocol.ERR_ILLEGAL_OPERATION,
+                    "Unsupported transfer mode: " + request.getMode());
+            close();
+            return;
+        }
+
+        RootIndex.Entry entry = root.lookup(filename);
+        if (entry == null) {
+            sendError(TFTPProtocol.ERR_FILE_NOT_FOUND, "File not found: " + filename);
+            close();
+            return;
+        }
+
+        if (!entry.isInRoot()) {
+            sendError(TFTPProtocol.ERR_ACCESS_VIOLATION, "Access violation");
+            close();
+            return;
+        }
+
+        negotiated(TransferOptions.negotiate(request, config, client.getAddress()));
+        // Opening the file may load it into the cache, compress it or read it through for its
+        // digest, none of which may hold up the loop. A worker does that and the session carries
+        // on from opened().
+        workers.execute(() -> open(entry));
+    }
+
+    // Runs on a worker; options is not touched on the loop until the session resumes.
+    private void open(RootIndex.Entry file) {
+        if (multicast != null && MulticastService.isRequested(request) && options.allowsMulticast()
+                && multicast.join(file, client, options)) {
+            resume(() -> {
+                transfer.joinedMulticast();
+                close();
+            }, () -> {});
+            return;
+        }
+
+        BlockSource opened = null;
+        try {
+            opened = ClientHandler.open(deflatedFiles, fileCache, file, options);
+            options.reportTransferSize(opened.fileSize());
+            opened.seek(options.acceptOffset(opened.fileSize()));
+            FileCache.DigestCapture capture = fileCache.announceDigest(file, opened, options);
+            BlockSource source = opened;
+            resume(() -> opened(source, capture), () -> closeQuietly(source));
+        } catch (NoSuchFileException e) {
+            // Deleted after the index last saw it.
+            closeQuietly(opened);
+            root.forget(request.getFilename());
+            resume(() -> {
+                sendError(TFTPProtocol.ERR_FILE_NOT_FOUND, "File not found: " + request.getFilename());
+                close();
+            }, () -> {});
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(opened);
+            resume(() -> {
+                Logger.error("Could not open " + file.getFile() + ": " + e.getMessage());
+                sendError(TFTPProtocol.ERR_NOT_DEFINED, "File read error");
+                close();
+            }, () -> {});
+        }
+    }
+
+    private void opened(BlockSource source, FileCache.DigestCapture capture) throws IOException {
+        this.source = source;
+        digestCapture = capture;
+        packet = ByteBuffer.allocateDirect(TFTPProtocol.HEADER_SIZE + options.getBlockSize());
+        lastBlock = source.blockCount(options.getBlockSize());
+
+        Logger.log("Sending file: " + request.getFilename() + " (" + ClientHandler.sizeOf(source) +
+                ClientHandler.resumedFrom(source) + ClientHandler.deflatedTo(source) + ", blksize " +
+                options.getBlockSize() + ", windowsize " + options.getWindowSize() + ")");
+
+        if (!options.isEmpty()) {
+            oack = new TFTPOack(options.getAccepted()).toBytes();
+            send(oack);
+            sendClock.sent(0);
+            Logger.log("Sent OACK " + options.getAccepted());
+        } else {
+            fillWindow();
+        }
+        armTimer();
+    }
+
+    private static void closeQuietly(BlockSource source) {
+        try {
+            if (source != null)
+                source.close();
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    protected void onPacket(PacketReader received) throws IOException {
+        short opcode = received.opcode();
+        // Nothing has been sent to acknowledge while the file is being opened.
+        if (opcode == TFTPProtocol.ACK && source == null)
+            return;
+        if (opcode == TFTPProtocol.ACK) {
+            short ackBlock = received.blockNumber();
+
+            if (oack != null) {
+                if (ackBlock == 0) {
+                    oack = null;
+                    rtt.sample(sendClock.rttFor(0));
+                    rtt.progress();
+                    fillWindow();
+                    armTimer();
+                }
+                return;
+            }
+
+            int distance = blocks.distance(baseBlock, ackBlock);
+            if (distance < nextBlock - baseBlock) {
+                if (Logger.isTraceEnabled())
+                    Logger.trace("Received ACK for block " + (baseBlock + distance));
+                rtt.sample(sendClock.rttFor(baseBlock + distance));
+                rtt.progress();
+                baseBlock += distance + 1;
+
+                if (baseBlock > lastBlock) {
+                    if (digestCapture != null)
+                        digestCapture.completed();
+                    transfer.completed();
+                    Logger.log("File sent successfully: " + source.size() + " bytes");
+                    close();
+                    return;
+                }
+
+                if (nextBlock > baseBlock)
+                    Logger.debug("Restarting window at block " + baseBlock);
+                nextBlock = baseBlock;
+                fillWindow();
+                armTimer();
+            } else if (blocks.isPrevious(distance)) {
+                Logger.debug("Received duplicate ACK for block " + (baseBlock - 1));
+                rtt.progress();
+                resendWindow();
+                armTimer();
+            } else {
+                Logger.error("Unexpected ACK block: " + (ackBlock & 0xFFFF));
+            }
+        } else if (opcode == TFTPProtocol.ERROR) {
+            Logger.error("Client sent error: " + received.errorMessage());
+            metrics.errorReceived();
+            close();
+        } else {
+            Logger.error("Unexpected opcode: " + opcode);
+        }
+    }
+
+    @Override
+    protected void onTimeout() throws IOException {
+        // Nothing has gone out since the timer was armed; paced() re-arms it when something does.
+        if (paceTimer != null)
+            return;
+        transfer.timeout();
+        boolean retry = rtt.backoff();
+        Logger.error("Timeout waiting for ACK for block " + (oack != null ? 0 : baseBlock) +
+                " (attempt " + rtt.getRetries() + "/" + rtt.getMaxRetries() + ")");
+        if (!retry) {
+            Logger.error("Failed to send block " + baseBlock + ", stopping transfer");
+            close();
+            return;
+        }
+
+        if (oack != null) {
+            send(oack);
+            sendClock.sent(0);
+        } else
+            resendWindow();
+        armTimer();
+    }
+
+    // Answers the repeated request at once instead of at the next timeout, as long as nothing
+    // has been acknowledged yet.
+    @Override
+    protected void onDuplicateRequest() throws IOException {
+        if (oack != null) {
+            send(oack);
+            sendClock.sent(0);
+        } else if (baseBlock == 1 && nextBlock > 1 && paceTimer == null) {
+            resendWindow();
+        } else {
+            return;
+        }
+        Logger.debug("Repeated request, resent first reply");
+        armTimer();
+    }
+
+    private void fillWindow() throws IOException {
+        if (paceTimer != null)
+            return;
+        while (nextBlock < baseBlock + options.getWindowSize() && nextBlock <= lastBlock) {
+            if (!granted) {
+                granted = true;
+                // Charged what the block carries, as the thread engine does, so a short last block
+                // is not held back for a full one.
+                long delay = flow.reserve(source.payloadLength(nextBlock, options.getBlockSize()));
+                if (delay > PACE_SLACK_NANOS) {
+                    paceTimer = later(delay, this::paced);
+                    return;
+                }
+            }
+            granted = false;
+            int length = source.readBlock(nextBlock, blocks.wire(nextBlock), options.getBlockSize(), packet);
+            // A source that does not know its length ends with the first short block.
+            if (length < options.getBlockSize())
+                lastBlock = nextBlock;
+            if (digestCapture != null)
+                digestCapture.sent(nextBlock, packet);
+            send(packet);
+            sendClock.sent(nextBlock);
+            transfer.dataSent(nextBlock, length);
+            if (Logger.isTraceEnabled())
+                Logger.trace("Sent DATA block " + nextBlock + " (" + length + " bytes)");
+            nextBlock++;
+        }
+    }
+
+    private void paced() throws IOException {
+        paceTimer = null;
+        fillWindow();
+        armTimer();
+    }
+
+    private void resendWindow() throws IOException {
+        long windowEnd = nextBlock;
+        nextBlock = baseBlock;
+        fillWindow();
+        Logger.debug("Resent " + (windowEnd - baseBlock) + " block(s) from block " + baseBlock);
+    }
+
+    @Override
+    protected void release() {
+        closeQuietly(source);
+    }
+}
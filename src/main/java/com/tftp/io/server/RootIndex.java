@@ -0,0 +1,313 @@
+package com.tftp.io.server;
+
+import com.tftp.io.logger.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// The files under the server root, so a request is checked with one map lookup instead of the
+// exists / isFile / getCanonicalPath calls it used to make on both the file and the root. Entries
+// are keyed by their path relative to the root with '/' separators, and only for names that are
+// already canonical: a request spelled any other way, through "..", a symbolic link or a file the
+// index has not seen yet, falls back to checking the disk and gets the same answer as before.
+//
+// A WatchService keeps the index current. Watches are not recursive, so every directory is
+// registered on its own, by the cold-start scan or when it appears. Until watch() is called the
+// index only answers from the disk.
+final class RootIndex implements Closeable {
+    // How long a changed file must stay untouched before its digest is computed again.
+    private static final long SETTLE_MILLIS = 1000;
+
+    static final class Entry {
+        private final File file;
+        private final Object fileKey;
+        private final long size;
+        private final long modified;
+        private final boolean inRoot;
+
+        private Entry(Path path, BasicFileAttributes attributes, boolean inRoot) {
+            this.file = path.toFile();
+            this.fileKey = attributes.fileKey();
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime().toMillis();
+            this.inRoot = inRoot;
+        }
+
+        // The file as it is on the disk now, for one the index was not asked about, such as a
+        // compressed copy. path must already be canonical.
+        static Entry read(Path path) throws IOException {
+            return new Entry(path, Files.readAttributes(path, BasicFileAttributes.class), true);
+        }
+
+        // The canonical file, ready to open.
+        File getFile() { return file; }
+        // Which file the name leads to, its size and its modification time in milliseconds, as
+        // last seen. FileCache and DeflatedFiles take them from here instead of asking the disk.
+        Object getFileKey() { return fileKey; }
+        long getSize() { return size; }
+        long getModified() { return modified; }
+        // False for a file that exists but that the name reaches outside the root; it is never served.
+        boolean isInRoot() { return inRoot; }
+    }
+
+    private final String rootDirectory;
+    private final Path root;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    private final Set<Path> watched = ConcurrentHashMap.newKeySet();
+    private final Set<Path> changed = new LinkedHashSet<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private FileCache fileCache;
+    private String digestAlgorithm;
+    private volatile WatchService watcher;
+    private Thread thread;
+
+    RootIndex(String rootDirectory) {
+        this.rootDirectory = rootDirectory;
+        this.root = canonical(new File(rootDirectory).toPath());
+    }
+
+    private static Path canonical(Path path) {
+        try {
+            return path.toRealPath();
+        } catch (IOException e) {
+            return path.toAbsolutePath().normalize();
+        }
+    }
+
+    String getRootDirectory() {
+        return rootDirectory;
+    }
+
+    // Starts keeping the index: a background thread scans the root in parallel and then follows
+    // its changes. Requests arriving before the scan reaches their file are answered from the disk.
+    // With a digest algorithm every file's digest is computed as it is indexed, and again once a
+    // changed file settles, and left in fileCache for reads to announce.
+    void watch(FileCache fileCache, String digestAlgorithm) throws IOException {
+        this.fileCache = fileCache;
+        this.digestAlgorithm = digestAlgorithm;
+        watcher = FileSystems.getDefault().newWatchService();
+        thread = new Thread(this::run, "tftp-root-index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    boolean isWatching() {
+        return watcher != null;
+    }
+
+    // The regular file a request names, or null when there is none. As before the index, a file
+    // outside the root is reported as such only when it exists.
+    Entry lookup(String filename) {
+        Entry entry = entries.get(filename);
+        if (entry != null) {
+            hits.increment();
+            return entry;
+        }
+        misses.increment();
+        Path path = resolve(filename);
+        if (path == null)
+            return null;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile())
+                return null;
+            entry = new Entry(path, attributes, path.startsWith(root));
+            // Only the canonical spelling is remembered; the watcher would not see any other change.
+            if (entry.isInRoot() && isWatching() && filename.equals(key(path)) && watched.contains(path.getParent()))
+                entries.put(filename, entry);
+            return entry;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Whether a file that may not exist yet, such as an upload target, would be inside the root.
+    boolean contains(File file) {
+        try {
+            return file.getCanonicalFile().toPath().startsWith(root);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    File resolveFile(String filename) {
+        return new File(rootDirectory, filename);
+    }
+
+    // An open found the file gone before the watcher reported it.
+    void forget(String filename) {
+        entries.remove(filename);
+    }
+
+    private Path resolve(String filename) {
+        try {
+            return new File(rootDirectory, filename).getCanonicalFile().toPath();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private String key(Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    int getSize() {
+        return entries.size();
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    private void run() {
+        long started = System.nanoTime();
+        ForkJoinPool.commonPool().invoke(new Scan(root));
+        Logger.log("Indexed " + entries.size() + " file(s) in " + directories.size() + " director(ies) in " +
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+        try {
+            while (true) {
+                WatchKey key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    digestChanged();
+                    continue;
+                }
+                Path directory = directories.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan();
+                        break;
+                    }
+                    if (directory != null)
+                        changed(directory.resolve((Path) event.context()));
+                }
+                if (!key.reset())
+                    watched.remove(directories.remove(key));
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // close() ends the thread.
+        }
+    }
+
+    private void changed(Path path) {
+        String key = key(path);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            // Deleted, or moved away: the file and everything that was under it are gone.
+            entries.remove(key);
+            entries.keySet().removeIf(name -> name.startsWith(key + "/"));
+            return;
+        }
+        if (attributes.isDirectory()) {
+            new Scan(path).invoke();
+        } else if (attributes.isRegularFile()) {
+            entries.put(key, new Entry(path, attributes, true));
+            if (digestAlgorithm != null)
+                changed.add(path);
+        } else {
+            entries.remove(key);
+        }
+    }
+
+    private void rescan() {
+        Logger.error("Root index missed changes, scanning " + root + " again");
+        entries.clear();
+        ForkJoinPool.commonPool().invoke(new Scan(root));
+    }
+
+    private void digestChanged() {
+        for (Path path : changed)
+            fileCache.precomputeDigest(path, digestAlgorithm);
+        changed.clear();
+    }
+
+    // Indexes one directory and forks a task for each directory below it. Symbolic links are
+    // not followed, so a link cannot make the scan leave the root or loop.
+    private final class Scan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+
+        private Scan(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                directories.put(directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), directory);
+                watched.add(directory);
+            } catch (IOException | ClosedWatchServiceException e) {
+                return;
+            }
+            List<Scan> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                for (Path child : children) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    if (attributes.isDirectory()) {
+                        subdirectories.add(new Scan(child));
+                    } else if (attributes.isRegularFile()) {
+                        if (digestAlgorithm != null)
+                            fileCache.precomputeDigest(child, digestAlgorithm);
+                        entries.put(key(child), new Entry(child, attributes, true));
+                    }
+                }
+            } catch (IOException e) {
+                Logger.error("Could not index " + directory + ": " + e.getMessage());
+            }
+            invokeAll(subdirectories);
+        }
+    }
+
+    void logStatistics() {
+        if (isWatching())
+            Logger.log("Root index: " + entries.size() + " file(s), " + getHits() + " hits, " + getMisses() +
+                    " misses");
+    }
+
+    @Override
+    public void close() {
+        WatchService watcher = this.watcher;
+        if (watcher == null)
+            return;
+        try {
+            watcher.close();
+        } catch (IOException ignored) {}
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,153 @@
+package com.tftp.io.server;
+
+import com.tftp.io.logger.Logger;
+import com.tftp.model.packet.TFTPError;
+import com.tftp.model.packet.TFTPRequest;
+import com.tftp.model.protocol.TFTPProtocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Executor;
+
+// Alternative to the thread-per-transfer ClientHandler: a few event loops multiplex every
+// session over non-blocking DatagramChannels, with retransmits driven by each loop's timer wheel.
+// Work that blocks on the file system, such as opening a file for a read, runs on workers.
+final class SelectorServer {
+    private final int port;
+    private final RootIndex root;
+    private final ServerConfig config;
+    private final FileCache fileCache;
+    private final DeflatedFiles deflatedFiles;
+    private final MulticastService multicast;
+    private final Executor workers;
+    private final ServerMetrics metrics;
+    private final BandwidthShaper shaper;
+    private final AdmissionControl admission;
+    private final EventLoop[] loops;
+    private DatagramChannel listener;
+    private int nextLoop;
+
+    SelectorServer(int port, RootIndex root, ServerConfig config, FileCache fileCache,
+                   DeflatedFiles deflatedFiles, MulticastService multicast, Executor workers,
+                   ServerMetrics metrics, BandwidthShaper shaper, AdmissionControl admission) throws IOException {
+        this.port = port;
+        this.root = root;
+        this.config = config;
+        this.fileCache = fileCache;
+        this.deflatedFiles = deflatedFiles;
+        this.multicast = multicast;
+        this.workers = workers;
+        this.metrics = metrics;
+        this.shaper = shaper;
+        this.admission = admission;
+        this.loops = new EventLoop[config.getEventLoops()];
+        for (int i = 0; i < loops.length; i++)
+            loops[i] = new EventLoop("tftp-event-loop-" + i);
+    }
+
+    void bind() throws IOException {
+        listener = DatagramChannel.open();
+        listener.bind(new InetSocketAddress(port));
+        loops[0].register(listener, new RequestListener());
+    }
+
+    // Runs the first event loop on the calling thread until stop() is called.
+    void run() throws IOException {
+
+        Thread[] threads = new Thread[loops.length - 1];
+        for (int i = 1; i < loops.length; i++) {
+            threads[i - 1] = new Thread(loops[i]);
+            threads[i - 1].start();
+        }
+
+        loops[0].run();
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    void stop() {
+        for (EventLoop loop : loops)
+            loop.shutdown();
+    }
+
+    private final class RequestListener implements EventLoop.Handler {
+        private final ByteBuffer buffer = ByteBuffer.allocate(TFTPProtocol.PACKET_SIZE);
+
+        @Override
+        public void onReadable() throws IOException {
+            SocketAddress from;
+            while ((from = receive()) != null) {
+                byte[] data = buffer.array();
+                int length = buffer.limit();
+
+                if (length < 4) {
+                    reject(from, TFTPProtocol.ERR_ILLEGAL_OPERATION, "Packet too short");
+                    continue;
+                }
+
+                short opcode = buffer.getShort(0);
+                if (opcode != TFTPProtocol.RRQ && opcode != TFTPProtocol.WRQ) {
+                    reject(from, TFTPProtocol.ERR_ILLEGAL_OPERATION, "Illegal TFTP operation: " + opcode);
+                    continue;
+                }
+
+                TFTPRequest request = TFTPRequest.fromBytes(data, length);
+                InetSocketAddress client = (InetSocketAddress) from;
+                SessionTable.Entry entry = admission.getSessions().entry(client, opcode, request.getFilename());
+                AdmissionControl.Verdict verdict = admission.admit(entry);
+                if (verdict != AdmissionControl.Verdict.ADMITTED) {
+                    metrics.requestRefused(verdict);
+                    String reason = AdmissionControl.describe(verdict);
+                    Logger.debug("Refused request from " + client + " for " + request.getFilename() + ": " + reason);
+                    if (verdict != AdmissionControl.Verdict.DUPLICATE &&
+                            config.getShedPolicy() == ServerConfig.ShedPolicy.REJECT)
+                        sendError(from, TFTPProtocol.ERR_NOT_DEFINED, reason);
+                    continue;
+                }
+
+                EventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+
+                TransferSession session = opcode == TFTPProtocol.RRQ
+                        ? new ReadSession(loop, request, client, root, config, fileCache, deflatedFiles,
+                                multicast, workers, metrics, shaper)
+                        : new WriteSession(loop, request, client, root, config, fileCache, workers, metrics, shaper);
+                session.admittedAs(entry);
+                loop.execute(session::start);
+            }
+        }
+
+        private SocketAddress receive() throws IOException {
+            buffer.clear();
+            SocketAddress from = listener.receive(buffer);
+            buffer.flip();
+            return from;
+        }
+
+        private void reject(SocketAddress to, short errorCode, String errorMsg) throws IOException {
+            sendError(to, errorCode, errorMsg);
+            Logger.error("Sent error: " + errorCode + " - " + errorMsg);
+        }
+
+        private void sendError(SocketAddress to, short errorCode, String errorMsg) throws IOException {
+            listener.send(ByteBuffer.wrap(new TFTPError(errorCode, errorMsg).toBytes()), to);
+            metrics.errorSent(errorCode);
+        }
+
+        @Override
+        public void close() {
+            try {
+                listener.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
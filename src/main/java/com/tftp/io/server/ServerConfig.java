@@ -0,0 +1,305 @@
+package com.tftp.io.server;
+
+import com.tftp.model.protocol.RttEstimator;
+import com.tftp.model.protocol.StreamDigest;
+import com.tftp.model.protocol.TFTPProtocol;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+
+public class ServerConfig {
+    public enum Engine { THREADS, SELECTOR }
+    public enum ExecutorMode { PLATFORM, VIRTUAL }
+    // When uploads are forced to disk: never, once before they are committed, or also every
+    // fsyncIntervalBytes while they arrive.
+    public enum FsyncPolicy { NONE, END, INTERVAL }
+    // What happens to a request the server is too busy for, or that is over its source's rate:
+    // an ERROR "server busy" reply, or silence so the client's own retries come back later.
+    public enum ShedPolicy { REJECT, DROP }
+
+    private Engine engine = Engine.THREADS;
+    private int eventLoops = 1;
+    private ExecutorMode executorMode = ExecutorMode.PLATFORM;
+    private int threadPoolSize = 10;
+    private int maxSessions = 10000;
+    private int maxBlockSize = TFTPProtocol.MAX_BLOCK_SIZE;
+    private boolean pathMtuClamp = true;
+    private int maxWindowSize = 64;
+    private long cacheCapacityBytes = 256L * 1024 * 1024;
+    private long maxCachedFileBytes = 64L * 1024 * 1024;
+    private long initialTimeoutMillis = RttEstimator.DEFAULT_INITIAL_MILLIS;
+    private long minTimeoutMillis = RttEstimator.DEFAULT_MIN_MILLIS;
+    private long maxTimeoutMillis = RttEstimator.DEFAULT_MAX_MILLIS;
+    private int maxRetries = RttEstimator.DEFAULT_MAX_RETRIES;
+    private int blockRollover = 0;
+    private InetAddress multicastGroup;
+    private int multicastBasePort = TFTPProtocol.DEFAULT_MULTICAST_PORT;
+    private int multicastPorts = 16;
+    private int multicastTtl = 1;
+    private NetworkInterface multicastInterface;
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.END;
+    private long fsyncIntervalBytes = 16L * 1024 * 1024;
+    private int writeBufferBytes = 256 * 1024;
+    private int metricsLogIntervalSeconds = 60;
+    private InetSocketAddress statsAddress;
+    private long globalRateBytesPerSecond;
+    private long clientRateBytesPerSecond;
+    private long sessionRateBytesPerSecond;
+    private int clientPrefixIpv4 = 32;
+    private int clientPrefixIpv6 = 64;
+    private int admissionQueue = 1024;
+    private int requestRatePerSource;
+    private int requestBurstPerSource = 10;
+    private ShedPolicy shedPolicy = ShedPolicy.REJECT;
+    private boolean rootIndex = true;
+    private String indexDigest;
+    private boolean compression = true;
+
+    public Engine getEngine() { return engine; }
+    public void setEngine(Engine engine) { this.engine = engine; }
+
+    public int getEventLoops() { return eventLoops; }
+
+    public void setEventLoops(int eventLoops) {
+        if (eventLoops < 1)
+            throw new IllegalArgumentException("At least one event loop is required: " + eventLoops);
+        this.eventLoops = eventLoops;
+    }
+
+    public ExecutorMode getExecutorMode() { return executorMode; }
+    public void setExecutorMode(ExecutorMode executorMode) { this.executorMode = executorMode; }
+
+    public int getThreadPoolSize() { return threadPoolSize; }
+
+    public void setThreadPoolSize(int threadPoolSize) {
+        if (threadPoolSize < 1)
+            throw new IllegalArgumentException("Thread pool size must be positive: " + threadPoolSize);
+        this.threadPoolSize = threadPoolSize;
+    }
+
+    public int getMaxSessions() { return maxSessions; }
+
+    public void setMaxSessions(int maxSessions) {
+        if (maxSessions < 1)
+            throw new IllegalArgumentException("Session limit must be positive: " + maxSessions);
+        this.maxSessions = maxSessions;
+    }
+
+    public int getMaxBlockSize() { return maxBlockSize; }
+
+    public void setMaxBlockSize(int maxBlockSize) {
+        if (maxBlockSize < TFTPProtocol.MIN_BLOCK_SIZE || maxBlockSize > TFTPProtocol.MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("Block size must be between " + TFTPProtocol.MIN_BLOCK_SIZE +
+                    " and " + TFTPProtocol.MAX_BLOCK_SIZE + ": " + maxBlockSize);
+        this.maxBlockSize = maxBlockSize;
+    }
+
+    public int getMaxWindowSize() { return maxWindowSize; }
+
+    public void setMaxWindowSize(int maxWindowSize) {
+        if (maxWindowSize < TFTPProtocol.MIN_WINDOW_SIZE || maxWindowSize > TFTPProtocol.MAX_WINDOW_SIZE)
+            throw new IllegalArgumentException("Window size must be between " + TFTPProtocol.MIN_WINDOW_SIZE +
+                    " and " + TFTPProtocol.MAX_WINDOW_SIZE + ": " + maxWindowSize);
+        this.maxWindowSize = maxWindowSize;
+    }
+
+    public boolean isPathMtuClamp() { return pathMtuClamp; }
+    public void setPathMtuClamp(boolean pathMtuClamp) { this.pathMtuClamp = pathMtuClamp; }
+
+    public long getCacheCapacityBytes() { return cacheCapacityBytes; }
+
+    public void setCacheCapacityBytes(long cacheCapacityBytes) {
+        if (cacheCapacityBytes < 0)
+            throw new IllegalArgumentException("Cache capacity must not be negative: " + cacheCapacityBytes);
+        this.cacheCapacityBytes = cacheCapacityBytes;
+    }
+
+    public long getMaxCachedFileBytes() { return maxCachedFileBytes; }
+
+    public void setMaxCachedFileBytes(long maxCachedFileBytes) {
+        if (maxCachedFileBytes < 0 || maxCachedFileBytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Cached file limit must be between 0 and " + Integer.MAX_VALUE +
+                    ": " + maxCachedFileBytes);
+        this.maxCachedFileBytes = maxCachedFileBytes;
+    }
+
+    public long getInitialTimeoutMillis() { return initialTimeoutMillis; }
+    public long getMinTimeoutMillis() { return minTimeoutMillis; }
+    public long getMaxTimeoutMillis() { return maxTimeoutMillis; }
+
+    // Bounds for the adaptive retransmission timeout; the initial value applies until the first
+    // round trip has been measured.
+    public void setTimeoutMillis(long initialMillis, long minMillis, long maxMillis) {
+        if (minMillis < 1 || maxMillis < minMillis || initialMillis < minMillis || initialMillis > maxMillis)
+            throw new IllegalArgumentException("Timeouts must satisfy 1 <= min <= initial <= max: " +
+                    minMillis + " / " + initialMillis + " / " + maxMillis);
+        this.initialTimeoutMillis = initialMillis;
+        this.minTimeoutMillis = minMillis;
+        this.maxTimeoutMillis = maxMillis;
+    }
+
+    public int getMaxRetries() { return maxRetries; }
+
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries < 1)
+            throw new IllegalArgumentException("At least one retry is required: " + maxRetries);
+        this.maxRetries = maxRetries;
+    }
+
+    public int getBlockRollover() { return blockRollover; }
+
+    // Block number that follows 65535. Uploads expect the same, though a client that rolls over to
+    // 0 is always recognised, and in lock-step either choice is.
+    public void setBlockRollover(int blockRollover) {
+        if (blockRollover != 0 && blockRollover != 1)
+            throw new IllegalArgumentException("Block rollover must be 0 or 1: " + blockRollover);
+        this.blockRollover = blockRollover;
+    }
+
+    public InetAddress getMulticastGroup() { return multicastGroup; }
+    public boolean isMulticastEnabled() { return multicastGroup != null; }
+
+    // RFC 2090 reads are only served when a group is set; each file being multicast takes one
+    // port from basePort upwards, so at most `ports` files go out at the same time.
+    public void setMulticast(InetAddress group, int basePort, int ports) {
+        if (group != null && !group.isMulticastAddress())
+            throw new IllegalArgumentException("Not a multicast address: " + group.getHostAddress());
+        if (basePort < 1 || ports < 1 || basePort + ports - 1 > 65535)
+            throw new IllegalArgumentException("Invalid multicast port range: " + basePort + " + " + ports);
+        this.multicastGroup = group;
+        this.multicastBasePort = basePort;
+        this.multicastPorts = ports;
+    }
+
+    public int getMulticastBasePort() { return multicastBasePort; }
+    public int getMulticastPorts() { return multicastPorts; }
+
+    public int getMulticastTtl() { return multicastTtl; }
+
+    public void setMulticastTtl(int multicastTtl) {
+        if (multicastTtl < 0 || multicastTtl > 255)
+            throw new IllegalArgumentException("Multicast TTL must be between 0 and 255: " + multicastTtl);
+        this.multicastTtl = multicastTtl;
+    }
+
+    // Interface the group traffic leaves on; null lets the routing table decide.
+    public NetworkInterface getMulticastInterface() { return multicastInterface; }
+    public void setMulticastInterface(NetworkInterface multicastInterface) { this.multicastInterface = multicastInterface; }
+
+    public FsyncPolicy getFsyncPolicy() { return fsyncPolicy; }
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy) { this.fsyncPolicy = fsyncPolicy; }
+
+    public long getFsyncIntervalBytes() { return fsyncIntervalBytes; }
+
+    public void setFsyncIntervalBytes(long fsyncIntervalBytes) {
+        if (fsyncIntervalBytes < 1)
+            throw new IllegalArgumentException("Fsync interval must be positive: " + fsyncIntervalBytes);
+        this.fsyncIntervalBytes = fsyncIntervalBytes;
+    }
+
+    public int getWriteBufferBytes() { return writeBufferBytes; }
+
+    public void setWriteBufferBytes(int writeBufferBytes) {
+        if (writeBufferBytes < TFTPProtocol.DATA_SIZE)
+            throw new IllegalArgumentException("Write buffer must be at least " + TFTPProtocol.DATA_SIZE +
+                    " bytes: " + writeBufferBytes);
+        this.writeBufferBytes = writeBufferBytes;
+    }
+
+    // How often a metrics snapshot goes to the server log; 0 only logs one at shutdown.
+    public int getMetricsLogIntervalSeconds() { return metricsLogIntervalSeconds; }
+
+    public void setMetricsLogIntervalSeconds(int metricsLogIntervalSeconds) {
+        if (metricsLogIntervalSeconds < 0)
+            throw new IllegalArgumentException("Metrics interval must not be negative: " + metricsLogIntervalSeconds);
+        this.metricsLogIntervalSeconds = metricsLogIntervalSeconds;
+    }
+
+    // Address of the HTTP stats endpoint; null, the default, leaves it off.
+    public InetSocketAddress getStatsAddress() { return statsAddress; }
+    public void setStatsAddress(InetSocketAddress statsAddress) { this.statsAddress = statsAddress; }
+
+    // Serves the stats endpoint on localhost only, which is the safe choice for an admin surface.
+    public void setStatsPort(int port) {
+        if (port < 0 || port > 65535)
+            throw new IllegalArgumentException("Invalid stats port: " + port);
+        this.statsAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    public long getGlobalRateBytesPerSecond() { return globalRateBytesPerSecond; }
+    public long getClientRateBytesPerSecond() { return clientRateBytesPerSecond; }
+    public long getSessionRateBytesPerSecond() { return sessionRateBytesPerSecond; }
+
+    // Starting limits for the bandwidth shaper, in bytes per second with 0 for no limit: all
+    // transfers together, all transfers of one client subnet, and each transfer on its own.
+    // TFTPServer.getShaper() changes them while the server runs.
+    public void setRateLimits(long global, long perClient, long perSession) {
+        if (global < 0 || perClient < 0 || perSession < 0)
+            throw new IllegalArgumentException("Rate limits must not be negative: " +
+                    global + " / " + perClient + " / " + perSession);
+        this.globalRateBytesPerSecond = global;
+        this.clientRateBytesPerSecond = perClient;
+        this.sessionRateBytesPerSecond = perSession;
+    }
+
+    public int getClientPrefixIpv4() { return clientPrefixIpv4; }
+    public int getClientPrefixIpv6() { return clientPrefixIpv6; }
+
+    // Clients whose addresses share this many leading bits count as one for the per-client limit,
+    // so a host cannot escape it by hopping between the addresses of its /64.
+    public void setClientPrefix(int ipv4, int ipv6) {
+        if (ipv4 < 0 || ipv4 > 32 || ipv6 < 0 || ipv6 > 128)
+            throw new IllegalArgumentException("Client prefix must be 0-32 for IPv4 and 0-128 for IPv6: " +
+                    ipv4 + " / " + ipv6);
+        this.clientPrefixIpv4 = ipv4;
+        this.clientPrefixIpv6 = ipv6;
+    }
+
+    // Requests that may wait for a transfer thread on top of the ones running; beyond that new
+    // requests are shed. The selector engine starts every session at once and is capped by
+    // maxSessions alone.
+    public int getAdmissionQueue() { return admissionQueue; }
+
+    public void setAdmissionQueue(int admissionQueue) {
+        if (admissionQueue < 0)
+            throw new IllegalArgumentException("Admission queue must not be negative: " + admissionQueue);
+        this.admissionQueue = admissionQueue;
+    }
+
+    public int getRequestRatePerSource() { return requestRatePerSource; }
+    public int getRequestBurstPerSource() { return requestBurstPerSource; }
+
+    // New transfers one source address may start per second, after a burst of `burst` back to back;
+    // 0, the default, leaves sources unlimited.
+    public void setRequestRatePerSource(int perSecond, int burst) {
+        if (perSecond < 0 || burst < 1)
+            throw new IllegalArgumentException("Request rate must not be negative and burst must be positive: " +
+                    perSecond + " / " + burst);
+        this.requestRatePerSource = perSecond;
+        this.requestBurstPerSource = burst;
+    }
+
+    public ShedPolicy getShedPolicy() { return shedPolicy; }
+    public void setShedPolicy(ShedPolicy shedPolicy) { this.shedPolicy = shedPolicy; }
+
+    // Whether the server keeps an index of its root directory, updated by a file watcher, and
+    // checks requests against it rather than against the disk.
+    public boolean isRootIndex() { return rootIndex; }
+    public void setRootIndex(boolean rootIndex) { this.rootIndex = rootIndex; }
+
+    // Digest the index computes for every file up front, so the first read that asks for it can
+    // already announce it; null, the default, leaves digests to be computed as files are read.
+    public String getIndexDigest() { return indexDigest; }
+
+    public void setIndexDigest(String indexDigest) {
+        if (indexDigest != null && !StreamDigest.isSupported(indexDigest))
+            throw new IllegalArgumentException("Unsupported digest: " + indexDigest);
+        this.indexDigest = indexDigest;
+    }
+
+    // Whether reads may negotiate the compress option. The compressed copies are written next to
+    // the files they come from; in a read-only root such reads are simply sent uncompressed.
+    public boolean isCompression() { return compression; }
+    public void setCompression(boolean compression) { this.compression = compression; }
+}
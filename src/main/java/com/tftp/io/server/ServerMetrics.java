@@ -0,0 +1,261 @@
+package com.tftp.io.server;
+
+import com.tftp.io.logger.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+// Server-wide counters. Every transfer thread and event loop records into the same LongAdders,
+// which stripe under contention, so instrumenting the per-block paths costs one uncontended add.
+// Per-transfer figures are kept in the Transfer itself and folded into the duration and throughput
+// histograms when it ends.
+public class ServerMetrics implements ServerMetricsMXBean {
+    private static final String[] ERROR_NAMES = {
+            "notDefined", "fileNotFound", "accessViolation", "diskFull", "illegalOperation",
+            "unknownTid", "fileExists", "noSuchUser", "optionNegotiation"
+    };
+
+    private final LongAdder activeSessions = new LongAdder();
+    private final LongAdder sessionsStarted = new LongAdder();
+    private final LongAdder sessionsCompleted = new LongAdder();
+    private final LongAdder sessionsFailed = new LongAdder();
+    private final LongAdder multicastJoins = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder blocksSent = new LongAdder();
+    private final LongAdder blocksRetransmitted = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder[] errorsSent = new LongAdder[ERROR_NAMES.length + 1];
+    private final LongAdder errorsReceived = new LongAdder();
+    private final LongAdder duplicateRequests = new LongAdder();
+    private final LongAdder rateLimitedRequests = new LongAdder();
+    private final LongAdder busyRequests = new LongAdder();
+    private final Histogram transferMillis = new Histogram();
+    private final Histogram throughput = new Histogram();
+    private final Set<Transfer> liveTransfers = ConcurrentHashMap.newKeySet();
+    private volatile IntSupplier queueDepth = () -> 0;
+    private ObjectName registeredName;
+
+    public ServerMetrics() {
+        for (int i = 0; i < errorsSent.length; i++)
+            errorsSent[i] = new LongAdder();
+    }
+
+    // One transfer as seen from the thread that runs it. Only that thread records; the position
+    // and byte count are volatile so the stats endpoint can read a live session.
+    final class Transfer {
+        private final long startNanos = System.nanoTime();
+        private volatile InetSocketAddress client;
+        private volatile String filename;
+        private volatile boolean read;
+        private volatile long bytes;
+        private volatile long block;
+        private long highestBlockSent;
+        private long retransmits;
+        private boolean completed;
+        private boolean multicast;
+        private boolean finished;
+
+        void describe(InetSocketAddress client, String filename, boolean read) {
+            this.client = client;
+            this.filename = filename;
+            this.read = read;
+        }
+
+        InetSocketAddress getClient() { return client; }
+        String getFilename() { return filename; }
+        boolean isRead() { return read; }
+        long getBytes() { return bytes; }
+        long getBlock() { return block; }
+        long getElapsedNanos() { return System.nanoTime() - startNanos; }
+
+        long getBytesPerSecond() {
+            return bytes * 1_000_000_000L / Math.max(1, getElapsedNanos());
+        }
+
+        // Counts a DATA block going out; sending a block number again is a retransmission.
+        void dataSent(long block, int length) {
+            bytesSent.add(length);
+            blocksSent.increment();
+            if (block <= highestBlockSent) {
+                retransmits++;
+                blocksRetransmitted.increment();
+            } else {
+                highestBlockSent = block;
+                this.block = block;
+                bytes += length;
+            }
+        }
+
+        void dataReceived(int length) {
+            block++;
+            bytes += length;
+            bytesReceived.add(length);
+        }
+
+        void timeout() {
+            timeouts.increment();
+        }
+
+        void completed() {
+            completed = true;
+        }
+
+        // The read was handed to a multicast group, which sends the file; nothing was sent here.
+        void joinedMulticast() {
+            multicast = true;
+        }
+
+        // Safe to call more than once; only the first call counts.
+        void finish() {
+            if (finished)
+                return;
+            finished = true;
+            liveTransfers.remove(this);
+            activeSessions.decrement();
+            if (multicast) {
+                multicastJoins.increment();
+                return;
+            }
+            if (!completed) {
+                sessionsFailed.increment();
+                return;
+            }
+
+            sessionsCompleted.increment();
+            if (bytes > 0) {
+                long nanos = Math.max(1, System.nanoTime() - startNanos);
+                transferMillis.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+                throughput.record(bytes * 1_000_000_000L / nanos);
+            }
+            if (Logger.isDebugEnabled())
+                Logger.debug("Transfer stats: " + bytes + " bytes in " +
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms, " +
+                        retransmits + " block(s) retransmitted");
+        }
+    }
+
+    Transfer transferStarted() {
+        sessionsStarted.increment();
+        activeSessions.increment();
+        Transfer transfer = new Transfer();
+        liveTransfers.add(transfer);
+        return transfer;
+    }
+
+    List<Transfer> liveTransfers() {
+        return new ArrayList<>(liveTransfers);
+    }
+
+    void errorSent(int errorCode) {
+        errorsSent[errorCode >= 0 && errorCode < ERROR_NAMES.length ? errorCode : ERROR_NAMES.length].increment();
+    }
+
+    void errorReceived() {
+        errorsReceived.increment();
+    }
+
+    void requestRefused(AdmissionControl.Verdict verdict) {
+        switch (verdict) {
+            case DUPLICATE: duplicateRequests.increment(); break;
+            case RATE_LIMITED: rateLimitedRequests.increment(); break;
+            case BUSY: busyRequests.increment(); break;
+            default: break;
+        }
+    }
+
+    void setQueueDepth(IntSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    @Override public long getActiveSessions() { return activeSessions.sum(); }
+    @Override public long getSessionsStarted() { return sessionsStarted.sum(); }
+    @Override public long getSessionsCompleted() { return sessionsCompleted.sum(); }
+    @Override public long getSessionsFailed() { return sessionsFailed.sum(); }
+    @Override public long getMulticastJoins() { return multicastJoins.sum(); }
+    @Override public long getBytesSent() { return bytesSent.sum(); }
+    @Override public long getBytesReceived() { return bytesReceived.sum(); }
+    @Override public long getBlocksSent() { return blocksSent.sum(); }
+    @Override public long getBlocksRetransmitted() { return blocksRetransmitted.sum(); }
+    @Override public long getTimeouts() { return timeouts.sum(); }
+    @Override public long getErrorsReceived() { return errorsReceived.sum(); }
+    @Override public int getExecutorQueueDepth() { return queueDepth.getAsInt(); }
+    @Override public long getDuplicateRequests() { return duplicateRequests.sum(); }
+    @Override public long getRateLimitedRequests() { return rateLimitedRequests.sum(); }
+    @Override public long getBusyRequests() { return busyRequests.sum(); }
+
+    @Override
+    public Map<String, Long> getErrorsSent() {
+        Map<String, Long> errors = new LinkedHashMap<>();
+        for (int i = 0; i < errorsSent.length; i++) {
+            long count = errorsSent[i].sum();
+            if (count > 0)
+                errors.put(i < ERROR_NAMES.length ? ERROR_NAMES[i] : "other", count);
+        }
+        return errors;
+    }
+
+    @Override public long getTransferMillisP50() { return transferMillis.percentile(50); }
+    @Override public long getTransferMillisP99() { return transferMillis.percentile(99); }
+    @Override public long getTransferMillisMax() { return transferMillis.getMax(); }
+    @Override public long getThroughputBytesPerSecondP50() { return throughput.percentile(50); }
+    // The slow tail of throughput is at the low end.
+    @Override public long getThroughputBytesPerSecondP10() { return throughput.percentile(10); }
+
+    Histogram getTransferMillis() { return transferMillis; }
+    Histogram getThroughput() { return throughput; }
+
+    @Override
+    public void resetHistograms() {
+        transferMillis.reset();
+        throughput.reset();
+    }
+
+    @Override
+    public String snapshot() {
+        return "Metrics: " + getActiveSessions() + " active, " + getSessionsStarted() + " started, " +
+                getSessionsCompleted() + " completed, " + getSessionsFailed() + " failed, " +
+                getMulticastJoins() + " joined multicast; " +
+                getBytesSent() + " bytes sent, " + getBytesReceived() + " received; " +
+                getBlocksSent() + " blocks sent, " + getBlocksRetransmitted() + " retransmitted, " +
+                getTimeouts() + " timeouts; errors sent " + getErrorsSent() + ", received " + getErrorsReceived() +
+                "; queue " + getExecutorQueueDepth() + "; requests refused " + getDuplicateRequests() +
+                " duplicate, " + getRateLimitedRequests() + " rate limited, " + getBusyRequests() + " busy; transfer ms p50/p99/max " + getTransferMillisP50() +
+                "/" + getTransferMillisP99() + "/" + getTransferMillisMax() + "; throughput B/s p50 " +
+                getThroughputBytesPerSecondP50();
+    }
+
+    void register(int port) {
+        try {
+            ObjectName name = new ObjectName("com.tftp:type=ServerMetrics,port=" + port);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            Logger.error("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    void unregister() {
+        if (registeredName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException ignored) {}
+        registeredName = null;
+    }
+}
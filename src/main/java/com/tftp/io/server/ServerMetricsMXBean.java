@@ -0,0 +1,36 @@
+package com.tftp.io.server;
+
+import java.util.Map;
+
+// JMX view of ServerMetrics, registered as com.tftp:type=ServerMetrics,port=<port>.
+public interface ServerMetricsMXBean {
+    long getActiveSessions();
+    long getSessionsStarted();
+    long getSessionsCompleted();
+    long getSessionsFailed();
+    long getMulticastJoins();
+
+    long getBytesSent();
+    long getBytesReceived();
+    long getBlocksSent();
+    long getBlocksRetransmitted();
+    long getTimeouts();
+
+    Map<String, Long> getErrorsSent();
+    long getErrorsReceived();
+
+    int getExecutorQueueDepth();
+    long getDuplicateRequests();
+    long getRateLimitedRequests();
+    long getBusyRequests();
+
+    long getTransferMillisP50();
+    long getTransferMillisP99();
+    long getTransferMillisMax();
+    long getThroughputBytesPerSecondP50();
+    long getThroughputBytesPerSecondP10();
+
+    String snapshot();
+
+    void resetHistograms();
+}
@@ -0,0 +1,165 @@
+package com.tftp.io.server;
+
+import com.tftp.io.logger.Logger;
+import com.tftp.model.protocol.TFTPProtocol;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Every admitted request until its transfer ends, keyed by client TID, opcode and filename, so a
+// retransmitted request finds the transfer it belongs to instead of starting a second one. Only
+// the listening thread adds; a transfer removes its own entry from whichever thread ran it.
+final class SessionTable implements SessionTableMXBean {
+    private final ConcurrentHashMap<Entry, Entry> sessions = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private ObjectName registeredName;
+
+    final class Entry {
+        private final InetSocketAddress client;
+        private final short opcode;
+        private final String filename;
+        private final long admittedNanos = System.nanoTime();
+        private final AtomicInteger duplicateCount = new AtomicInteger();
+        private volatile ServerMetrics.Transfer transfer;
+        private volatile Runnable duplicateHandler;
+        private boolean removed;
+
+        private Entry(InetSocketAddress client, short opcode, String filename) {
+            this.client = client;
+            this.opcode = opcode;
+            this.filename = filename;
+        }
+
+        InetSocketAddress getClient() { return client; }
+        String getFilename() { return filename; }
+        boolean isRead() { return opcode == TFTPProtocol.RRQ; }
+        int getDuplicates() { return duplicateCount.get(); }
+        long getAgeNanos() { return System.nanoTime() - admittedNanos; }
+
+        // Null while the request waits for a transfer thread.
+        ServerMetrics.Transfer getTransfer() { return transfer; }
+
+        void started(ServerMetrics.Transfer transfer) {
+            this.transfer = transfer;
+        }
+
+        // Run on the listening thread for each copy of the request that arrives while the transfer
+        // is queued or running.
+        void onDuplicate(Runnable duplicateHandler) {
+            this.duplicateHandler = duplicateHandler;
+        }
+
+        // Called when the transfer ends; safe to call more than once.
+        void release() {
+            synchronized (this) {
+                if (removed)
+                    return;
+                removed = true;
+            }
+            sessions.remove(this);
+            size.decrementAndGet();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Entry))
+                return false;
+            Entry other = (Entry) o;
+            return opcode == other.opcode && client.equals(other.client) && filename.equals(other.filename);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(client, opcode, filename);
+        }
+
+        @Override
+        public String toString() {
+            ServerMetrics.Transfer transfer = this.transfer;
+            return (isRead() ? "RRQ " : "WRQ ") + filename + " from " + client + ", " +
+                    (transfer == null ? "queued" : "block " + transfer.getBlock() + ", " + transfer.getBytes() + " bytes") +
+                    ", " + TimeUnit.NANOSECONDS.toMillis(getAgeNanos()) + " ms, " + duplicateCount.get() + " duplicate(s)";
+        }
+    }
+
+    Entry entry(InetSocketAddress client, short opcode, String filename) {
+        return new Entry(client, opcode, filename);
+    }
+
+    // Returns the entry already holding this request, after counting the copy and notifying its
+    // transfer, or null if the request is new.
+    Entry absorbDuplicate(Entry request) {
+        Entry existing = sessions.get(request);
+        if (existing == null)
+            return null;
+        existing.duplicateCount.incrementAndGet();
+        Runnable handler = existing.duplicateHandler;
+        if (handler != null)
+            handler.run();
+        return existing;
+    }
+
+    void add(Entry entry) {
+        sessions.put(entry, entry);
+        size.incrementAndGet();
+    }
+
+    List<Entry> entries() {
+        return new ArrayList<>(sessions.keySet());
+    }
+
+    @Override
+    public int getSize() {
+        return size.get();
+    }
+
+    @Override
+    public int getQueued() {
+        int queued = 0;
+        for (Entry entry : sessions.keySet())
+            if (entry.transfer == null)
+                queued++;
+        return queued;
+    }
+
+    @Override
+    public List<String> getSessions() {
+        List<String> descriptions = new ArrayList<>();
+        for (Entry entry : sessions.keySet())
+            descriptions.add(entry.toString());
+        return descriptions;
+    }
+
+    void register(int port) {
+        try {
+            ObjectName name = new ObjectName("com.tftp:type=Sessions,port=" + port);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            Logger.error("Could not register session table MBean: " + e.getMessage());
+        }
+    }
+
+    void unregister() {
+        if (registeredName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException ignored) {}
+        registeredName = null;
+    }
+}
@@ -0,0 +1,10 @@
+package com.tftp.io.server;
+
+import java.util.List;
+
+// JMX view of the session table, registered as com.tftp:type=Sessions,port=<port>.
+public interface SessionTableMXBean {
+    int getSize();
+    int getQueued();
+    List<String> getSessions();
+}
@@ -0,0 +1,208 @@
+package com.tftp.io.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.tftp.io.logger.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Read-only admin endpoint on the JDK's built-in HTTP server:
+//   GET /metrics   Prometheus text exposition format (version 0.0.4)
+//   GET /sessions  JSON array of the session table: transfers queued or in progress
+// Scrapes run on one daemon thread of their own and only read counters, so they never hold up
+// a transfer.
+final class StatsHttpServer {
+    private final ServerMetrics metrics;
+    private final FileCache fileCache;
+    private final SessionTable sessions;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    StatsHttpServer(InetSocketAddress address, ServerMetrics metrics, FileCache fileCache,
+                    SessionTable sessions) throws IOException {
+        this.metrics = metrics;
+        this.fileCache = fileCache;
+        this.sessions = sessions;
+        this.server = HttpServer.create(address, 16);
+        this.executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "tftp-stats-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/metrics", exchange -> respond(exchange, "text/plain; version=0.0.4", metricsText()));
+        server.createContext("/sessions", exchange -> respond(exchange, "application/json", sessionsJson()));
+    }
+
+    void start() {
+        server.start();
+        Logger.log("Stats endpoint listening on http://" + describe(getAddress()) + "/metrics");
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    private static void respond(HttpExchange exchange, String contentType, String body) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    String metricsText() {
+        StringBuilder out = new StringBuilder(4096);
+        List<ServerMetrics.Transfer> live = metrics.liveTransfers();
+        long liveRate = 0;
+        for (ServerMetrics.Transfer transfer : live)
+            liveRate += transfer.getBytesPerSecond();
+
+        gauge(out, "tftp_sessions_active", "Transfers in progress", metrics.getActiveSessions());
+        gauge(out, "tftp_sessions_queued", "Admitted requests waiting for a transfer thread", sessions.getQueued());
+        counter(out, "tftp_sessions_started_total", "Transfers started", metrics.getSessionsStarted());
+        counter(out, "tftp_sessions_completed_total", "Transfers completed", metrics.getSessionsCompleted());
+        counter(out, "tftp_sessions_failed_total", "Transfers that ended in an error or timeout",
+                metrics.getSessionsFailed());
+        counter(out, "tftp_multicast_joins_total", "Reads handed to a multicast group",
+                metrics.getMulticastJoins());
+        counter(out, "tftp_bytes_sent_total", "DATA payload bytes sent, including retransmissions",
+                metrics.getBytesSent());
+        counter(out, "tftp_bytes_received_total", "DATA payload bytes received", metrics.getBytesReceived());
+        gauge(out, "tftp_throughput_bytes_per_second", "Combined average rate of the transfers in progress",
+                liveRate);
+        counter(out, "tftp_blocks_sent_total", "DATA blocks sent", metrics.getBlocksSent());
+        counter(out, "tftp_blocks_retransmitted_total", "DATA blocks sent more than once",
+                metrics.getBlocksRetransmitted());
+        gauge(out, "tftp_retransmit_ratio", "Share of DATA blocks that were retransmissions",
+                ratio(metrics.getBlocksRetransmitted(), metrics.getBlocksSent()));
+        counter(out, "tftp_timeouts_total", "Retransmission timeouts", metrics.getTimeouts());
+
+        header(out, "tftp_errors_sent_total", "counter", "ERROR packets sent by type");
+        for (Map.Entry<String, Long> error : metrics.getErrorsSent().entrySet())
+            out.append("tftp_errors_sent_total{type=\"").append(error.getKey()).append("\"} ")
+                    .append(error.getValue()).append('\n');
+        counter(out, "tftp_errors_received_total", "ERROR packets received from clients",
+                metrics.getErrorsReceived());
+        gauge(out, "tftp_executor_queue_depth", "Requests waiting for a transfer thread",
+                metrics.getExecutorQueueDepth());
+        header(out, "tftp_requests_refused_total", "counter", "Initial requests that did not start a transfer");
+        out.append("tftp_requests_refused_total{reason=\"duplicate\"} ").append(metrics.getDuplicateRequests())
+                .append('\n');
+        out.append("tftp_requests_refused_total{reason=\"rateLimited\"} ").append(metrics.getRateLimitedRequests())
+                .append('\n');
+        out.append("tftp_requests_refused_total{reason=\"busy\"} ").append(metrics.getBusyRequests()).append('\n');
+
+        long hits = fileCache.getHits();
+        long misses = fileCache.getMisses();
+        counter(out, "tftp_cache_hits_total", "Reads served from the file cache", hits);
+        counter(out, "tftp_cache_misses_total", "Reads that loaded a file into the cache", misses);
+        gauge(out, "tftp_cache_hit_ratio", "Share of cacheable reads served from the file cache",
+                ratio(hits, hits + misses));
+        gauge(out, "tftp_cache_used_bytes", "Bytes held by the file cache", fileCache.getUsedBytes());
+
+        summary(out, "tftp_transfer_duration_seconds", "Duration of completed transfers",
+                metrics.getTransferMillis(), 1000.0);
+        summary(out, "tftp_transfer_throughput_bytes_per_second", "Average rate of completed transfers",
+                metrics.getThroughput(), 1.0);
+        return out.toString();
+    }
+
+    String sessionsJson() {
+        StringBuilder out = new StringBuilder("[");
+        boolean first = true;
+        for (SessionTable.Entry entry : sessions.entries()) {
+            ServerMetrics.Transfer transfer = entry.getTransfer();
+            if (!first)
+                out.append(',');
+            first = false;
+            out.append("\n  {\"client\":\"").append(escape(describe(entry.getClient())))
+                    .append("\",\"file\":\"").append(escape(entry.getFilename()))
+                    .append("\",\"direction\":\"").append(entry.isRead() ? "read" : "write")
+                    .append("\",\"state\":\"").append(transfer == null ? "queued" : "running")
+                    .append("\",\"block\":").append(transfer == null ? 0 : transfer.getBlock())
+                    .append(",\"bytes\":").append(transfer == null ? 0 : transfer.getBytes())
+                    .append(",\"elapsedMillis\":").append(entry.getAgeNanos() / 1_000_000)
+                    .append(",\"bytesPerSecond\":").append(transfer == null ? 0 : transfer.getBytesPerSecond())
+                    .append(",\"duplicates\":").append(entry.getDuplicates())
+                    .append('}');
+        }
+        return out.append(first ? "]\n" : "\n]\n").toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, "counter", help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, double value) {
+        header(out, name, "gauge", help);
+        out.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String help, Histogram histogram, double divisor) {
+        header(out, name, "summary", help);
+        for (double quantile : new double[] { 0.5, 0.9, 0.99 })
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(format(histogram.percentile(quantile * 100) / divisor)).append('\n');
+        out.append(name).append("_sum ").append(format(histogram.getMean() * histogram.getCount() / divisor))
+                .append('\n');
+        out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static double ratio(long part, long whole) {
+        return whole == 0 ? 0 : (double) part / whole;
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value)
+                : Double.toString(value);
+    }
+
+    private static String describe(InetSocketAddress address) {
+        if (address == null)
+            return "";
+        String host = address.getAddress() != null ? address.getAddress().getHostAddress() : address.getHostString();
+        return (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + address.getPort();
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                escaped.append('\\').append(c);
+            else if (c < 0x20)
+                escaped.append(String.format("\\u%04x", (int) c));
+            else
+                escaped.append(c);
+        }
+        return escaped.toString();
+    }
+}
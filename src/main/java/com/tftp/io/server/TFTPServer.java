@@ -1,24 +1,62 @@
 package com.tftp.io.server;
 
+import com.tftp.model.packet.TFTPError;
+import com.tftp.model.packet.TFTPRequest;
 import com.tftp.model.protocol.TFTPProtocol;
 import com.tftp.io.logger.Logger;
 import java.io.*;
 import java.net.*;
+import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class TFTPServer {
     private final int port;
     private final String rootDirectory;
+    private final ServerConfig config;
     private final ExecutorService threadPool;
+    private final Semaphore sessionPermits;
+    private final FileCache fileCache;
+    private final RootIndex root;
+    private final DeflatedFiles deflatedFiles;
+    private final MulticastService multicast;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final BandwidthShaper shaper;
+    private final AdmissionControl admission;
+    private ScheduledExecutorService metricsDump;
+    private StatsHttpServer statsServer;
     private volatile boolean running;
+    private final AtomicBoolean stopped = new AtomicBoolean();
     private DatagramSocket serverSocket;
+    private SelectorServer selectorServer;
 
     public TFTPServer(int port, String rootDirectory) {
+        this(port, rootDirectory, new ServerConfig());
+    }
+
+    public TFTPServer(int port, String rootDirectory, ServerConfig config) {
         this.port = port;
         this.rootDirectory = rootDirectory;
-        this.threadPool = Executors.newFixedThreadPool(10);
+        this.config = config;
+        this.threadPool = TransferExecutors.create(config);
+        this.sessionPermits = config.getExecutorMode() == ServerConfig.ExecutorMode.VIRTUAL
+                ? new Semaphore(config.getMaxSessions()) : null;
+        this.fileCache = new FileCache(config.getCacheCapacityBytes(), config.getMaxCachedFileBytes());
+        this.deflatedFiles = new DeflatedFiles(fileCache);
+        this.multicast = config.isMulticastEnabled() ? new MulticastService(config, fileCache) : null;
+        this.shaper = new BandwidthShaper(config);
+        this.admission = new AdmissionControl(admissionCapacity(config), config);
+        if (sessionPermits != null)
+            metrics.setQueueDepth(sessionPermits::getQueueLength);
+        else if (threadPool instanceof ThreadPoolExecutor)
+            metrics.setQueueDepth(((ThreadPoolExecutor) threadPool).getQueue()::size);
         ensureDirectoryExists();
+        this.root = new RootIndex(rootDirectory);
         Logger.initialize(rootDirectory);
     }
 
@@ -28,19 +66,29 @@ public class TFTPServer {
             dir.mkdirs();
     }
 
+    // The port is bound before the metrics start: the first JMX registration in a JVM can take
+    // a second or more, and requests arriving meanwhile would otherwise be lost.
     public void start() {
+        if (config.getEngine() == ServerConfig.Engine.SELECTOR) {
+            startSelectorEngine();
+            return;
+        }
+
         try {
             serverSocket = new DatagramSocket(port);
+            startIndex();
+            startMetrics();
             running = true;
-            Logger.log("TFTP Server started on port " + port);
+            Logger.log("TFTP Server started on port " + port + " (" + describeExecutor() + ")");
             Logger.log("Root directory: " + rootDirectory);
+            Logger.log("Bandwidth: " + shaper.describe());
 
+            byte[] buffer = new byte[TFTPProtocol.PACKET_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
             while (running) {
-                byte[] buffer = new byte[TFTPProtocol.PACKET_SIZE];
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                packet.setData(buffer);
                 serverSocket.receive(packet);
-
-                threadPool.execute(new ClientHandler(packet, rootDirectory));
+                accept(packet);
             }
         } catch (IOException e) {
             if (running)
@@ -50,11 +98,205 @@ public class TFTPServer {
         }
     }
 
+    // Transfers running plus requests allowed to wait for them; past that, requests are shed.
+    private static int admissionCapacity(ServerConfig config) {
+        if (config.getEngine() == ServerConfig.Engine.SELECTOR)
+            return config.getMaxSessions();
+        int workers = config.getExecutorMode() == ServerConfig.ExecutorMode.VIRTUAL
+                ? config.getMaxSessions() : config.getThreadPoolSize();
+        return workers + config.getAdmissionQueue();
+    }
+
+    // The receive buffer is reused for every datagram; only an admitted request gets a copy.
+    private void accept(DatagramPacket packet) throws IOException {
+        InetSocketAddress client = (InetSocketAddress) packet.getSocketAddress();
+        int length = packet.getLength();
+        if (length < 4) {
+            reject(client, TFTPProtocol.ERR_ILLEGAL_OPERATION, "Packet too short");
+            return;
+        }
+
+        byte[] data = packet.getData();
+        short opcode = (short) (((data[0] & 0xFF) << 8) | (data[1] & 0xFF));
+        if (opcode != TFTPProtocol.RRQ && opcode != TFTPProtocol.WRQ) {
+            reject(client, TFTPProtocol.ERR_ILLEGAL_OPERATION, "Illegal TFTP operation: " + opcode);
+            return;
+        }
+
+        String filename = TFTPRequest.fromBytes(data, length).getFilename();
+        SessionTable.Entry entry = admission.getSessions().entry(client, opcode, filename);
+        AdmissionControl.Verdict verdict = admission.admit(entry);
+        if (verdict != AdmissionControl.Verdict.ADMITTED) {
+            metrics.requestRefused(verdict);
+            // Logged at debug only: under a flood the log would otherwise become part of the problem.
+            String reason = AdmissionControl.describe(verdict);
+            Logger.debug("Refused request from " + client + " for " + filename + ": " + reason);
+            if (verdict != AdmissionControl.Verdict.DUPLICATE && config.getShedPolicy() == ServerConfig.ShedPolicy.REJECT)
+                sendError(client, TFTPProtocol.ERR_NOT_DEFINED, reason);
+            return;
+        }
+
+        DatagramPacket copy = new DatagramPacket(Arrays.copyOf(data, length), length, client);
+        ClientHandler handler = new ClientHandler(copy, root, config, fileCache, deflatedFiles, multicast, metrics,
+                shaper);
+        handler.admittedAs(entry);
+        submit(handler, entry);
+    }
+
+    private void reject(InetSocketAddress client, short errorCode, String errorMsg) throws IOException {
+        sendError(client, errorCode, errorMsg);
+        Logger.error("Sent error to " + client + ": " + errorCode + " - " + errorMsg);
+    }
+
+    private void sendError(InetSocketAddress client, short errorCode, String errorMsg) throws IOException {
+        byte[] error = new TFTPError(errorCode, errorMsg).toBytes();
+        serverSocket.send(new DatagramPacket(error, error.length, client));
+        metrics.errorSent(errorCode);
+    }
+
+    // Virtual threads are unbounded, so the session semaphore takes over the pool's role of
+    // capping concurrent transfers: each transfer waits for a permit on its own virtual thread,
+    // which keeps the receive loop free to shed load.
+    private void submit(ClientHandler handler, SessionTable.Entry entry) {
+        try {
+            threadPool.execute(() -> {
+                try {
+                    if (sessionPermits == null) {
+                        handler.run();
+                        return;
+                    }
+                    sessionPermits.acquireUninterruptibly();
+                    try {
+                        handler.run();
+                    } finally {
+                        sessionPermits.release();
+                    }
+                } finally {
+                    entry.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            entry.release();
+            throw e;
+        }
+    }
+
+    private String describeExecutor() {
+        if (config.getExecutorMode() == ServerConfig.ExecutorMode.VIRTUAL)
+            return "virtual threads, max " + config.getMaxSessions() + " sessions, " +
+                    config.getAdmissionQueue() + " queued";
+        return config.getThreadPoolSize() + " platform threads, " + config.getAdmissionQueue() + " queued";
+    }
+
+    private void startSelectorEngine() {
+        try {
+            // The transfer pool has no transfers to run here, so it takes the loops' file work.
+            selectorServer = new SelectorServer(port, root, config, fileCache, deflatedFiles, multicast,
+                    threadPool, metrics, shaper, admission);
+            selectorServer.bind();
+            startIndex();
+            startMetrics();
+            running = true;
+            Logger.log("TFTP Server started on port " + port + " (selector engine, " +
+                    config.getEventLoops() + " event loop(s))");
+            Logger.log("Root directory: " + rootDirectory);
+            Logger.log("Bandwidth: " + shaper.describe());
+
+            selectorServer.run();
+        } catch (IOException e) {
+            if (running)
+                Logger.error("Server error: " + e.getMessage());
+        } finally {
+            stop();
+        }
+    }
+
+    public FileCache getFileCache() {
+        return fileCache;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    RootIndex getRootIndex() {
+        return root;
+    }
+
+    SessionTable getSessionTable() {
+        return admission.getSessions();
+    }
+
+    // Rate limits can be changed here, or over JMX, while transfers run.
+    public BandwidthShaper getShaper() {
+        return shaper;
+    }
+
+    // The address the stats endpoint is bound to, or null if it is not running.
+    public InetSocketAddress getStatsAddress() {
+        return statsServer != null ? statsServer.getAddress() : null;
+    }
+
+    // The scan runs in the background; until it reaches a file, requests for it are checked on disk.
+    private void startIndex() {
+        if (!config.isRootIndex())
+            return;
+        try {
+            root.watch(fileCache, config.getIndexDigest());
+        } catch (IOException e) {
+            Logger.error("Could not watch " + rootDirectory + ", checking every request on disk: " + e.getMessage());
+        }
+    }
+
+    private void startMetrics() {
+        metrics.register(port);
+        shaper.register(port);
+        admission.getSessions().register(port);
+        if (config.getStatsAddress() != null) {
+            try {
+                statsServer = new StatsHttpServer(config.getStatsAddress(), metrics, fileCache,
+                        admission.getSessions());
+                statsServer.start();
+            } catch (IOException e) {
+                Logger.error("Could not start stats endpoint on " + config.getStatsAddress() + ": " + e.getMessage());
+            }
+        }
+        if (config.getMetricsLogIntervalSeconds() > 0) {
+            metricsDump = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "tftp-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = config.getMetricsLogIntervalSeconds();
+            metricsDump.scheduleAtFixedRate(() -> Logger.log(metrics.snapshot()), interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    // Called by whoever stops the server and again by the server thread as it leaves, or by the
+    // shutdown hook; only the first call tears down.
     public void stop() {
         running = false;
+        if (!stopped.compareAndSet(false, true))
+            return;
+        if (selectorServer != null)
+            selectorServer.stop();
         if (serverSocket != null && !serverSocket.isClosed())
             serverSocket.close();
         threadPool.shutdown();
+        if (multicast != null)
+            multicast.shutdown();
+        if (metricsDump != null)
+            metricsDump.shutdownNow();
+        if (statsServer != null)
+            statsServer.stop();
+        metrics.unregister();
+        shaper.unregister();
+        admission.getSessions().unregister();
+        root.close();
+        fileCache.logStatistics();
+        root.logStatistics();
+        deflatedFiles.logStatistics();
+        Logger.log(metrics.snapshot());
         Logger.log("TFTP Server stopped");
         Logger.close();
     }
@@ -62,6 +304,7 @@ public class TFTPServer {
     public static void main(String[] args) {
         int port = TFTPProtocol.DEFAULT_PORT;
         String rootDir = "D:/TFTP/Server";
+        ServerConfig config = new ServerConfig();
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -75,10 +318,168 @@ public class TFTPServer {
                     if (i + 1 < args.length)
                         rootDir = args[++i];
                     break;
+                case "-b":
+                case "--max-blksize":
+                    if (i + 1 < args.length)
+                        config.setMaxBlockSize(Integer.parseInt(args[++i]));
+                    break;
+                case "-w":
+                case "--max-windowsize":
+                    if (i + 1 < args.length)
+                        config.setMaxWindowSize(Integer.parseInt(args[++i]));
+                    break;
+                case "-e":
+                case "--engine":
+                    if (i + 1 < args.length)
+                        config.setEngine(ServerConfig.Engine.valueOf(args[++i].toUpperCase()));
+                    break;
+                case "--event-loops":
+                    if (i + 1 < args.length)
+                        config.setEventLoops(Integer.parseInt(args[++i]));
+                    break;
+                case "--executor":
+                    if (i + 1 < args.length)
+                        config.setExecutorMode(ServerConfig.ExecutorMode.valueOf(args[++i].toUpperCase()));
+                    break;
+                case "--threads":
+                    if (i + 1 < args.length)
+                        config.setThreadPoolSize(Integer.parseInt(args[++i]));
+                    break;
+                case "--max-sessions":
+                    if (i + 1 < args.length)
+                        config.setMaxSessions(Integer.parseInt(args[++i]));
+                    break;
+                case "--log-level":
+                    if (i + 1 < args.length)
+                        Logger.setLevel(Logger.Level.valueOf(args[++i].toUpperCase()));
+                    break;
+                case "--log-overflow":
+                    if (i + 1 < args.length)
+                        Logger.setOverflowPolicy(Logger.OverflowPolicy.valueOf(args[++i].toUpperCase()));
+                    break;
+                case "--cache-mb":
+                    if (i + 1 < args.length)
+                        config.setCacheCapacityBytes(Long.parseLong(args[++i]) * 1024 * 1024);
+                    break;
+                case "--cache-max-file-mb":
+                    if (i + 1 < args.length)
+                        config.setMaxCachedFileBytes(Long.parseLong(args[++i]) * 1024 * 1024);
+                    break;
+                case "--timeout-ms":
+                    if (i + 1 < args.length) {
+                        String[] bounds = args[++i].split(",");
+                        if (bounds.length != 3)
+                            throw new IllegalArgumentException("Expected --timeout-ms initial,min,max: " + args[i]);
+                        config.setTimeoutMillis(Long.parseLong(bounds[0].trim()), Long.parseLong(bounds[1].trim()),
+                                Long.parseLong(bounds[2].trim()));
+                    }
+                    break;
+                case "--rollover":
+                    if (i + 1 < args.length)
+                        config.setBlockRollover(Integer.parseInt(args[++i]));
+                    break;
+                case "--multicast":
+                    if (i + 1 < args.length) {
+                        String[] group = args[++i].split(":");
+                        try {
+                            config.setMulticast(InetAddress.getByName(group[0]),
+                                    group.length > 1 ? Integer.parseInt(group[1]) : TFTPProtocol.DEFAULT_MULTICAST_PORT,
+                                    config.getMulticastPorts());
+                        } catch (UnknownHostException e) {
+                            throw new IllegalArgumentException("Unknown multicast group: " + group[0]);
+                        }
+                    }
+                    break;
+                case "--multicast-if":
+                    if (i + 1 < args.length) {
+                        String name = args[++i];
+                        try {
+                            NetworkInterface networkInterface = NetworkInterface.getByName(name);
+                            if (networkInterface == null)
+                                throw new IllegalArgumentException("Unknown network interface: " + name);
+                            config.setMulticastInterface(networkInterface);
+                        } catch (SocketException e) {
+                            throw new IllegalArgumentException("Unknown network interface: " + name);
+                        }
+                    }
+                    break;
+                case "--multicast-ttl":
+                    if (i + 1 < args.length)
+                        config.setMulticastTtl(Integer.parseInt(args[++i]));
+                    break;
+                case "--fsync":
+                    if (i + 1 < args.length)
+                        config.setFsyncPolicy(ServerConfig.FsyncPolicy.valueOf(args[++i].toUpperCase()));
+                    break;
+                case "--fsync-interval-mb":
+                    if (i + 1 < args.length)
+                        config.setFsyncIntervalBytes(Long.parseLong(args[++i]) * 1024 * 1024);
+                    break;
+                case "--metrics-interval":
+                    if (i + 1 < args.length)
+                        config.setMetricsLogIntervalSeconds(Integer.parseInt(args[++i]));
+                    break;
+                case "--stats":
+                    if (i + 1 < args.length) {
+                        String value = args[++i];
+                        int colon = value.lastIndexOf(':');
+                        if (colon < 0)
+                            config.setStatsPort(Integer.parseInt(value));
+                        else
+                            config.setStatsAddress(new InetSocketAddress(value.substring(0, colon),
+                                    Integer.parseInt(value.substring(colon + 1))));
+                    }
+                    break;
+                case "--rate-limit":
+                    if (i + 1 < args.length) {
+                        String[] rates = args[++i].split(",");
+                        if (rates.length != 3)
+                            throw new IllegalArgumentException("Expected --rate-limit global,client,session in KiB/s: " +
+                                    args[i]);
+                        config.setRateLimits(Long.parseLong(rates[0].trim()) * 1024,
+                                Long.parseLong(rates[1].trim()) * 1024, Long.parseLong(rates[2].trim()) * 1024);
+                    }
+                    break;
+                case "--client-prefix":
+                    if (i + 1 < args.length) {
+                        String[] prefixes = args[++i].split(",");
+                        config.setClientPrefix(Integer.parseInt(prefixes[0].trim()),
+                                prefixes.length > 1 ? Integer.parseInt(prefixes[1].trim()) : config.getClientPrefixIpv6());
+                    }
+                    break;
+                case "--admission-queue":
+                    if (i + 1 < args.length)
+                        config.setAdmissionQueue(Integer.parseInt(args[++i]));
+                    break;
+                case "--request-rate":
+                    if (i + 1 < args.length) {
+                        String[] rate = args[++i].split(",");
+                        config.setRequestRatePerSource(Integer.parseInt(rate[0].trim()),
+                                rate.length > 1 ? Integer.parseInt(rate[1].trim()) : config.getRequestBurstPerSource());
+                    }
+                    break;
+                case "--shed":
+                    if (i + 1 < args.length)
+                        config.setShedPolicy(ServerConfig.ShedPolicy.valueOf(args[++i].toUpperCase()));
+                    break;
+                case "--no-index":
+                    config.setRootIndex(false);
+                    break;
+                case "--no-compress":
+                    config.setCompression(false);
+                    break;
+                case "--index-digest":
+                    if (i + 1 < args.length)
+                        config.setIndexDigest(args[++i].toLowerCase());
+                    break;
+                case "--max-retries":
+                    if (i + 1 < args.length)
+                        config.setMaxRetries(Integer.parseInt(args[++i]));
+                    break;
             }
         }
 
-        TFTPServer server = new TFTPServer(port, rootDir);
+        TFTPServer server = new TFTPServer(port, rootDir, config);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("Shutdown hook triggered");
@@ -0,0 +1,96 @@
+package com.tftp.io.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Hashed timing wheel for retransmit timers. Scheduling and cancelling are O(1), and expiry
+// only visits the slot of the current tick, so thousands of sessions cost nothing while idle.
+// Not thread-safe: owned by a single event loop.
+final class TimerWheel {
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private boolean cancelled;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        void cancel() { cancelled = true; }
+        boolean isCancelled() { return cancelled; }
+    }
+
+    private final long tickNanos;
+    private final List<Timeout>[] slots;
+    private final int mask;
+    private final long startNanos;
+    private long currentTick;
+    private int pending;
+
+    @SuppressWarnings("unchecked")
+    TimerWheel(long tickMillis, int slotCount) {
+        if (Integer.bitCount(slotCount) != 1)
+            throw new IllegalArgumentException("Slot count must be a power of two: " + slotCount);
+        this.tickNanos = tickMillis * 1_000_000L;
+        this.slots = (List<Timeout>[]) new List<?>[slotCount];
+        for (int i = 0; i < slotCount; i++)
+            slots[i] = new ArrayList<>();
+        this.mask = slotCount - 1;
+        this.startNanos = System.nanoTime();
+    }
+
+    // The delay counts from now rather than from the last advance, which may have been a long
+    // idle time ago.
+    Timeout schedule(Runnable task, long delayMillis) {
+        long ticks = Math.max(1, (delayMillis * 1_000_000L + tickNanos - 1) / tickNanos);
+        long nowTick = Math.max(currentTick, tickOf(System.nanoTime()));
+        Timeout timeout = new Timeout(task, nowTick + ticks);
+        slots[(int) (timeout.deadlineTick & mask)].add(timeout);
+        pending++;
+        return timeout;
+    }
+
+    void advance(long nowNanos) {
+        long targetTick = tickOf(nowNanos);
+        // With nothing scheduled there is nothing to visit on the way.
+        if (pending == 0) {
+            currentTick = Math.max(currentTick, targetTick);
+            return;
+        }
+        while (currentTick <= targetTick) {
+            List<Timeout> slot = slots[(int) (currentTick & mask)];
+            List<Timeout> expired = null;
+
+            for (int i = slot.size() - 1; i >= 0; i--) {
+                Timeout timeout = slot.get(i);
+                if (timeout.cancelled || timeout.deadlineTick <= currentTick) {
+                    slot.set(i, slot.get(slot.size() - 1));
+                    slot.remove(slot.size() - 1);
+                    pending--;
+                    if (!timeout.cancelled) {
+                        if (expired == null)
+                            expired = new ArrayList<>();
+                        expired.add(timeout);
+                    }
+                }
+            }
+
+            if (expired != null) {
+                for (Timeout timeout : expired)
+                    timeout.task.run();
+            }
+
+            if (currentTick == targetTick)
+                break;
+            currentTick++;
+        }
+    }
+
+    private long tickOf(long nanos) {
+        return (nanos - startNanos) / tickNanos;
+    }
+
+    long tickMillis() { return tickNanos / 1_000_000L; }
+    boolean isEmpty() { return pending == 0; }
+}
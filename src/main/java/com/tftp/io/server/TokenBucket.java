@@ -0,0 +1,51 @@
+package com.tftp.io.server;
+
+import java.util.concurrent.TimeUnit;
+
+// Token bucket kept in its GCRA form: instead of a token count it remembers when the bucket will
+// have drained, so a reservation is a comparison and an add and tells the caller exactly when its
+// packet may go. Full, the bucket holds burstNanos worth of traffic at the current rate; the
+// default also absorbs the 10 ms granularity of the event loops' timer wheel.
+final class TokenBucket {
+    static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final long burstNanos;
+    private long drainedAt = System.nanoTime();
+
+    TokenBucket() {
+        this(BURST_NANOS);
+    }
+
+    TokenBucket(long burstNanos) {
+        this.burstNanos = burstNanos;
+    }
+
+    // Takes bytes from the bucket no earlier than earliestNanos and returns the time they may be
+    // sent. The rate is passed in so it can change under a running transfer; 0 means unlimited.
+    synchronized long reserve(long bytes, long earliestNanos, long bytesPerSecond) {
+        if (bytesPerSecond <= 0)
+            return earliestNanos;
+        long cost = bytes * 1_000_000_000L / bytesPerSecond;
+        long sendAt = later(earliestNanos, drainedAt - burstNanos);
+        drainedAt = later(drainedAt, sendAt) + cost;
+        return sendAt;
+    }
+
+    // Takes amount only if the bucket has it now; a refused caller leaves the bucket untouched.
+    synchronized boolean tryTake(long amount, long nowNanos, long perSecond) {
+        if (perSecond <= 0)
+            return true;
+        if (drainedAt - burstNanos - nowNanos > 0)
+            return false;
+        drainedAt = later(drainedAt, nowNanos) + amount * 1_000_000_000L / perSecond;
+        return true;
+    }
+
+    synchronized boolean isFull(long nowNanos) {
+        return nowNanos - drainedAt >= 0;
+    }
+
+    private static long later(long a, long b) {
+        return a - b >= 0 ? a : b;
+    }
+}
@@ -0,0 +1,41 @@
+package com.tftp.io.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+final class TransferExecutors {
+    private TransferExecutors() {}
+
+    static ExecutorService create(ServerConfig config) {
+        if (config.getExecutorMode() == ServerConfig.ExecutorMode.VIRTUAL)
+            return newVirtualThreadPerTaskExecutor();
+        return Executors.newFixedThreadPool(config.getThreadPoolSize());
+    }
+
+    static boolean virtualThreadsSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    // Looked up reflectively so the default Java 11 build still compiles; the java21 profile
+    // produces the artifact that is meant to run in this mode.
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Virtual threads require Java 21 or newer (running " +
+                    System.getProperty("java.version") + ")");
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Could not create virtual thread executor", e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Could not create virtual thread executor", e);
+        }
+    }
+}
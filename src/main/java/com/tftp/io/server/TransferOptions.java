@@ -0,0 +1,164 @@
+package com.tftp.io.server;
+
+import com.tftp.io.logger.Logger;
+import com.tftp.model.packet.TFTPRequest;
+import com.tftp.model.protocol.RttEstimator;
+import com.tftp.model.protocol.StreamDigest;
+import com.tftp.model.protocol.TFTPProtocol;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+final class TransferOptions {
+    private int blockSize = TFTPProtocol.DATA_SIZE;
+    private int windowSize = TFTPProtocol.MIN_WINDOW_SIZE;
+    private int timeoutSeconds;
+    private long transferSize = -1;
+    private long requestedOffset = -1;
+    private String digestAlgorithm;
+    private boolean compressionRequested;
+    private boolean compressed;
+    private boolean netascii;
+    private final Map<String, String> accepted = new LinkedHashMap<>();
+
+    private TransferOptions() {}
+
+    static TransferOptions negotiate(TFTPRequest request, ServerConfig config, InetAddress clientAddress) {
+        TransferOptions options = new TransferOptions();
+        options.netascii = TFTPProtocol.MODE_NETASCII.equals(request.getMode());
+
+        Integer requestedBlockSize = parse(request, TFTPProtocol.OPTION_BLKSIZE);
+        if (requestedBlockSize != null && requestedBlockSize >= TFTPProtocol.MIN_BLOCK_SIZE) {
+            int limit = config.getMaxBlockSize();
+            if (config.isPathMtuClamp())
+                limit = Math.min(limit, PathMtu.maxBlockSize(clientAddress));
+            options.blockSize = Math.min(requestedBlockSize, limit);
+            options.accepted.put(TFTPProtocol.OPTION_BLKSIZE, Integer.toString(options.blockSize));
+        }
+
+        Integer requestedWindowSize = parse(request, TFTPProtocol.OPTION_WINDOWSIZE);
+        if (requestedWindowSize != null && requestedWindowSize >= TFTPProtocol.MIN_WINDOW_SIZE) {
+            options.windowSize = Math.min(requestedWindowSize, config.getMaxWindowSize());
+            options.accepted.put(TFTPProtocol.OPTION_WINDOWSIZE, Integer.toString(options.windowSize));
+        }
+
+        // Out-of-range timeouts must not be acknowledged (RFC 2349), so they fall back to adaptive.
+        Integer requestedTimeout = parse(request, TFTPProtocol.OPTION_TIMEOUT);
+        if (requestedTimeout != null && requestedTimeout >= TFTPProtocol.MIN_TIMEOUT
+                && requestedTimeout <= TFTPProtocol.MAX_TIMEOUT) {
+            options.timeoutSeconds = requestedTimeout;
+            options.accepted.put(TFTPProtocol.OPTION_TIMEOUT, Integer.toString(requestedTimeout));
+        }
+
+        // A WRQ announces the size it is about to write and gets it echoed; an RRQ sends 0 and is
+        // answered by reportTransferSize() once the file is open.
+        Long requestedSize = parseLong(request, TFTPProtocol.OPTION_TSIZE);
+        if (requestedSize != null) {
+            options.transferSize = requestedSize;
+            if (request.getOpcode() == TFTPProtocol.WRQ)
+                options.accepted.put(TFTPProtocol.OPTION_TSIZE, Long.toString(requestedSize));
+        }
+
+        // A resumed RRQ is answered by acceptOffset() once the file's size is known. Netascii
+        // reads always start over, since the client's byte count is not the file's.
+        Long offset = parseLong(request, TFTPProtocol.OPTION_OFFSET);
+        if (offset != null && request.getOpcode() == TFTPProtocol.RRQ && !options.netascii)
+            options.requestedOffset = offset;
+
+        // A digest is of the file's own bytes, which a netascii transfer does not carry.
+        String digest = request.getOption(TFTPProtocol.OPTION_DIGEST);
+        String algorithm = digest != null ? digest.trim().toLowerCase(Locale.ROOT) : null;
+        if (algorithm != null && !options.netascii && StreamDigest.isSupported(algorithm)) {
+            options.digestAlgorithm = algorithm;
+            if (request.getOpcode() == TFTPProtocol.WRQ)
+                options.accepted.put(TFTPProtocol.OPTION_DIGEST, options.digestAlgorithm);
+        }
+
+        // A resumed read counts its offset in the file's own bytes, so it is never compressed.
+        String compress = request.getOption(TFTPProtocol.OPTION_COMPRESS);
+        options.compressionRequested = compress != null && request.getOpcode() == TFTPProtocol.RRQ
+                && config.isCompression() && !options.isResume() && !options.netascii
+                && TFTPProtocol.COMPRESS_DEFLATE.equalsIgnoreCase(compress.trim());
+
+        return options;
+    }
+
+    // The read is sent compressed; called once the compressed copy is open.
+    void acceptCompression() {
+        compressed = true;
+        accepted.put(TFTPProtocol.OPTION_COMPRESS, TFTPProtocol.COMPRESS_DEFLATE);
+    }
+
+    // Answers a read's digest option once the file's digest is known.
+    void reportDigest(String value) {
+        accepted.put(TFTPProtocol.OPTION_DIGEST, digestAlgorithm + ":" + value);
+    }
+
+    // Returns where the read starts. An offset past the end of the file is left out of the OACK,
+    // which tells the client to start over from the beginning.
+    long acceptOffset(long size) {
+        if (requestedOffset < 0 || requestedOffset > size)
+            return 0;
+        accepted.put(TFTPProtocol.OPTION_OFFSET, Long.toString(requestedOffset));
+        return requestedOffset;
+    }
+
+    void reportTransferSize(long size) {
+        if (transferSize < 0)
+            return;
+        transferSize = size;
+        accepted.put(TFTPProtocol.OPTION_TSIZE, Long.toString(size));
+    }
+
+    // A client-negotiated timeout replaces the adaptive estimate for the whole session.
+    RttEstimator newRttEstimator(ServerConfig config) {
+        if (timeoutSeconds > 0)
+            return RttEstimator.fixed(timeoutSeconds * 1000L, config.getMaxRetries());
+        return new RttEstimator(config.getInitialTimeoutMillis(), config.getMinTimeoutMillis(),
+                config.getMaxTimeoutMillis(), config.getMaxRetries());
+    }
+
+    private static Integer parse(TFTPRequest request, String name) {
+        String value = request.getOption(name);
+        if (value == null)
+            return null;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            Logger.error("Ignoring malformed " + name + " option: " + value);
+            return null;
+        }
+    }
+
+    private static Long parseLong(TFTPRequest request, String name) {
+        String value = request.getOption(name);
+        if (value == null)
+            return null;
+        try {
+            long size = Long.parseLong(value.trim());
+            return size >= 0 ? size : null;
+        } catch (NumberFormatException e) {
+            Logger.error("Ignoring malformed " + name + " option: " + value);
+            return null;
+        }
+    }
+
+    int getBlockSize() { return blockSize; }
+    int getWindowSize() { return windowSize; }
+    int getTimeoutSeconds() { return timeoutSeconds; }
+    // -1 when the client did not use the tsize option.
+    long getTransferSize() { return transferSize; }
+    boolean isResume() { return requestedOffset > 0; }
+    // Null unless the client asked for a supported digest.
+    String getDigestAlgorithm() { return digestAlgorithm; }
+    boolean isCompressionRequested() { return compressionRequested; }
+    boolean isCompressed() { return compressed; }
+    boolean isNetascii() { return netascii; }
+    // A multicast group sends the file as it is from block 1, so resumed, compressed and netascii
+    // reads are served by unicast only.
+    boolean allowsMulticast() { return !isResume() && !compressionRequested && !netascii; }
+    Map<String, String> getAccepted() { return accepted; }
+    boolean isEmpty() { return accepted.isEmpty(); }
+}
@@ -0,0 +1,273 @@
+package com.tftp.io.server;
+
+import com.tftp.io.logger.Logger;
+import com.tftp.model.packet.PacketReader;
+import com.tftp.model.packet.PacketWriter;
+import com.tftp.model.packet.TFTPError;
+import com.tftp.model.packet.TFTPRequest;
+import com.tftp.model.protocol.BlockSequence;
+import com.tftp.model.protocol.RttEstimator;
+import com.tftp.model.protocol.SendClock;
+import com.tftp.model.protocol.TFTPProtocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.TimeUnit;
+
+// One transfer driven by an EventLoop: every packet and timer callback runs on the loop thread,
+// so subclasses keep their state in plain fields and never block.
+abstract class TransferSession implements EventLoop.Handler {
+    protected final EventLoop loop;
+    protected final TFTPRequest request;
+    protected final InetSocketAddress client;
+    protected final RootIndex root;
+    protected final ServerConfig config;
+    protected final ServerMetrics metrics;
+    protected final BandwidthShaper shaper;
+    protected ServerMetrics.Transfer transfer;
+    protected BandwidthShaper.Flow flow;
+    protected TransferOptions options;
+    protected ByteBuffer receiveBuffer = ByteBuffer.allocate(TFTPProtocol.PACKET_SIZE);
+    protected BlockSequence blocks;
+    protected RttEstimator rtt;
+    protected SendClock sendClock;
+    protected final ByteBuffer ackBuffer = ByteBuffer.allocateDirect(TFTPProtocol.HEADER_SIZE);
+
+    // Shaper delays up to one timer tick are not waited out: the bucket has already charged for the
+    // packet and its burst allowance covers it going that much early, whereas a timer would hold it
+    // for a whole tick and, in lock-step, lose that time for good.
+    protected static final long PACE_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(EventLoop.TICK_MILLIS);
+
+    private final PacketReader reader = new PacketReader();
+    private final Runnable timeoutTask = this::fireTimeout;
+
+    private DatagramChannel channel;
+    private SelectionKey key;
+    private TimerWheel.Timeout retransmitTimer;
+    private SessionTable.Entry entry;
+    private boolean closed;
+    private boolean paused;
+
+    TransferSession(EventLoop loop, TFTPRequest request, InetSocketAddress client,
+                    RootIndex root, ServerConfig config, ServerMetrics metrics, BandwidthShaper shaper) {
+        this.loop = loop;
+        this.request = request;
+        this.client = client;
+        this.root = root;
+        this.config = config;
+        this.metrics = metrics;
+        this.shaper = shaper;
+        this.blocks = new BlockSequence(config.getBlockRollover());
+    }
+
+    // The session table entry is released when the session closes, however it ends.
+    final void admittedAs(SessionTable.Entry entry) {
+        this.entry = entry;
+    }
+
+    final void start() {
+        try {
+            channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(0));
+            key = loop.register(channel, this);
+            loop.sessionOpened();
+            transfer = metrics.transferStarted();
+            flow = shaper.open(client.getAddress());
+            if (entry != null) {
+                entry.started(transfer);
+                entry.onDuplicate(() -> loop.execute(this::duplicateRequest));
+            }
+            begin();
+        } catch (IOException e) {
+            Logger.error("Could not start session for " + client + ": " + e.getMessage());
+            close();
+        }
+    }
+
+    protected abstract void begin() throws IOException;
+
+    // The reader views the session's receive buffer and is only valid until the callback returns.
+    protected abstract void onPacket(PacketReader packet) throws IOException;
+
+    protected abstract void onTimeout() throws IOException;
+
+    // The client sent its request again, so it has not seen the first reply yet.
+    protected void onDuplicateRequest() throws IOException {}
+
+    protected interface Action {
+        void run() throws IOException;
+    }
+
+    @Override
+    public final void onReadable() throws IOException {
+        while (!closed && !paused) {
+            receiveBuffer.clear();
+            SocketAddress from = channel.receive(receiveBuffer);
+            if (from == null)
+                return;
+            receiveBuffer.flip();
+
+            if (!client.equals(from)) {
+                TFTPError error = new TFTPError(TFTPProtocol.ERR_UNKNOWN_TID, "Unknown transfer ID");
+                channel.send(ByteBuffer.wrap(error.toBytes()), from);
+                continue;
+            }
+
+            if (receiveBuffer.remaining() < 4) {
+                sendError(TFTPProtocol.ERR_ILLEGAL_OPERATION, "Packet too short");
+                close();
+                return;
+            }
+
+            onPacket(reader.wrap(receiveBuffer));
+        }
+    }
+
+    protected void negotiated(TransferOptions options) throws IOException {
+        this.options = options;
+        rtt = options.newRttEstimator(config);
+        sendClock = new SendClock(options.getWindowSize());
+        receiveBuffer = ByteBuffer.allocate(TFTPProtocol.HEADER_SIZE + options.getBlockSize());
+        int windowBytes = options.getWindowSize() * receiveBuffer.capacity();
+        if (channel.socket().getReceiveBufferSize() < 2 * windowBytes)
+            channel.socket().setReceiveBufferSize(2 * windowBytes);
+        // A non-blocking send silently drops the datagram when the socket buffer is full.
+        if (channel.socket().getSendBufferSize() < 2 * windowBytes)
+            channel.socket().setSendBufferSize(2 * windowBytes);
+    }
+
+    protected void send(byte[] packet) throws IOException {
+        channel.send(ByteBuffer.wrap(packet), client);
+    }
+
+    // Rewinds first so a packet kept for retransmission can be sent again as is.
+    protected void send(ByteBuffer packet) throws IOException {
+        packet.rewind();
+        channel.send(packet, client);
+    }
+
+    protected ByteBuffer sendAck(short blockNumber) throws IOException {
+        ByteBuffer ack = PacketWriter.ack(ackBuffer, blockNumber);
+        send(ack);
+        return ack;
+    }
+
+    protected void sendError(short errorCode, String errorMsg) throws IOException {
+        send(new TFTPError(errorCode, errorMsg).toBytes());
+        metrics.errorSent(errorCode);
+        Logger.error("Sent error: " + errorCode + " - " + errorMsg);
+    }
+
+    protected void armTimer() {
+        cancelTimer();
+        retransmitTimer = loop.schedule(timeoutTask, rtt.timeoutMillis());
+    }
+
+    protected void cancelTimer() {
+        if (retransmitTimer != null) {
+            retransmitTimer.cancel();
+            retransmitTimer = null;
+        }
+    }
+
+    // Runs action on the loop once delayNanos have passed, unless the session has closed by then.
+    // Used to hold back packets the bandwidth shaper has not cleared yet.
+    protected TimerWheel.Timeout later(long delayNanos, Action action) {
+        return loop.schedule(() -> {
+            if (closed)
+                return;
+            try {
+                action.run();
+            } catch (IOException e) {
+                Logger.error("Session error: " + e.getMessage());
+                close();
+            }
+        }, TimeUnit.NANOSECONDS.toMillis(delayNanos + 999_999));
+    }
+
+    // Carries on with action on the loop once another thread has done the blocking part of the
+    // session's work. If the session has closed meanwhile, abandoned runs instead, to release what
+    // that thread produced.
+    protected void resume(Action action, Runnable abandoned) {
+        loop.execute(() -> {
+            if (closed) {
+                abandoned.run();
+                return;
+            }
+            try {
+                action.run();
+            } catch (IOException e) {
+                Logger.error("Session error: " + e.getMessage());
+                close();
+            }
+        });
+    }
+
+    // Stops taking packets off the socket until resumeReading, while a worker does something the
+    // next packet depends on. Datagrams wait in the socket's receive buffer meanwhile, and the
+    // packet being handled stays in the receive buffer.
+    protected void pauseReading() {
+        paused = true;
+        key.interestOps(0);
+    }
+
+    protected void resumeReading() {
+        paused = false;
+        if (!closed)
+            key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void duplicateRequest() {
+        if (closed)
+            return;
+        try {
+            onDuplicateRequest();
+        } catch (IOException e) {
+            Logger.error("Session error: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void fireTimeout() {
+        retransmitTimer = null;
+        if (closed)
+            return;
+        try {
+            onTimeout();
+        } catch (IOException e) {
+            Logger.error("Session error: " + e.getMessage());
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        cancelTimer();
+        if (key != null) {
+            key.cancel();
+            loop.sessionClosed();
+        }
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException ignored) {}
+        if (flow != null)
+            flow.close();
+        if (entry != null)
+            entry.release();
+        if (transfer != null)
+            transfer.finish();
+        release();
+    }
+
+    protected void release() {}
+
+    protected boolean isClosed() { return closed; }
+}
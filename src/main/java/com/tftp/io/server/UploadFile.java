@@ -0,0 +1,217 @@
+package com.tftp.io.server;
+
+import com.tftp.io.logger.Logger;
+import com.tftp.model.packet.PacketReader;
+import com.tftp.model.protocol.Netascii;
+import com.tftp.model.protocol.StreamDigest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Destination of a WRQ. Data goes to a hidden temp file next to the target through one large
+// buffer, and only a complete upload appears under the real name, so readers never see half a
+// file and a crash leaves at most a stray temp file behind.
+final class UploadFile {
+    private final File target;
+    private final Path temp;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final ServerConfig.FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalBytes;
+    private long unsyncedBytes;
+    private boolean closed;
+    private boolean committed;
+    private StreamDigest digest;
+    private Netascii.Decoder decoder;
+    private ByteBuffer decoded;
+
+    UploadFile(File target, ServerConfig config) throws IOException {
+        this(target, config, 0);
+    }
+
+    // The buffer takes at least one payload of payloadBytes whole, so there is always room for
+    // the next block once it has been written out; see hasRoomFor.
+    UploadFile(File target, ServerConfig config, int payloadBytes) throws IOException {
+        this.target = target;
+        this.temp = Files.createTempFile(target.getAbsoluteFile().getParentFile().toPath(),
+                "." + target.getName() + ".", ".part");
+        this.channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+        this.buffer = ByteBuffer.allocateDirect(Math.max(config.getWriteBufferBytes(), payloadBytes + 1));
+        this.fsyncPolicy = config.getFsyncPolicy();
+        this.fsyncIntervalBytes = config.getFsyncIntervalBytes();
+    }
+
+    // Digests the data as it is written, for the server to announce to later reads.
+    void digestWith(StreamDigest digest) {
+        this.digest = digest;
+    }
+
+    StreamDigest getDigest() {
+        return digest;
+    }
+
+    // Translates the data from netascii as it is written. A line ending split across two blocks
+    // is held by the decoder until the next one arrives.
+    void decodeNetascii() {
+        decoder = new Netascii.Decoder();
+        decoded = ByteBuffer.allocate(8 * 1024);
+    }
+
+    // Appends the payload of a DATA packet.
+    void write(PacketReader packet) throws IOException {
+        ByteBuffer source = packet.buffer();
+        if (source.hasArray()) {
+            write(source.array(), source.arrayOffset() + packet.payloadOffset(), packet.payloadLength());
+            return;
+        }
+
+        ByteBuffer payload = source.duplicate();
+        payload.limit(packet.payloadOffset() + packet.payloadLength()).position(packet.payloadOffset());
+        if (decoder != null) {
+            decode(payload);
+            return;
+        }
+        if (digest != null)
+            digest.update(payload.duplicate());
+        while (payload.hasRemaining()) {
+            if (!buffer.hasRemaining())
+                flush();
+            int end = payload.limit();
+            payload.limit(payload.position() + Math.min(payload.remaining(), buffer.remaining()));
+            buffer.put(payload);
+            payload.limit(end);
+        }
+    }
+
+    void write(byte[] data, int offset, int length) throws IOException {
+        if (decoder != null)
+            decode(ByteBuffer.wrap(data, offset, length));
+        else
+            append(data, offset, length);
+    }
+
+    private void decode(ByteBuffer payload) throws IOException {
+        while (payload.hasRemaining()) {
+            decoded.clear();
+            decoder.decode(payload, decoded);
+            append(decoded.array(), 0, decoded.position());
+        }
+    }
+
+    private void append(byte[] data, int offset, int length) throws IOException {
+        if (digest != null)
+            digest.update(data, offset, length);
+        while (length > 0) {
+            if (!buffer.hasRemaining())
+                flush();
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.put(data, offset, chunk);
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    // Whether a payload of length bytes goes into the buffer without writing it out first, so a
+    // caller that must not touch the disk can flush beforehand elsewhere. The spare byte is for a
+    // netascii CR held back from the block before.
+    boolean hasRoomFor(int length) {
+        return buffer.remaining() > length;
+    }
+
+    // Puts the upload in place under its real name. Returns false if that name was taken while
+    // the data was arriving, in which case the upload is discarded.
+    boolean commit() throws IOException {
+        try {
+            if (decoder != null) {
+                boolean finished;
+                do {
+                    decoded.clear();
+                    finished = decoder.finish(decoded);
+                    append(decoded.array(), 0, decoded.position());
+                } while (!finished);
+            }
+            flush();
+            if (fsyncPolicy != ServerConfig.FsyncPolicy.NONE)
+                channel.force(true);
+            close();
+
+            if (!link()) {
+                Files.deleteIfExists(temp);
+                return false;
+            }
+            committed = true;
+            if (fsyncPolicy != ServerConfig.FsyncPolicy.NONE)
+                syncDirectory();
+            return true;
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    // Discards the upload unless it was committed; safe to call more than once.
+    void abort() {
+        if (committed)
+            return;
+        try {
+            close();
+        } catch (IOException ignored) {}
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            Logger.error("Could not remove " + temp + ": " + e.getMessage());
+        }
+    }
+
+    // A hard link fails atomically if the name exists, which a rename would silently replace.
+    // File systems without hard links fall back to a rename after an existence check.
+    private boolean link() throws IOException {
+        Path path = target.toPath();
+        try {
+            Files.createLink(path, temp);
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (UnsupportedOperationException | IOException e) {
+            if (Files.exists(path))
+                return false;
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        }
+        Files.delete(temp);
+        return true;
+    }
+
+    // Writes the buffer out to the temp file.
+    void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            unsyncedBytes += channel.write(buffer);
+        buffer.clear();
+
+        if (fsyncPolicy == ServerConfig.FsyncPolicy.INTERVAL && unsyncedBytes >= fsyncIntervalBytes) {
+            channel.force(false);
+            unsyncedBytes = 0;
+        }
+    }
+
+    // Makes the new directory entry itself durable. Not every platform can open a directory.
+    private void syncDirectory() {
+        try (FileChannel directory = FileChannel.open(temp.getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException ignored) {}
+    }
+
+    private void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        channel.close();
+    }
+}
@@ -0,0 +1,305 @@
+package com.tftp.io.server;
+
+import com.tftp.io.logger.Logger;
+import com.tftp.model.packet.PacketReader;
+import com.tftp.model.packet.PacketWriter;
+import com.tftp.model.packet.TFTPOack;
+import com.tftp.model.packet.TFTPRequest;
+import com.tftp.model.protocol.StreamDigest;
+import com.tftp.model.protocol.TFTPProtocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+final class WriteSession extends TransferSession {
+    private final FileCache fileCache;
+    private final Executor workers;
+    private File file;
+    private UploadFile upload;
+    // Set while a worker is writing to upload; it then releases the upload itself if the session
+    // closes meanwhile.
+    private boolean writing;
+    private boolean committed;
+    private ByteBuffer lastAck;
+    private long expectedBlock = 1;
+    private long totalBytesReceived;
+    private int blocksInWindow;
+    private boolean recoveryAckSent;
+    // Karn's rule on the receiving side: the ACK that solicited the next block is only timed if it
+    // went out once.
+    private long ackSentAt;
+    private boolean ackResent;
+    private TimerWheel.Timeout paceTimer;
+
+    WriteSession(EventLoop loop, TFTPRequest request, InetSocketAddress client,
+                 RootIndex root, ServerConfig config, FileCache fileCache, Executor workers,
+                 ServerMetrics metrics, BandwidthShaper shaper) {
+        super(loop, request, client, root, config, metrics, shaper);
+        this.fileCache = fileCache;
+        this.workers = workers;
+    }
+
+    @Override
+    protected void begin() throws IOException {
+        String filename = request.getFilename();
+        file = root.resolveFile(filename);
+
+        Logger.log("WRQ from " + client + " for file: " + filename);
+        transfer.describe(client, filename, false);
+
+        if (!ClientHandler.isSupportedMode(request)) {
+            sendError(TFTPProtocol.ERR_ILLEGAL_OPERATION,
+                    "Unsupported transfer mode: " + request.getMode());
+            close();
+            return;
+        }
+
+        if (file.exists()) {
+            sendError(TFTPProtocol.ERR_FILE_EXISTS, "File already exists");
+            close();
+            return;
+        }
+
+        if (!root.contains(file)) {
+            sendError(TFTPProtocol.ERR_ACCESS_VIOLATION, "Access violation");
+            close();
+            return;
+        }
+
+        negotiated(TransferOptions.negotiate(request, config, client.getAddress()));
+        // Checking the free space and creating the temp file both go to the disk, so a worker
+        // does them and the session carries on from created().
+        workers.execute(this::create);
+    }
+
+    // Runs on a worker; options is not touched on the loop until the session resumes.
+    private void create() {
+        if (!ClientHandler.hasSpaceFor(file, options.getTransferSize())) {
+            resume(() -> {
+                sendError(TFTPProtocol.ERR_DISK_FULL,
+                        "Not enough space for " + options.getTransferSize() + " bytes");
+                close();
+            }, () -> {});
+            return;
+        }
+        UploadFile created = null;
+        try {
+            created = new UploadFile(file, config, options.getBlockSize());
+            if (options.isNetascii())
+                created.decodeNetascii();
+            if (options.getDigestAlgorithm() != null)
+                created.digestWith(StreamDigest.of(options.getDigestAlgorithm()));
+            UploadFile opened = created;
+            resume(() -> created(opened), opened::abort);
+        } catch (IOException | RuntimeException e) {
+            if (created != null)
+                created.abort();
+            resume(() -> {
+                Logger.error("Error creating file: " + e.getMessage());
+                sendError(TFTPProtocol.ERR_ACCESS_VIOLATION, "Cannot create file");
+                close();
+            }, () -> {});
+        }
+    }
+
+    private void created(UploadFile upload) throws IOException {
+        this.upload = upload;
+        if (options.isEmpty()) {
+            lastAck = sendAck((short) 0);
+            Logger.debug("Sent initial ACK(0)");
+        } else {
+            lastAck = ByteBuffer.wrap(new TFTPOack(options.getAccepted()).toBytes());
+            send(lastAck);
+            Logger.log("Sent OACK " + options.getAccepted());
+        }
+        ackSentAt = System.nanoTime();
+        armTimer();
+    }
+
+    @Override
+    protected void onPacket(PacketReader packet) throws IOException {
+        short opcode = packet.opcode();
+        // Nothing has been acknowledged while the file is being created.
+        if (opcode == TFTPProtocol.DATA && upload == null)
+            return;
+        if (opcode == TFTPProtocol.DATA) {
+            short blockNumber = packet.blockNumber();
+            int dataLength = packet.payloadLength();
+            rtt.progress();
+            blocks = blocks.follow(expectedBlock, blockNumber, options.getWindowSize() == 1);
+
+            if (blockNumber == blocks.wire(expectedBlock)) {
+                if (!upload.hasRoomFor(dataLength)) {
+                    // The buffer is full: a worker writes it out and the block is handled again
+                    // after that, still in the receive buffer since reading has stopped.
+                    cancelTimer();
+                    onWorker(upload::flush, () -> onPacket(packet));
+                    return;
+                }
+                if (ackSentAt != 0 && !ackResent)
+                    rtt.sample(System.nanoTime() - ackSentAt);
+                ackSentAt = 0;
+
+                boolean lastPacket = dataLength < options.getBlockSize();
+                try {
+                    upload.write(packet);
+                } catch (IOException e) {
+                    writeFailed(e);
+                    return;
+                }
+                if (lastPacket) {
+                    // The final ACK waits for the commit, which can still find the name taken.
+                    cancelTimer();
+                    onWorker(() -> committed = upload.commit(), () -> received(blockNumber, dataLength));
+                    return;
+                }
+                received(blockNumber, dataLength);
+            } else {
+                if (blocks.isAhead(blocks.distance(expectedBlock, blockNumber)))
+                    Logger.debug("Out of order block " + (blockNumber & 0xFFFF) +
+                            ", expected: " + (blocks.wire(expectedBlock) & 0xFFFF));
+                else
+                    Logger.debug("Received duplicate block " + (blockNumber & 0xFFFF));
+
+                if (!recoveryAckSent) {
+                    lastAck = sendAck(blocks.wire(expectedBlock - 1));
+                    ackSent(false);
+                    recoveryAckSent = true;
+                    blocksInWindow = 0;
+                }
+            }
+        } else if (opcode == TFTPProtocol.ERROR) {
+            Logger.error("Client sent error: " + packet.errorMessage());
+            metrics.errorReceived();
+            close();
+        } else {
+            sendError(TFTPProtocol.ERR_ILLEGAL_OPERATION, "Unexpected opcode: " + opcode);
+            close();
+        }
+    }
+
+    // A block written into the upload: counts it and acknowledges it at the end of a window, and
+    // finishes the transfer once the last one has been committed.
+    private void received(short blockNumber, int dataLength) throws IOException {
+        boolean lastPacket = dataLength < options.getBlockSize();
+        if (lastPacket && !committed) {
+            sendError(TFTPProtocol.ERR_FILE_EXISTS, "File already exists");
+            close();
+            return;
+        }
+        if (lastPacket && upload.getDigest() != null)
+            fileCache.putDigest(file, upload.getDigest());
+        totalBytesReceived += dataLength;
+        transfer.dataReceived(dataLength);
+        blocksInWindow++;
+        recoveryAckSent = false;
+        // Holding back the next ACK is what slows an upload down; the last block has
+        // already arrived, so its ACK goes straight out.
+        long delay = lastPacket ? 0 : flow.reserve(dataLength);
+
+        if (Logger.isTraceEnabled())
+            Logger.trace("Received DATA block " + expectedBlock + " (" + dataLength + " bytes)");
+
+        if (lastPacket || blocksInWindow == options.getWindowSize()) {
+            if (delay > PACE_SLACK_NANOS) {
+                lastAck = PacketWriter.ack(ackBuffer, blockNumber);
+                paceTimer = later(delay, this::paced);
+            } else {
+                lastAck = sendAck(blockNumber);
+                ackSent(false);
+            }
+            blocksInWindow = 0;
+        }
+
+        if (lastPacket) {
+            transfer.completed();
+            Logger.log("File received successfully: " + totalBytesReceived + " bytes");
+            close();
+            return;
+        }
+
+        expectedBlock++;
+        if (paceTimer != null)
+            cancelTimer();
+        else
+            armTimer();
+    }
+
+    // Flushing, forcing and committing the upload all wait on the disk: write runs on a worker
+    // with reading stopped, and the session goes on with then back on the loop.
+    private void onWorker(Action write, Action then) {
+        pauseReading();
+        writing = true;
+        workers.execute(() -> {
+            try {
+                write.run();
+                resume(() -> {
+                    writing = false;
+                    resumeReading();
+                    then.run();
+                }, upload::abort);
+            } catch (IOException | RuntimeException e) {
+                resume(() -> {
+                    writing = false;
+                    writeFailed(e);
+                }, upload::abort);
+            }
+        });
+    }
+
+    private void writeFailed(Exception e) throws IOException {
+        Logger.error("Error writing file: " + e.getMessage());
+        sendError(TFTPProtocol.ERR_DISK_FULL, "File write error");
+        close();
+    }
+
+    @Override
+    protected void onTimeout() throws IOException {
+        if (paceTimer != null)
+            return;
+        transfer.timeout();
+        boolean retry = rtt.backoff();
+        Logger.error("Timeout waiting for DATA block " + expectedBlock +
+                " (attempt " + rtt.getRetries() + "/" + rtt.getMaxRetries() + ")");
+        if (!retry) {
+            sendError(TFTPProtocol.ERR_NOT_DEFINED, "Transfer timeout");
+            close();
+            return;
+        }
+        send(lastAck);
+        ackSent(true);
+        blocksInWindow = 0;
+        armTimer();
+    }
+
+    @Override
+    protected void onDuplicateRequest() throws IOException {
+        if (lastAck == null || expectedBlock != 1 || paceTimer != null || writing)
+            return;
+        send(lastAck);
+        ackSent(true);
+        Logger.debug("Repeated request, resent first reply");
+        armTimer();
+    }
+
+    private void paced() throws IOException {
+        paceTimer = null;
+        send(lastAck);
+        ackSent(false);
+        armTimer();
+    }
+
+    private void ackSent(boolean resent) {
+        ackSentAt = System.nanoTime();
+        ackResent = resent;
+    }
+
+    @Override
+    protected void release() {
+        if (upload != null && !writing)
+            upload.abort();
+    }
+}
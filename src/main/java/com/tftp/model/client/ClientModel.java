@@ -1,7 +1,10 @@
 package com.tftp.model.client;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.io.*;
 
 public class ClientModel {
@@ -9,25 +12,47 @@ public class ClientModel {
     private List<String> logMessages;
     private long currentProgress;
     private long totalSize;
+    private long wireBytes;
     private ClientModelListener listener;
     private PrintWriter clientLogWriter;
     private final String logDirectory = "D:/TFTP/Client/logs";
     private final String logFile = "tftp_client.log";
+    // Set on the per-file models of a batch, which report through their batch model.
+    private final ClientModel parent;
+    private final String filename;
+    private final Map<String, long[]> fileProgress = new LinkedHashMap<>();
 
     public interface ClientModelListener {
         void onStatusUpdated(String status);
         void onLogUpdated(String logMessage);
         void onProgressUpdated(long current, long total);
+
+        default void onFileProgressUpdated(String filename, long current, long total) {}
     }
 
     public ClientModel() {
-        this.logMessages = new ArrayList<>();
+        this.logMessages = Collections.synchronizedList(new ArrayList<>());
         this.status = "Ready";
         this.currentProgress = 0;
         this.totalSize = 0;
+        this.parent = null;
+        this.filename = null;
         initializeClientLog();
     }
 
+    private ClientModel(ClientModel parent, String filename) {
+        this.logMessages = Collections.synchronizedList(new ArrayList<>());
+        this.status = "Ready";
+        this.parent = parent;
+        this.filename = filename;
+    }
+
+    // Model for one file of a batch. Its status and log lines go to this model prefixed with the
+    // file name, and its progress is added into this model's total.
+    public ClientModel forFile(String filename) {
+        return new ClientModel(this, filename);
+    }
+
     private void initializeClientLog() {
         try {
             File logDir = new File(logDirectory);
@@ -52,7 +77,14 @@ public class ClientModel {
     }
 
     public void updateStatus(String status) {
-        this.status = status;
+        synchronized (this) {
+            this.status = status;
+        }
+        if (parent != null) {
+            parent.updateLog(filename + ": " + status);
+            return;
+        }
+
         if (listener != null)
             listener.onStatusUpdated(status);
 
@@ -60,6 +92,11 @@ public class ClientModel {
     }
 
     public void updateLog(String logMessage) {
+        if (parent != null) {
+            parent.updateLog(filename + ": " + logMessage);
+            return;
+        }
+
         this.logMessages.add(logMessage);
         if (listener != null)
             listener.onLogUpdated(logMessage);
@@ -68,8 +105,14 @@ public class ClientModel {
     }
 
     public void updateProgress(long current, long total) {
-        this.currentProgress = current;
-        this.totalSize = total;
+        synchronized (this) {
+            this.currentProgress = current;
+            this.totalSize = total;
+        }
+        if (parent != null) {
+            parent.updateFileProgress(filename, current, total);
+            return;
+        }
 
         if (listener != null)
             listener.onProgressUpdated(current, total);
@@ -78,7 +121,32 @@ public class ClientModel {
             writeToClientLog("PROGRESS: " + current + "/" + total + " bytes (" + (int)((double)current/total*100) + "%)");
     }
 
-    private void writeToClientLog(String message) {
+    // As above, for a download that also says how many bytes came over the network; fewer than
+    // current when the file is sent compressed.
+    public void updateProgress(long current, long total, long wireBytes) {
+        synchronized (this) {
+            this.wireBytes = wireBytes;
+        }
+        updateProgress(current, total);
+    }
+
+    private void updateFileProgress(String filename, long current, long total) {
+        long batchCurrent = 0;
+        long batchTotal = 0;
+        synchronized (fileProgress) {
+            fileProgress.put(filename, new long[] { current, total });
+            for (long[] progress : fileProgress.values()) {
+                batchCurrent += progress[0];
+                batchTotal += progress[1];
+            }
+        }
+
+        if (listener != null)
+            listener.onFileProgressUpdated(filename, current, total);
+        updateProgress(batchCurrent, batchTotal);
+    }
+
+    private synchronized void writeToClientLog(String message) {
         if (clientLogWriter != null) {
             try {
                 java.text.SimpleDateFormat dateFormat = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
@@ -89,7 +157,7 @@ public class ClientModel {
         }
     }
 
-    public String getStatus() {
+    public synchronized String getStatus() {
         return status;
     }
 
@@ -97,15 +165,19 @@ public class ClientModel {
         return logMessages;
     }
 
-    public long getCurrentProgress() {
+    public synchronized long getCurrentProgress() {
         return currentProgress;
     }
 
-    public long getTotalSize() {
+    public synchronized long getTotalSize() {
         return totalSize;
     }
 
-    public void close() {
+    public synchronized long getWireBytes() {
+        return wireBytes;
+    }
+
+    public synchronized void close() {
         if (clientLogWriter != null) {
             clientLogWriter.close();
             clientLogWriter = null;
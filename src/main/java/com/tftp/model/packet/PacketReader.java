@@ -0,0 +1,98 @@
+package com.tftp.model.packet;
+
+import com.tftp.model.protocol.TFTPProtocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Flyweight view over a received packet. Wrapping a buffer only records where the packet starts
+// and how long it is; fields are decoded in place on demand and the DATA payload is exposed as an
+// offset into the caller's buffer, so one reader can parse every packet of a transfer without
+// allocating. A reader is not thread-safe and must not outlive the buffer contents it wraps.
+public final class PacketReader {
+    private ByteBuffer buffer;
+    private ByteBuffer arrayView;
+    private int start;
+    private int length;
+
+    // Views the remaining bytes of buffer; its position and limit are left untouched.
+    public PacketReader wrap(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.start = buffer.position();
+        this.length = buffer.remaining();
+        return this;
+    }
+
+    // Views the first length bytes of data. Wrapping the same array again reuses its buffer view.
+    public PacketReader wrap(byte[] data, int length) {
+        if (arrayView == null || arrayView.array() != data)
+            arrayView = ByteBuffer.wrap(data);
+        this.buffer = arrayView;
+        this.start = 0;
+        this.length = length;
+        return this;
+    }
+
+    public int length() { return length; }
+
+    public boolean hasHeader() { return length >= TFTPProtocol.HEADER_SIZE; }
+
+    public short opcode() {
+        return buffer.getShort(start);
+    }
+
+    // Block number of a DATA or ACK packet.
+    public short blockNumber() {
+        return buffer.getShort(start + 2);
+    }
+
+    public short errorCode() {
+        return buffer.getShort(start + 2);
+    }
+
+    // Absolute index of the DATA payload in buffer().
+    public int payloadOffset() {
+        return start + TFTPProtocol.HEADER_SIZE;
+    }
+
+    public int payloadLength() {
+        return length - TFTPProtocol.HEADER_SIZE;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    // Writes the DATA payload straight from the wrapped array, or byte by byte for direct buffers.
+    public void writePayload(OutputStream out) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + payloadOffset(), payloadLength());
+            return;
+        }
+        for (int i = payloadOffset(), end = start + length; i < end; i++)
+            out.write(buffer.get(i));
+    }
+
+    public void copyPayload(byte[] destination, int offset) {
+        for (int i = 0, n = payloadLength(); i < n; i++)
+            destination[offset + i] = buffer.get(payloadOffset() + i);
+    }
+
+    // Only error paths decode the message, so this is the one accessor that allocates.
+    public String errorMessage() {
+        int end = payloadOffset();
+        int limit = start + length;
+        while (end < limit && buffer.get(end) != 0)
+            end++;
+
+        int messageLength = end - payloadOffset();
+        if (messageLength <= 0)
+            return "";
+        byte[] message = new byte[messageLength];
+        for (int i = 0; i < messageLength; i++)
+            message[i] = buffer.get(payloadOffset() + i);
+        return new String(message, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,48 @@
+package com.tftp.model.packet;
+
+import com.tftp.model.protocol.TFTPProtocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Encodes packets directly into a caller-supplied buffer. Each method clears the buffer, writes
+// the packet and flips it ready for sending, so a transfer can keep one ACK buffer and one DATA
+// buffer for its whole lifetime.
+public final class PacketWriter {
+    private PacketWriter() {
+    }
+
+    public static ByteBuffer ack(ByteBuffer buffer, short blockNumber) {
+        buffer.clear();
+        buffer.putShort(TFTPProtocol.ACK);
+        buffer.putShort(blockNumber);
+        buffer.flip();
+        return buffer;
+    }
+
+    // Writes only the DATA header and leaves the buffer positioned for the payload; the caller
+    // fills it and flips.
+    public static ByteBuffer dataHeader(ByteBuffer buffer, short blockNumber) {
+        buffer.clear();
+        buffer.putShort(TFTPProtocol.DATA);
+        buffer.putShort(blockNumber);
+        return buffer;
+    }
+
+    public static ByteBuffer data(ByteBuffer buffer, short blockNumber, byte[] payload, int offset, int length) {
+        dataHeader(buffer, blockNumber);
+        buffer.put(payload, offset, length);
+        buffer.flip();
+        return buffer;
+    }
+
+    public static ByteBuffer error(ByteBuffer buffer, short errorCode, String errorMsg) {
+        buffer.clear();
+        buffer.putShort(TFTPProtocol.ERROR);
+        buffer.putShort(errorCode);
+        buffer.put(errorMsg.getBytes(StandardCharsets.UTF_8));
+        buffer.put((byte) 0);
+        buffer.flip();
+        return buffer;
+    }
+}
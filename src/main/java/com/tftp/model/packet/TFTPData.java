@@ -1,5 +1,7 @@
 package com.tftp.model.packet;
 
+import java.nio.ByteBuffer;
+
 public class TFTPData {
     private final short opcode = 3;
     private final short blockNumber;
@@ -15,26 +17,23 @@ public class TFTPData {
 
     public byte[] toBytes() {
         byte[] packet = new byte[4 + data.length];
-
-        packet[0] = (byte) ((opcode >> 8) & 0xFF);
-        packet[1] = (byte) (opcode & 0xFF);
-        packet[2] = (byte) ((blockNumber >> 8) & 0xFF);
-        packet[3] = (byte) (blockNumber & 0xFF);
-        System.arraycopy(data, 0, packet, 4, data.length);
-
+        writeTo(ByteBuffer.wrap(packet));
         return packet;
     }
 
+    public ByteBuffer writeTo(ByteBuffer buffer) {
+        return PacketWriter.data(buffer, blockNumber, data, 0, data.length);
+    }
+
     public static TFTPData fromBytes(byte[] data, int length) {
         if (length < 4)
             throw new IllegalArgumentException("Data packet too short: " + length + " bytes");
 
-        short blockNumber = (short) (((data[2] & 0xFF) << 8) | (data[3] & 0xFF));
-        int dataLength = length - 4;
-        byte[] fileData = new byte[dataLength];
-        System.arraycopy(data, 4, fileData, 0, dataLength);
+        PacketReader reader = new PacketReader().wrap(data, length);
+        byte[] fileData = new byte[reader.payloadLength()];
+        reader.copyPayload(fileData, 0);
 
-        return new TFTPData(blockNumber, fileData);
+        return new TFTPData(reader.blockNumber(), fileData);
     }
 
     public short getOpcode() { return opcode; }
@@ -1,5 +1,6 @@
 package com.tftp.model.packet;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 public class TFTPError {
@@ -13,35 +14,21 @@ public class TFTPError {
     }
 
     public byte[] toBytes() {
-        byte[] errorMsgBytes = errorMsg.getBytes(StandardCharsets.UTF_8);
-        byte[] packet = new byte[4 + errorMsgBytes.length + 1];
-
-        packet[0] = (byte) ((opcode >> 8) & 0xFF);
-        packet[1] = (byte) (opcode & 0xFF);
-        packet[2] = (byte) ((errorCode >> 8) & 0xFF);
-        packet[3] = (byte) (errorCode & 0xFF);
-
-        System.arraycopy(errorMsgBytes, 0, packet, 4, errorMsgBytes.length);
-        packet[packet.length - 1] = 0;
-
+        byte[] packet = new byte[4 + errorMsg.getBytes(StandardCharsets.UTF_8).length + 1];
+        writeTo(ByteBuffer.wrap(packet));
         return packet;
     }
 
+    public ByteBuffer writeTo(ByteBuffer buffer) {
+        return PacketWriter.error(buffer, errorCode, errorMsg);
+    }
+
     public static TFTPError fromBytes(byte[] data, int length) {
         if (length < 4)
             throw new IllegalArgumentException("Error packet too short: " + length + " bytes");
 
-        short errorCode = (short) (((data[2] & 0xFF) << 8) | (data[3] & 0xFF));
-
-        int msgEnd = 4;
-        while (msgEnd < length && data[msgEnd] != 0)
-            msgEnd++;
-
-        String errorMsg = "";
-        if (msgEnd > 4)
-            errorMsg = new String(data, 4, msgEnd - 4, StandardCharsets.UTF_8);
-
-        return new TFTPError(errorCode, errorMsg);
+        PacketReader reader = new PacketReader().wrap(data, length);
+        return new TFTPError(reader.errorCode(), reader.errorMessage());
     }
 
     public short getOpcode() { return opcode; }
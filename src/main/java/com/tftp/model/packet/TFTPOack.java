@@ -0,0 +1,69 @@
+package com.tftp.model.packet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+public class TFTPOack {
+    private final short opcode = 6;
+    private final Map<String, String> options;
+
+    public TFTPOack(Map<String, String> options) {
+        this.options = new LinkedHashMap<>();
+        for (Map.Entry<String, String> option : options.entrySet())
+            this.options.put(option.getKey().toLowerCase(Locale.ROOT), option.getValue());
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        out.write((opcode >> 8) & 0xFF);
+        out.write(opcode & 0xFF);
+
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            TFTPRequest.writeString(out, option.getKey());
+            TFTPRequest.writeString(out, option.getValue());
+        }
+
+        return out.toByteArray();
+    }
+
+    public static TFTPOack fromBytes(byte[] data, int length) {
+        if (length < 2)
+            throw new IllegalArgumentException("OACK packet too short: " + length + " bytes");
+        return new TFTPOack(parseOptions(data, 2, length));
+    }
+
+    static Map<String, String> parseOptions(byte[] data, int offset, int length) {
+        Map<String, String> options = new LinkedHashMap<>();
+
+        int pos = offset;
+        while (pos < length) {
+            int nameEnd = pos;
+            while (nameEnd < length && data[nameEnd] != 0)
+                nameEnd++;
+            int valueStart = nameEnd + 1;
+            int valueEnd = valueStart;
+            while (valueEnd < length && data[valueEnd] != 0)
+                valueEnd++;
+
+            if (nameEnd == pos || valueStart > length)
+                break;
+
+            String name = new String(data, pos, nameEnd - pos, StandardCharsets.US_ASCII);
+            String value = new String(data, valueStart, valueEnd - valueStart, StandardCharsets.US_ASCII);
+            options.put(name.toLowerCase(Locale.ROOT), value);
+
+            pos = valueEnd + 1;
+        }
+
+        return options;
+    }
+
+    public short getOpcode() { return opcode; }
+    public Map<String, String> getOptions() { return Collections.unmodifiableMap(options); }
+    public String getOption(String name) { return options.get(name); }
+}
@@ -1,31 +1,47 @@
 package com.tftp.model.packet;
 
+import com.tftp.model.protocol.TFTPProtocol;
+
+import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 
 public class TFTPRequest {
     private final short opcode;
     private final String filename;
+    private final String mode;
+    private final Map<String, String> options;
 
     public TFTPRequest(short opcode, String filename) {
+        this(opcode, filename, TFTPProtocol.MODE_OCTET, Collections.emptyMap());
+    }
+
+    public TFTPRequest(short opcode, String filename, String mode, Map<String, String> options) {
         this.opcode = opcode;
         this.filename = filename;
+        this.mode = mode.toLowerCase(Locale.ROOT);
+        this.options = new LinkedHashMap<>();
+        for (Map.Entry<String, String> option : options.entrySet())
+            this.options.put(option.getKey().toLowerCase(Locale.ROOT), option.getValue());
     }
 
     public byte[] toBytes() {
-        byte[] filenameBytes = filename.getBytes(StandardCharsets.UTF_8);
-        byte[] modeBytes = "octet".getBytes(StandardCharsets.UTF_8);
-        byte[] data = new byte[4 + filenameBytes.length + modeBytes.length];
-
-        data[0] = (byte) ((opcode >> 8) & 0xFF);
-        data[1] = (byte) (opcode & 0xFF);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
 
-        System.arraycopy(filenameBytes, 0, data, 2, filenameBytes.length);
-        data[2 + filenameBytes.length] = 0;
+        out.write((opcode >> 8) & 0xFF);
+        out.write(opcode & 0xFF);
+        writeString(out, filename);
+        writeString(out, mode);
 
-        System.arraycopy(modeBytes, 0, data, 3 + filenameBytes.length, modeBytes.length);
-        data[3 + filenameBytes.length + modeBytes.length] = 0;
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            writeString(out, option.getKey());
+            writeString(out, option.getValue());
+        }
 
-        return data;
+        return out.toByteArray();
     }
 
     public static TFTPRequest fromBytes(byte[] data, int length) {
@@ -42,10 +58,29 @@ public class TFTPRequest {
         if (filenameEnd > 2)
             filename = new String(data, 2, filenameEnd - 2, StandardCharsets.UTF_8);
 
-        return new TFTPRequest(opcode, filename);
+        int modeStart = filenameEnd + 1;
+        int modeEnd = modeStart;
+        while (modeEnd < length && data[modeEnd] != 0)
+            modeEnd++;
+
+        String mode = TFTPProtocol.MODE_OCTET;
+        if (modeEnd > modeStart)
+            mode = new String(data, modeStart, modeEnd - modeStart, StandardCharsets.US_ASCII);
+
+        Map<String, String> options = TFTPOack.parseOptions(data, modeEnd + 1, length);
+        return new TFTPRequest(opcode, filename, mode, options);
+    }
+
+    static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+        out.write(0);
     }
 
     public short getOpcode() { return opcode; }
     public String getFilename() { return filename; }
-    public String getMode() { return "octet"; }
-}
\ No newline at end of file
+    public String getMode() { return mode; }
+    public Map<String, String> getOptions() { return Collections.unmodifiableMap(options); }
+    public String getOption(String name) { return options.get(name); }
+    public boolean hasOptions() { return !options.isEmpty(); }
+}
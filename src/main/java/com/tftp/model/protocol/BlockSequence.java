@@ -0,0 +1,63 @@
+package com.tftp.model.protocol;
+
+// Maps a transfer-wide block counter onto the 16-bit block number on the wire, so files are not
+// limited to 65535 blocks. After block 65535 the number rolls over to 0, which plain modulo
+// arithmetic gives, or to 1, which many PXE boot ROMs expect. Numbers compare by their distance
+// from a reference block, never by signed value.
+public class BlockSequence {
+    private static final int FIRST_WRAPPED_BLOCK = 0x10000;
+
+    private final int rollover;
+    private final int period;
+
+    public BlockSequence(int rollover) {
+        if (rollover != 0 && rollover != 1)
+            throw new IllegalArgumentException("Block rollover must be 0 or 1: " + rollover);
+        this.rollover = rollover;
+        this.period = rollover == 0 ? 0x10000 : 0xFFFF;
+    }
+
+    public int getRollover() { return rollover; }
+
+    public short wire(long block) {
+        if (rollover == 0 || block < FIRST_WRAPPED_BLOCK)
+            return (short) block;
+        return (short) ((block - 1) % period + 1);
+    }
+
+    // Steps forward from block base to the block carrying blockNumber. Results at or above
+    // period / 2 point backwards; isPrevious() marks the block right before base.
+    public int distance(long base, short blockNumber) {
+        int number = blockNumber & 0xFFFF;
+        if (rollover == 0)
+            return (number - (int) base) & 0xFFFF;
+
+        // With rollover to 1 the number 0 only exists as block 0, ahead of the first DATA.
+        if (number == 0)
+            return base == 0 ? 0 : base == 1 ? period - 1 : period;
+        if (base == 0)
+            return number;
+        return (int) (((number - 1) - (base - 1) % period + period) % period);
+    }
+
+    public boolean isPrevious(int distance) {
+        return distance == period - 1;
+    }
+
+    public boolean isAhead(int distance) {
+        return distance < period / 2;
+    }
+
+    // A receiver has no way to ask which rollover the sender uses, but the first block after the
+    // wrap gives it away. 0 never follows 65535 with rollover to 1. 1 in place of 0 is only
+    // conclusive in lock-step, where the sender cannot be a block ahead.
+    public BlockSequence follow(long expectedBlock, short blockNumber, boolean lockStep) {
+        if (expectedBlock != FIRST_WRAPPED_BLOCK)
+            return this;
+        if (rollover == 1 && blockNumber == 0)
+            return new BlockSequence(0);
+        if (rollover == 0 && blockNumber == 1 && lockStep)
+            return new BlockSequence(1);
+        return this;
+    }
+}
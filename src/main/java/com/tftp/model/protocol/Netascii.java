@@ -0,0 +1,154 @@
+package com.tftp.model.protocol;
+
+import java.nio.ByteBuffer;
+
+// Netascii (RFC 1350, after the Telnet NVT of RFC 764): on the wire every line ends in CR LF and
+// a CR that does not end a line travels as CR NUL. Encoder and Decoder translate between that
+// and the local line separator one buffer at a time. Each call stops when its input is used up
+// or its output is full, and a pair cut short by either is carried into the next call, so a
+// block boundary may fall anywhere.
+public final class Netascii {
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte NUL = 0;
+
+    private Netascii() {}
+
+    // Whether local text ends its lines in CR LF rather than LF.
+    public static boolean isCrlfLocal() {
+        return "\r\n".equals(System.lineSeparator());
+    }
+
+    private abstract static class Translator {
+        protected final boolean crlfLocal;
+        // A local CR (Encoder) or wire CR (Decoder) whose meaning depends on the byte after it.
+        protected boolean pendingCr;
+        // Up to two translated bytes that did not fit into the last output buffer.
+        private int owedFirst = -1;
+        private int owedSecond = -1;
+
+        private Translator(boolean crlfLocal) {
+            this.crlfLocal = crlfLocal;
+        }
+
+        protected final void owe(byte first, int second) {
+            owedFirst = first;
+            owedSecond = second;
+        }
+
+        // Writes what is owed; false while out has no room for all of it.
+        protected final boolean drain(ByteBuffer out) {
+            while (owedFirst >= 0) {
+                if (!out.hasRemaining())
+                    return false;
+                out.put((byte) owedFirst);
+                owedFirst = owedSecond;
+                owedSecond = -1;
+            }
+            return true;
+        }
+
+        // Ends the stream: a CR at the very end is taken as a plain CR. Returns false while out has
+        // no room for the rest, in which case it is called again with more.
+        public boolean finish(ByteBuffer out) {
+            if (pendingCr && drain(out)) {
+                pendingCr = false;
+                end();
+            }
+            return drain(out);
+        }
+
+        protected abstract void end();
+
+        protected final void copyStateTo(Translator copy) {
+            copy.pendingCr = pendingCr;
+            copy.owedFirst = owedFirst;
+            copy.owedSecond = owedSecond;
+        }
+    }
+
+    // Local text to netascii.
+    public static final class Encoder extends Translator {
+        public Encoder() {
+            this(isCrlfLocal());
+        }
+
+        public Encoder(boolean crlfLocal) {
+            super(crlfLocal);
+        }
+
+        public void encode(ByteBuffer in, ByteBuffer out) {
+            while (drain(out) && in.hasRemaining() && out.hasRemaining()) {
+                byte b = in.get();
+                if (pendingCr) {
+                    pendingCr = false;
+                    if (b == LF) {
+                        owe(CR, LF);
+                        continue;
+                    }
+                    owe(CR, NUL);
+                    // b is translated once the CR NUL is out.
+                    in.position(in.position() - 1);
+                } else if (b == LF) {
+                    owe(CR, LF);
+                } else if (b == CR) {
+                    if (crlfLocal)
+                        pendingCr = true;
+                    else
+                        owe(CR, NUL);
+                } else {
+                    out.put(b);
+                }
+            }
+        }
+
+        @Override
+        protected void end() {
+            owe(CR, NUL);
+        }
+
+        // The encoder as it is now, to carry on from here later.
+        public Encoder copy() {
+            Encoder copy = new Encoder(crlfLocal);
+            copyStateTo(copy);
+            return copy;
+        }
+    }
+
+    // Netascii to local text. A CR followed by anything but LF or NUL is kept as it is, and so is
+    // a lone LF, since not every sender gets netascii right.
+    public static final class Decoder extends Translator {
+        public Decoder() {
+            this(isCrlfLocal());
+        }
+
+        public Decoder(boolean crlfLocal) {
+            super(crlfLocal);
+        }
+
+        public void decode(ByteBuffer in, ByteBuffer out) {
+            while (drain(out) && in.hasRemaining() && out.hasRemaining()) {
+                byte b = in.get();
+                if (pendingCr) {
+                    pendingCr = false;
+                    if (b == LF) {
+                        owe(crlfLocal ? CR : LF, crlfLocal ? LF : -1);
+                    } else {
+                        owe(CR, -1);
+                        if (b != NUL)
+                            in.position(in.position() - 1);
+                    }
+                } else if (b == CR) {
+                    pendingCr = true;
+                } else {
+                    out.put(b);
+                }
+            }
+        }
+
+        @Override
+        protected void end() {
+            owe(CR, -1);
+        }
+    }
+}
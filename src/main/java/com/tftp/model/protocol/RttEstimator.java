@@ -0,0 +1,94 @@
+package com.tftp.model.protocol;
+
+// Retransmission timeout for one transfer, shared by both ends of the protocol. Round-trip
+// samples are smoothed the Jacobson/Karels way (SRTT and RTTVAR, RTO = SRTT + 4 * RTTVAR, as in
+// RFC 6298); callers apply Karn's rule by only sampling packets that were never retransmitted.
+// Each timeout doubles the RTO up to the upper bound until a fresh sample arrives, and the
+// transfer is abandoned after maxRetries consecutive timeouts without progress.
+public class RttEstimator {
+    public static final long DEFAULT_INITIAL_MILLIS = 1000;
+    public static final long DEFAULT_MIN_MILLIS = 50;
+    public static final long DEFAULT_MAX_MILLIS = 10000;
+    public static final int DEFAULT_MAX_RETRIES = 6;
+
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+
+    private final long minNanos;
+    private final long maxNanos;
+    private final int maxRetries;
+    private final boolean fixed;
+    private long srtt;
+    private long rttvar;
+    private boolean sampled;
+    private long rto;
+    private int retries;
+
+    public RttEstimator() {
+        this(DEFAULT_INITIAL_MILLIS, DEFAULT_MIN_MILLIS, DEFAULT_MAX_MILLIS, DEFAULT_MAX_RETRIES);
+    }
+
+    public RttEstimator(long initialMillis, long minMillis, long maxMillis, int maxRetries) {
+        this(initialMillis, minMillis, maxMillis, maxRetries, false);
+    }
+
+    private RttEstimator(long initialMillis, long minMillis, long maxMillis, int maxRetries, boolean fixed) {
+        if (minMillis < 1 || maxMillis < minMillis)
+            throw new IllegalArgumentException("Invalid timeout bounds: " + minMillis + ".." + maxMillis + " ms");
+        if (maxRetries < 1)
+            throw new IllegalArgumentException("At least one retry is required: " + maxRetries);
+        this.minNanos = minMillis * NANOS_PER_MILLI;
+        this.maxNanos = maxMillis * NANOS_PER_MILLI;
+        this.maxRetries = maxRetries;
+        this.fixed = fixed;
+        this.rto = clamp(initialMillis * NANOS_PER_MILLI);
+    }
+
+    // RFC 2349: a negotiated timeout is used as is, without adaptation or backoff.
+    public static RttEstimator fixed(long timeoutMillis, int maxRetries) {
+        return new RttEstimator(timeoutMillis, timeoutMillis, timeoutMillis, maxRetries, true);
+    }
+
+    public void sample(long rttNanos) {
+        if (fixed || rttNanos < 0)
+            return;
+
+        if (!sampled) {
+            srtt = rttNanos;
+            rttvar = rttNanos / 2;
+            sampled = true;
+        } else {
+            rttvar += (Math.abs(srtt - rttNanos) - rttvar) / 4;
+            srtt += (rttNanos - srtt) / 8;
+        }
+        rto = clamp(srtt + 4 * rttvar);
+    }
+
+    // Records a timeout. Returns false once the retry budget is spent.
+    public boolean backoff() {
+        retries++;
+        if (!fixed)
+            rto = clamp(rto * 2);
+        return retries < maxRetries;
+    }
+
+    // The peer answered, so the next timeout starts a fresh retry budget.
+    public void progress() {
+        retries = 0;
+    }
+
+    public int timeoutMillis() {
+        return (int) Math.max(1, (rto + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI);
+    }
+
+    public int getRetries() { return retries; }
+    public int getMaxRetries() { return maxRetries; }
+    public boolean isFixed() { return fixed; }
+
+    public long getSmoothedRttMicros() {
+        return sampled ? srtt / 1000 : -1;
+    }
+
+    private long clamp(long nanos) {
+        return Math.max(minNanos, Math.min(maxNanos, nanos));
+    }
+}
@@ -0,0 +1,31 @@
+package com.tftp.model.protocol;
+
+// Send times of the blocks in flight, so an ACK can be turned into a round-trip sample. Karn's
+// rule is built in: once a block has been sent twice its ACK is ambiguous and yields no sample.
+public class SendClock {
+    private final long[] sentAt;
+    private final boolean[] resent;
+    private long highestSent = -1;
+
+    public SendClock(int windowSize) {
+        sentAt = new long[windowSize];
+        resent = new boolean[windowSize];
+    }
+
+    public void sent(long block) {
+        int slot = (int) (block % sentAt.length);
+        if (block <= highestSent) {
+            resent[slot] = true;
+        } else {
+            resent[slot] = false;
+            highestSent = block;
+        }
+        sentAt[slot] = System.nanoTime();
+    }
+
+    // Round trip for an ACK of block in nanoseconds, or -1 if the block was retransmitted.
+    public long rttFor(long block) {
+        int slot = (int) (block % sentAt.length);
+        return resent[slot] ? -1 : System.nanoTime() - sentAt[slot];
+    }
+}
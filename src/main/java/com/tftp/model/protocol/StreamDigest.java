@@ -0,0 +1,70 @@
+package com.tftp.model.protocol;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+// Digest of a file computed as its blocks go by, so verifying a transfer costs no extra pass over
+// the data. CRC32C catches corruption cheaply; SHA-256 also guards against a substituted file.
+public final class StreamDigest {
+    public static final String CRC32C = "crc32c";
+    public static final String SHA_256 = "sha-256";
+
+    private final String algorithm;
+    private final Checksum checksum;
+    private final MessageDigest messageDigest;
+
+    private StreamDigest(String algorithm, Checksum checksum, MessageDigest messageDigest) {
+        this.algorithm = algorithm;
+        this.checksum = checksum;
+        this.messageDigest = messageDigest;
+    }
+
+    public static boolean isSupported(String algorithm) {
+        return CRC32C.equals(algorithm) || SHA_256.equals(algorithm);
+    }
+
+    public static StreamDigest of(String algorithm) {
+        if (CRC32C.equals(algorithm))
+            return new StreamDigest(CRC32C, new CRC32C(), null);
+        if (SHA_256.equals(algorithm)) {
+            try {
+                return new StreamDigest(SHA_256, null, MessageDigest.getInstance("SHA-256"));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        throw new IllegalArgumentException("Unsupported digest: " + algorithm);
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public void update(byte[] data, int offset, int length) {
+        if (checksum != null)
+            checksum.update(data, offset, length);
+        else
+            messageDigest.update(data, offset, length);
+    }
+
+    // Consumes the remaining bytes of data.
+    public void update(ByteBuffer data) {
+        if (checksum != null)
+            checksum.update(data);
+        else
+            messageDigest.update(data);
+    }
+
+    // Lower-case hex of the digest of everything so far. Ends a SHA-256 digest.
+    public String value() {
+        if (checksum != null)
+            return String.format("%08x", checksum.getValue());
+        StringBuilder hex = new StringBuilder();
+        for (byte b : messageDigest.digest())
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
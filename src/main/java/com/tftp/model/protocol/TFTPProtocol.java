@@ -6,11 +6,50 @@ public class TFTPProtocol {
     public static final short DATA = 3;
     public static final short ACK = 4;
     public static final short ERROR = 5;
+    public static final short OACK = 6;
 
     public static final int DEFAULT_PORT = 69;
+    public static final int HEADER_SIZE = 4;
     public static final int DATA_SIZE = 512;
     public static final int PACKET_SIZE = 516;
 
+    public static final String MODE_OCTET = "octet";
+    public static final String MODE_NETASCII = "netascii";
+
+    // RFC 2348
+    public static final String OPTION_BLKSIZE = "blksize";
+    public static final int MIN_BLOCK_SIZE = 8;
+    public static final int MAX_BLOCK_SIZE = 65464;
+
+    // RFC 7440
+    public static final String OPTION_WINDOWSIZE = "windowsize";
+    public static final int MIN_WINDOW_SIZE = 1;
+    public static final int MAX_WINDOW_SIZE = 65535;
+
+    // RFC 2349
+    public static final String OPTION_TIMEOUT = "timeout";
+    public static final int MIN_TIMEOUT = 1;
+    public static final int MAX_TIMEOUT = 255;
+    public static final String OPTION_TSIZE = "tsize";
+
+    // RFC 2090
+    public static final String OPTION_MULTICAST = "multicast";
+    public static final int DEFAULT_MULTICAST_PORT = 1758;
+
+    // Not standardised: the byte offset a resumed read starts at. A server that honours it echoes
+    // it in the OACK and numbers the block holding that byte 1.
+    public static final String OPTION_OFFSET = "offset";
+
+    // Not standardised: the client names a StreamDigest algorithm. A read is answered with
+    // "<algorithm>:<hex digest>" of the whole file when the server knows it; a write has the name
+    // echoed and the server digests what it receives.
+    public static final String OPTION_DIGEST = "digest";
+
+    // Not standardised: a read asking for "deflate" and having it echoed gets the file as one zlib
+    // stream (RFC 1950) in place of its bytes. tsize and digest still describe the file itself.
+    public static final String OPTION_COMPRESS = "compress";
+    public static final String COMPRESS_DEFLATE = "deflate";
+
     public static final short ERR_NOT_DEFINED = 0;
     public static final short ERR_FILE_NOT_FOUND = 1;
     public static final short ERR_ACCESS_VIOLATION = 2;
@@ -19,4 +58,5 @@ public class TFTPProtocol {
     public static final short ERR_UNKNOWN_TID = 5;
     public static final short ERR_FILE_EXISTS = 6;
     public static final short ERR_NO_SUCH_USER = 7;
-}
\ No newline at end of file
+    public static final short ERR_OPTION_NEGOTIATION = 8;
+}
@@ -0,0 +1,103 @@
+package com.tftp.io.logger;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class LogRingTest {
+
+    @Test
+    public void testRecordsComeOutInOrder() {
+        LogRing ring = new LogRing(4);
+        assertTrue(ring.offer(1, Logger.Level.INFO, "a"));
+        assertTrue(ring.offer(2, Logger.Level.ERROR, "b"));
+
+        LogRing.Record first = ring.peek();
+        assertEquals("a", first.message);
+        assertEquals(1, first.timeMillis);
+        ring.release();
+
+        LogRing.Record second = ring.peek();
+        assertEquals("b", second.message);
+        assertEquals(Logger.Level.ERROR, second.level);
+        ring.release();
+
+        assertNull(ring.peek());
+    }
+
+    @Test
+    public void testOfferFailsWhenFullAndRecoversAfterRelease() {
+        LogRing ring = new LogRing(2);
+        assertTrue(ring.offer(0, Logger.Level.INFO, "1"));
+        assertTrue(ring.offer(0, Logger.Level.INFO, "2"));
+        assertFalse(ring.offer(0, Logger.Level.INFO, "3"));
+
+        ring.release();
+        assertTrue(ring.offer(0, Logger.Level.INFO, "3"));
+        assertEquals("2", ring.peek().message);
+    }
+
+    @Test
+    public void testMarkIsConsumedOnceDrained() {
+        LogRing ring = new LogRing(8);
+        ring.offer(0, Logger.Level.INFO, "a");
+        ring.offer(0, Logger.Level.INFO, "b");
+        long mark = ring.mark();
+
+        ring.release();
+        assertFalse(ring.consumed(mark));
+        ring.release();
+        assertTrue(ring.consumed(mark));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityMustBePowerOfTwo() {
+        new LogRing(6);
+    }
+
+    @Test
+    public void testConcurrentProducersLoseNothing() throws InterruptedException {
+        LogRing ring = new LogRing(1024);
+        int producers = 4;
+        int perProducer = 20000;
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+
+        for (int p = 0; p < producers; p++) {
+            int id = p;
+            threads[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++)
+                    while (!ring.offer(0, Logger.Level.INFO, id + ":" + i))
+                        Thread.yield();
+            });
+            threads[p].start();
+        }
+
+        start.countDown();
+        Set<String> seen = new HashSet<>();
+        int[] next = new int[producers];
+        while (seen.size() < producers * perProducer) {
+            LogRing.Record record = ring.peek();
+            if (record == null)
+                continue;
+            String[] parts = record.message.split(":");
+            int producer = Integer.parseInt(parts[0]);
+            assertEquals(next[producer]++, Integer.parseInt(parts[1]));
+            assertTrue(seen.add(record.message));
+            ring.release();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+        assertNull(ring.peek());
+    }
+}
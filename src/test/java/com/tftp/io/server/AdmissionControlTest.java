@@ -0,0 +1,154 @@
+package com.tftp.io.server;
+
+import com.tftp.model.client.ClientModel;
+import com.tftp.model.packet.TFTPError;
+import com.tftp.model.packet.TFTPRequest;
+import com.tftp.model.protocol.TFTPProtocol;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControlTest {
+    @Rule
+    public final LoopbackServer loopback = new LoopbackServer();
+
+    private TFTPServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        loopback.putServerFile("image.bin", new byte[400 * 1024]);
+        loopback.putServerFile("small.bin", new byte[1000]);
+    }
+
+    @Test
+    public void testDuplicatesCapacityAndRelease() throws Exception {
+        AdmissionControl admission = new AdmissionControl(2, new ServerConfig());
+        InetSocketAddress client = new InetSocketAddress(InetAddress.getLoopbackAddress(), 5000);
+
+        SessionTable.Entry first = admission.getSessions().entry(client, TFTPProtocol.RRQ, "a");
+        assertEquals(AdmissionControl.Verdict.ADMITTED, admission.admit(first));
+        assertEquals(AdmissionControl.Verdict.DUPLICATE, admit(admission, client, TFTPProtocol.RRQ, "a"));
+        assertEquals(AdmissionControl.Verdict.ADMITTED, admit(admission, client, TFTPProtocol.RRQ, "b"));
+        assertEquals(AdmissionControl.Verdict.BUSY, admit(admission, client, TFTPProtocol.WRQ, "a"));
+
+        first.release();
+        first.release();
+        assertEquals(1, admission.getSessions().getSize());
+        assertEquals(AdmissionControl.Verdict.ADMITTED, admit(admission, client, TFTPProtocol.RRQ, "a"));
+    }
+
+    @Test
+    public void testRequestRateIsPerSource() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setRequestRatePerSource(1, 2);
+        AdmissionControl admission = new AdmissionControl(100, config);
+        InetSocketAddress client = new InetSocketAddress(InetAddress.getByName("10.0.0.1"), 5000);
+        InetSocketAddress other = new InetSocketAddress(InetAddress.getByName("10.0.0.2"), 5000);
+
+        assertEquals(AdmissionControl.Verdict.ADMITTED, admit(admission, client, TFTPProtocol.RRQ, "1"));
+        assertEquals(AdmissionControl.Verdict.ADMITTED, admit(admission, client, TFTPProtocol.RRQ, "2"));
+        assertEquals(AdmissionControl.Verdict.RATE_LIMITED, admit(admission, client, TFTPProtocol.RRQ, "3"));
+        assertEquals(AdmissionControl.Verdict.ADMITTED, admit(admission, other, TFTPProtocol.RRQ, "3"));
+    }
+
+    @Test
+    public void testSaturatedServerRepliesBusy() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setThreadPoolSize(1);
+        config.setAdmissionQueue(0);
+        // Keeps the only transfer thread busy for most of a second.
+        config.setRateLimits(0, 0, 500 * 1024);
+        server = loopback.start(config);
+
+        AtomicBoolean firstDone = new AtomicBoolean();
+        Thread first = new Thread(() ->
+                firstDone.set(loopback.newClient().downloadFile("image.bin", new ClientModel())));
+        first.start();
+        for (int i = 0; i < 100 && server.getMetrics().getActiveSessions() == 0; i++)
+            Thread.sleep(10);
+
+        ClientModel model = new ClientModel();
+        assertFalse(loopback.newClient().downloadFile("small.bin", model));
+        assertEquals(1, server.getMetrics().getBusyRequests());
+        assertTrue(String.join("\n", model.getLogMessages()), model.getLogMessages().stream()
+                .anyMatch(line -> line.contains("Server busy")));
+
+        first.join();
+        assertTrue(firstDone.get());
+        // The client is done once it sends the last ACK; the server releases the session just after.
+        for (int i = 0; i < 100 && server.getSessionTable().getSize() > 0; i++)
+            Thread.sleep(10);
+        assertTrue(loopback.newClient().downloadFile("small.bin", new ClientModel()));
+    }
+
+    @Test
+    public void testRetransmittedRequestDoesNotStartSecondTransfer() throws Exception {
+        server = loopback.start(new ServerConfig());
+        byte[] rrq = new TFTPRequest(TFTPProtocol.RRQ, "image.bin").toBytes();
+        InetSocketAddress serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), loopback.getPort());
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(2000);
+            socket.send(new DatagramPacket(rrq, rrq.length, serverAddress));
+            socket.send(new DatagramPacket(rrq, rrq.length, serverAddress));
+
+            DatagramPacket data = new DatagramPacket(new byte[TFTPProtocol.PACKET_SIZE], TFTPProtocol.PACKET_SIZE);
+            socket.receive(data);
+            assertEquals(TFTPProtocol.DATA, (short) (((data.getData()[0] & 0xFF) << 8) | (data.getData()[1] & 0xFF)));
+            for (int i = 0; i < 100 && server.getMetrics().getDuplicateRequests() == 0; i++)
+                Thread.sleep(10);
+
+            assertEquals(1, server.getMetrics().getSessionsStarted());
+            assertEquals(1, server.getMetrics().getDuplicateRequests());
+
+            byte[] abort = new TFTPError(TFTPProtocol.ERR_NOT_DEFINED, "done").toBytes();
+            socket.send(new DatagramPacket(abort, abort.length, data.getSocketAddress()));
+        }
+    }
+
+    @Test
+    public void testSelectorResendsFirstBlockOnDuplicateRequest() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setEngine(ServerConfig.Engine.SELECTOR);
+        server = loopback.start(config);
+        byte[] rrq = new TFTPRequest(TFTPProtocol.RRQ, "image.bin").toBytes();
+        InetSocketAddress serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), loopback.getPort());
+
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(2000);
+            socket.send(new DatagramPacket(rrq, rrq.length, serverAddress));
+            DatagramPacket data = new DatagramPacket(new byte[TFTPProtocol.PACKET_SIZE], TFTPProtocol.PACKET_SIZE);
+            socket.receive(data);
+
+            // Well inside the initial retransmission timeout, so only the duplicate can trigger it.
+            long sent = System.nanoTime();
+            socket.send(new DatagramPacket(rrq, rrq.length, serverAddress));
+            DatagramPacket again = new DatagramPacket(new byte[TFTPProtocol.PACKET_SIZE], TFTPProtocol.PACKET_SIZE);
+            socket.receive(again);
+            assertTrue((System.nanoTime() - sent) / 1_000_000 < 500);
+            assertEquals(data.getSocketAddress(), again.getSocketAddress());
+            assertEquals(1, again.getData()[3]);
+
+            assertEquals(1, server.getMetrics().getSessionsStarted());
+            assertEquals(1, server.getMetrics().getDuplicateRequests());
+            assertTrue(server.getSessionTable().getSessions().toString(),
+                    server.getSessionTable().getSessions().get(0).endsWith("1 duplicate(s)"));
+
+            byte[] abort = new TFTPError(TFTPProtocol.ERR_NOT_DEFINED, "done").toBytes();
+            socket.send(new DatagramPacket(abort, abort.length, data.getSocketAddress()));
+        }
+    }
+
+    private static AdmissionControl.Verdict admit(AdmissionControl admission, InetSocketAddress client,
+                                                  short opcode, String filename) {
+        return admission.admit(admission.getSessions().entry(client, opcode, filename));
+    }
+}
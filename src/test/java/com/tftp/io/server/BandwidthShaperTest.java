@@ -0,0 +1,124 @@
+package com.tftp.io.server;
+
+import com.tftp.model.client.ClientModel;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BandwidthShaperTest {
+    private static final int SIZE = 400 * 1024;
+    private static final long RATE = 500 * 1024;
+
+    @Rule
+    public final LoopbackServer loopback = new LoopbackServer();
+
+    @Before
+    public void setUp() throws Exception {
+        byte[] content = LoopbackServer.randomBytes(SIZE, 18);
+        loopback.putServerFile("a.bin", content);
+        loopback.putServerFile("b.bin", content);
+        loopback.putClientFile("upload.bin", content);
+        loopback.putServerFile("warmup.bin", new byte[1024]);
+    }
+
+    @Test
+    public void testBucketSpacesReservationsAfterBurst() {
+        TokenBucket bucket = new TokenBucket();
+        long now = System.nanoTime();
+        // 1000 bytes at 1 MB/s cost 1 ms each; a full bucket lets 100 ms worth go out at once, on
+        // top of the packet that drains it.
+        for (int i = 0; i <= 100; i++)
+            assertEquals(now, bucket.reserve(1000, now, 1_000_000));
+        long sendAt = bucket.reserve(1000, now, 1_000_000);
+        assertTrue(sendAt - now > 0);
+        assertEquals(1_000_000, bucket.reserve(1000, now, 1_000_000) - sendAt);
+        assertEquals(now, bucket.reserve(1000, now, 0));
+    }
+
+    @Test
+    public void testClientsAreGroupedBySubnet() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setClientPrefix(24, 64);
+        BandwidthShaper shaper = new BandwidthShaper(config);
+
+        assertEquals(InetAddress.getByName("10.1.2.0"), shaper.subnetOf(InetAddress.getByName("10.1.2.200")));
+        assertEquals(InetAddress.getByName("2001:db8:1:2::"),
+                shaper.subnetOf(InetAddress.getByName("2001:db8:1:2:aaaa:bbbb:cccc:dddd")));
+
+        BandwidthShaper.Flow first = shaper.open(InetAddress.getByName("10.1.2.3"));
+        BandwidthShaper.Flow second = shaper.open(InetAddress.getByName("10.1.2.4"));
+        BandwidthShaper.Flow other = shaper.open(InetAddress.getByName("10.1.3.4"));
+        assertEquals(2, shaper.getActiveClients());
+        first.close();
+        first.close();
+        second.close();
+        other.close();
+        assertEquals(0, shaper.getActiveClients());
+    }
+
+    @Test
+    public void testSessionRateLimitsDownload() throws Exception {
+        startServer(ServerConfig.Engine.THREADS, 0, RATE);
+        assertPaced(() -> loopback.newClient().downloadFile("a.bin", new ClientModel()), SIZE);
+    }
+
+    @Test
+    public void testSessionRateLimitsDownloadOnSelectorEngine() throws Exception {
+        startServer(ServerConfig.Engine.SELECTOR, 0, RATE);
+        assertPaced(() -> loopback.newClient().downloadFile("a.bin", new ClientModel()), SIZE);
+    }
+
+    @Test
+    public void testSessionRateLimitsUploadOnSelectorEngine() throws Exception {
+        startServer(ServerConfig.Engine.SELECTOR, 0, RATE);
+        assertPaced(() -> loopback.newClient().uploadFile("upload.bin", new ClientModel()), SIZE);
+        assertTrue(loopback.getServer().getShaper().getDelayedPackets() > 0);
+    }
+
+    @Test
+    public void testGlobalRateIsSharedByConcurrentTransfers() throws Exception {
+        startServer(ServerConfig.Engine.SELECTOR, RATE, 0);
+        assertPaced(() -> loopback.newClient().downloadFiles(Arrays.asList("a.bin", "b.bin"), new ClientModel())
+                .isSuccessful(), 2 * SIZE);
+    }
+
+    @Test
+    public void testRateChangesApplyWhileRunning() throws Exception {
+        startServer(ServerConfig.Engine.THREADS, 0, 0);
+        loopback.getServer().getShaper().setSessionRate(RATE);
+        assertPaced(() -> loopback.newClient().downloadFile("a.bin", new ClientModel()), SIZE);
+        loopback.getServer().getShaper().setSessionRate(0);
+        long start = System.nanoTime();
+        assertTrue(loopback.newClient().downloadFile("b.bin", new ClientModel()));
+        assertTrue((System.nanoTime() - start) / 1_000_000 < 500);
+    }
+
+    private interface Transfer {
+        boolean run() throws Exception;
+    }
+
+    // The bucket starts full, so the first 100 ms worth of traffic is free.
+    private static void assertPaced(Transfer transfer, long bytes) throws Exception {
+        long start = System.nanoTime();
+        assertTrue(transfer.run());
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        long expectedMillis = bytes * 1000 / RATE - 100;
+        assertTrue("took " + elapsedMillis + " ms, expected at least " + expectedMillis,
+                elapsedMillis >= expectedMillis * 9 / 10);
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis < expectedMillis * 3);
+    }
+
+    private void startServer(ServerConfig.Engine engine, long globalRate, long sessionRate) throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setEngine(engine);
+        config.setRateLimits(globalRate, 0, sessionRate);
+        loopback.start(config);
+        // The first transfer pays for class loading and JIT warm-up; keep it out of the timings.
+        assertTrue(loopback.newClient().downloadFile("warmup.bin", new ClientModel()));
+    }
+}
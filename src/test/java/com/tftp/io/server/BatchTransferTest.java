@@ -0,0 +1,79 @@
+package com.tftp.io.server;
+
+import com.tftp.io.client.BatchResult;
+import com.tftp.io.client.TFTPClient;
+import com.tftp.model.client.ClientModel;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BatchTransferTest {
+    private static final int FILES = 24;
+
+    @Rule
+    public final LoopbackServer loopback = new LoopbackServer();
+
+    @Before
+    public void setUp() throws Exception {
+        loopback.start(new ServerConfig());
+    }
+
+    @Test
+    public void testUploadMatchingAndDownloadBack() throws Exception {
+        Random random = new Random(14);
+        long total = 0;
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            byte[] content = new byte[1000 + random.nextInt(20_000)];
+            random.nextBytes(content);
+            loopback.putClientFile("switch" + i + ".cfg", content);
+            names.add("switch" + i + ".cfg");
+            total += content.length;
+        }
+        loopback.putClientFile("notes.txt", new byte[10]);
+
+        TFTPClient client = loopback.newClient();
+        client.setParallelism(6);
+        BatchResult uploaded = client.uploadMatching("*.cfg", new ClientModel());
+        assertTrue(uploaded.summary(), uploaded.isSuccessful());
+        assertEquals(FILES, uploaded.getSucceeded().size());
+        assertFalse(loopback.serverFile("notes.txt").exists());
+
+        File downloadDirectory = loopback.newDirectory("download");
+        TFTPClient downloader = loopback.newClient(downloadDirectory);
+        downloader.setParallelism(6);
+        ClientModel model = new ClientModel();
+        BatchResult downloaded = downloader.downloadFiles(names, model);
+        assertTrue(downloaded.summary(), downloaded.isSuccessful());
+        assertEquals(total, model.getTotalSize());
+        assertEquals(total, model.getCurrentProgress());
+        for (String name : names)
+            assertArrayEquals(name, Files.readAllBytes(loopback.clientFile(name).toPath()),
+                    Files.readAllBytes(new File(downloadDirectory, name).toPath()));
+    }
+
+    @Test
+    public void testFailuresAreSummarised() throws Exception {
+        loopback.putServerFile("present.cfg", new byte[3000]);
+
+        TFTPClient client = loopback.newClient();
+        List<String> names = new ArrayList<>();
+        names.add("present.cfg");
+        names.add("missing.cfg");
+        BatchResult result = client.downloadFiles(names, new ClientModel());
+
+        assertFalse(result.isSuccessful());
+        assertEquals(1, result.getSucceeded().size());
+        assertTrue(result.getFailures().containsKey("missing.cfg"));
+        assertTrue(result.summary(), result.summary().startsWith("1 of 2 file(s) transferred"));
+        assertFalse(client.isTransferInProgress());
+    }
+}
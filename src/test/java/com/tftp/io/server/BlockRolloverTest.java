@@ -0,0 +1,59 @@
+package com.tftp.io.server;
+
+import com.tftp.io.client.TFTPClient;
+import com.tftp.model.client.ClientModel;
+import com.tftp.model.protocol.TFTPProtocol;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+// Loopback transfers of files well past 65535 blocks. The minimum block size keeps them small.
+public class BlockRolloverTest {
+    private static final int BLOCKS = 70000;
+
+    @Rule
+    public final LoopbackServer loopback = new LoopbackServer();
+
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        content = LoopbackServer.randomBytes(BLOCKS * TFTPProtocol.MIN_BLOCK_SIZE + 3, 11);
+        loopback.putServerFile("image.bin", content);
+        loopback.putClientFile("upload.bin", content);
+    }
+
+    @Test
+    public void testRolloverToZero() throws Exception {
+        transferBothWays(ServerConfig.Engine.THREADS, 0);
+    }
+
+    @Test
+    public void testRolloverToOne() throws Exception {
+        transferBothWays(ServerConfig.Engine.SELECTOR, 1);
+    }
+
+    private void transferBothWays(ServerConfig.Engine engine, int rollover) throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setEngine(engine);
+        config.setBlockRollover(rollover);
+        loopback.start(config);
+
+        TFTPClient client = loopback.newClient();
+        client.setBlockSize(TFTPProtocol.MIN_BLOCK_SIZE);
+        client.setWindowSize(16);
+        client.setBlockRollover(rollover);
+
+        ClientModel model = new ClientModel();
+        assertTrue(model.getStatus(), client.downloadFile("image.bin", model));
+        assertArrayEquals(content, Files.readAllBytes(loopback.clientFile("image.bin").toPath()));
+
+        assertTrue(model.getStatus(), client.uploadFile("upload.bin", model));
+        assertArrayEquals(content, Files.readAllBytes(loopback.serverFile("upload.bin").toPath()));
+    }
+}
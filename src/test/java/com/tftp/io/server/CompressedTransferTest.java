@@ -0,0 +1,93 @@
+package com.tftp.io.server;
+
+import com.tftp.io.client.TFTPClient;
+import com.tftp.model.client.ClientModel;
+import com.tftp.model.protocol.StreamDigest;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompressedTransferTest {
+    @Rule
+    public final LoopbackServer loopback = new LoopbackServer();
+
+    private byte[] config;
+
+    @Before
+    public void setUp() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++)
+            text.append("option host-").append(i % 97).append(" next-server 10.0.0.").append(i % 250).append(";\n");
+        config = text.toString().getBytes(StandardCharsets.US_ASCII);
+        Files.write(loopback.serverFile("dhcpd.conf").toPath(), config);
+    }
+
+    @Test
+    public void testCompressibleFileIsSentDeflated() throws Exception {
+        loopback.start(ServerConfig.Engine.THREADS);
+        assertDeflated();
+        assertTrue(loopback.serverFile("dhcpd.conf" + DeflatedFiles.SUFFIX).isFile());
+    }
+
+    @Test
+    public void testCompressibleFileIsSentDeflatedOnSelectorEngine() throws Exception {
+        loopback.start(ServerConfig.Engine.SELECTOR);
+        assertDeflated();
+    }
+
+    @Test
+    public void testIncompressibleFileIsSentAsIs() throws Exception {
+        byte[] random = new byte[100 * 1024];
+        new Random(24).nextBytes(random);
+        Files.write(loopback.serverFile("random.bin").toPath(), random);
+        loopback.start(ServerConfig.Engine.THREADS);
+
+        ClientModel model = new ClientModel();
+        assertTrue(newClient().downloadFile("random.bin", model));
+        assertArrayEquals(random, Files.readAllBytes(loopback.clientFile("random.bin").toPath()));
+        assertEquals(random.length, model.getWireBytes());
+        assertTrue(model.getLogMessages().stream().noneMatch(line -> line.contains("compress=")));
+    }
+
+    @Test
+    public void testChangedFileIsCompressedAgain() throws Exception {
+        loopback.start(ServerConfig.Engine.THREADS);
+        assertTrue(newClient().downloadFile("dhcpd.conf", new ClientModel()));
+
+        config[10] = '#';
+        File file = loopback.serverFile("dhcpd.conf");
+        RootIndex.Entry before = loopback.getServer().getRootIndex().lookup("dhcpd.conf");
+        Files.write(file.toPath(), config);
+        Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(file.lastModified() + 5000));
+        loopback.awaitIndexed("dhcpd.conf", before);
+        Files.delete(loopback.clientFile("dhcpd.conf").toPath());
+
+        assertDeflated();
+    }
+
+    private void assertDeflated() throws Exception {
+        ClientModel model = new ClientModel();
+        assertTrue(newClient().downloadFile("dhcpd.conf", model));
+        String log = String.join("\n", model.getLogMessages());
+        assertArrayEquals(config, Files.readAllBytes(loopback.clientFile("dhcpd.conf").toPath()));
+        assertTrue(log, log.contains("compress=deflate"));
+        assertTrue(log, log.contains("Verified crc32c"));
+        assertEquals(config.length, model.getCurrentProgress());
+        assertTrue(log, model.getWireBytes() < config.length / 4);
+    }
+
+    private TFTPClient newClient() throws Exception {
+        TFTPClient client = loopback.newClient();
+        client.setCompression(true);
+        client.setDigestAlgorithm(StreamDigest.CRC32C);
+        return client;
+    }
+}
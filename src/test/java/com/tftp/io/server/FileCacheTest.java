@@ -0,0 +1,182 @@
+package com.tftp.io.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.*;
+
+public class FileCacheTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("filecache").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    private File createFile(String name, int size, int seed) throws IOException {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++)
+            content[i] = (byte) (i * 31 + seed);
+        File file = new File(directory, name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static byte[] readAll(BlockSource source, int blockSize) throws IOException {
+        ByteBuffer packet = ByteBuffer.allocate(4 + blockSize);
+        ByteBuffer out = ByteBuffer.allocate((int) source.size());
+        for (long block = 1; block <= source.blockCount(blockSize); block++) {
+            int length = source.readBlock(block, (short) block, blockSize, packet);
+            assertEquals(3, packet.getShort(0));
+            assertEquals((short) block, packet.getShort(2));
+            packet.position(4);
+            out.put(packet);
+            if (length < blockSize)
+                assertEquals(source.blockCount(blockSize), block);
+        }
+        return out.array();
+    }
+
+    @Test
+    public void testSecondOpenIsServedFromCache() throws IOException {
+        File file = createFile("boot.img", 5000, 1);
+        FileCache cache = new FileCache(1 << 20, 1 << 20);
+
+        try (BlockSource first = cache.open(file); BlockSource second = cache.open(file)) {
+            assertArrayEquals(Files.readAllBytes(file.toPath()), readAll(first, 512));
+            assertArrayEquals(Files.readAllBytes(file.toPath()), readAll(second, 1024));
+        }
+
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(5000, cache.getUsedBytes());
+    }
+
+    @Test
+    public void testExactMultipleOfBlockSizeEndsWithEmptyBlock() throws IOException {
+        File file = createFile("even.img", 1024, 2);
+        FileCache cache = new FileCache(1 << 20, 1 << 20);
+
+        try (BlockSource source = cache.open(file)) {
+            ByteBuffer packet = ByteBuffer.allocate(4 + 512);
+            assertEquals(3, source.blockCount(512));
+            assertEquals(0, source.readBlock(3, (short) 3, 512, packet));
+            assertEquals(4, packet.remaining());
+        }
+    }
+
+    @Test
+    public void testPayloadLengthMatchesWhatEachBlockCarries() throws IOException {
+        File file = createFile("short.img", 1300, 9);
+        FileCache cache = new FileCache(1 << 20, 1 << 20);
+
+        try (BlockSource source = cache.open(file)) {
+            ByteBuffer packet = ByteBuffer.allocate(4 + 512);
+            for (long block = 1; block <= source.blockCount(512); block++)
+                assertEquals(source.readBlock(block, (short) block, 512, packet), source.payloadLength(block, 512));
+            source.seek(1000);
+            assertEquals(300, source.payloadLength(1, 512));
+        }
+    }
+
+    @Test
+    public void testIndexEntryIsTakenAsTheFileState() throws IOException {
+        File file = createFile("pxelinux.0", 3000, 10);
+        FileCache cache = new FileCache(1 << 20, 1 << 20);
+        RootIndex.Entry entry = RootIndex.Entry.read(file.toPath().toRealPath());
+        byte[] content = Files.readAllBytes(file.toPath());
+        cache.open(entry).close();
+
+        // The index has not caught up with the change yet, so the cached copy is still served.
+        createFile("pxelinux.0", 3000, 11);
+        try (BlockSource source = cache.open(entry)) {
+            assertArrayEquals(content, readAll(source, 512));
+        }
+        assertEquals(1, cache.getHits());
+
+        Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(file.lastModified() + 5000));
+        try (BlockSource source = cache.open(RootIndex.Entry.read(file.toPath().toRealPath()))) {
+            assertArrayEquals(Files.readAllBytes(file.toPath()), readAll(source, 512));
+        }
+        assertEquals(1, cache.getInvalidations());
+    }
+
+    @Test
+    public void testModifiedFileIsReloaded() throws IOException {
+        File file = createFile("kernel", 3000, 3);
+        FileCache cache = new FileCache(1 << 20, 1 << 20);
+        cache.open(file).close();
+
+        createFile("kernel", 3000, 4);
+        Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(file.lastModified() + 5000));
+
+        try (BlockSource source = cache.open(file)) {
+            assertArrayEquals(Files.readAllBytes(file.toPath()), readAll(source, 512));
+        }
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getInvalidations());
+        assertEquals(1, cache.getEntryCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedFileIsEvicted() throws IOException {
+        File a = createFile("a", 4000, 5);
+        File b = createFile("b", 4000, 6);
+        File c = createFile("c", 4000, 7);
+        FileCache cache = new FileCache(10000, 10000);
+
+        cache.open(a).close();
+        cache.open(b).close();
+        cache.open(a).close();
+        cache.open(c).close();
+
+        assertEquals(1, cache.getEvictions());
+        assertEquals(8000, cache.getUsedBytes());
+
+        cache.open(a).close();
+        assertEquals(2, cache.getHits());
+        cache.open(b).close();
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void testLargeFilesBypassTheCache() throws IOException {
+        File file = createFile("initrd", 9000, 8);
+        FileCache cache = new FileCache(1 << 20, 8192);
+
+        try (BlockSource source = cache.open(file)) {
+            assertTrue(source instanceof FileBlockSource);
+        }
+        assertEquals(1, cache.getBypasses());
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    @Test
+    public void testDisabledCacheReadsFromDisk() throws IOException {
+        File file = createFile("menu", 100, 9);
+        FileCache cache = FileCache.disabled();
+
+        try (BlockSource source = cache.open(file)) {
+            assertTrue(source instanceof FileBlockSource);
+            assertArrayEquals(Files.readAllBytes(file.toPath()), readAll(source, 512));
+        }
+        assertEquals(0, cache.getMisses());
+    }
+}
@@ -0,0 +1,137 @@
+package com.tftp.io.server;
+
+import com.tftp.io.client.TFTPClient;
+import com.tftp.io.logger.Logger;
+import org.junit.rules.ExternalResource;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.util.Random;
+
+// A TFTPServer on a free loopback port for end-to-end tests. The server's root and the client's
+// directory sit side by side in one temporary directory, removed with everything in it after the
+// test, and the log is kept to errors meanwhile. The server itself only runs once start() is
+// called, so a test can configure it first.
+public class LoopbackServer extends ExternalResource {
+    private File directory;
+    private File root;
+    private File clientDirectory;
+    private int port;
+    private TFTPServer server;
+
+    @Override
+    protected void before() throws IOException {
+        directory = Files.createTempDirectory("tftp-test").toFile();
+        root = newDirectory("root");
+        clientDirectory = newDirectory("client");
+        port = freePort();
+        Logger.setLevel(Logger.Level.ERROR);
+    }
+
+    @Override
+    protected void after() {
+        if (server != null)
+            server.stop();
+        Logger.setLevel(Logger.Level.INFO);
+        delete(directory);
+    }
+
+    TFTPServer start(ServerConfig.Engine engine) throws InterruptedException {
+        ServerConfig config = new ServerConfig();
+        config.setEngine(engine);
+        return start(config);
+    }
+
+    // Gives the server thread a moment to bind before the test sends anything.
+    TFTPServer start(ServerConfig config) throws InterruptedException {
+        server = new TFTPServer(port, root.getPath(), config);
+        Thread thread = new Thread(server::start);
+        thread.setDaemon(true);
+        thread.start();
+        Thread.sleep(100);
+        return server;
+    }
+
+    TFTPServer getServer() { return server; }
+    int getPort() { return port; }
+    File getRoot() { return root; }
+    File getClientDirectory() { return clientDirectory; }
+
+    File serverFile(String name) {
+        return new File(root, name);
+    }
+
+    File clientFile(String name) {
+        return new File(clientDirectory, name);
+    }
+
+    void putServerFile(String name, byte[] content) throws IOException {
+        Files.write(serverFile(name).toPath(), content);
+    }
+
+    void putClientFile(String name, byte[] content) throws IOException {
+        Files.write(clientFile(name).toPath(), content);
+    }
+
+    // Another directory next to the root, removed with it.
+    File newDirectory(String name) {
+        File created = new File(directory, name);
+        created.mkdirs();
+        return created;
+    }
+
+    TFTPClient newClient() {
+        return newClient(clientDirectory);
+    }
+
+    TFTPClient newClient(File localDirectory) {
+        try {
+            return new TFTPClient("127.0.0.1", port, localDirectory.getPath());
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // The server finishes its bookkeeping just after the client sees the last packet.
+    void awaitIdle() throws InterruptedException {
+        for (int i = 0; i < 100 && server.getMetrics().getActiveSessions() > 0; i++)
+            Thread.sleep(10);
+    }
+
+    // Reads go by what the root index last saw of a file, and its watcher takes a moment to see a
+    // change. This waits for it to record the file afresh as it is on the disk now, after a test
+    // changed it in place.
+    void awaitIndexed(String name, RootIndex.Entry before) throws InterruptedException {
+        File file = serverFile(name);
+        for (int i = 0; i < 500; i++) {
+            RootIndex.Entry entry = server.getRootIndex().lookup(name);
+            if (entry != before && entry.getModified() == file.lastModified())
+                return;
+            Thread.sleep(10);
+        }
+        throw new AssertionError(name + " was not indexed again");
+    }
+
+    static byte[] randomBytes(int size, long seed) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    static int freePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+}
@@ -0,0 +1,113 @@
+package com.tftp.io.server;
+
+import com.tftp.io.client.TFTPClient;
+import com.tftp.model.client.ClientModel;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MulticastTest {
+    private static final int SIZE = 300_000;
+    private static final int CLIENTS = 4;
+
+    @Rule
+    public final LoopbackServer loopback = new LoopbackServer();
+
+    private byte[] content;
+    private NetworkInterface loopbackInterface;
+    private final AtomicInteger clients = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        content = LoopbackServer.randomBytes(SIZE, 9);
+        loopback.putServerFile("image.bin", content);
+        loopbackInterface = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+    }
+
+    @Test
+    public void testConcurrentClientsShareOneGroup() throws Exception {
+        startServer(ServerConfig.Engine.THREADS);
+        downloadConcurrently();
+    }
+
+    @Test
+    public void testConcurrentClientsShareOneGroupOnSelectorEngine() throws Exception {
+        startServer(ServerConfig.Engine.SELECTOR);
+        downloadConcurrently();
+    }
+
+    @Test
+    public void testServerWithoutMulticastFallsBackToUnicast() throws Exception {
+        startServer(null);
+        ClientModel model = new ClientModel();
+        File directory = download(model);
+        assertArrayEquals(content, Files.readAllBytes(new File(directory, "image.bin").toPath()));
+        assertFalse(usedMulticast(model));
+    }
+
+    // Clients start staggered, so the later ones join a group that is already part-way through the
+    // file and have to fetch its start as master afterwards.
+    private void downloadConcurrently() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            List<Future<File>> downloads = new ArrayList<>();
+            List<ClientModel> models = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                ClientModel model = new ClientModel();
+                models.add(model);
+                downloads.add(executor.submit(() -> download(model)));
+                Thread.sleep(20);
+            }
+
+            for (int i = 0; i < CLIENTS; i++) {
+                File directory = downloads.get(i).get();
+                assertArrayEquals("client " + i, content, Files.readAllBytes(new File(directory, "image.bin").toPath()));
+                assertTrue("client " + i, usedMulticast(models.get(i)));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private File download(ClientModel model) throws Exception {
+        File directory = loopback.newDirectory("client" + clients.incrementAndGet());
+        TFTPClient client = loopback.newClient(directory);
+        client.setBlockSize(1024);
+        client.setMulticast(true);
+        client.setMulticastInterface(loopbackInterface);
+        assertTrue(model.getStatus(), client.downloadFile("image.bin", model));
+        return directory;
+    }
+
+    private static boolean usedMulticast(ClientModel model) {
+        for (String message : new ArrayList<>(model.getLogMessages()))
+            if (message.startsWith("Listening on multicast group"))
+                return true;
+        return false;
+    }
+
+    // A null engine starts a server with multicast switched off.
+    private void startServer(ServerConfig.Engine engine) throws Exception {
+        ServerConfig config = new ServerConfig();
+        if (engine != null) {
+            config.setEngine(engine);
+            int port = loopback.getPort();
+            config.setMulticast(InetAddress.getByName("239.255.77." + (1 + port % 250)), LoopbackServer.freePort(), 1);
+            config.setMulticastInterface(loopbackInterface);
+        }
+        loopback.start(config);
+    }
+}
@@ -0,0 +1,170 @@
+package com.tftp.io.server;
+
+import com.tftp.io.client.TFTPClient;
+import com.tftp.model.client.ClientModel;
+import com.tftp.model.packet.PacketReader;
+import com.tftp.model.packet.TFTPRequest;
+import com.tftp.model.protocol.Netascii;
+import com.tftp.model.protocol.TFTPProtocol;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NetasciiTransferTest {
+    @Rule
+    public final LoopbackServer loopback = new LoopbackServer();
+
+    private byte[] text;
+
+    @Before
+    public void setUp() throws Exception {
+        // Line endings and bare CRs land on every side of the block boundaries.
+        byte[] alphabet = "abc \n\r".getBytes();
+        Random random = new Random(25);
+        text = new byte[60_000];
+        for (int i = 0; i < text.length; i++)
+            text[i] = alphabet[random.nextInt(alphabet.length)];
+        Files.write(loopback.serverFile("boot.cfg").toPath(), text);
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+        loopback.start(ServerConfig.Engine.THREADS);
+        assertDownloaded(1);
+    }
+
+    @Test
+    public void testDownloadOnSelectorEngine() throws Exception {
+        loopback.start(ServerConfig.Engine.SELECTOR);
+        assertDownloaded(8);
+    }
+
+    @Test
+    public void testUpload() throws Exception {
+        loopback.start(ServerConfig.Engine.THREADS);
+        Files.write(loopback.clientFile("notes.txt").toPath(), text);
+        ClientModel model = new ClientModel();
+        assertTrue(model.getStatus(), newClient(4).uploadFile("notes.txt", model));
+        assertArrayEquals(text, Files.readAllBytes(loopback.serverFile("notes.txt").toPath()));
+    }
+
+    @Test
+    public void testMailModeIsRefused() throws Exception {
+        loopback.start(ServerConfig.Engine.THREADS);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(2000);
+            byte[] request = new TFTPRequest(TFTPProtocol.RRQ, "boot.cfg", "mail", Collections.emptyMap()).toBytes();
+            socket.send(new DatagramPacket(request, request.length, 
+                    InetAddress.getLoopbackAddress(), loopback.getPort()));
+            DatagramPacket reply = new DatagramPacket(new byte[TFTPProtocol.PACKET_SIZE], TFTPProtocol.PACKET_SIZE);
+            socket.receive(reply);
+            PacketReader reader = new PacketReader().wrap(reply.getData(), reply.getLength());
+            assertEquals(TFTPProtocol.ERROR, reader.opcode());
+            assertEquals(TFTPProtocol.ERR_ILLEGAL_OPERATION, reader.errorCode());
+        }
+    }
+
+    @Test
+    public void testDownloadWithoutTransferSize() throws Exception {
+        loopback.start(ServerConfig.Engine.THREADS);
+        assertArrayEquals(encode(text), readWithoutOptions());
+    }
+
+    @Test
+    public void testDownloadWithoutTransferSizeOnSelectorEngine() throws Exception {
+        loopback.start(ServerConfig.Engine.SELECTOR);
+        assertArrayEquals(encode(text), readWithoutOptions());
+    }
+
+    @Test
+    public void testBlocksCanBeReadAgain() throws Exception {
+        File file = loopback.serverFile("boot.cfg");
+        byte[] wire = encode(text);
+        BlockSource octets = FileBlockSource.open(file);
+        assertEquals(wire.length, NetasciiBlockSource.measure(octets));
+        try (BlockSource source = new NetasciiBlockSource(octets, wire.length)) {
+            ByteBuffer packet = ByteBuffer.allocate(TFTPProtocol.HEADER_SIZE + 512);
+            long last = source.blockCount(512);
+            ByteArrayOutputStream sent = new ByteArrayOutputStream();
+            for (long block = 1; block <= last; block++) {
+                int length = source.readBlock(block, (short) block, 512, packet);
+                sent.write(packet.array(), TFTPProtocol.HEADER_SIZE, length);
+            }
+            assertArrayEquals(wire, sent.toByteArray());
+
+            for (long block : new long[] {last - 1, 2, last, 1}) {
+                int length = source.readBlock(block, (short) block, 512, packet);
+                int start = (int) (block - 1) * 512;
+                assertArrayEquals(Arrays.copyOfRange(wire, start, start + length),
+                        Arrays.copyOfRange(packet.array(), TFTPProtocol.HEADER_SIZE, TFTPProtocol.HEADER_SIZE + length));
+            }
+        }
+    }
+
+    // A plain netascii RRQ, which leaves the server to find the end of the file as it sends it.
+    private byte[] readWithoutOptions() throws Exception {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(2000);
+            byte[] request = new TFTPRequest(TFTPProtocol.RRQ, "boot.cfg", TFTPProtocol.MODE_NETASCII,
+                    Collections.emptyMap()).toBytes();
+            socket.send(new DatagramPacket(request, request.length, 
+                    InetAddress.getLoopbackAddress(), loopback.getPort()));
+
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            DatagramPacket reply = new DatagramPacket(new byte[TFTPProtocol.PACKET_SIZE], TFTPProtocol.PACKET_SIZE);
+            PacketReader reader = new PacketReader();
+            short expected = 1;
+            while (true) {
+                reply.setData(reply.getData());
+                socket.receive(reply);
+                reader.wrap(reply.getData(), reply.getLength());
+                assertEquals(TFTPProtocol.DATA, reader.opcode());
+                if (reader.blockNumber() != expected)
+                    continue;
+                received.write(reply.getData(), reader.payloadOffset(), reader.payloadLength());
+                byte[] ack = {0, TFTPProtocol.ACK, (byte) (expected >> 8), (byte) expected};
+                socket.send(new DatagramPacket(ack, ack.length, reply.getSocketAddress()));
+                if (reader.payloadLength() < TFTPProtocol.DATA_SIZE)
+                    return received.toByteArray();
+                expected++;
+            }
+        }
+    }
+
+    private void assertDownloaded(int windowSize) throws Exception {
+        ClientModel model = new ClientModel();
+        assertTrue(model.getStatus(), newClient(windowSize).downloadFile("boot.cfg", model));
+        assertArrayEquals(text, Files.readAllBytes(loopback.clientFile("boot.cfg").toPath()));
+        long wireSize = encode(text).length;
+        assertEquals(wireSize, model.getTotalSize());
+        assertEquals(wireSize, model.getWireBytes());
+    }
+
+    private TFTPClient newClient(int windowSize) throws Exception {
+        TFTPClient client = loopback.newClient();
+        client.setMode(TFTPProtocol.MODE_NETASCII);
+        client.setWindowSize(windowSize);
+        return client;
+    }
+
+    private static byte[] encode(byte[] text) {
+        Netascii.Encoder encoder = new Netascii.Encoder();
+        ByteBuffer out = ByteBuffer.allocate(text.length * 2 + 2);
+        encoder.encode(ByteBuffer.wrap(text), out);
+        encoder.finish(out);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+}
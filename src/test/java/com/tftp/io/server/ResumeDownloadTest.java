@@ -0,0 +1,113 @@
+package com.tftp.io.server;
+
+import com.tftp.io.client.TFTPClient;
+import com.tftp.model.client.ClientModel;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ResumeDownloadTest {
+    private static final int SIZE = 600 * 1024;
+
+    @Rule
+    public final LoopbackServer loopback = new LoopbackServer();
+
+    private byte[] content;
+    private TFTPServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        content = LoopbackServer.randomBytes(SIZE, 21);
+        loopback.putServerFile("image.bin", content);
+    }
+
+    @Test
+    public void testStoppedDownloadResumes() throws Exception {
+        server = loopback.start(ServerConfig.Engine.THREADS);
+        assertResumes();
+    }
+
+    @Test
+    public void testStoppedDownloadResumesOnSelectorEngine() throws Exception {
+        server = loopback.start(ServerConfig.Engine.SELECTOR);
+        assertResumes();
+    }
+
+    @Test
+    public void testChangedFileIsDownloadedAgain() throws Exception {
+        server = loopback.start(ServerConfig.Engine.THREADS);
+        long stoppedAt = interruptDownload();
+
+        // Same size, different bytes just before the point the partial copy got to.
+        RootIndex.Entry before = server.getRootIndex().lookup("image.bin");
+        content[(int) stoppedAt - 1] ^= 1;
+        loopback.putServerFile("image.bin", content);
+        loopback.awaitIndexed("image.bin", before);
+
+        ClientModel model = new ClientModel();
+        assertTrue(newClient().downloadFile("image.bin", model));
+        String log = String.join("\n", model.getLogMessages());
+        assertTrue(log, log.contains("File changed on the server, downloading the whole file again"));
+        assertArrayEquals(content, Files.readAllBytes(loopback.clientFile("image.bin").toPath()));
+        assertFalse(loopback.clientFile("image.bin.resume").exists());
+    }
+
+    @Test
+    public void testDownloadWithoutResumeStartsOver() throws Exception {
+        server = loopback.start(ServerConfig.Engine.THREADS);
+        interruptDownload();
+
+        ClientModel model = new ClientModel();
+        assertTrue(loopback.newClient().downloadFile("image.bin", model));
+        assertTrue(model.getLogMessages().stream().noneMatch(line -> line.contains("Resuming")));
+        assertArrayEquals(content, Files.readAllBytes(loopback.clientFile("image.bin").toPath()));
+    }
+
+    private void assertResumes() throws Exception {
+        long stoppedAt = interruptDownload();
+
+        ClientModel model = new ClientModel();
+        assertTrue(newClient().downloadFile("image.bin", model));
+        String log = String.join("\n", model.getLogMessages());
+        assertTrue(log, log.contains("Resuming at byte"));
+        // Only the part after the checkpoint, plus the few kilobytes checked at the seam, is sent again.
+        assertTrue(log, server.getMetrics().getBytesSent() < 2L * SIZE - stoppedAt + 8192);
+        assertArrayEquals(content, Files.readAllBytes(loopback.clientFile("image.bin").toPath()));
+        assertFalse(loopback.clientFile("image.bin.resume").exists());
+    }
+
+    // Stops a paced download part way and returns how far it got.
+    private long interruptDownload() throws Exception {
+        server.getShaper().setSessionRate(400 * 1024);
+        TFTPClient client = newClient();
+        ClientModel model = new ClientModel();
+        AtomicBoolean completed = new AtomicBoolean(true);
+        Thread download = new Thread(() -> completed.set(client.downloadFile("image.bin", model)));
+        download.start();
+        for (int i = 0; i < 500 && model.getCurrentProgress() < SIZE / 3; i++)
+            Thread.sleep(5);
+        client.stopTransfer();
+        download.join();
+        server.getShaper().setSessionRate(0);
+
+        assertFalse(completed.get());
+        assertTrue(loopback.clientFile("image.bin.resume").exists());
+        byte[] partial = Files.readAllBytes(loopback.clientFile("image.bin").toPath());
+        long stoppedAt = model.getCurrentProgress();
+        assertTrue(stoppedAt > 0 && stoppedAt < SIZE);
+        assertArrayEquals(Arrays.copyOf(content, (int) stoppedAt), Arrays.copyOf(partial, (int) stoppedAt));
+        return stoppedAt;
+    }
+
+    private TFTPClient newClient() {
+        TFTPClient client = loopback.newClient();
+        client.setResume(true);
+        return client;
+    }
+}
@@ -0,0 +1,108 @@
+package com.tftp.io.server;
+
+import com.tftp.io.client.TFTPClient;
+import com.tftp.model.client.ClientModel;
+import com.tftp.model.protocol.StreamDigest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class RootIndexTest {
+    @Rule
+    public final LoopbackServer loopback = new LoopbackServer();
+
+    private File serverDirectory;
+    private RootIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        serverDirectory = loopback.getRoot();
+        new File(serverDirectory, "sub").mkdirs();
+        loopback.putServerFile("image.bin", new byte[1000]);
+        loopback.putServerFile("sub/boot.bin", new byte[2000]);
+    }
+
+    @After
+    public void tearDown() {
+        if (index != null)
+            index.close();
+    }
+
+    @Test
+    public void testScanIndexesTree() throws Exception {
+        index = new RootIndex(serverDirectory.getPath());
+        index.watch(FileCache.disabled(), null);
+        await(() -> index.getSize() == 2);
+
+        RootIndex.Entry entry = index.lookup("sub/boot.bin");
+        assertEquals(2000, entry.getSize());
+        assertTrue(entry.isInRoot());
+        assertEquals(1, index.getHits());
+        assertNull(index.lookup("sub"));
+    }
+
+    @Test
+    public void testWatcherFollowsChanges() throws Exception {
+        index = new RootIndex(serverDirectory.getPath());
+        index.watch(FileCache.disabled(), null);
+        await(() -> index.getSize() == 2);
+
+        new File(serverDirectory, "new/deeper").mkdirs();
+        Files.write(new File(serverDirectory, "new/deeper/late.bin").toPath(), new byte[10]);
+        await(() -> index.getSize() == 3);
+        assertNotNull(index.lookup("new/deeper/late.bin"));
+        assertEquals(0, index.getMisses());
+
+        Files.write(new File(serverDirectory, "image.bin").toPath(), new byte[3000]);
+        await(() -> index.lookup("image.bin").getSize() == 3000);
+
+        Files.delete(new File(serverDirectory, "sub/boot.bin").toPath());
+        await(() -> index.getSize() == 2);
+        assertNull(index.lookup("sub/boot.bin"));
+    }
+
+    @Test
+    public void testNamesLeavingRootAreDenied() throws Exception {
+        // A sibling whose name starts with the root's must not count as inside it.
+        File sibling = loopback.newDirectory("root2");
+        Files.write(new File(sibling, "secret").toPath(), new byte[1]);
+        index = new RootIndex(serverDirectory.getPath());
+
+        assertFalse(index.lookup("../root2/secret").isInRoot());
+        assertNull(index.lookup("../root2/missing"));
+        assertTrue(index.lookup("sub/../image.bin").isInRoot());
+        assertFalse(index.contains(index.resolveFile("../root2/upload")));
+        assertTrue(index.contains(index.resolveFile("sub/upload")));
+        // Without a watcher nothing is remembered.
+        assertEquals(0, index.getSize());
+    }
+
+    @Test
+    public void testPrecomputedDigestVerifiesFirstRead() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setCacheCapacityBytes(0);
+        config.setIndexDigest(StreamDigest.CRC32C);
+        TFTPServer server = loopback.start(config);
+        await(() -> server.getRootIndex().getSize() >= 2);
+
+        TFTPClient client = loopback.newClient();
+        client.setDigestAlgorithm(StreamDigest.CRC32C);
+        ClientModel model = new ClientModel();
+        assertTrue(client.downloadFile("image.bin", model));
+        assertTrue(String.join("\n", model.getLogMessages()), model.getLogMessages().stream()
+                .anyMatch(line -> line.startsWith("Verified crc32c")));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 500 && !condition.getAsBoolean(); i++)
+            Thread.sleep(10);
+        assertTrue(condition.getAsBoolean());
+    }
+}
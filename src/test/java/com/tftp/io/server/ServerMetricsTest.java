@@ -0,0 +1,98 @@
+package com.tftp.io.server;
+
+import com.tftp.io.client.TFTPClient;
+import com.tftp.model.client.ClientModel;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class ServerMetricsTest {
+    private static final int SIZE = 200_000;
+
+    @Rule
+    public final LoopbackServer loopback = new LoopbackServer();
+
+    @Before
+    public void setUp() throws Exception {
+        byte[] content = LoopbackServer.randomBytes(SIZE, 16);
+        loopback.putServerFile("image.bin", content);
+        loopback.putClientFile("upload.bin", content);
+    }
+
+    @Test
+    public void testHistogramPercentilesWithinBucketError() {
+        Histogram histogram = new Histogram();
+        for (int value = 1; value <= 10_000; value++)
+            histogram.record(value);
+
+        assertEquals(10_000, histogram.getCount());
+        assertEquals(10_000, histogram.getMax());
+        assertEquals(5000.5, histogram.getMean(), 0.001);
+        assertEquals(5000, histogram.percentile(50), 5000 / 16.0);
+        assertEquals(9900, histogram.percentile(99), 9900 / 16.0);
+        assertEquals(10_000, histogram.percentile(100));
+    }
+
+    @Test
+    public void testHistogramBucketsCoverTheWholeRange() {
+        for (long value : new long[] { 0, 1, 15, 16, 17, 1000, 1L << 40, Long.MAX_VALUE }) {
+            long highest = Histogram.highestValueAt(Histogram.indexOf(value));
+            assertTrue(value + " -> " + highest, highest >= value && highest - value <= value / 16);
+        }
+    }
+
+    @Test
+    public void testMulticastJoinIsNotACompletedTransfer() {
+        ServerMetrics metrics = new ServerMetrics();
+        ServerMetrics.Transfer transfer = metrics.transferStarted();
+        transfer.joinedMulticast();
+        transfer.finish();
+
+        assertEquals(1, metrics.getMulticastJoins());
+        assertEquals(0, metrics.getSessionsCompleted());
+        assertEquals(0, metrics.getSessionsFailed());
+        assertEquals(0, metrics.getActiveSessions());
+        assertEquals(0, metrics.getTransferMillis().getCount());
+    }
+
+    @Test
+    public void testTransfersAreCounted() throws Exception {
+        loopback.start(ServerConfig.Engine.THREADS);
+        transferAndCheck();
+    }
+
+    @Test
+    public void testTransfersAreCountedOnSelectorEngine() throws Exception {
+        loopback.start(ServerConfig.Engine.SELECTOR);
+        transferAndCheck();
+    }
+
+    private void transferAndCheck() throws Exception {
+        TFTPClient client = loopback.newClient();
+        assertTrue(client.downloadFile("image.bin", new ClientModel()));
+        assertTrue(client.uploadFile("upload.bin", new ClientModel()));
+        assertFalse(client.downloadFile("missing.bin", new ClientModel()));
+
+        loopback.awaitIdle();
+        ServerMetrics metrics = loopback.getServer().getMetrics();
+
+        assertEquals(0, metrics.getActiveSessions());
+        assertEquals(3, metrics.getSessionsStarted());
+        assertEquals(2, metrics.getSessionsCompleted());
+        assertEquals(1, metrics.getSessionsFailed());
+        assertEquals(SIZE, metrics.getBytesSent());
+        assertEquals(SIZE, metrics.getBytesReceived());
+        assertEquals(SIZE / 512 + 1, metrics.getBlocksSent());
+        assertEquals(Long.valueOf(1), metrics.getErrorsSent().get("fileNotFound"));
+        assertEquals(2, metrics.getTransferMillis().getCount());
+        assertTrue(metrics.getThroughputBytesPerSecondP50() > 0);
+
+        ObjectName name = new ObjectName("com.tftp:type=ServerMetrics,port=" + loopback.getPort());
+        assertEquals(2L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "SessionsCompleted"));
+    }
+}
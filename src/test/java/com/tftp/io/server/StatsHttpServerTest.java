@@ -0,0 +1,102 @@
+package com.tftp.io.server;
+
+import com.tftp.io.client.TFTPClient;
+import com.tftp.model.client.ClientModel;
+import com.tftp.model.protocol.TFTPProtocol;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class StatsHttpServerTest {
+    @Rule
+    public final LoopbackServer loopback = new LoopbackServer();
+
+    private TFTPServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        loopback.putServerFile("boot.img", new byte[50_000]);
+        ServerConfig config = new ServerConfig();
+        config.setStatsPort(0);
+        server = loopback.start(config);
+        for (int i = 0; i < 100 && server.getStatsAddress() == null; i++)
+            Thread.sleep(10);
+    }
+
+    @Test
+    public void testMetricsInPrometheusFormat() throws Exception {
+        TFTPClient client = loopback.newClient();
+        assertTrue(client.downloadFile("boot.img", new ClientModel()));
+        assertFalse(client.downloadFile("absent.img", new ClientModel()));
+        loopback.awaitIdle();
+
+        InetSocketAddress address = server.getStatsAddress();
+        assertTrue(address.getAddress().isLoopbackAddress());
+        String body = get("/metrics", 200);
+        assertTrue(body, body.contains("# TYPE tftp_sessions_active gauge\ntftp_sessions_active 0\n"));
+        assertTrue(body, body.contains("tftp_bytes_sent_total 50000\n"));
+        assertTrue(body, body.contains("tftp_errors_sent_total{type=\"fileNotFound\"} 1\n"));
+        assertTrue(body, body.contains("tftp_retransmit_ratio 0\n"));
+        assertTrue(body, body.contains("tftp_transfer_duration_seconds_count 1\n"));
+        assertTrue(body, body.contains("tftp_transfer_duration_seconds{quantile=\"0.99\"} "));
+    }
+
+    @Test
+    public void testSessionsAsJson() throws Exception {
+        assertEquals("[]\n", get("/sessions", 200));
+
+        SessionTable sessions = server.getSessionTable();
+        SessionTable.Entry entry = sessions.entry(new InetSocketAddress(InetAddress.getByName("10.1.2.3"), 4000),
+                TFTPProtocol.RRQ, "pxe/\"boot\".0");
+        sessions.add(entry);
+        ServerMetrics.Transfer transfer = server.getMetrics().transferStarted();
+        try {
+            String body = get("/sessions", 200);
+            assertTrue(body, body.contains("\"direction\":\"read\",\"state\":\"queued\""));
+
+            transfer.describe(entry.getClient(), entry.getFilename(), true);
+            entry.started(transfer);
+            transfer.dataSent(1, 512);
+            transfer.dataSent(2, 512);
+            sessions.absorbDuplicate(sessions.entry(entry.getClient(), TFTPProtocol.RRQ, entry.getFilename()));
+            body = get("/sessions", 200);
+            assertTrue(body, body.contains("\"client\":\"10.1.2.3:4000\",\"file\":\"pxe/\\\"boot\\\".0\"," +
+                    "\"direction\":\"read\",\"state\":\"running\",\"block\":2,\"bytes\":1024"));
+            assertTrue(body, body.contains("\"duplicates\":1}"));
+        } finally {
+            transfer.finish();
+            entry.release();
+        }
+    }
+
+    @Test
+    public void testOnlyGetIsAllowed() throws Exception {
+        HttpURLConnection connection = open("/metrics");
+        connection.setRequestMethod("DELETE");
+        assertEquals(405, connection.getResponseCode());
+    }
+
+    private String get(String path, int expectedStatus) throws IOException {
+        HttpURLConnection connection = open(path);
+        assertEquals(expectedStatus, connection.getResponseCode());
+        try (InputStream in = connection.getInputStream()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        InetSocketAddress address = server.getStatsAddress();
+        URL url = new URL("http", address.getAddress().getHostAddress(), address.getPort(), path);
+        return (HttpURLConnection) url.openConnection();
+    }
+}
@@ -0,0 +1,79 @@
+package com.tftp.io.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    private static final long TICK_NANOS = 10_000_000L;
+
+    @Test
+    public void testFiresAfterDelay() {
+        TimerWheel wheel = new TimerWheel(10, 8);
+        long start = System.nanoTime();
+        List<String> fired = new ArrayList<>();
+
+        wheel.schedule(() -> fired.add("a"), 50);
+
+        wheel.advance(start + 2 * TICK_NANOS);
+        assertTrue(fired.isEmpty());
+
+        wheel.advance(start + 7 * TICK_NANOS);
+        assertEquals(1, fired.size());
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testCancelledTimeoutDoesNotFire() {
+        TimerWheel wheel = new TimerWheel(10, 8);
+        long start = System.nanoTime();
+        List<String> fired = new ArrayList<>();
+
+        TimerWheel.Timeout timeout = wheel.schedule(() -> fired.add("a"), 20);
+        timeout.cancel();
+        wheel.advance(start + 5 * TICK_NANOS);
+
+        assertTrue(fired.isEmpty());
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testDelayLongerThanOneRotation() {
+        TimerWheel wheel = new TimerWheel(10, 4);
+        long start = System.nanoTime();
+        List<String> fired = new ArrayList<>();
+
+        wheel.schedule(() -> fired.add("late"), 100);
+
+        wheel.advance(start + 6 * TICK_NANOS);
+        assertTrue(fired.isEmpty());
+
+        wheel.advance(start + 12 * TICK_NANOS);
+        assertEquals(1, fired.size());
+    }
+
+    @Test
+    public void testDelayCountsFromScheduleAfterIdleGap() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(10, 8);
+        List<String> fired = new ArrayList<>();
+        Thread.sleep(150);
+
+        wheel.schedule(() -> fired.add("a"), 100);
+        long scheduled = System.nanoTime();
+
+        wheel.advance(scheduled);
+        assertTrue(fired.isEmpty());
+
+        wheel.advance(scheduled + 12 * TICK_NANOS);
+        assertEquals(1, fired.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSlotCountMustBePowerOfTwo() {
+        new TimerWheel(10, 6);
+    }
+}
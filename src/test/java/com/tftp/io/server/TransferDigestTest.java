@@ -0,0 +1,109 @@
+package com.tftp.io.server;
+
+import com.tftp.io.client.TFTPClient;
+import com.tftp.model.client.ClientModel;
+import com.tftp.model.protocol.StreamDigest;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class TransferDigestTest {
+    private static final int SIZE = 300 * 1024 + 17;
+
+    @Rule
+    public final LoopbackServer loopback = new LoopbackServer();
+
+    private byte[] content;
+
+    @Before
+    public void setUp() throws Exception {
+        content = LoopbackServer.randomBytes(SIZE, 22);
+        loopback.putServerFile("image.bin", content);
+        loopback.putClientFile("upload.bin", content);
+    }
+
+    @Test
+    public void testCachedFileIsVerifiedOnFirstRead() throws Exception {
+        startServer(ServerConfig.Engine.THREADS, true);
+        assertVerified(StreamDigest.SHA_256);
+    }
+
+    @Test
+    public void testUncachedFileIsDigestedByFirstRead() throws Exception {
+        startServer(ServerConfig.Engine.SELECTOR, false);
+        ClientModel model = new ClientModel();
+        assertTrue(newClient(StreamDigest.CRC32C).downloadFile("image.bin", model));
+        assertTrue(model.getLogMessages().contains("Server announced no digest, download not verified"));
+        loopback.awaitIdle();
+        assertVerified(StreamDigest.CRC32C);
+    }
+
+    @Test
+    public void testUploadIsDigestedForLaterReads() throws Exception {
+        startServer(ServerConfig.Engine.THREADS, false);
+        assertTrue(newClient(StreamDigest.CRC32C).uploadFile("upload.bin", new ClientModel()));
+        Files.delete(loopback.clientFile("upload.bin").toPath());
+
+        ClientModel model = new ClientModel();
+        assertTrue(newClient(StreamDigest.CRC32C).downloadFile("upload.bin", model));
+        assertTrue(String.join("\n", model.getLogMessages()),
+                model.getLogMessages().contains("Verified crc32c " + digest(StreamDigest.CRC32C)));
+    }
+
+    @Test
+    public void testChangedContentFailsVerification() throws Exception {
+        startServer(ServerConfig.Engine.THREADS, false);
+        assertTrue(newClient(StreamDigest.CRC32C).downloadFile("image.bin", new ClientModel()));
+        loopback.awaitIdle();
+
+        // Rewritten in place with its size and modification time kept, so the remembered digest
+        // still looks current.
+        File image = loopback.serverFile("image.bin");
+        long modified = image.lastModified();
+        RootIndex.Entry before = loopback.getServer().getRootIndex().lookup("image.bin");
+        content[SIZE / 2] ^= 1;
+        Files.write(image.toPath(), content);
+        assertTrue(image.setLastModified(modified));
+        loopback.awaitIndexed("image.bin", before);
+
+        ClientModel model = new ClientModel();
+        assertFalse(newClient(StreamDigest.CRC32C).downloadFile("image.bin", model));
+        assertEquals("Error: crc32c mismatch for image.bin", model.getStatus());
+    }
+
+    private void assertVerified(String algorithm) throws Exception {
+        ClientModel model = new ClientModel();
+        assertTrue(newClient(algorithm).downloadFile("image.bin", model));
+        assertTrue(String.join("\n", model.getLogMessages()),
+                model.getLogMessages().contains("Verified " + algorithm + " " + digest(algorithm)));
+        assertArrayEquals(content, Files.readAllBytes(loopback.clientFile("image.bin").toPath()));
+    }
+
+    private String digest(String algorithm) {
+        StreamDigest digest = StreamDigest.of(algorithm);
+        digest.update(ByteBuffer.wrap(content));
+        return digest.value();
+    }
+
+    private TFTPClient newClient(String digestAlgorithm) {
+        TFTPClient client = loopback.newClient();
+        client.setBlockSize(1428);
+        client.setWindowSize(8);
+        client.setDigestAlgorithm(digestAlgorithm);
+        return client;
+    }
+
+    private void startServer(ServerConfig.Engine engine, boolean cache) throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setEngine(engine);
+        if (!cache)
+            config.setCacheCapacityBytes(0);
+        loopback.start(config);
+    }
+}
@@ -0,0 +1,84 @@
+package com.tftp.io.server;
+
+import com.tftp.model.client.ClientModel;
+import com.tftp.model.packet.PacketReader;
+import com.tftp.model.packet.TFTPError;
+import com.tftp.model.packet.TFTPOack;
+import com.tftp.model.packet.TFTPRequest;
+import com.tftp.model.protocol.TFTPProtocol;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class TransferSizeTest {
+    private static final int SIZE = 100_000;
+
+    @Rule
+    public final LoopbackServer loopback = new LoopbackServer();
+
+    @Before
+    public void setUp() throws Exception {
+        loopback.putServerFile("image.bin", LoopbackServer.randomBytes(SIZE, 5));
+        loopback.start(new ServerConfig());
+    }
+
+    @Test
+    public void testReadRequestLearnsFileSize() throws IOException {
+        DatagramPacket reply = request(TFTPProtocol.RRQ, "image.bin", 0);
+        TFTPOack oack = TFTPOack.fromBytes(reply.getData(), reply.getLength());
+        assertEquals(Integer.toString(SIZE), oack.getOption(TFTPProtocol.OPTION_TSIZE));
+    }
+
+    @Test
+    public void testWriteRequestLargerThanDiskIsRefused() throws IOException {
+        DatagramPacket reply = request(TFTPProtocol.WRQ, "huge.bin", Long.MAX_VALUE);
+        PacketReader reader = new PacketReader().wrap(reply.getData(), reply.getLength());
+        assertEquals(TFTPProtocol.ERROR, reader.opcode());
+        assertEquals(TFTPProtocol.ERR_DISK_FULL, reader.errorCode());
+        assertFalse(loopback.serverFile("huge.bin").exists());
+    }
+
+    @Test
+    public void testDownloadReportsProgressAgainstFileSize() throws IOException {
+        ClientModel model = new ClientModel();
+        assertTrue(model.getStatus(), loopback.newClient().downloadFile("image.bin", model));
+        assertEquals(SIZE, model.getTotalSize());
+        assertEquals(SIZE, loopback.clientFile("image.bin").length());
+    }
+
+    // Returns the server's first answer and then abandons the transfer.
+    private DatagramPacket request(short opcode, String filename, long size) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(500);
+            byte[] request = new TFTPRequest(opcode, filename, TFTPProtocol.MODE_OCTET,
+                    Collections.singletonMap(TFTPProtocol.OPTION_TSIZE, Long.toString(size))).toBytes();
+            DatagramPacket reply = new DatagramPacket(new byte[TFTPProtocol.PACKET_SIZE], TFTPProtocol.PACKET_SIZE);
+
+            // The server thread may not be listening yet.
+            for (int attempt = 1; ; attempt++) {
+                socket.send(new DatagramPacket(request, request.length, 
+                        InetAddress.getLoopbackAddress(), loopback.getPort()));
+                try {
+                    socket.receive(reply);
+                    break;
+                } catch (SocketTimeoutException e) {
+                    if (attempt == 10)
+                        throw e;
+                }
+            }
+
+            byte[] abort = new TFTPError(TFTPProtocol.ERR_NOT_DEFINED, "Test done").toBytes();
+            socket.send(new DatagramPacket(abort, abort.length, reply.getSocketAddress()));
+            return reply;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.tftp.io.server;
+
+import com.tftp.model.packet.PacketReader;
+import com.tftp.model.packet.PacketWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class UploadFileTest {
+    private File directory;
+    private File target;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("upload").toFile();
+        target = new File(directory, "firmware.bin");
+    }
+
+    @After
+    public void tearDown() {
+        File[] children = directory.listFiles();
+        if (children != null)
+            for (File child : children)
+                child.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void testNothingVisibleUntilCommit() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setWriteBufferBytes(1024);
+        config.setFsyncPolicy(ServerConfig.FsyncPolicy.INTERVAL);
+        config.setFsyncIntervalBytes(4096);
+
+        byte[] content = new byte[20_000];
+        new Random(15).nextBytes(content);
+        UploadFile upload = new UploadFile(target, config);
+        for (int offset = 0; offset < content.length; offset += 700)
+            upload.write(content, offset, Math.min(700, content.length - offset));
+        assertFalse(target.exists());
+
+        assertTrue(upload.commit());
+        upload.abort();
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        assertEquals(1, directory.listFiles().length);
+    }
+
+    @Test
+    public void testFlushingFirstAlwaysMakesRoomForABlock() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setWriteBufferBytes(1024);
+
+        byte[] content = new byte[20_000];
+        new Random(16).nextBytes(content);
+        UploadFile upload = new UploadFile(target, config, 1428);
+        for (int offset = 0; offset < content.length; offset += 1428) {
+            int length = Math.min(1428, content.length - offset);
+            if (!upload.hasRoomFor(length))
+                upload.flush();
+            assertTrue(upload.hasRoomFor(length));
+            upload.write(content, offset, length);
+        }
+
+        assertTrue(upload.commit());
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void testCommitRefusesNameTakenMeanwhile() throws Exception {
+        UploadFile upload = new UploadFile(target, new ServerConfig());
+        upload.write(new byte[] { 1, 2, 3 }, 0, 3);
+        Files.write(target.toPath(), new byte[] { 9 });
+
+        assertFalse(upload.commit());
+        assertArrayEquals(new byte[] { 9 }, Files.readAllBytes(target.toPath()));
+        assertEquals(1, directory.listFiles().length);
+    }
+
+    @Test
+    public void testAbortLeavesNothingBehind() throws Exception {
+        UploadFile upload = new UploadFile(target, new ServerConfig());
+        upload.write(new byte[100], 0, 100);
+        upload.abort();
+
+        assertFalse(target.exists());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void testWritesPayloadFromDirectBuffer() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setFsyncPolicy(ServerConfig.FsyncPolicy.NONE);
+        config.setWriteBufferBytes(512);
+
+        byte[] payload = new byte[1200];
+        new Random(16).nextBytes(payload);
+        ByteBuffer packet = ByteBuffer.allocateDirect(4 + payload.length);
+        PacketWriter.data(packet, (short) 1, payload, 0, payload.length);
+
+        UploadFile upload = new UploadFile(target, config);
+        upload.write(new PacketReader().wrap(packet));
+        assertTrue(upload.commit());
+        assertArrayEquals(payload, Files.readAllBytes(target.toPath()));
+    }
+}
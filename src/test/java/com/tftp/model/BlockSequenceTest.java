@@ -0,0 +1,63 @@
+package com.tftp.model;
+
+import com.tftp.model.protocol.BlockSequence;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BlockSequenceTest {
+
+    @Test
+    public void testRolloverToZero() {
+        BlockSequence blocks = new BlockSequence(0);
+        assertEquals((short) 65535, blocks.wire(65535));
+        assertEquals(0, blocks.wire(65536));
+        assertEquals(1, blocks.wire(65537));
+        assertEquals(0, blocks.wire(131072));
+    }
+
+    @Test
+    public void testRolloverToOne() {
+        BlockSequence blocks = new BlockSequence(1);
+        assertEquals((short) 65535, blocks.wire(65535));
+        assertEquals(1, blocks.wire(65536));
+        assertEquals((short) 65535, blocks.wire(131070));
+        assertEquals(1, blocks.wire(131071));
+    }
+
+    @Test
+    public void testDistanceAcrossTheWrap() {
+        for (int rollover = 0; rollover <= 1; rollover++) {
+            BlockSequence blocks = new BlockSequence(rollover);
+            long base = 65533;
+            for (int step = 0; step < 8; step++)
+                assertEquals(step, blocks.distance(base, blocks.wire(base + step)));
+            assertTrue(blocks.isPrevious(blocks.distance(65536, blocks.wire(65535))));
+            assertTrue(blocks.isPrevious(blocks.distance(1, (short) 0)));
+            assertFalse(blocks.isAhead(blocks.distance(65540, blocks.wire(65530))));
+        }
+    }
+
+    @Test
+    public void testOptionAckIsBlockZero() {
+        assertEquals(0, new BlockSequence(1).distance(0, (short) 0));
+        assertEquals(0, new BlockSequence(0).distance(0, (short) 0));
+    }
+
+    @Test
+    public void testReceiverFollowsSenderAtTheWrap() {
+        BlockSequence zero = new BlockSequence(0);
+        BlockSequence one = new BlockSequence(1);
+
+        assertEquals(0, one.follow(65536, (short) 0, false).getRollover());
+        assertEquals(1, zero.follow(65536, (short) 1, true).getRollover());
+        // In a window, 1 may just be the block after a lost 0.
+        assertSame(zero, zero.follow(65536, (short) 1, false));
+        assertSame(one, one.follow(100, (short) 0, true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOnlyZeroOrOne() {
+        new BlockSequence(2);
+    }
+}
@@ -73,11 +73,33 @@ public class ClientModelTest {
         assertEquals(1024, model.getTotalSize());
     }
 
+    @Test
+    public void testFileModelsAddUpToBatchProgress() {
+        ClientModel model = new ClientModel();
+        TestListener listener = new TestListener();
+        model.setListener(listener);
+
+        ClientModel first = model.forFile("a.cfg");
+        ClientModel second = model.forFile("b.cfg");
+        first.updateProgress(100, 400);
+        second.updateProgress(50, 200);
+        first.updateStatus("Download completed: a.cfg");
+
+        assertEquals(100, first.getCurrentProgress());
+        assertEquals("Download completed: a.cfg", first.getStatus());
+        assertEquals(150, model.getCurrentProgress());
+        assertEquals(600, model.getTotalSize());
+        assertEquals("b.cfg", listener.lastFile);
+        assertEquals("a.cfg: Download completed: a.cfg", listener.lastLog);
+        assertEquals("Ready", model.getStatus());
+    }
+
     class TestListener implements ClientModel.ClientModelListener {
         public String lastStatus;
         public String lastLog;
         public long lastCurrent;
         public long lastTotal;
+        public String lastFile;
 
         @Override
         public void onStatusUpdated(String status) {
@@ -94,5 +116,10 @@ public class ClientModelTest {
             lastCurrent = current;
             lastTotal = total;
         }
+
+        @Override
+        public void onFileProgressUpdated(String filename, long current, long total) {
+            lastFile = filename;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,96 @@
+package com.tftp.model;
+
+import com.tftp.model.protocol.Netascii;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class NetasciiTest {
+    private static final String LF_TEXT = "a\nb\rc\r\n\n\r";
+    private static final String WIRE = "a\r\nb\r\0c\r\0\r\n\r\n\r\0";
+
+    @Test
+    public void testEncodeLfText() {
+        assertEquals(WIRE, encode(new Netascii.Encoder(false), LF_TEXT, 64, 64));
+    }
+
+    @Test
+    public void testEncodeCrlfText() {
+        assertEquals("a\r\nb\r\0c\r\n\r\n\r\0", encode(new Netascii.Encoder(true), "a\r\nb\rc\r\n\n\r", 64, 64));
+    }
+
+    @Test
+    public void testDecodeToLfAndCrlf() {
+        assertEquals(LF_TEXT, decode(new Netascii.Decoder(false), WIRE, 64, 64));
+        assertEquals("a\r\nb\rc\r\r\n\r\n\r", decode(new Netascii.Decoder(true), WIRE, 64, 64));
+    }
+
+    @Test
+    public void testSplitsAtEveryBoundary() {
+        for (int in = 1; in <= 4; in++) {
+            for (int out = 1; out <= 4; out++) {
+                assertEquals(WIRE, encode(new Netascii.Encoder(false), LF_TEXT, in, out));
+                assertEquals(LF_TEXT, decode(new Netascii.Decoder(false), WIRE, in, out));
+            }
+        }
+    }
+
+    @Test
+    public void testLenientDecode() {
+        assertEquals("a\rb\nc", decode(new Netascii.Decoder(false), "a\rb\nc", 64, 64));
+    }
+
+    @Test
+    public void testCopyCarriesOn() {
+        Netascii.Encoder encoder = new Netascii.Encoder(false);
+        ByteBuffer out = ByteBuffer.allocate(1);
+        encoder.encode(ByteBuffer.wrap(new byte[] {'\n'}), out);
+        Netascii.Encoder copy = encoder.copy();
+        ByteBuffer rest = ByteBuffer.allocate(4);
+        copy.finish(rest);
+        assertEquals(1, rest.position());
+        assertEquals('\n', rest.get(0));
+    }
+
+    private static String encode(Netascii.Encoder encoder, String text, int inSize, int outSize) {
+        return translate(text, inSize, outSize, encoder::encode, encoder::finish);
+    }
+
+    private static String decode(Netascii.Decoder decoder, String text, int inSize, int outSize) {
+        return translate(text, inSize, outSize, decoder::decode, decoder::finish);
+    }
+
+    private interface Step {
+        void run(ByteBuffer in, ByteBuffer out);
+    }
+
+    private interface Finish {
+        boolean run(ByteBuffer out);
+    }
+
+    // Feeds text through in chunks of inSize into buffers of outSize.
+    private static String translate(String text, int inSize, int outSize, Step step, Finish finish) {
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ByteBuffer out = ByteBuffer.allocate(outSize);
+        for (int start = 0; start < bytes.length; start += inSize) {
+            ByteBuffer in = ByteBuffer.wrap(bytes, start, Math.min(inSize, bytes.length - start));
+            while (in.hasRemaining()) {
+                out.clear();
+                step.run(in, out);
+                result.write(out.array(), 0, out.position());
+            }
+        }
+        boolean finished;
+        do {
+            out.clear();
+            finished = finish.run(out);
+            result.write(out.array(), 0, out.position());
+        } while (!finished);
+        return new String(result.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,132 @@
+package com.tftp.model;
+
+import com.tftp.model.packet.PacketReader;
+import com.tftp.model.packet.PacketWriter;
+import com.tftp.model.packet.TFTPAck;
+import com.tftp.model.packet.TFTPData;
+import com.tftp.model.packet.TFTPError;
+import com.tftp.model.protocol.TFTPProtocol;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class PacketCodecTest {
+
+    @Test
+    public void testReaderDecodesDataInPlace() throws IOException {
+        byte[] payload = {7, 8, 9};
+        byte[] bytes = new TFTPData((short) 42, payload).toBytes();
+        byte[] received = new byte[TFTPProtocol.PACKET_SIZE];
+        System.arraycopy(bytes, 0, received, 0, bytes.length);
+
+        PacketReader reader = new PacketReader().wrap(received, bytes.length);
+
+        assertTrue(reader.hasHeader());
+        assertEquals(TFTPProtocol.DATA, reader.opcode());
+        assertEquals(42, reader.blockNumber());
+        assertEquals(4, reader.payloadOffset());
+        assertEquals(3, reader.payloadLength());
+        assertSame(received, reader.buffer().array());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        reader.writePayload(out);
+        assertArrayEquals(payload, out.toByteArray());
+    }
+
+    @Test
+    public void testReaderReusesViewOfSameArray() {
+        byte[] received = new TFTPAck((short) 1).toBytes();
+        PacketReader reader = new PacketReader();
+
+        ByteBuffer first = reader.wrap(received, received.length).buffer();
+        received[3] = 2;
+        ByteBuffer second = reader.wrap(received, received.length).buffer();
+
+        assertSame(first, second);
+        assertEquals(2, reader.blockNumber());
+    }
+
+    @Test
+    public void testReaderHonoursBufferPosition() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(32);
+        buffer.position(10);
+        buffer.putShort(TFTPProtocol.DATA).putShort((short) -2).put(new byte[]{1, 2});
+        buffer.flip().position(10);
+
+        PacketReader reader = new PacketReader().wrap(buffer);
+
+        assertEquals(TFTPProtocol.DATA, reader.opcode());
+        assertEquals(65534, reader.blockNumber() & 0xFFFF);
+        assertEquals(2, reader.payloadLength());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        reader.writePayload(out);
+        assertArrayEquals(new byte[]{1, 2}, out.toByteArray());
+        assertEquals(10, buffer.position());
+    }
+
+    @Test
+    public void testReaderDecodesError() {
+        byte[] bytes = new TFTPError(TFTPProtocol.ERR_FILE_NOT_FOUND, "File not found").toBytes();
+        PacketReader reader = new PacketReader().wrap(bytes, bytes.length);
+
+        assertEquals(TFTPProtocol.ERROR, reader.opcode());
+        assertEquals(TFTPProtocol.ERR_FILE_NOT_FOUND, reader.errorCode());
+        assertEquals("File not found", reader.errorMessage());
+    }
+
+    @Test
+    public void testShortPacketHasNoHeader() {
+        assertFalse(new PacketReader().wrap(new byte[3], 3).hasHeader());
+    }
+
+    @Test
+    public void testWriterEncodesAckIntoSuppliedBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(TFTPProtocol.HEADER_SIZE);
+
+        assertSame(buffer, PacketWriter.ack(buffer, (short) 9));
+        assertArrayEquals(new TFTPAck((short) 9).toBytes(), buffer.array());
+        assertEquals(4, buffer.remaining());
+
+        PacketWriter.ack(buffer, (short) 10);
+        assertEquals(10, buffer.getShort(2));
+    }
+
+    @Test
+    public void testWriterEncodesDataMatchingWrapper() {
+        byte[] payload = {1, 2, 3, 4, 5};
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        PacketWriter.data(buffer, (short) 3, payload, 1, 3);
+
+        byte[] encoded = new byte[buffer.remaining()];
+        buffer.get(encoded);
+        assertArrayEquals(new TFTPData((short) 3, new byte[]{2, 3, 4}).toBytes(), encoded);
+    }
+
+    @Test
+    public void testDataHeaderLeavesRoomForPayload() {
+        ByteBuffer buffer = ByteBuffer.allocate(TFTPProtocol.PACKET_SIZE);
+
+        PacketWriter.dataHeader(buffer, (short) 5);
+        assertEquals(TFTPProtocol.HEADER_SIZE, buffer.position());
+
+        buffer.put((byte) 99).flip();
+        TFTPData parsed = TFTPData.fromBytes(buffer.array(), buffer.limit());
+        assertEquals(5, parsed.getBlockNumber());
+        assertArrayEquals(new byte[]{99}, parsed.getData());
+    }
+
+    @Test
+    public void testWriterEncodesErrorMatchingWrapper() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        PacketWriter.error(buffer, TFTPProtocol.ERR_DISK_FULL, "Disk full");
+
+        byte[] encoded = new byte[buffer.remaining()];
+        buffer.get(encoded);
+        assertArrayEquals(new TFTPError(TFTPProtocol.ERR_DISK_FULL, "Disk full").toBytes(), encoded);
+    }
+}
@@ -0,0 +1,83 @@
+package com.tftp.model;
+
+import com.tftp.model.protocol.RttEstimator;
+import com.tftp.model.protocol.SendClock;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RttEstimatorTest {
+    private static final long MILLI = 1_000_000L;
+
+    @Test
+    public void testInitialTimeoutUntilFirstSample() {
+        RttEstimator rtt = new RttEstimator(1000, 50, 10000, 6);
+        assertEquals(1000, rtt.timeoutMillis());
+        assertEquals(-1, rtt.getSmoothedRttMicros());
+    }
+
+    @Test
+    public void testFirstSampleSetsTimeoutToThreeRoundTrips() {
+        RttEstimator rtt = new RttEstimator(1000, 50, 10000, 6);
+        rtt.sample(100 * MILLI);
+        // SRTT = R, RTTVAR = R/2, RTO = SRTT + 4 * RTTVAR
+        assertEquals(300, rtt.timeoutMillis());
+        assertEquals(100_000, rtt.getSmoothedRttMicros());
+    }
+
+    @Test
+    public void testStableSamplesConvergeToLowerBound() {
+        RttEstimator rtt = new RttEstimator(1000, 50, 10000, 6);
+        for (int i = 0; i < 100; i++)
+            rtt.sample(2 * MILLI);
+        assertEquals(50, rtt.timeoutMillis());
+    }
+
+    @Test
+    public void testBackoffDoublesUpToUpperBound() {
+        RttEstimator rtt = new RttEstimator(1000, 50, 3000, 6);
+        assertTrue(rtt.backoff());
+        assertEquals(2000, rtt.timeoutMillis());
+        assertTrue(rtt.backoff());
+        assertEquals(3000, rtt.timeoutMillis());
+    }
+
+    @Test
+    public void testRetryBudgetResetsOnProgress() {
+        RttEstimator rtt = new RttEstimator(100, 50, 1000, 3);
+        assertTrue(rtt.backoff());
+        assertTrue(rtt.backoff());
+        rtt.progress();
+        assertTrue(rtt.backoff());
+        assertTrue(rtt.backoff());
+        assertFalse(rtt.backoff());
+    }
+
+    @Test
+    public void testFixedTimeoutIgnoresSamplesAndBackoff() {
+        RttEstimator rtt = RttEstimator.fixed(5000, 6);
+        rtt.sample(MILLI);
+        assertTrue(rtt.backoff());
+        assertEquals(5000, rtt.timeoutMillis());
+        assertTrue(rtt.isFixed());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBoundsAreRejected() {
+        new RttEstimator(1000, 500, 100, 6);
+    }
+
+    @Test
+    public void testRetransmittedBlockYieldsNoSample() {
+        SendClock clock = new SendClock(4);
+        clock.sent(1);
+        clock.sent(2);
+        clock.sent(1);
+        assertEquals(-1, clock.rttFor(1));
+        assertTrue(clock.rttFor(2) >= 0);
+
+        // The slot is reused by a later block, which is timed again.
+        clock.sent(5);
+        assertTrue(clock.rttFor(5) >= 0);
+    }
+}
@@ -0,0 +1,30 @@
+package com.tftp.model;
+
+import com.tftp.model.protocol.StreamDigest;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class StreamDigestTest {
+
+    @Test
+    public void testKnownValuesAcrossUpdates() {
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        StreamDigest crc = StreamDigest.of(StreamDigest.CRC32C);
+        crc.update(check, 0, 4);
+        crc.update(ByteBuffer.wrap(check, 4, 5));
+        assertEquals("e3069283", crc.value());
+
+        StreamDigest sha = StreamDigest.of(StreamDigest.SHA_256);
+        sha.update(ByteBuffer.allocateDirect(3).put("abc".getBytes(StandardCharsets.US_ASCII)).flip());
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", sha.value());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedAlgorithm() {
+        StreamDigest.of("md5");
+    }
+}
@@ -0,0 +1,60 @@
+package com.tftp.model;
+
+import com.tftp.model.packet.TFTPOack;
+import com.tftp.model.protocol.TFTPProtocol;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TFTPOackTest {
+
+    @Test
+    public void testCreateOack() {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put(TFTPProtocol.OPTION_BLKSIZE, "1428");
+        TFTPOack oack = new TFTPOack(options);
+
+        assertEquals(6, oack.getOpcode());
+        assertEquals("1428", oack.getOption(TFTPProtocol.OPTION_BLKSIZE));
+    }
+
+    @Test
+    public void testToBytesAndFromBytes() {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("blksize", "8192");
+        options.put("tsize", "1048576");
+        TFTPOack original = new TFTPOack(options);
+        byte[] bytes = original.toBytes();
+
+        TFTPOack parsed = TFTPOack.fromBytes(bytes, bytes.length);
+
+        assertEquals(original.getOptions(), parsed.getOptions());
+    }
+
+    @Test
+    public void testOptionNamesAreCaseInsensitive() {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("BlkSize", "1024");
+        byte[] bytes = new TFTPOack(options).toBytes();
+
+        TFTPOack parsed = TFTPOack.fromBytes(bytes, bytes.length);
+
+        assertEquals("1024", parsed.getOption("blksize"));
+    }
+
+    @Test
+    public void testEmptyOack() {
+        byte[] bytes = {0, 6};
+        TFTPOack parsed = TFTPOack.fromBytes(bytes, bytes.length);
+        assertTrue(parsed.getOptions().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromBytesTooShort() {
+        byte[] shortData = new byte[1];
+        TFTPOack.fromBytes(shortData, shortData.length);
+    }
+}
@@ -3,6 +3,10 @@ package com.tftp.model;
 import com.tftp.model.packet.TFTPRequest;
 import com.tftp.model.protocol.TFTPProtocol;
 import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import static org.junit.Assert.*;
 
 public class TFTPRequestTest {
@@ -37,6 +41,31 @@ public class TFTPRequestTest {
         assertEquals(original.getMode(), parsed.getMode());
     }
 
+    @Test
+    public void testOptionsRoundTrip() {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put(TFTPProtocol.OPTION_BLKSIZE, "1468");
+        TFTPRequest original = new TFTPRequest(TFTPProtocol.RRQ, "pxelinux.0", "octet", options);
+        byte[] bytes = original.toBytes();
+
+        TFTPRequest parsed = TFTPRequest.fromBytes(bytes, bytes.length);
+
+        assertEquals("pxelinux.0", parsed.getFilename());
+        assertEquals("1468", parsed.getOption(TFTPProtocol.OPTION_BLKSIZE));
+        assertTrue(parsed.hasOptions());
+    }
+
+    @Test
+    public void testParsesModeCaseInsensitively() {
+        TFTPRequest original = new TFTPRequest(TFTPProtocol.RRQ, "boot.cfg", "OCTET", new LinkedHashMap<>());
+        byte[] bytes = original.toBytes();
+
+        TFTPRequest parsed = TFTPRequest.fromBytes(bytes, bytes.length);
+
+        assertEquals("octet", parsed.getMode());
+        assertFalse(parsed.hasOptions());
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testFromBytesTooShort() {
         byte[] shortData = new byte[3];